@@ -3,6 +3,7 @@ package com.jetbrains.lang.dart.analyzer;
 import com.google.dart.engine.AnalysisEngine;
 import com.google.dart.engine.context.AnalysisContext;
 import com.google.dart.engine.context.ChangeSet;
+import com.google.dart.engine.internal.context.AnalysisOptionsImpl;
 import com.google.dart.engine.sdk.DirectoryBasedDartSdk;
 import com.google.dart.engine.source.DartUriResolver;
 import com.google.dart.engine.source.Source;
@@ -10,12 +11,17 @@ import com.google.dart.engine.source.SourceFactory;
 import com.google.dart.engine.source.UriResolver;
 import com.intellij.openapi.Disposable;
 import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.event.DocumentAdapter;
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.fileEditor.FileEditorManager;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.util.Comparing;
 import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.io.FileUtilRt;
 import com.intellij.openapi.vfs.*;
-import com.intellij.reference.SoftReference;
 import com.intellij.util.Function;
 import com.jetbrains.lang.dart.DartFileType;
 import gnu.trove.THashMap;
@@ -24,24 +30,30 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
-import java.lang.ref.WeakReference;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class DartAnalyzerService {
 
+  // contexts are held strongly, so their number and the size of each one's AST cache are limited
+  private static final int MAX_CONTEXTS = 2;
+  private static final int CONTEXT_CACHE_SIZE = 256;
+
   private final Project myProject;
 
-  private @Nullable String mySdkPath;
-  private @Nullable VirtualFile myDartPackagesFolder;
-  private @Nullable WeakReference<AnalysisContext> myAnalysisContextRef;
+  // (SDK path, packages folder) -> context, least recently used first
+  private final LinkedHashMap<Pair<String, VirtualFile>, ContextInfo> myContexts =
+    new LinkedHashMap<Pair<String, VirtualFile>, ContextInfo>(MAX_CONTEXTS + 1, 0.75f, true);
 
-  private final Collection<VirtualFile> myCreatedFiles = Collections.synchronizedSet(new THashSet<VirtualFile>());
+  // all contexts not disposed yet, including the evicted ones which are still in use; guarded by myContexts
+  private final Map<AnalysisContext, ContextInfo> myContextInfos = new IdentityHashMap<AnalysisContext, ContextInfo>();
 
   private final Map<VirtualFile, DartFileBasedSource> myFileToSourceMap =
     Collections.synchronizedMap(new THashMap<VirtualFile, DartFileBasedSource>());
 
+  private final AtomicLong myAnalyzedFilesCount = new AtomicLong();
+  private final AtomicLong myTotalAnalysisTime = new AtomicLong();
+
   public DartAnalyzerService(final Project project) {
     myProject = project;
 
@@ -57,8 +69,13 @@ public class DartAnalyzerService {
       }
 
       public void fileDeleted(@NotNull final VirtualFileEvent event) {
-        if (FileUtilRt.extensionEquals(event.getFileName(), DartFileType.DEFAULT_EXTENSION)) {
-          myFileToSourceMap.remove(event.getFile());
+        if (event.getFile().isDirectory()) {
+          for (VirtualFile file : getMappedFilesUnder(event.getFile())) {
+            sourceRemoved(file);
+          }
+        }
+        else if (FileUtilRt.extensionEquals(event.getFileName(), DartFileType.DEFAULT_EXTENSION)) {
+          sourceRemoved(event.getFile());
         }
       }
 
@@ -77,17 +94,60 @@ public class DartAnalyzerService {
       }
 
       public void fileCreated(@NotNull final VirtualFileEvent event) {
-        if (FileUtilRt.extensionEquals(event.getFileName(), DartFileType.DEFAULT_EXTENSION)) {
-          myCreatedFiles.add(event.getFile());
+        final List<VirtualFile> files = new ArrayList<VirtualFile>();
+        if (event.getFile().isDirectory()) {
+          // a directory moved, copied or renamed with its contents
+          VfsUtilCore.visitChildrenRecursively(event.getFile(), new VirtualFileVisitor() {
+            @Override
+            public boolean visitFile(@NotNull final VirtualFile file) {
+              if (!file.isDirectory() && FileUtilRt.extensionEquals(file.getName(), DartFileType.DEFAULT_EXTENSION)) {
+                files.add(file);
+              }
+              return true;
+            }
+          });
+        }
+        else if (FileUtilRt.extensionEquals(event.getFileName(), DartFileType.DEFAULT_EXTENSION)) {
+          files.add(event.getFile());
+        }
+
+        if (!files.isEmpty()) {
+          synchronized (myContexts) {
+            for (ContextInfo info : myContexts.values()) {
+              info.myCreatedFiles.addAll(files);
+            }
+          }
         }
       }
+
+      public void contentsChanged(@NotNull final VirtualFileEvent event) {
+        fileChanged(event.getFile());
+      }
     };
 
     LocalFileSystem.getInstance().addVirtualFileListener(listener);
 
+    // unsaved editor changes are seen by the analyzer through DartFileBasedSource as well
+    EditorFactory.getInstance().getEventMulticaster().addDocumentListener(new DocumentAdapter() {
+      public void documentChanged(final DocumentEvent event) {
+        final Document document = event.getDocument();
+        final VirtualFile file = FileDocumentManager.getInstance().getFile(document);
+        if (file != null) {
+          fileChanged(file);
+        }
+      }
+    }, project);
+
     Disposer.register(project, new Disposable() {
       public void dispose() {
         LocalFileSystem.getInstance().removeVirtualFileListener(listener);
+        synchronized (myContexts) {
+          for (AnalysisContext context : myContextInfos.keySet()) {
+            context.dispose();
+          }
+          myContextInfos.clear();
+          myContexts.clear();
+        }
       }
     });
   }
@@ -97,67 +157,183 @@ public class DartAnalyzerService {
     return ServiceManager.getService(project, DartAnalyzerService.class);
   }
 
+  private void sourceRemoved(final @NotNull VirtualFile file) {
+    final DartFileBasedSource source = myFileToSourceMap.remove(file);
+    if (source != null) {
+      synchronized (myContexts) {
+        for (ContextInfo info : myContexts.values()) {
+          info.myCreatedFiles.remove(file);
+          info.myChangedFiles.remove(file);
+          info.myRemovedSources.add(source);
+        }
+      }
+    }
+  }
+
+  @NotNull
+  private List<VirtualFile> getMappedFilesUnder(final @NotNull VirtualFile dir) {
+    final List<VirtualFile> result = new ArrayList<VirtualFile>();
+    synchronized (myFileToSourceMap) {
+      for (VirtualFile file : myFileToSourceMap.keySet()) {
+        if (VfsUtilCore.isAncestor(dir, file, true)) {
+          result.add(file);
+        }
+      }
+    }
+    return result;
+  }
+
+  private void fileChanged(final @NotNull VirtualFile file) {
+    if (!FileUtilRt.extensionEquals(file.getName(), DartFileType.DEFAULT_EXTENSION) || !myFileToSourceMap.containsKey(file)) return;
+
+    synchronized (myContexts) {
+      for (ContextInfo info : myContexts.values()) {
+        info.myChangedFiles.add(file);
+      }
+    }
+  }
+
   @NotNull
   public AnalysisContext getAnalysisContext(final @NotNull VirtualFile annotatedFile,
                                             final @NotNull String sdkPath,
                                             final @Nullable VirtualFile packagesFolder) {
-    AnalysisContext analysisContext = SoftReference.dereference(myAnalysisContextRef);
+    final Pair<String, VirtualFile> key = Pair.create(sdkPath, packagesFolder);
+
+    ContextInfo info;
+    synchronized (myContexts) {
+      info = myContexts.get(key);
+      if (info == null) {
+        info = new ContextInfo(createAnalysisContext(sdkPath, packagesFolder));
+        myContexts.put(key, info);
+        myContextInfos.put(info.myContext, info);
 
-    if (analysisContext != null && Comparing.equal(sdkPath, mySdkPath) && Comparing.equal(packagesFolder, myDartPackagesFolder)) {
-      applyChangeSet(analysisContext, annotatedFile);
-      myCreatedFiles.clear();
+        final Iterator<ContextInfo> iterator = myContexts.values().iterator();
+        while (myContexts.size() > MAX_CONTEXTS && iterator.hasNext()) {
+          final ContextInfo eldest = iterator.next();
+          iterator.remove();
+          eldest.myEvicted = true;
+          disposeIfUnused(eldest);
+        }
+
+        return info.myContext;
+      }
+      info.myUsages++;
     }
-    else {
-      final DartUriResolver dartUriResolver = new DartUriResolver(new DirectoryBasedDartSdk(new File(sdkPath)));
-      final UriResolver fileResolver = new DartFileUriResolver(myProject);
-      final SourceFactory sourceFactory =
-        packagesFolder == null
-        ? new SourceFactory(dartUriResolver, fileResolver)
-        : new SourceFactory(dartUriResolver, fileResolver, new DartPackageUriResolver(myProject, packagesFolder));
-
-      analysisContext = AnalysisEngine.getInstance().createAnalysisContext();
-      analysisContext.setSourceFactory(sourceFactory);
-
-      mySdkPath = sdkPath;
-      myDartPackagesFolder = packagesFolder;
-      myAnalysisContextRef = new WeakReference<AnalysisContext>(analysisContext);
+
+    try {
+      applyChangeSet(info);
+      info.myContext.setAnalysisPriorityOrder(getPrioritySources());
+    }
+    finally {
+      releaseContext(info.myContext);
     }
+    return info.myContext;
+  }
 
-    return analysisContext;
+  /**
+   * Keeps the context returned by {@link #getAnalysisContext(VirtualFile, String, VirtualFile)} from being disposed
+   * until {@link #releaseContext(AnalysisContext)} is called, even if it's evicted meanwhile.
+   *
+   * @return <code>false</code> if the context is disposed already and mustn't be used
+   */
+  boolean acquireContext(final @NotNull AnalysisContext context) {
+    synchronized (myContexts) {
+      final ContextInfo info = myContextInfos.get(context);
+      if (info == null) return false;
+      info.myUsages++;
+      return true;
+    }
   }
 
-  private void applyChangeSet(final AnalysisContext context, final VirtualFile annotatedFile) {
-    final ChangeSet changeSet = new ChangeSet();
+  void releaseContext(final @NotNull AnalysisContext context) {
+    synchronized (myContexts) {
+      final ContextInfo info = myContextInfos.get(context);
+      if (info != null) {
+        info.myUsages--;
+        disposeIfUnused(info);
+      }
+    }
+  }
 
-    final DartFileBasedSource source = myFileToSourceMap.get(annotatedFile);
-    if (source != null) {
-      handleDeletedAndOutOfDateSources(changeSet, source);
+  // must be called under myContexts lock
+  private void disposeIfUnused(final @NotNull ContextInfo info) {
+    if (info.myEvicted && info.myUsages == 0) {
+      myContextInfos.remove(info.myContext);
+      info.myContext.dispose();
     }
+  }
 
-    handleDeletedAndOutOfDateSources(changeSet, context.getLibrarySources());
-    handleDeletedAndOutOfDateSources(changeSet, context.getHtmlSources());
+  /**
+   * Creates a context that is not shared with editor highlighting; the caller is responsible for disposing it.
+   */
+  @NotNull
+  public AnalysisContext createAnalysisContext(final @NotNull String sdkPath, final @Nullable VirtualFile packagesFolder) {
+    final DartUriResolver dartUriResolver = new DartUriResolver(new DirectoryBasedDartSdk(new File(sdkPath)));
+    final UriResolver fileResolver = new DartFileUriResolver(myProject);
+    final SourceFactory sourceFactory =
+      packagesFolder == null
+      ? new SourceFactory(dartUriResolver, fileResolver)
+      : new SourceFactory(dartUriResolver, fileResolver, new DartPackageUriResolver(myProject, packagesFolder));
 
-    synchronized (myCreatedFiles) {
-      for (VirtualFile file : myCreatedFiles) {
-        changeSet.addedSource(DartFileBasedSource.getSource(myProject, file));
+    final AnalysisContext analysisContext = AnalysisEngine.getInstance().createAnalysisContext();
+    final AnalysisOptionsImpl options = new AnalysisOptionsImpl(analysisContext.getAnalysisOptions());
+    options.setCacheSize(CONTEXT_CACHE_SIZE);
+    analysisContext.setAnalysisOptions(options);
+    analysisContext.setSourceFactory(sourceFactory);
+    return analysisContext;
+  }
+
+  /**
+   * Dart files open in editors are analyzed first
+   */
+  private List<Source> getPrioritySources() {
+    final List<Source> result = new ArrayList<Source>();
+    for (VirtualFile file : FileEditorManager.getInstance(myProject).getOpenFiles()) {
+      final DartFileBasedSource source = myFileToSourceMap.get(file);
+      if (source != null) {
+        result.add(source);
       }
     }
-
-    context.applyChanges(changeSet);
+    return result;
   }
 
-  private void handleDeletedAndOutOfDateSources(final ChangeSet changeSet, final Source... sources) {
-    for (final Source source : sources) {
-      if (source instanceof DartFileBasedSource) {
-        if (!source.exists() || !myFileToSourceMap.containsKey(((DartFileBasedSource)source).getFile())) {
-          changeSet.removedSource(source);
-          continue;
-        }
+  private void applyChangeSet(final ContextInfo info) {
+    final ChangeSet changeSet = new ChangeSet();
+
+    synchronized (myContexts) {
+      for (Source source : info.myRemovedSources) {
+        changeSet.removedSource(source);
+      }
+      info.myRemovedSources.clear();
 
-        if (((DartFileBasedSource)source).isOutOfDate()) {
+      // Source.isOutOfDate() can't be used as a filter here: the read stamp is shared by all contexts,
+      // so a file read by one context would look up to date to the others
+      for (VirtualFile file : info.myChangedFiles) {
+        final DartFileBasedSource source = myFileToSourceMap.get(file);
+        if (source != null) {
           changeSet.changedSource(source);
         }
       }
+      info.myChangedFiles.clear();
+
+      for (VirtualFile file : info.myCreatedFiles) {
+        changeSet.addedSource(DartFileBasedSource.getSource(myProject, file));
+      }
+      info.myCreatedFiles.clear();
+    }
+
+    if (!changeSet.isEmpty()) {
+      info.myContext.applyChanges(changeSet);
+    }
+  }
+
+  void reportAnalysisTime(final @NotNull Source source, final long timeMs) {
+    final long count = myAnalyzedFilesCount.incrementAndGet();
+    final long total = myTotalAnalysisTime.addAndGet(timeMs);
+
+    if (DartInProcessAnnotator.LOG.isDebugEnabled()) {
+      DartInProcessAnnotator.LOG.debug("Analyzed " + source.getFullName() + " in " + timeMs + " ms; " +
+                                       count + " files analyzed in " + total + " ms in total");
     }
   }
 
@@ -174,4 +350,19 @@ public class DartAnalyzerService {
     }
     return source;
   }
+
+  private static class ContextInfo {
+    private final AnalysisContext myContext;
+    // changes collected by listeners since the last annotation pass, guarded by myContexts
+    private final Set<VirtualFile> myCreatedFiles = new THashSet<VirtualFile>();
+    private final Set<VirtualFile> myChangedFiles = new THashSet<VirtualFile>();
+    private final Set<Source> myRemovedSources = new THashSet<Source>();
+    // guarded by myContexts as well
+    private int myUsages;
+    private boolean myEvicted;
+
+    private ContextInfo(final AnalysisContext context) {
+      myContext = context;
+    }
+  }
 }
@@ -26,7 +26,8 @@ public class DartFileBasedSource implements Source {
   private final @NotNull Project myProject;
   private final @NotNull VirtualFile myFile;
   private final @NotNull UriKind myUriKind;
-  private long myModificationStampWhenFileContentWasRead = -1;
+  // shared by all contexts, which may read the file concurrently, so it must not be used to detect changes per context
+  private volatile long myModificationStampWhenFileContentWasRead = -1;
 
   private DartFileBasedSource(final @NotNull Project project, final @NotNull VirtualFile file, final @NotNull UriKind uriKind) {
     myProject = project;
@@ -39,6 +40,11 @@ public class DartFileBasedSource implements Source {
     return myFile;
   }
 
+  @NotNull
+  public Project getProject() {
+    return myProject;
+  }
+
   public boolean isOutOfDate() {
     return myModificationStampWhenFileContentWasRead == -1 || myModificationStampWhenFileContentWasRead != getModificationStamp();
   }
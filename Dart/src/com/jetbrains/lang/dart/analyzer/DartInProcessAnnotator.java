@@ -14,6 +14,7 @@ import com.intellij.openapi.module.ModuleUtilCore;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.util.Trinity;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.vfs.VfsUtilCore;
 import com.intellij.openapi.vfs.VirtualFile;
@@ -43,6 +44,24 @@ public class DartInProcessAnnotator extends ExternalAnnotator<Pair<DartFileBased
   @Override
   @Nullable
   public Pair<DartFileBasedSource, AnalysisContext> collectInformation(@NotNull final PsiFile psiFile) {
+    final Trinity<VirtualFile, String, VirtualFile> fileSdkAndPackages = getFileToAnalyze(psiFile);
+    if (fileSdkAndPackages == null) return null;
+
+    final Project project = psiFile.getProject();
+    final VirtualFile annotatedFile = DartResolveUtil.getRealVirtualFile(psiFile);
+    assert annotatedFile != null;
+
+    return Pair.create(DartFileBasedSource.getSource(project, fileSdkAndPackages.first),
+                       DartAnalyzerService.getInstance(project)
+                         .getAnalysisContext(annotatedFile, fileSdkAndPackages.second, fileSdkAndPackages.third));
+  }
+
+  /**
+   * @return library file to analyze in order to get errors for <code>psiFile</code>, Dart SDK path and packages folder,
+   *         or <code>null</code> if <code>psiFile</code> shouldn't be analyzed
+   */
+  @Nullable
+  public static Trinity<VirtualFile, String, VirtualFile> getFileToAnalyze(@NotNull final PsiFile psiFile) {
     final Project project = psiFile.getProject();
 
     final VirtualFile annotatedFile = DartResolveUtil.getRealVirtualFile(psiFile);
@@ -65,8 +84,7 @@ public class DartInProcessAnnotator extends ExternalAnnotator<Pair<DartFileBased
     final List<VirtualFile> libraries = DartResolveUtil.findLibrary(psiFile, GlobalSearchScope.projectScope(project));
     final VirtualFile fileToAnalyze = libraries.isEmpty() || libraries.contains(annotatedFile) ? annotatedFile : libraries.get(0);
 
-    return Pair.create(DartFileBasedSource.getSource(project, fileToAnalyze),
-                       DartAnalyzerService.getInstance(project).getAnalysisContext(annotatedFile, sdk.getHomePath(), packagesFolder));
+    return Trinity.create(fileToAnalyze, sdk.getHomePath(), packagesFolder);
   }
 
   private static boolean containsDartEmbeddedContent(final XmlFile file) {
@@ -85,13 +103,21 @@ public class DartInProcessAnnotator extends ExternalAnnotator<Pair<DartFileBased
   @Override
   @Nullable
   public AnalysisContext doAnnotate(final Pair<DartFileBasedSource, AnalysisContext> sourceAndContext) {
+    final DartAnalyzerService service = DartAnalyzerService.getInstance(sourceAndContext.first.getProject());
+    if (!service.acquireContext(sourceAndContext.second)) return null;
+
     try {
+      final long start = System.currentTimeMillis();
       sourceAndContext.second.computeErrors(sourceAndContext.first);
+      service.reportAnalysisTime(sourceAndContext.first, System.currentTimeMillis() - start);
       return sourceAndContext.second;
     }
     catch (AnalysisException e) {
       LOG.info(e);
     }
+    finally {
+      service.releaseContext(sourceAndContext.second);
+    }
     return null;
   }
 
@@ -104,7 +130,15 @@ public class DartInProcessAnnotator extends ExternalAnnotator<Pair<DartFileBased
     if (source == null) return;
 
     // analysisContext.getErrors() doesn't perform analysis and returns already calculated errors
-    final AnalysisError[] messages = analysisContext.getErrors(source).getErrors();
+    final DartAnalyzerService service = DartAnalyzerService.getInstance(psiFile.getProject());
+    if (!service.acquireContext(analysisContext)) return;
+    final AnalysisError[] messages;
+    try {
+      messages = analysisContext.getErrors(source).getErrors();
+    }
+    finally {
+      service.releaseContext(analysisContext);
+    }
     if (messages == null || !psiFile.isValid()) return;
 
     for (AnalysisError message : messages) {
@@ -8,6 +8,7 @@ import com.intellij.psi.PsiFile;
 import com.intellij.psi.XmlRecursiveElementVisitor;
 import com.intellij.psi.util.PsiTreeUtil;
 import com.intellij.psi.xml.XmlFile;
+import com.intellij.util.containers.SLRUMap;
 import com.intellij.util.indexing.FileContent;
 import com.jetbrains.lang.dart.DartComponentType;
 import com.jetbrains.lang.dart.psi.*;
@@ -16,10 +17,14 @@ import com.jetbrains.lang.dart.util.DartResolveUtil;
 import gnu.trove.THashSet;
 import org.jetbrains.annotations.NotNull;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class DartIndexUtil {
   // inc when change parser
@@ -27,18 +32,66 @@ public class DartIndexUtil {
 
   private static final Key<DartFileIndexData> ourDartCachesData = Key.create("dart.caches.index.data");
 
+  // all Dart indices map the same file content one after another, so the result of a single PSI walk is shared between them;
+  // the map is also consulted when unchanged content is reindexed (e.g. after SDK switch);
+  // it is keyed by a digest of the content so that it doesn't keep the contents themselves
+  private static final int CONTENT_CACHE_SIZE = 256;
+  private static final SLRUMap<ContentKey, DartFileIndexData> ourContentCache =
+    new SLRUMap<ContentKey, DartFileIndexData>(CONTENT_CACHE_SIZE, CONTENT_CACHE_SIZE);
+  private static final AtomicLong ourCacheHits = new AtomicLong();
+  private static final AtomicLong ourCacheMisses = new AtomicLong();
+
   public static DartFileIndexData indexFile(FileContent content) {
     DartFileIndexData indexData = content.getUserData(ourDartCachesData);
-    if (indexData != null) return indexData;
+    if (indexData != null) {
+      ourCacheHits.incrementAndGet();
+      return indexData;
+    }
     synchronized (content) {
       indexData = content.getUserData(ourDartCachesData);
-      if (indexData != null) return indexData;
-      indexData = indexFileRoots(content.getPsiFile());
+      if (indexData != null) {
+        ourCacheHits.incrementAndGet();
+        return indexData;
+      }
+
+      final ContentKey key = new ContentKey(content.getFileName(), content.getContent());
+      synchronized (ourContentCache) {
+        indexData = ourContentCache.get(key);
+      }
+
+      if (indexData != null) {
+        ourCacheHits.incrementAndGet();
+      }
+      else {
+        ourCacheMisses.incrementAndGet();
+        indexData = indexFileRoots(content.getPsiFile());
+        synchronized (ourContentCache) {
+          ourContentCache.put(key, indexData);
+        }
+      }
+
+      content.putUserData(ourDartCachesData, indexData);
     }
 
     return indexData;
   }
 
+  public static long getCacheHits() {
+    return ourCacheHits.get();
+  }
+
+  public static long getCacheMisses() {
+    return ourCacheMisses.get();
+  }
+
+  public static void clearCache() {
+    synchronized (ourContentCache) {
+      ourContentCache.clear();
+    }
+    ourCacheHits.set(0);
+    ourCacheMisses.set(0);
+  }
+
   private static DartFileIndexData indexFileRoots(PsiFile psiFile) {
     DartFileIndexData result = new DartFileIndexData();
     result.setLibraryName(DartResolveUtil.getLibraryName(psiFile));
@@ -138,4 +191,44 @@ public class DartIndexUtil {
     });
     return result;
   }
+
+  private static class ContentKey {
+    @NotNull private final String myFileName;
+    private final int myLength;
+    @NotNull private final byte[] myDigest;
+    private final int myHash;
+
+    private ContentKey(@NotNull String fileName, @NotNull byte[] content) {
+      myFileName = fileName;
+      myLength = content.length;
+      myDigest = digest(content);
+      myHash = 31 * (31 * fileName.hashCode() + myLength) + Arrays.hashCode(myDigest);
+    }
+
+    @NotNull
+    private static byte[] digest(@NotNull byte[] content) {
+      try {
+        return MessageDigest.getInstance("MD5").digest(content);
+      }
+      catch (NoSuchAlgorithmException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof ContentKey)) return false;
+      final ContentKey key = (ContentKey)o;
+      return myHash == key.myHash &&
+             myLength == key.myLength &&
+             myFileName.equals(key.myFileName) &&
+             Arrays.equals(myDigest, key.myDigest);
+    }
+
+    @Override
+    public int hashCode() {
+      return myHash;
+    }
+  }
 }
@@ -2,10 +2,7 @@ package com.jetbrains.lang.dart.ide.index;
 
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.util.Computable;
-import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.PsiElement;
-import com.intellij.psi.PsiFile;
-import com.intellij.psi.search.GlobalSearchScope;
 import com.intellij.psi.search.searches.DefinitionsScopedSearch;
 import com.intellij.psi.util.PsiTreeUtil;
 import com.intellij.util.Processor;
@@ -19,7 +16,6 @@ import com.jetbrains.lang.dart.psi.DartClass;
 import com.jetbrains.lang.dart.psi.DartComponent;
 import com.jetbrains.lang.dart.psi.DartComponentName;
 import com.jetbrains.lang.dart.util.DartResolveUtil;
-import gnu.trove.THashSet;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.*;
@@ -112,7 +108,7 @@ public class DartInheritanceIndex extends FileBasedIndexExtension<String, List<D
             return true;
           }
           if (dartComponent instanceof DartClass) {
-            processInheritors((DartClass)dartComponent, queryParameters, consumer);
+            processInheritors((DartClass)dartComponent, consumer);
           }
           else if (DartComponentType.typeOf(dartComponent) == DartComponentType.METHOD) {
             final String nameToFind = dartComponent.getName();
@@ -121,7 +117,7 @@ public class DartInheritanceIndex extends FileBasedIndexExtension<String, List<D
             DartClass dartClass = PsiTreeUtil.getParentOfType(dartComponent, DartClass.class);
             assert dartClass != null;
 
-            processInheritors(dartClass, queryParameters, new Processor<PsiElement>() {
+            processInheritors(dartClass, new Processor<PsiElement>() {
               @Override
               public boolean process(PsiElement element) {
                 for (DartComponent subDartNamedComponent : DartResolveUtil.getNamedSubComponents((DartClass)element)) {
@@ -138,29 +134,10 @@ public class DartInheritanceIndex extends FileBasedIndexExtension<String, List<D
       });
     }
 
-    private static boolean processInheritors(final DartClass dartClass, final PsiElement context, final Processor<PsiElement> consumer) {
-      final Set<DartClass> classSet = new THashSet<DartClass>();
-      final LinkedList<DartClass> namesQueue = new LinkedList<DartClass>();
-      namesQueue.add(dartClass);
-      while (!namesQueue.isEmpty()) {
-        final DartClass currentClass = namesQueue.pollFirst();
-        final String currentClassName = currentClass.getName();
-        if (currentClassName == null || !classSet.add(currentClass)) {
-          continue;
-        }
-        final Collection<VirtualFile> files =
-          FileBasedIndex.getInstance()
-            .getContainingFiles(DART_INHERITANCE_INDEX, currentClassName, GlobalSearchScope.allScope(context.getProject()));
-        for (VirtualFile virtualFile : files) {
-          PsiFile psiFile = dartClass.getManager().findFile(virtualFile);
-          for (PsiElement root : DartResolveUtil.findDartRoots(psiFile)) {
-            for (DartClass subClass : DartResolveUtil.findClassesByParent(currentClass, root)) {
-              if (!consumer.process(subClass)) {
-                return true;
-              }
-              namesQueue.add(subClass);
-            }
-          }
+    private static boolean processInheritors(final DartClass dartClass, final Processor<PsiElement> consumer) {
+      for (DartClass subClass : DartInheritorsCache.getAllInheritors(dartClass)) {
+        if (!consumer.process(subClass)) {
+          return true;
         }
       }
       return true;
@@ -0,0 +1,216 @@
+package com.jetbrains.lang.dart.ide.index;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.util.CachedValue;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.psi.util.PsiModificationTracker;
+import com.intellij.psi.util.PsiTreeUtil;
+import com.intellij.util.containers.ContainerUtil;
+import com.intellij.util.indexing.FileBasedIndex;
+import com.jetbrains.lang.dart.psi.DartClass;
+import com.jetbrains.lang.dart.psi.DartType;
+import com.jetbrains.lang.dart.util.DartLibraryDirectivesTracker;
+import com.jetbrains.lang.dart.util.DartResolveUtil;
+import gnu.trove.THashMap;
+import gnu.trove.THashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Transitive inheritors of Dart classes, keyed by library name and class name.
+ * <p/>
+ * The super types of the classes of each file are resolved once and kept on the file until it changes,
+ * its super types are gone or renamed, or library directives and the set of files change, so after an edit
+ * only the super types of the edited file are resolved again. The transitive inheritors built from them are dropped
+ * on any PSI change, i.e. whenever {@link DartInheritanceIndex} may become out of date, and rebuilt from index lookups
+ * and the super types kept on the files.
+ */
+public class DartInheritorsCache {
+  private static final Key<CachedValue<Map<String, Inheritors>>> INHERITORS_CACHE_KEY = Key.create("dart.inheritors.cache");
+  private static final Key<FileSuperTypes> FILE_SUPER_TYPES_KEY = Key.create("dart.inheritors.cache.file.super.types");
+
+  private DartInheritorsCache() {
+  }
+
+  /**
+   * @return all direct and indirect inheritors of <code>dartClass</code> in breadth-first order
+   */
+  @NotNull
+  public static List<DartClass> getAllInheritors(@NotNull final DartClass dartClass) {
+    final String key = getQualifiedName(dartClass);
+    if (key == null) {
+      return Collections.emptyList();
+    }
+
+    final Map<String, Inheritors> cache = getCache(dartClass.getProject());
+    final Inheritors cached = cache.get(key);
+    if (cached != null && dartClass.getManager().areElementsEquivalent(cached.myRoot, dartClass)) {
+      return cached.myInheritors;
+    }
+
+    final List<DartClass> inheritors = Collections.unmodifiableList(computeAllInheritors(dartClass));
+    if (cached == null) {
+      cache.put(key, new Inheritors(dartClass, inheritors));
+    }
+    return inheritors;
+  }
+
+  private static Map<String, Inheritors> getCache(@NotNull final Project project) {
+    return CachedValuesManager.getManager(project).getCachedValue(project, INHERITORS_CACHE_KEY, new CachedValueProvider<Map<String, Inheritors>>() {
+      @Nullable
+      @Override
+      public Result<Map<String, Inheritors>> compute() {
+        return Result.<Map<String, Inheritors>>create(new ConcurrentHashMap<String, Inheritors>(),
+                                                      PsiModificationTracker.MODIFICATION_COUNT);
+      }
+    }, false);
+  }
+
+  @Nullable
+  private static String getQualifiedName(@NotNull DartClass dartClass) {
+    final String className = dartClass.getName();
+    final PsiFile psiFile = dartClass.getContainingFile();
+    if (className == null || psiFile == null) {
+      return null;
+    }
+    final String libraryName = DartResolveUtil.getLibraryName(psiFile);
+    if (libraryName != null) {
+      return libraryName + "#" + className;
+    }
+    final VirtualFile virtualFile = DartResolveUtil.getRealVirtualFile(psiFile);
+    return virtualFile == null ? null : virtualFile.getPath() + "#" + className;
+  }
+
+  private static List<DartClass> computeAllInheritors(@NotNull DartClass dartClass) {
+    final Set<DartClass> result = new LinkedHashSet<DartClass>();
+    final Set<DartClass> classSet = new THashSet<DartClass>();
+    final LinkedList<DartClass> namesQueue = new LinkedList<DartClass>();
+    final GlobalSearchScope scope = GlobalSearchScope.allScope(dartClass.getProject());
+    namesQueue.add(dartClass);
+    while (!namesQueue.isEmpty()) {
+      final DartClass currentClass = namesQueue.pollFirst();
+      final String currentClassName = currentClass.getName();
+      if (currentClassName == null || !classSet.add(currentClass)) {
+        continue;
+      }
+      final Collection<VirtualFile> files =
+        FileBasedIndex.getInstance().getContainingFiles(DartInheritanceIndex.DART_INHERITANCE_INDEX, currentClassName, scope);
+      for (VirtualFile virtualFile : files) {
+        final PsiFile psiFile = dartClass.getManager().findFile(virtualFile);
+        if (psiFile == null) continue;
+        for (SuperType superType : getSuperTypes(psiFile, currentClassName)) {
+          if (superType.mySuperClass == currentClass) {
+            if (superType.mySubClass != dartClass) {
+              result.add(superType.mySubClass);
+            }
+            namesQueue.add(superType.mySubClass);
+          }
+        }
+      }
+    }
+    return new ArrayList<DartClass>(result);
+  }
+
+  /**
+   * @return super types named <code>superClassName</code> of the classes of the file, resolved
+   */
+  @NotNull
+  private static List<SuperType> getSuperTypes(@NotNull PsiFile psiFile, @NotNull String superClassName) {
+    final long modificationCount = getModificationCount(psiFile);
+    FileSuperTypes fileSuperTypes = psiFile.getUserData(FILE_SUPER_TYPES_KEY);
+    List<SuperType> superTypes = fileSuperTypes == null || fileSuperTypes.myModificationCount != modificationCount
+                                 ? null
+                                 : fileSuperTypes.mySuperTypesByName.get(superClassName);
+    if (fileSuperTypes == null || fileSuperTypes.myModificationCount != modificationCount || !areValid(superTypes)) {
+      fileSuperTypes = new FileSuperTypes(modificationCount, resolveSuperTypes(psiFile));
+      psiFile.putUserData(FILE_SUPER_TYPES_KEY, fileSuperTypes);
+      superTypes = fileSuperTypes.mySuperTypesByName.get(superClassName);
+    }
+    return superTypes != null ? superTypes : Collections.<SuperType>emptyList();
+  }
+
+  private static long getModificationCount(@NotNull PsiFile psiFile) {
+    return psiFile.getModificationStamp() +
+           DartLibraryDirectivesTracker.getInstance(psiFile.getProject()).getModificationCount() +
+           VirtualFileManager.VFS_STRUCTURE_MODIFICATIONS.getModificationCount();
+  }
+
+  /**
+   * Super classes declared in other files may be changed without the file, so they are checked to be still there
+   * under the same name.
+   */
+  private static boolean areValid(@Nullable List<SuperType> superTypes) {
+    if (superTypes == null) return true;
+    for (SuperType superType : superTypes) {
+      if (!superType.mySubClass.isValid()) return false;
+      final DartClass superClass = superType.mySuperClass;
+      if (superClass != null && (!superClass.isValid() || !superType.mySuperClassName.equals(superClass.getName()))) return false;
+    }
+    return true;
+  }
+
+  @NotNull
+  private static Map<String, List<SuperType>> resolveSuperTypes(@NotNull PsiFile psiFile) {
+    final Map<String, List<SuperType>> result = new THashMap<String, List<SuperType>>();
+    for (PsiElement root : DartResolveUtil.findDartRoots(psiFile)) {
+      final DartClass[] classes = PsiTreeUtil.getChildrenOfType(root, DartClass.class);
+      if (classes == null) continue;
+      for (DartClass dartClass : classes) {
+        final List<DartType> types = new ArrayList<DartType>(DartResolveUtil.getImplementsAndMixinsList(dartClass));
+        ContainerUtil.addIfNotNull(dartClass.getSuperClass(), types);
+        for (DartType type : types) {
+          final String superClassName = type.getReferenceExpression().getText();
+          List<SuperType> superTypes = result.get(superClassName);
+          if (superTypes == null) {
+            superTypes = new ArrayList<SuperType>(1);
+            result.put(superClassName, superTypes);
+          }
+          superTypes.add(new SuperType(dartClass, superClassName, DartResolveUtil.resolveClassByType(type).getDartClass()));
+        }
+      }
+    }
+    return result;
+  }
+
+  private static class FileSuperTypes {
+    private final long myModificationCount;
+    @NotNull private final Map<String, List<SuperType>> mySuperTypesByName;
+
+    private FileSuperTypes(long modificationCount, @NotNull Map<String, List<SuperType>> superTypesByName) {
+      myModificationCount = modificationCount;
+      mySuperTypesByName = superTypesByName;
+    }
+  }
+
+  private static class SuperType {
+    @NotNull private final DartClass mySubClass;
+    @NotNull private final String mySuperClassName;
+    @Nullable private final DartClass mySuperClass;
+
+    private SuperType(@NotNull DartClass subClass, @NotNull String superClassName, @Nullable DartClass superClass) {
+      mySubClass = subClass;
+      mySuperClassName = superClassName;
+      mySuperClass = superClass;
+    }
+  }
+
+  private static class Inheritors {
+    @NotNull private final DartClass myRoot;
+    @NotNull private final List<DartClass> myInheritors;
+
+    private Inheritors(@NotNull DartClass root, @NotNull List<DartClass> inheritors) {
+      myRoot = root;
+      myInheritors = inheritors;
+    }
+  }
+}
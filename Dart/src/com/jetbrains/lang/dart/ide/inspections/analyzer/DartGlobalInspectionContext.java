@@ -1,40 +1,48 @@
 package com.jetbrains.lang.dart.ide.inspections.analyzer;
 
 import com.google.dart.engine.context.AnalysisContext;
+import com.google.dart.engine.context.AnalysisException;
 import com.google.dart.engine.error.AnalysisError;
 import com.intellij.analysis.AnalysisScope;
 import com.intellij.codeInspection.GlobalInspectionContext;
 import com.intellij.codeInspection.ex.InspectionToolWrapper;
 import com.intellij.codeInspection.ex.Tools;
 import com.intellij.codeInspection.lang.GlobalInspectionContextExtension;
+import com.intellij.concurrency.JobLauncher;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.progress.util.ProgressWrapper;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Key;
-import com.intellij.openapi.util.NullableComputable;
 import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.Trinity;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.PsiManager;
 import com.intellij.psi.search.FileTypeIndex;
 import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.util.Processor;
 import com.jetbrains.lang.dart.DartFileType;
+import com.jetbrains.lang.dart.analyzer.DartAnalyzerService;
 import com.jetbrains.lang.dart.analyzer.DartFileBasedSource;
 import com.jetbrains.lang.dart.analyzer.DartInProcessAnnotator;
 import gnu.trove.THashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.Collection;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DartGlobalInspectionContext implements GlobalInspectionContextExtension<DartGlobalInspectionContext> {
   static final Key<DartGlobalInspectionContext> KEY = Key.create("DartGlobalInspectionContext");
 
-  private final Map<VirtualFile, AnalysisError[]> libraryRoot2Errors = new THashMap<VirtualFile, AnalysisError[]>();
+  private static final Logger LOG = Logger.getInstance("#com.jetbrains.lang.dart.ide.inspections.analyzer.DartGlobalInspectionContext");
+
+  // filled concurrently by analysis batches
+  private final Map<VirtualFile, AnalysisError[]> libraryRoot2Errors = new ConcurrentHashMap<VirtualFile, AnalysisError[]>();
 
   public Map<VirtualFile, AnalysisError[]> getLibraryRoot2Errors() {
     return libraryRoot2Errors;
@@ -49,7 +57,7 @@ public class DartGlobalInspectionContext implements GlobalInspectionContextExten
   @Override
   public void performPreRunActivities(@NotNull List<Tools> globalTools,
                                       @NotNull List<Tools> localTools,
-                                      @NotNull GlobalInspectionContext context) {
+                                      @NotNull final GlobalInspectionContext context) {
     final AnalysisScope analysisScope = context.getRefManager().getScope();
     if (analysisScope == null) return;
 
@@ -57,35 +65,111 @@ public class DartGlobalInspectionContext implements GlobalInspectionContextExten
     setIndicatorText("Looking for Dart files...");
     final Collection<VirtualFile> dartFiles = FileTypeIndex.getFiles(DartFileType.INSTANCE, scope);
 
-    for (VirtualFile dartFile : dartFiles) {
-      analyzeFile(dartFile, context.getProject());
-    }
-  }
+    final List<Batch> batches = createBatches(context.getProject(), dartFiles);
+    if (batches.isEmpty()) return;
 
-  private void analyzeFile(@NotNull final VirtualFile virtualFile, @NotNull final Project project) {
-    final DartInProcessAnnotator annotator = new DartInProcessAnnotator();
+    final long start = System.currentTimeMillis();
+    final AtomicInteger librariesCount = new AtomicInteger();
 
-    final Pair<DartFileBasedSource, AnalysisContext> sourceAndContext =
-      ApplicationManager.getApplication().runReadAction(new NullableComputable<Pair<DartFileBasedSource, AnalysisContext>>() {
-        @Nullable
-        public Pair<DartFileBasedSource, AnalysisContext> compute() {
-          final PsiFile psiFile = PsiManager.getInstance(project).findFile(virtualFile);
-          if (psiFile == null) return null;
-          return annotator.collectInformation(psiFile);
-        }
-      });
+    // batches don't share analysis contexts, so they are analyzed concurrently without touching the contexts used by the editor
+    final ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
+    JobLauncher.getInstance().invokeConcurrentlyUnderProgress(batches, indicator, false, new Processor<Batch>() {
+      public boolean process(final Batch batch) {
+        librariesCount.addAndGet(analyzeBatch(context.getProject(), batch));
+        return true;
+      }
+    });
+
+    final long time = Math.max(1, System.currentTimeMillis() - start);
+    LOG.info("Analyzed " + librariesCount.get() + " Dart libraries (" + dartFiles.size() + " files) in " + batches.size() +
+             " batches in " + time + " ms, " + librariesCount.get() * 1000L / time + " libraries/sec");
+  }
 
-    if (sourceAndContext == null) {
-      return;
+  /**
+   * Groups files by the library to analyze and splits the libraries sharing SDK and packages folder into batches
+   * of about the same size, one batch per available processor.
+   */
+  private static List<Batch> createBatches(@NotNull final Project project, @NotNull final Collection<VirtualFile> dartFiles) {
+    final Map<Pair<String, VirtualFile>, Map<VirtualFile, List<VirtualFile>>> libraries =
+      new THashMap<Pair<String, VirtualFile>, Map<VirtualFile, List<VirtualFile>>>();
+
+    ApplicationManager.getApplication().runReadAction(new Runnable() {
+      public void run() {
+        final PsiManager psiManager = PsiManager.getInstance(project);
+        for (VirtualFile dartFile : dartFiles) {
+          final PsiFile psiFile = psiManager.findFile(dartFile);
+          if (psiFile == null) continue;
+
+          final Trinity<VirtualFile, String, VirtualFile> fileSdkAndPackages = DartInProcessAnnotator.getFileToAnalyze(psiFile);
+          if (fileSdkAndPackages == null) continue;
+
+          final Pair<String, VirtualFile> key = Pair.create(fileSdkAndPackages.second, fileSdkAndPackages.third);
+          Map<VirtualFile, List<VirtualFile>> libraryToFiles = libraries.get(key);
+          if (libraryToFiles == null) {
+            libraryToFiles = new LinkedHashMap<VirtualFile, List<VirtualFile>>();
+            libraries.put(key, libraryToFiles);
+          }
+
+          List<VirtualFile> files = libraryToFiles.get(fileSdkAndPackages.first);
+          if (files == null) {
+            files = new ArrayList<VirtualFile>();
+            libraryToFiles.put(fileSdkAndPackages.first, files);
+          }
+          files.add(dartFile);
+        }
+      }
+    });
+
+    final int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors());
+    final List<Batch> result = new ArrayList<Batch>();
+    for (Map.Entry<Pair<String, VirtualFile>, Map<VirtualFile, List<VirtualFile>>> entry : libraries.entrySet()) {
+      final List<Map.Entry<VirtualFile, List<VirtualFile>>> libraryEntries =
+        new ArrayList<Map.Entry<VirtualFile, List<VirtualFile>>>(entry.getValue().entrySet());
+      final int batchSize = (libraryEntries.size() + parallelism - 1) / parallelism;
+
+      for (int i = 0; i < libraryEntries.size(); i += batchSize) {
+        final Batch batch = new Batch(entry.getKey().first, entry.getKey().second);
+        final int end = Math.min(i + batchSize, libraryEntries.size());
+        for (Map.Entry<VirtualFile, List<VirtualFile>> libraryEntry : libraryEntries.subList(i, end)) {
+          batch.libraryToFiles.put(libraryEntry.getKey(), libraryEntry.getValue());
+        }
+        result.add(batch);
+      }
     }
+    return result;
+  }
 
-    setIndicatorText("Analyzing " + virtualFile.getName() + "...");
-
-    final AnalysisContext analysisContext = annotator.doAnnotate(sourceAndContext);
-    if (analysisContext == null) return;
-
+  /**
+   * @return number of analyzed libraries
+   */
+  private int analyzeBatch(@NotNull final Project project, @NotNull final Batch batch) {
+    // batches share DartFileBasedSource instances; that's safe because a fresh context reads every source itself
+    final AnalysisContext analysisContext =
+      DartAnalyzerService.getInstance(project).createAnalysisContext(batch.sdkPath, batch.packagesFolder);
+    try {
+      int count = 0;
+      for (Map.Entry<VirtualFile, List<VirtualFile>> entry : batch.libraryToFiles.entrySet()) {
+        ProgressManager.checkCanceled();
+        setIndicatorText("Analyzing " + entry.getKey().getName() + "...");
+
+        try {
+          analysisContext.computeErrors(DartFileBasedSource.getSource(project, entry.getKey()));
+        }
+        catch (AnalysisException e) {
+          LOG.info(e);
+          continue;
+        }
 
-    libraryRoot2Errors.put(virtualFile, analysisContext.getErrors(DartFileBasedSource.getSource(project, virtualFile)).getErrors());
+        for (VirtualFile file : entry.getValue()) {
+          libraryRoot2Errors.put(file, analysisContext.getErrors(DartFileBasedSource.getSource(project, file)).getErrors());
+        }
+        count++;
+      }
+      return count;
+    }
+    finally {
+      analysisContext.dispose();
+    }
   }
 
   private static void setIndicatorText(String text) {
@@ -103,4 +187,16 @@ public class DartGlobalInspectionContext implements GlobalInspectionContextExten
   public void cleanup() {
     libraryRoot2Errors.clear();
   }
+
+  private static class Batch {
+    @NotNull private final String sdkPath;
+    @Nullable private final VirtualFile packagesFolder;
+    // library file to analyze -> files in scope belonging to this library
+    private final Map<VirtualFile, List<VirtualFile>> libraryToFiles = new LinkedHashMap<VirtualFile, List<VirtualFile>>();
+
+    private Batch(@NotNull String sdkPath, @Nullable VirtualFile packagesFolder) {
+      this.sdkPath = sdkPath;
+      this.packagesFolder = packagesFolder;
+    }
+  }
 }
@@ -22,6 +22,7 @@ import gnu.trove.THashMap;
 import gnu.trove.TIntObjectHashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.json.JSONObject;
 
 import java.io.File;
 import java.io.IOException;
@@ -29,11 +30,17 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static com.jetbrains.lang.dart.ide.runner.server.DartCommandLineDebugProcess.LOG;
 import static com.jetbrains.lang.dart.ide.runner.server.DartCommandLineDebugProcess.threeSlashizeFileUrl;
 
 public class DartCommandLineBreakpointsHandler {
+  private static final long INITIAL_BREAKPOINTS_ACK_TIMEOUT_MS = 5000;
+
   private final DartCommandLineDebugProcess myDebugProcess;
   private final XBreakpointHandler<?>[] myBreakpointHandlers;
   private final Collection<XLineBreakpoint<?>> myInitialBreakpoints = new ArrayList<XLineBreakpoint<?>>();
@@ -71,9 +78,40 @@ public class DartCommandLineBreakpointsHandler {
   }
 
   void registerInitialBreakpoints() {
-    for (XLineBreakpoint<?> breakpoint : myInitialBreakpoints) {
-      doRegisterBreakpoint(breakpoint);
-    }
+    final VmIsolate isolate = myDebugProcess.getMainIsolate();
+    if (isolate == null) return;
+
+    // all breakpoints are sent at once within a single interrupt; resume after the VM has acknowledged them (or the time is out)
+    suspendPerformActionAndResume(new ThrowableRunnable<IOException>() {
+      public void run() throws IOException {
+        final List<Future<JSONObject>> requests = new ArrayList<Future<JSONObject>>();
+
+        for (XLineBreakpoint<?> breakpoint : myInitialBreakpoints) {
+          final XSourcePosition position = breakpoint.getSourcePosition();
+          if (position == null) continue;
+          if (position.getFile().getFileType() != DartFileType.INSTANCE) continue;
+
+          requests.add(sendSetBreakpointCommand(isolate, breakpoint, getUrlToSetBreakpoint(position), breakpoint.getLine() + 1));
+        }
+
+        final long deadline = System.currentTimeMillis() + INITIAL_BREAKPOINTS_ACK_TIMEOUT_MS;
+        for (Future<JSONObject> request : requests) {
+          try {
+            request.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+          }
+          catch (InterruptedException e) {
+            return;
+          }
+          catch (ExecutionException e) {
+            LOG.info(e);
+          }
+          catch (TimeoutException e) {
+            LOG.info("setBreakpoint requests not acknowledged in " + INITIAL_BREAKPOINTS_ACK_TIMEOUT_MS + " ms");
+            return;
+          }
+        }
+      }
+    });
     //myInitialBreakpoints.clear(); do not clear - it is used later in hasInitialBreakpointHere()
   }
 
@@ -189,11 +227,11 @@ public class DartCommandLineBreakpointsHandler {
                  : getAbsoluteUrlForResource(file);
   }
 
-  private void sendSetBreakpointCommand(final VmIsolate isolate,
-                                        final XLineBreakpoint<?> breakpoint,
-                                        final String url,
-                                        final int line) throws IOException {
-    myDebugProcess.getVmConnection().setBreakpoint(isolate, url, line, new VmCallback<VmBreakpoint>() {
+  private Future<JSONObject> sendSetBreakpointCommand(final VmIsolate isolate,
+                                                      final XLineBreakpoint<?> breakpoint,
+                                                      final String url,
+                                                      final int line) throws IOException {
+    return myDebugProcess.getVmConnection().setBreakpoint(isolate, url, line, new VmCallback<VmBreakpoint>() {
       @Override
       public void handleResult(VmResult<VmBreakpoint> result) {
         if (result.isError()) {
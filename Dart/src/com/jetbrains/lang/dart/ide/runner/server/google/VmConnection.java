@@ -15,17 +15,22 @@
 package com.jetbrains.lang.dart.ide.runner.server.google;
 
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.util.Ref;
+import com.intellij.util.concurrency.FutureResult;
 import com.jetbrains.lang.dart.ide.runner.server.google.VmListener.PausedReason;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
 import java.nio.charset.Charset;
 import java.util.*;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.jetbrains.lang.dart.ide.runner.server.DartCommandLineDebugProcess.LOG;
 
@@ -54,23 +59,52 @@ public class VmConnection {
 
   private static Charset UTF8 = Charset.forName("UTF-8");
 
+  // how long to wait for the VM to acknowledge the previous setBreakpoint request before sending the next one
+  private static final long BREAKPOINT_ACK_TIMEOUT_MS = 1000;
+  // upper bound for blocking on any other response, in case the VM never answers
+  private static final long RESPONSE_TIMEOUT_MS = 5000;
+
+  private static final int SOURCE_CACHE_MAX_CHARS = 8 * 1024 * 1024;
+  private static final int LINE_NUMBER_TABLE_CACHE_MAX_BYTES = 4 * 1024 * 1024;
+
   private List<VmListener> listeners = new ArrayList<VmListener>();
 
   private String host;
   private int port;
 
-  private Map<Integer, Callback> callbackMap = new HashMap<Integer, Callback>();
+  private final Map<Integer, Callback> callbackMap = new ConcurrentHashMap<Integer, Callback>();
+
+  private final AtomicInteger nextCommandId = new AtomicInteger(1);
+
+  // guards id assignment and socket writes so that requests reach the VM in id order
+  private final Object sendLock = new Object();
 
-  private int nextCommandId = 1;
+  private volatile boolean orderedEventDispatch = true;
+  private final Queue<JSONObject> eventQueue = new ConcurrentLinkedQueue<JSONObject>();
+  private final AtomicBoolean eventDispatchScheduled = new AtomicBoolean();
+
+  private volatile Future<JSONObject> lastBreakpointRequest;
 
   private Socket socket;
   private OutputStream out;
 
   private List<VmBreakpoint> breakpoints = Collections.synchronizedList(new ArrayList<VmBreakpoint>());
 
-  private Map<String, String> sourceCache = new HashMap<String, String>();
+  // keyed by libraryId:url; bounded so that long-running sessions don't accumulate the sources of every library ever seen
+  private final VmLruCache<String, String> sourceCache = new VmLruCache<String, String>(SOURCE_CACHE_MAX_CHARS) {
+    @Override
+    protected int getWeight(String value) {
+      return value.length();
+    }
+  };
 
-  private Map<String, VmLineNumberTable> lineNumberTableCache = new HashMap<String, VmLineNumberTable>();
+  private final VmLruCache<String, VmLineNumberTable> lineNumberTableCache =
+    new VmLruCache<String, VmLineNumberTable>(LINE_NUMBER_TABLE_CACHE_MAX_BYTES) {
+      @Override
+      protected int getWeight(VmLineNumberTable value) {
+        return value.getSizeInBytes();
+      }
+    };
 
   private Map<Integer, VmIsolate> isolateMap = new HashMap<Integer, VmIsolate>();
 
@@ -87,6 +121,14 @@ public class VmConnection {
     listeners.add(listener);
   }
 
+  /**
+   * If enabled (the default), VM events are handled one at a time in the order the VM sent them.
+   * Command responses are always handled concurrently, so event handlers may wait for them.
+   */
+  public void setOrderedEventDispatch(boolean orderedEventDispatch) {
+    this.orderedEventDispatch = orderedEventDispatch;
+  }
+
   public void close() throws IOException {
     if (socket != null) {
       socket.close();
@@ -299,8 +341,8 @@ public class VmConnection {
     }
   }
 
-  public void getClassProperties(final VmIsolate isolate, final int classId,
-                                 final VmCallback<VmClass> callback) throws IOException {
+  public Future<JSONObject> getClassProperties(final VmIsolate isolate, final int classId,
+                                               final VmCallback<VmClass> callback) throws IOException {
     if (callback == null) {
       throw new IllegalArgumentException("a callback is required");
     }
@@ -311,7 +353,7 @@ public class VmConnection {
       request.put("command", "getClassProperties");
       request.put("params", new JSONObject().put("classId", classId));
 
-      sendRequest(request, isolate.getId(), new Callback() {
+      return sendRequest(request, isolate.getId(), new Callback() {
         @Override
         public void handleResult(JSONObject result) throws JSONException {
           VmResult<VmClass> vmClassResult = convertGetClassPropertiesResult(
@@ -380,8 +422,8 @@ public class VmConnection {
     }
   }
 
-  public void getLibraryProperties(final VmIsolate isolate, final int libraryId,
-                                   final VmCallback<VmLibrary> callback) throws IOException {
+  public Future<JSONObject> getLibraryProperties(final VmIsolate isolate, final int libraryId,
+                                                 final VmCallback<VmLibrary> callback) throws IOException {
     if (callback == null) {
       throw new IllegalArgumentException("a callback is required");
     }
@@ -392,7 +434,7 @@ public class VmConnection {
       request.put("command", "getLibraryProperties");
       request.put("params", new JSONObject().put("libraryId", libraryId));
 
-      sendRequest(request, isolate.getId(), new Callback() {
+      return sendRequest(request, isolate.getId(), new Callback() {
         @Override
         public void handleResult(JSONObject result) throws JSONException {
           VmResult<VmLibrary> retValue = convertGetLibraryPropertiesResult(
@@ -430,51 +472,79 @@ public class VmConnection {
   public int getLineNumberFromLocation(VmIsolate isolate, VmLocation location) {
     String cacheKey = location.getLibraryId() + ":" + location.getUrl();
 
-    if (!lineNumberTableCache.containsKey(cacheKey)) {
-      final CountDownLatch latch = new CountDownLatch(1);
-      final VmLineNumberTable[] result = new VmLineNumberTable[1];
+    Ref<VmLineNumberTable> cached = lineNumberTableCache.get(cacheKey);
+    VmLineNumberTable lineNumberTable;
 
-      try {
-        getLineNumberTable(
-          isolate,
-          location.getLibraryId(),
-          location.getUrl(),
-          new VmCallback<VmLineNumberTable>() {
-            @Override
-            public void handleResult(VmResult<VmLineNumberTable> r) {
-              result[0] = r.getResult();
-
-              latch.countDown();
-            }
-          }
-        );
-      }
-      catch (IOException ex) {
-        latch.countDown();
-      }
+    if (cached != null) {
+      lineNumberTable = cached.get();
+    }
+    else {
+      final Ref<VmLineNumberTable> result = Ref.create();
+      waitFor(requestLineNumberTable(isolate, location.getLibraryId(), location.getUrl(), result));
+      lineNumberTable = result.get();
+    }
 
-      try {
-        latch.await();
+    if (lineNumberTable == null) {
+      return 0;
+    }
+    else {
+      return lineNumberTable.getLineForLocation(location);
+    }
+  }
+
+  /**
+   * Fetch the line number tables for all the given locations that are not cached yet. The requests are sent
+   * all at once and this call returns when all of them are answered.
+   */
+  public void prefetchLineNumberTables(VmIsolate isolate, Collection<VmLocation> locations) {
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    Set<String> requestedKeys = new HashSet<String>();
+
+    for (VmLocation location : locations) {
+      if (location == null) {
+        continue;
       }
-      catch (InterruptedException e) {
 
+      String cacheKey = location.getLibraryId() + ":" + location.getUrl();
+
+      if (!lineNumberTableCache.containsKey(cacheKey) && requestedKeys.add(cacheKey)) {
+        futures.add(requestLineNumberTable(isolate, location.getLibraryId(), location.getUrl()));
       }
+    }
 
-      lineNumberTableCache.put(cacheKey, result[0]);
+    for (Future<?> future : futures) {
+      waitFor(future);
     }
+  }
 
-    VmLineNumberTable lineNumberTable = lineNumberTableCache.get(cacheKey);
+  private Future<?> requestLineNumberTable(VmIsolate isolate, int libraryId, String url) {
+    return requestLineNumberTable(isolate, libraryId, url, null);
+  }
 
-    if (lineNumberTable == null) {
-      return 0;
+  private Future<?> requestLineNumberTable(VmIsolate isolate, int libraryId, String url,
+                                           @Nullable final Ref<VmLineNumberTable> resultRef) {
+    final String cacheKey = libraryId + ":" + url;
+
+    try {
+      return getLineNumberTable(isolate, libraryId, url, new VmCallback<VmLineNumberTable>() {
+        @Override
+        public void handleResult(VmResult<VmLineNumberTable> result) {
+          lineNumberTableCache.put(cacheKey, result.getResult());
+
+          if (resultRef != null) {
+            resultRef.set(result.getResult());
+          }
+        }
+      });
     }
-    else {
-      return lineNumberTable.getLineForLocation(location);
+    catch (IOException e) {
+      lineNumberTableCache.put(cacheKey, null);
+      return null;
     }
   }
 
-  public void getLineNumberTable(final VmIsolate isolate, final int libraryId,
-                                 final String eclipseUrl, final VmCallback<VmLineNumberTable> callback) throws IOException {
+  public Future<JSONObject> getLineNumberTable(final VmIsolate isolate, final int libraryId,
+                                               final String eclipseUrl, final VmCallback<VmLineNumberTable> callback) throws IOException {
     if (callback == null) {
       throw new IllegalArgumentException("a callback is required");
     }
@@ -487,7 +557,7 @@ public class VmConnection {
       request.put("command", "getLineNumberTable");
       request.put("params", new JSONObject().put("libraryId", libraryId).put("url", vmUrl));
 
-      sendRequest(request, isolate.getId(), new Callback() {
+      return sendRequest(request, isolate.getId(), new Callback() {
         @Override
         public void handleResult(JSONObject result) throws JSONException {
           VmResult<VmLineNumberTable> vmObjectResult = convertGetLineNumberTableResult(
@@ -572,42 +642,35 @@ public class VmConnection {
   public String getScriptSource(VmIsolate isolate, final int libraryId, String url) {
     final String cacheKey = libraryId + ":" + url;
 
-    if (!sourceCache.containsKey(cacheKey)) {
-      final CountDownLatch latch = new CountDownLatch(1);
+    Ref<String> cached = sourceCache.get(cacheKey);
 
-      try {
-        getScriptSourceAsync(isolate, libraryId, url, new VmCallback<String>() {
-          @Override
-          public void handleResult(VmResult<String> result) {
-            if (result.isError()) {
-              sourceCache.put(cacheKey, null);
-            }
-            else {
-              sourceCache.put(cacheKey, result.getResult());
-            }
+    if (cached != null) {
+      return cached.get();
+    }
 
-            latch.countDown();
-          }
-        });
-      }
-      catch (IOException e) {
-        sourceCache.put(cacheKey, null);
-        latch.countDown();
-      }
+    final Ref<String> source = Ref.create();
 
-      try {
-        latch.await();
-      }
-      catch (InterruptedException e) {
+    try {
+      waitFor(getScriptSourceAsync(isolate, libraryId, url, new VmCallback<String>() {
+        @Override
+        public void handleResult(VmResult<String> result) {
+          if (!result.isError()) {
+            source.set(result.getResult());
+          }
 
-      }
+          sourceCache.put(cacheKey, source.get());
+        }
+      }));
+    }
+    catch (IOException e) {
+      sourceCache.put(cacheKey, null);
     }
 
-    return sourceCache.get(cacheKey);
+    return source.get();
   }
 
-  public void getScriptSourceAsync(VmIsolate isolate, int libraryId, String url,
-                                   final VmCallback<String> callback) throws IOException {
+  public Future<JSONObject> getScriptSourceAsync(VmIsolate isolate, int libraryId, String url,
+                                                 final VmCallback<String> callback) throws IOException {
     if (callback == null) {
       throw new IllegalArgumentException("a callback is required");
     }
@@ -618,7 +681,7 @@ public class VmConnection {
       request.put("command", "getScriptSource");
       request.put("params", new JSONObject().put("libraryId", libraryId).put("url", url));
 
-      sendRequest(request, isolate.getId(), new Callback() {
+      return sendRequest(request, isolate.getId(), new Callback() {
         @Override
         public void handleResult(JSONObject result) throws JSONException {
           callback.handleResult(convertGetScriptSourceResult(result));
@@ -753,14 +816,35 @@ public class VmConnection {
    * @param url
    * @param line
    * @param callback
+   * @return the future response of the VM
    * @throws IOException
    */
-  public void setBreakpoint(final VmIsolate isolate, final String url, final int line,
-                            final VmCallback<VmBreakpoint> callback) throws IOException {
+  public Future<JSONObject> setBreakpoint(final VmIsolate isolate, final String url, final int line,
+                                          final VmCallback<VmBreakpoint> callback) throws IOException {
     if (!isolate.isPaused()) {
       throw new IOException("attempt to set breakpoint on a running isolate");
     }
 
+    // workaround for bug https://code.google.com/p/dart/issues/detail?id=9705
+    // We need to give the VM time to process all the events before we start sending more.
+    // There's some race condition going on in the VM's queue, so wait until the previous breakpoint is acknowledged.
+    Future<JSONObject> previousRequest = lastBreakpointRequest;
+
+    if (previousRequest != null) {
+      try {
+        previousRequest.get(BREAKPOINT_ACK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      }
+      catch (InterruptedException ignored) {
+
+      }
+      catch (ExecutionException ignored) {
+
+      }
+      catch (TimeoutException e) {
+        LOG.info("setBreakpoint request not acknowledged in " + BREAKPOINT_ACK_TIMEOUT_MS + " ms");
+      }
+    }
+
     try {
       JSONObject request = new JSONObject();
 
@@ -769,7 +853,7 @@ public class VmConnection {
         "params",
         new JSONObject().put("url", VmUtils.eclipseUrlToVm(url)).put("line", line));
 
-      sendRequest(request, isolate.getId(), new Callback() {
+      Future<JSONObject> future = sendRequest(request, isolate.getId(), new Callback() {
         @Override
         public void handleResult(JSONObject object) throws JSONException {
           VmResult<VmBreakpoint> result = new VmResult<VmBreakpoint>();
@@ -792,20 +876,14 @@ public class VmConnection {
           }
         }
       });
+
+      lastBreakpointRequest = future;
+
+      return future;
     }
     catch (JSONException exception) {
       throw new IOException(exception);
     }
-
-    try {
-      // TODO(devoncarew): workaround for bug https://code.google.com/p/dart/issues/detail?id=9705
-      // We need to give the VM time to process all the events before we start sending more.
-      // There's some race condition going on in the VM's queue.
-      Thread.sleep(10);
-    }
-    catch (InterruptedException e) {
-
-    }
   }
 
   /**
@@ -935,51 +1013,83 @@ public class VmConnection {
     sendSimpleCommand(stepCommand, isolate.getId(), resumeOnSuccess(isolate));
   }
 
-  public synchronized void handleTerminated() {
-    // Clean up the callbackMap on termination.
-    List<Callback> callbacks = new ArrayList<VmConnection.Callback>(callbackMap.values());
+  public void handleTerminated() {
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("source cache: " + sourceCache + ", line number table cache: " + lineNumberTableCache);
+    }
 
-    for (Callback callback : callbacks) {
-      try {
-        callback.handleResult(VmResult.createJsonErrorResult("connection termination"));
-      }
-      catch (JSONException e) {
+    // Clean up the callbackMap on termination.
+    for (Integer id : new ArrayList<Integer>(callbackMap.keySet())) {
+      failCallback(id, "connection termination");
+    }
+  }
 
-      }
+  protected void processJson(final JSONObject result) {
+    if (orderedEventDispatch && !result.has("id")) {
+      eventQueue.add(result);
+      scheduleEventDispatch();
+      return;
     }
 
-    callbackMap.clear();
+    ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+      @Override
+      public void run() {
+        dispatchJson(result);
+      }
+    });
   }
 
-  protected void processJson(final JSONObject result) {
+  private void scheduleEventDispatch() {
+    if (!eventDispatchScheduled.compareAndSet(false, true)) {
+      return;
+    }
+
     ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
       @Override
       public void run() {
         try {
-          if (LOG.isDebugEnabled()) {
-            LOG.debug("<== (" + Thread.currentThread().getName() + ")" + result);
-          }
+          JSONObject event;
 
-          if (result.has("id")) {
-            processResponse(result);
-          }
-          else {
-            processNotification(result);
+          while ((event = eventQueue.poll()) != null) {
+            dispatchJson(event);
           }
         }
-        catch (IOException exception) {
-          LOG.info(exception);
+        finally {
+          eventDispatchScheduled.set(false);
         }
-        catch (JSONException exception) {
-          LOG.info(exception);
+
+        // an event may have been queued after the loop ended but before the flag was reset
+        if (!eventQueue.isEmpty()) {
+          scheduleEventDispatch();
         }
-        //catch (Throwable exception) {
-        //  LOG.info(exception);
-        //}
       }
     });
   }
 
+  private void dispatchJson(final JSONObject result) {
+    try {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("<== (" + Thread.currentThread().getName() + ")" + result);
+      }
+
+      if (result.has("id")) {
+        processResponse(result);
+      }
+      else {
+        processNotification(result);
+      }
+    }
+    catch (IOException exception) {
+      LOG.info(exception);
+    }
+    catch (JSONException exception) {
+      LOG.info(exception);
+    }
+    //catch (Throwable exception) {
+    //  LOG.info(exception);
+    //}
+  }
+
   protected void sendSimpleCommand(String command, int isolateId) throws IOException {
     sendSimpleCommand(command, isolateId, null);
   }
@@ -998,16 +1108,24 @@ public class VmConnection {
     }
   }
 
-  void sendRequest(JSONObject request, int isolateId, Callback callback) throws IOException {
-    int id = 0;
+  /**
+   * Send the request without waiting for the response; any number of requests may be in flight at once.
+   *
+   * @return the future response, completed after the callback (if any) has handled it
+   */
+  Future<JSONObject> sendRequest(JSONObject request, int isolateId, @Nullable final Callback callback) throws IOException {
+    final FutureResult<JSONObject> future = new FutureResult<JSONObject>();
 
     try {
       if (!isConnected()) {
+        JSONObject error = VmResult.createJsonErrorResult("connection termination");
+
         if (callback != null) {
-          callback.handleResult(VmResult.createJsonErrorResult("connection termination"));
+          callback.handleResult(error);
         }
 
-        return;
+        future.set(error);
+        return future;
       }
 
       if (!request.has("params")) {
@@ -1024,8 +1142,26 @@ public class VmConnection {
       throw new IOException(jse);
     }
 
-    synchronized (this) {
-      id = nextCommandId++;
+    Callback futureCallback = new Callback() {
+      @Override
+      public void handleResult(JSONObject result) throws JSONException {
+        try {
+          if (callback != null) {
+            callback.handleResult(result);
+          }
+          else if (result.has("error")) {
+            // If we get an error back, and nobody was listening for the result, then log it.
+            LOG.info("Error from command id " + result.opt("id") + ": " + VmResult.createFrom(result).getError());
+          }
+        }
+        finally {
+          future.set(result);
+        }
+      }
+    };
+
+    synchronized (sendLock) {
+      int id = nextCommandId.getAndIncrement();
 
       try {
         request.put("id", id);
@@ -1034,23 +1170,25 @@ public class VmConnection {
         throw new IOException(ex);
       }
 
-      if (callback != null) {
-        callbackMap.put(id, callback);
+      callbackMap.put(id, futureCallback);
+
+      if (!isConnected()) {
+        // the connection may have terminated (and cleaned up the callbackMap) since the check above
+        failCallback(id, "connection termination");
+        return future;
       }
-    }
 
-    try {
-      send(request.toString());
-    }
-    catch (IOException ex) {
-      if (callback != null) {
-        synchronized (this) {
-          callbackMap.remove(id);
-        }
+      try {
+        send(request.toString());
       }
+      catch (IOException ex) {
+        callbackMap.remove(id);
 
-      throw ex;
+        throw ex;
+      }
     }
+
+    return future;
   }
 
   private VmResult<VmValue> convertEvaluateObjectResult(VmIsolate isolate, JSONObject object)
@@ -1260,57 +1398,70 @@ public class VmConnection {
   }
 
   private void populateClassInfo(final VmIsolate isolate, final int classId) {
-    final CountDownLatch latch = new CountDownLatch(1);
-
     try {
-      getClassProperties(isolate, classId, new VmCallback<VmClass>() {
+      waitFor(getClassProperties(isolate, classId, new VmCallback<VmClass>() {
         @Override
         public void handleResult(VmResult<VmClass> result) {
           if (!result.isError()) {
             isolate.setClassInfo(classId, result.getResult());
           }
-
-          latch.countDown();
         }
-      });
-    }
-    catch (IOException e1) {
-      latch.countDown();
-    }
-
-    try {
-      latch.await();
+      }));
     }
-    catch (InterruptedException e) {
+    catch (IOException ignored) {
 
     }
   }
 
   private void populateLibraryInfo(final VmIsolate isolate, final int libraryId) {
-    final CountDownLatch latch = new CountDownLatch(1);
-
     try {
-      getLibraryProperties(isolate, libraryId, new VmCallback<VmLibrary>() {
+      waitFor(getLibraryProperties(isolate, libraryId, new VmCallback<VmLibrary>() {
         @Override
         public void handleResult(VmResult<VmLibrary> result) {
           if (!result.isError()) {
             isolate.setLibraryInfo(libraryId, result.getResult());
           }
-
-          latch.countDown();
         }
-      });
+      }));
     }
-    catch (IOException e1) {
-      latch.countDown();
+    catch (IOException ignored) {
+
+    }
+  }
+
+  private void failCallback(int id, String message) {
+    Callback callback = callbackMap.remove(id);
+
+    if (callback != null) {
+      try {
+        callback.handleResult(VmResult.createJsonErrorResult(message));
+      }
+      catch (JSONException e) {
+
+      }
+    }
+  }
+
+  /**
+   * Block until the given request is answered, the connection is terminated or the response timeout expires.
+   */
+  private static void waitFor(@Nullable Future<?> future) {
+    if (future == null) {
+      return;
     }
 
     try {
-      latch.await();
+      future.get(RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
     }
-    catch (InterruptedException e) {
+    catch (InterruptedException ignored) {
 
     }
+    catch (ExecutionException e) {
+      LOG.info(e);
+    }
+    catch (TimeoutException e) {
+      LOG.info("VM request not answered in " + RESPONSE_TIMEOUT_MS + " ms");
+    }
   }
 
   private void processNotification(JSONObject result) throws JSONException, IOException {
@@ -1340,6 +1491,11 @@ public class VmConnection {
         VmLocation location = VmLocation.createFrom(isolate, params.getJSONObject("location"));
 
         handleBreakpointResolved(isolate, breakpointId, location);
+
+        // the VM is likely to pause in this library, so have its line number table ready in advance
+        if (location != null && !lineNumberTableCache.containsKey(location.getLibraryId() + ":" + location.getUrl())) {
+          requestLineNumberTable(isolate, location.getLibraryId(), location.getUrl());
+        }
       }
       else if (eventName.equals(EVENT_ISOLATE)) {
         // { "event": "isolate", "params": { "reason": "created", "id": 7114 }}]
@@ -1378,11 +1534,7 @@ public class VmConnection {
     // Process a command response.
     int id = result.getInt("id");
 
-    Callback callback;
-
-    synchronized (this) {
-      callback = callbackMap.remove(id);
-    }
+    Callback callback = callbackMap.remove(id);
 
     if (callback != null) {
       callback.handleResult(result);
@@ -1396,75 +1548,22 @@ public class VmConnection {
   }
 
   private void processVmEvents(InputStream in) throws IOException {
-    Reader reader = new InputStreamReader(in, UTF8);
-
-    JSONObject obj = readJson(reader);
-
-    while (obj != null) {
-      processJson(obj);
+    VmJsonReader reader = new VmJsonReader(in);
 
-      obj = readJson(reader);
-    }
-  }
-
-  private JSONObject readJson(Reader in) throws IOException {
-    StringBuilder builder = new StringBuilder();
-
-    boolean inQuote = false;
-    boolean ignoreLast = false;
-    int curlyCount = 0;
-
-    int c = in.read();
-
-    while (true) {
-      if (c == -1) {
-        throw new EOFException();
-      }
-
-      builder.append((char)c);
+    try {
+      JSONObject obj = reader.readJson();
 
-      if (!ignoreLast) {
-        if (c == '"') {
-          inQuote = !inQuote;
-        }
-      }
+      while (obj != null) {
+        processJson(obj);
 
-      if (inQuote && c == '\\') {
-        ignoreLast = true;
+        obj = reader.readJson();
       }
-      else {
-        ignoreLast = false;
-      }
-
-      if (!inQuote) {
-        if (c == '{') {
-          curlyCount++;
-        }
-        else if (c == '}') {
-          curlyCount--;
-
-          if (curlyCount == 0) {
-            try {
-              String str = builder.toString();
-
-              // TODO(devoncarew): we know this is occurring for exception text.
-              // Possibly from toString() invocations?
-              if (str.indexOf('\n') != -1) {
-                LOG.error("bad json from vm: " + str);
-
-                str = str.replace("\n", "\\n");
-              }
-
-              return new JSONObject(str);
-            }
-            catch (JSONException e) {
-              throw new IOException(e);
-            }
-          }
-        }
+    }
+    finally {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("decoded " + reader.getMessageCount() + " messages, average " + reader.getAverageDecodeNanos() / 1000 +
+                  " us, max " + reader.getMaxDecodeNanos() / 1000 + " us");
       }
-
-      c = in.read();
     }
   }
 
@@ -1535,6 +1634,13 @@ public class VmConnection {
             else {
               List<VmCallFrame> frames = result.getResult();
 
+              // frames need their line numbers to be presented; fetch all missing tables in one round trip
+              List<VmLocation> locations = new ArrayList<VmLocation>(frames.size());
+              for (VmCallFrame frame : frames) {
+                locations.add(frame.getLocation());
+              }
+              prefetchLineNumberTables(isolate, locations);
+
               for (VmListener listener : listeners) {
                 listener.debuggerPaused(reason, isolate, frames, exception);
               }
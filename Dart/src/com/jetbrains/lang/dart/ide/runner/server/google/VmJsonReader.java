@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2012, the Dart project authors.
+ *
+ * Licensed under the Eclipse Public License v1.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.jetbrains.lang.dart.ide.runner.server.google;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import static com.jetbrains.lang.dart.ide.runner.server.DartCommandLineDebugProcess.LOG;
+
+/**
+ * Splits the stream of JSON objects sent by the VM into messages. Framing is done on raw bytes read through a reused buffer:
+ * all structural characters are ASCII, so they can never be part of a multi-byte UTF-8 sequence, and the text is decoded once
+ * per message.
+ */
+class VmJsonReader {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final int BUFFER_SIZE = 8192;
+
+  private final InputStream in;
+
+  private final byte[] readBuffer = new byte[BUFFER_SIZE];
+  private int readPosition;
+  private int readLimit;
+
+  // bytes of the message being decoded, reused between messages
+  private byte[] messageBuffer = new byte[BUFFER_SIZE];
+  private int messageLength;
+
+  private long messageCount;
+  private long totalDecodeNanos;
+  private long maxDecodeNanos;
+
+  VmJsonReader(InputStream in) {
+    this.in = in;
+  }
+
+  /**
+   * Read the next complete JSON object from the stream.
+   *
+   * @throws EOFException if the stream ends before the next message is complete
+   */
+  JSONObject readJson() throws IOException {
+    messageLength = 0;
+
+    boolean inQuote = false;
+    boolean ignoreLast = false;
+    boolean hasNewLine = false;
+    int curlyCount = 0;
+    long startTime = 0;
+
+    while (true) {
+      if (readPosition == readLimit) {
+        readLimit = in.read(readBuffer);
+        readPosition = 0;
+
+        if (readLimit == -1) {
+          readLimit = 0;
+          throw new EOFException();
+        }
+      }
+
+      if (messageLength == 0) {
+        startTime = System.nanoTime();
+      }
+
+      byte c = readBuffer[readPosition++];
+
+      // TODO(devoncarew): we know this is occurring for exception text.
+      // Possibly from toString() invocations?
+      if (c == '\n' && inQuote) {
+        hasNewLine = true;
+        append((byte)'\\');
+        append((byte)'n');
+      }
+      else {
+        append(c);
+      }
+
+      if (!ignoreLast) {
+        if (c == '"') {
+          inQuote = !inQuote;
+        }
+      }
+
+      ignoreLast = inQuote && c == '\\' && !ignoreLast;
+
+      if (!inQuote) {
+        if (c == '{') {
+          curlyCount++;
+        }
+        else if (c == '}') {
+          curlyCount--;
+
+          if (curlyCount == 0) {
+            String str = new String(messageBuffer, 0, messageLength, UTF8);
+
+            if (hasNewLine) {
+              LOG.error("bad json from vm: " + str);
+            }
+
+            try {
+              return new JSONObject(str);
+            }
+            catch (JSONException e) {
+              throw new IOException(e);
+            }
+            finally {
+              recordDecodeTime(System.nanoTime() - startTime);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private void append(byte b) {
+    if (messageLength == messageBuffer.length) {
+      byte[] newBuffer = new byte[messageBuffer.length * 2];
+      System.arraycopy(messageBuffer, 0, newBuffer, 0, messageLength);
+      messageBuffer = newBuffer;
+    }
+
+    messageBuffer[messageLength++] = b;
+  }
+
+  private void recordDecodeTime(long nanos) {
+    messageCount++;
+    totalDecodeNanos += nanos;
+    maxDecodeNanos = Math.max(maxDecodeNanos, nanos);
+
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("decoded " + messageLength + " bytes in " + nanos / 1000 + " us");
+    }
+  }
+
+  long getMessageCount() {
+    return messageCount;
+  }
+
+  long getAverageDecodeNanos() {
+    return messageCount == 0 ? 0 : totalDecodeNanos / messageCount;
+  }
+
+  long getMaxDecodeNanos() {
+    return maxDecodeNanos;
+  }
+}
@@ -18,8 +18,7 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 import static com.jetbrains.lang.dart.ide.runner.server.DartCommandLineDebugProcess.LOG;
 
@@ -30,41 +29,67 @@ public class VmLineNumberTable {
 
   static VmLineNumberTable createFrom(VmIsolate isolate, int libraryId, String url,
                                       JSONObject object) throws JSONException {
-    VmLineNumberTable lineNumberTable = new VmLineNumberTable(libraryId, url);
-
     // { "id": 2, "result": { "lines": [[1,0,0,1,5,2,9,3,10,4,12], [2, ...
 
     JSONArray lineInfos = object.getJSONArray("lines");
 
+    int count = 0;
+
+    for (int i = 0; i < lineInfos.length(); i++) {
+      count += lineInfos.getJSONArray(i).length() / 2;
+    }
+
+    long[] mappings = new long[count];
+    int mappingIndex = 0;
+
     for (int i = 0; i < lineInfos.length(); i++) {
       JSONArray lineInfo = lineInfos.getJSONArray(i);
 
       // Retrieve the line number of the current line.
-      Integer lineNumber = lineInfo.getInt(0);
+      int lineNumber = lineInfo.getInt(0);
 
       // Index over the remaining (tokenOffset, charOffset) tuples.
       for (int index = 1; index < lineInfo.length(); index += 2) {
-        Integer tokenOffset = lineInfo.getInt(index);
+        int tokenOffset = lineInfo.getInt(index);
 
         // We don't use this info currently, so we don't decode it.
         //Integer columnNumber = lineInfo.getInt(index + 1);
 
-        lineNumberTable.lineMap.put(tokenOffset, lineNumber);
+        // pack (tokenOffset, lineNumber) so that sorting orders by token offset
+        mappings[mappingIndex++] = ((long)tokenOffset << 32) | (lineNumber & 0xFFFFFFFFL);
       }
     }
 
-    return lineNumberTable;
+    if (mappingIndex < mappings.length) {
+      mappings = Arrays.copyOf(mappings, mappingIndex);
+    }
+
+    Arrays.sort(mappings);
+
+    int[] tokenOffsets = new int[mappings.length];
+    int[] lines = new int[mappings.length];
+
+    for (int i = 0; i < mappings.length; i++) {
+      tokenOffsets[i] = (int)(mappings[i] >> 32);
+      lines[i] = (int)mappings[i];
+    }
+
+    return new VmLineNumberTable(libraryId, url, tokenOffsets, lines);
   }
 
-  Map<Integer, Integer> lineMap = new HashMap<Integer, Integer>();
+  // sorted token offsets and the line of each of them
+  private final int[] tokenOffsets;
+  private final int[] lines;
 
   private int libraryId;
 
   private String url;
 
-  VmLineNumberTable(int libraryId, String url) {
+  VmLineNumberTable(int libraryId, String url, int[] tokenOffsets, int[] lines) {
     this.libraryId = libraryId;
     this.url = url;
+    this.tokenOffsets = tokenOffsets;
+    this.lines = lines;
   }
 
   public int getLibraryId() {
@@ -72,10 +97,10 @@ public class VmLineNumberTable {
   }
 
   public int getLineForLocation(VmLocation location) {
-    Integer ret = lineMap.get(location.getTokenOffset());
+    int index = Arrays.binarySearch(tokenOffsets, location.getTokenOffset());
 
-    if (ret != null) {
-      return ret.intValue();
+    if (index >= 0) {
+      return lines[index];
     }
 
     LOG.error("no line mapping found for " + location);
@@ -87,8 +112,15 @@ public class VmLineNumberTable {
     return url;
   }
 
+  /**
+   * @return approximate memory footprint of the mappings in bytes
+   */
+  int getSizeInBytes() {
+    return tokenOffsets.length * 8;
+  }
+
   @Override
   public String toString() {
-    return "[lineNumberTable for " + url + "," + lineMap.size() + " mappings]";
+    return "[lineNumberTable for " + url + "," + tokenOffsets.length + " mappings]";
   }
 }
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2013, the Dart project authors.
+ * 
+ * Licensed under the Eclipse Public License v1.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.jetbrains.lang.dart.ide.runner.server.google;
+
+import com.intellij.openapi.util.Ref;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe, size-bounded LRU cache used for data fetched from the VM. <code>null</code> values are cached as well,
+ * so failed lookups are not repeated.
+ */
+class VmLruCache<K, V> {
+  private final int maxWeight;
+  private final LinkedHashMap<K, V> map = new LinkedHashMap<K, V>(16, 0.75f, true);
+  private int weight;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param maxWeight the maximum total weight of the cached values, see {@link #getWeight(Object)}
+   */
+  VmLruCache(int maxWeight) {
+    this.maxWeight = maxWeight;
+  }
+
+  /**
+   * @return <code>null</code> if nothing is cached for the key, otherwise a reference to the (possibly <code>null</code>) value
+   */
+  @Nullable
+  synchronized Ref<V> get(K key) {
+    if (!map.containsKey(key)) {
+      misses.incrementAndGet();
+      return null;
+    }
+
+    hits.incrementAndGet();
+    return Ref.create(map.get(key));
+  }
+
+  synchronized boolean containsKey(K key) {
+    return map.containsKey(key);
+  }
+
+  synchronized void put(K key, @Nullable V value) {
+    boolean wasCached = map.containsKey(key);
+    V oldValue = map.put(key, value);
+
+    weight += weightOf(value) - (wasCached ? weightOf(oldValue) : 0);
+
+    Iterator<Map.Entry<K, V>> iterator = map.entrySet().iterator();
+
+    // keep the most recently put entry even if it alone exceeds the limit
+    while (weight > maxWeight && map.size() > 1 && iterator.hasNext()) {
+      Map.Entry<K, V> eldest = iterator.next();
+
+      if (eldest.getKey().equals(key)) {
+        continue;
+      }
+
+      weight -= weightOf(eldest.getValue());
+      iterator.remove();
+    }
+  }
+
+  synchronized void clear() {
+    map.clear();
+    weight = 0;
+  }
+
+  synchronized int size() {
+    return map.size();
+  }
+
+  long getHits() {
+    return hits.get();
+  }
+
+  long getMisses() {
+    return misses.get();
+  }
+
+  private int weightOf(@Nullable V value) {
+    return value == null ? 1 : getWeight(value);
+  }
+
+  /**
+   * @return the weight of a non-null value; each entry weighs 1 by default
+   */
+  protected int getWeight(V value) {
+    return 1;
+  }
+
+  @Override
+  public String toString() {
+    return "[" + size() + " entries, " + hits.get() + " hits, " + misses.get() + " misses]";
+  }
+}
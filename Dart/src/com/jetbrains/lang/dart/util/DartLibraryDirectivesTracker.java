@@ -0,0 +1,146 @@
+package com.jetbrains.lang.dart.util;
+
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.fileTypes.StdFileTypes;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.ModificationTracker;
+import com.intellij.psi.*;
+import com.intellij.psi.xml.XmlFile;
+import com.intellij.util.containers.ConcurrentWeakHashMap;
+import com.intellij.util.containers.ContainerUtil;
+import com.jetbrains.lang.dart.psi.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Modification count of the library names and of the <code>import</code>, <code>export</code> and <code>part</code> directives
+ * of all Dart files of the project. Edits which don't touch them (i.e. almost all of them) don't change it,
+ * so caches of the library graph built from {@link com.jetbrains.lang.dart.ide.index.DartLibraryIndex} and friends may depend on it
+ * instead of on every PSI change.
+ */
+public class DartLibraryDirectivesTracker implements ModificationTracker {
+  private final AtomicLong myModificationCount = new AtomicLong();
+  // directives of the files being changed, as they were before the change; files which are gone are collected
+  private final Map<PsiFile, String> myDirectivesBeforeChange =
+    new ConcurrentWeakHashMap<PsiFile, String>(7, 0.75f, 2, ContainerUtil.<PsiFile>canonicalStrategy());
+
+  public static DartLibraryDirectivesTracker getInstance(@NotNull Project project) {
+    return ServiceManager.getService(project, DartLibraryDirectivesTracker.class);
+  }
+
+  public DartLibraryDirectivesTracker(@NotNull Project project) {
+    PsiManager.getInstance(project).addPsiTreeChangeListener(new PsiTreeChangeAdapter() {
+      @Override
+      public void beforeChildAddition(@NotNull PsiTreeChangeEvent event) {
+        beforeChange(event);
+      }
+
+      @Override
+      public void beforeChildRemoval(@NotNull PsiTreeChangeEvent event) {
+        beforeChange(event);
+      }
+
+      @Override
+      public void beforeChildReplacement(@NotNull PsiTreeChangeEvent event) {
+        beforeChange(event);
+      }
+
+      @Override
+      public void beforeChildMovement(@NotNull PsiTreeChangeEvent event) {
+        beforeChange(event);
+      }
+
+      @Override
+      public void beforeChildrenChange(@NotNull PsiTreeChangeEvent event) {
+        beforeChange(event);
+      }
+
+      @Override
+      public void childAdded(@NotNull PsiTreeChangeEvent event) {
+        afterChange(event);
+      }
+
+      @Override
+      public void childRemoved(@NotNull PsiTreeChangeEvent event) {
+        afterChange(event);
+      }
+
+      @Override
+      public void childReplaced(@NotNull PsiTreeChangeEvent event) {
+        afterChange(event);
+      }
+
+      @Override
+      public void childMoved(@NotNull PsiTreeChangeEvent event) {
+        afterChange(event);
+      }
+
+      @Override
+      public void childrenChanged(@NotNull PsiTreeChangeEvent event) {
+        afterChange(event);
+      }
+    }, project);
+  }
+
+  @Override
+  public long getModificationCount() {
+    return myModificationCount.get();
+  }
+
+  private void beforeChange(@NotNull PsiTreeChangeEvent event) {
+    final PsiFile file = getDartFile(event);
+    if (file != null && !isInsideBody(event.getParent()) && !myDirectivesBeforeChange.containsKey(file)) {
+      myDirectivesBeforeChange.put(file, getDirectives(file));
+    }
+  }
+
+  private void afterChange(@NotNull PsiTreeChangeEvent event) {
+    final PsiFile file = getDartFile(event);
+    if (file == null) return;
+    // only the first of the events of one change finds the directives from before it;
+    // added and removed files are seen through VirtualFileManager.VFS_STRUCTURE_MODIFICATIONS
+    final String before = myDirectivesBeforeChange.remove(file);
+    if (before != null && !before.equals(getDirectives(file))) {
+      myModificationCount.incrementAndGet();
+    }
+  }
+
+  /**
+   * Function and class bodies contain neither directives nor the top-level <code>main()</code> declaration
+   * the library name may depend on, so changes inside them are skipped without looking at the directives.
+   */
+  private static boolean isInsideBody(@Nullable PsiElement element) {
+    for (PsiElement e = element; e != null && !(e instanceof PsiFile); e = e.getParent()) {
+      if (e instanceof DartFunctionBody || e instanceof DartClassBody) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Nullable
+  private static PsiFile getDartFile(@NotNull PsiTreeChangeEvent event) {
+    final PsiFile file = event.getFile();
+    return file instanceof DartFile || file instanceof XmlFile && file.getFileType() == StdFileTypes.HTML ? file : null;
+  }
+
+  /**
+   * Library name and the directives of the file in the order they are written.
+   */
+  @NotNull
+  private static String getDirectives(@NotNull PsiFile file) {
+    final StringBuilder result = new StringBuilder();
+    result.append(DartResolveUtil.getLibraryName(file));
+    for (PsiElement root : DartResolveUtil.findDartRoots(file)) {
+      for (PsiElement child = root.getFirstChild(); child != null; child = child.getNextSibling()) {
+        if (child instanceof DartImportStatement || child instanceof DartExportStatement || child instanceof DartPartStatement) {
+          result.append('\n').append(child.getText());
+        }
+      }
+    }
+    return result.toString();
+  }
+}
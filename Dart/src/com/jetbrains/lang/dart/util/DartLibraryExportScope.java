@@ -0,0 +1,242 @@
+package com.jetbrains.lang.dart.util;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.ResolveState;
+import com.intellij.psi.scope.PsiScopeProcessor;
+import com.intellij.psi.util.CachedValue;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.psi.util.PsiModificationTracker;
+import com.jetbrains.lang.dart.ide.index.DartImportIndex;
+import com.jetbrains.lang.dart.ide.index.DartLibraryIndex;
+import com.jetbrains.lang.dart.ide.index.DartPathIndex;
+import com.jetbrains.lang.dart.ide.index.DartPathInfo;
+import com.jetbrains.lang.dart.psi.DartComponentName;
+import com.jetbrains.lang.dart.psi.impl.DartPsiCompositeElementImpl;
+import gnu.trove.THashMap;
+import gnu.trove.THashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Namespace visible from a library root: every file reachable through <code>part</code> and unprefixed <code>import</code>
+ * directives (in the order they are processed by resolve) together with the show/hide combinators on the way to it.
+ * <p/>
+ * The scope is cached on the root file until the library names or directives of some Dart file change
+ * (see {@link DartLibraryDirectivesTracker}), and the names declared by each file are cached on that file,
+ * so an edit of a file only makes its own names recomputed and top-level resolution doesn't traverse the part/import graph.
+ * The entries declaring each name are looked up in a map which is rebuilt after changes outside of code blocks only.
+ */
+public class DartLibraryExportScope {
+  private static final Key<CachedValue<DartLibraryExportScope>> PUBLIC_SCOPE_KEY = Key.create("dart.library.export.scope");
+  private static final Key<CachedValue<DartLibraryExportScope>> PRIVATE_SCOPE_KEY = Key.create("dart.library.export.scope.private");
+  private static final Key<CachedValue<Set<String>>> DECLARED_NAMES_KEY = Key.create("dart.library.export.scope.declared.names");
+
+  private final List<Entry> myEntries;
+  private final CachedValue<Map<String, List<Entry>>> myEntriesByName;
+
+  private DartLibraryExportScope(@NotNull final Project project, @NotNull final List<Entry> entries) {
+    myEntries = entries;
+    myEntriesByName = CachedValuesManager.getManager(project).createCachedValue(new CachedValueProvider<Map<String, List<Entry>>>() {
+      @Nullable
+      @Override
+      public Result<Map<String, List<Entry>>> compute() {
+        final PsiManager psiManager = PsiManager.getInstance(project);
+        final Map<String, List<Entry>> entriesByName = new THashMap<String, List<Entry>>();
+        for (Entry entry : entries) {
+          final PsiFile psiFile = psiManager.findFile(entry.file);
+          if (psiFile == null) continue;
+          for (String name : getDeclaredNames(psiFile)) {
+            if (entry.isExcluded(name)) continue;
+            List<Entry> nameEntries = entriesByName.get(name);
+            if (nameEntries == null) {
+              nameEntries = new ArrayList<Entry>(1);
+              entriesByName.put(name, nameEntries);
+            }
+            nameEntries.add(entry);
+          }
+        }
+        // top-level names change only outside of code blocks
+        return Result.create(entriesByName, PsiModificationTracker.OUT_OF_CODE_BLOCK_MODIFICATION_COUNT);
+      }
+    }, false);
+  }
+
+  /**
+   * @param isLookingForPrivate if <code>true</code> imports of the root file itself are not followed
+   */
+  @Nullable
+  public static DartLibraryExportScope getScope(@NotNull final Project project, @NotNull final VirtualFile rootFile,
+                                                final boolean isLookingForPrivate) {
+    final PsiFile rootPsiFile = PsiManager.getInstance(project).findFile(rootFile);
+    if (rootPsiFile == null) return null;
+
+    final Key<CachedValue<DartLibraryExportScope>> key = isLookingForPrivate ? PRIVATE_SCOPE_KEY : PUBLIC_SCOPE_KEY;
+    return CachedValuesManager.getManager(project).getCachedValue(rootPsiFile, key, new CachedValueProvider<DartLibraryExportScope>() {
+      @Nullable
+      @Override
+      public Result<DartLibraryExportScope> compute() {
+        final List<Entry> entries = new ArrayList<Entry>();
+        collectEntries(rootPsiFile, rootFile, Collections.<DartPathInfo>emptyList(), new THashSet<VirtualFile>(), isLookingForPrivate,
+                       entries);
+        // new files may make unresolved imports and parts resolvable
+        return Result.create(new DartLibraryExportScope(project, entries), DartLibraryDirectivesTracker.getInstance(project),
+                             VirtualFileManager.VFS_STRUCTURE_MODIFICATIONS, ProjectRootManager.getInstance(project));
+      }
+    }, false);
+  }
+
+  /**
+   * @return names of the top-level components declared in the file
+   */
+  @NotNull
+  private static Set<String> getDeclaredNames(@NotNull final PsiFile psiFile) {
+    return CachedValuesManager.getManager(psiFile.getProject()).getCachedValue(psiFile, DECLARED_NAMES_KEY, new CachedValueProvider<Set<String>>() {
+      @Nullable
+      @Override
+      public Result<Set<String>> compute() {
+        final Set<String> names = new THashSet<String>();
+        for (PsiElement root : DartResolveUtil.findDartRoots(psiFile)) {
+          DartPsiCompositeElementImpl.processDeclarationsImpl(root, new PsiScopeProcessor() {
+            @Override
+            public boolean execute(@NotNull PsiElement element, @NotNull ResolveState state) {
+              final String name = element instanceof DartComponentName ? ((DartComponentName)element).getName() : null;
+              if (name != null) {
+                names.add(name);
+              }
+              return true;
+            }
+
+            @Nullable
+            @Override
+            public <T> T getHint(@NotNull Key<T> hintKey) {
+              return null;
+            }
+
+            @Override
+            public void handleEvent(@NotNull Event event, @Nullable Object associated) {
+            }
+          }, ResolveState.initial(), null);
+        }
+        return Result.<Set<String>>create(names, psiFile);
+      }
+    }, false);
+  }
+
+  private static void collectEntries(@NotNull PsiElement context,
+                                     @NotNull VirtualFile virtualFile,
+                                     @NotNull List<DartPathInfo> filters,
+                                     @NotNull Set<VirtualFile> processedFiles,
+                                     boolean isLookingForPrivate,
+                                     @NotNull List<Entry> result) {
+    if (!processedFiles.add(virtualFile)) return;
+
+    result.add(new Entry(virtualFile, filters));
+
+    for (String relativePathOrUrl : DartPathIndex.getPaths(context.getProject(), virtualFile)) {
+      VirtualFile childFile = DartResolveUtil.findRelativeFile(virtualFile, relativePathOrUrl);
+      childFile = childFile != null ? childFile : VirtualFileManager.getInstance().findFileByUrl(relativePathOrUrl);
+      if (childFile == null || processedFiles.contains(childFile)) {
+        continue;
+      }
+      final PsiFile childPsiFile = context.getManager().findFile(childFile);
+      if (childPsiFile != null) {
+        // as in DartResolveUtil, only the root file itself doesn't follow its imports when looking for private components
+        collectEntries(childPsiFile, childFile, filters, processedFiles, false, result);
+      }
+    }
+
+    if (isLookingForPrivate) return;
+
+    for (DartPathInfo libraryPathInfo : DartImportIndex.getLibraryNames(context.getProject(), virtualFile)) {
+      if (libraryPathInfo.getPrefix() != null) {
+        // statement has prefix
+        // all components are prefix.Name
+        continue;
+      }
+      final List<DartPathInfo> importFilters = appendFilter(filters, libraryPathInfo);
+      final String libraryNameOrPath = libraryPathInfo.getPath();
+      for (VirtualFile libraryRoot : DartLibraryIndex.findLibraryClass(context, libraryNameOrPath)) {
+        collectEntries(context, libraryRoot, importFilters, processedFiles, false, result);
+      }
+      final VirtualFile sourceFile = DartResolveUtil.getImportedFile(context.getProject(), virtualFile, libraryNameOrPath);
+      if (sourceFile != null) {
+        collectEntries(context, sourceFile, importFilters, processedFiles, false, result);
+      }
+    }
+  }
+
+  private static List<DartPathInfo> appendFilter(@NotNull List<DartPathInfo> filters, @NotNull DartPathInfo pathInfo) {
+    if (pathInfo.getShowComponents().isEmpty() && pathInfo.getHideComponents().isEmpty()) {
+      return filters;
+    }
+    final List<DartPathInfo> result = new ArrayList<DartPathInfo>(filters.size() + 1);
+    result.addAll(filters);
+    result.add(pathInfo);
+    return result;
+  }
+
+  /**
+   * @param componentNameHint if not <code>null</code> only files declaring a component with this name are processed
+   * @return <code>false</code> if processing was stopped by the processor
+   */
+  public boolean processDeclarations(@NotNull PsiManager psiManager,
+                                     @NotNull PsiScopeProcessor processor,
+                                     @Nullable String componentNameHint) {
+    final List<Entry> entries;
+    if (componentNameHint != null) {
+      entries = myEntriesByName.getValue().get(componentNameHint);
+      if (entries == null) return true;
+    }
+    else {
+      entries = myEntries;
+    }
+
+    for (Entry entry : entries) {
+      final PsiFile psiFile = psiManager.findFile(entry.file);
+      if (psiFile == null) continue;
+
+      final PsiScopeProcessor wrappedProcessor = entry.wrapElementProcessor(processor);
+      for (PsiElement root : DartResolveUtil.findDartRoots(psiFile)) {
+        if (!DartPsiCompositeElementImpl.processDeclarationsImpl(root, wrappedProcessor, ResolveState.initial(), null)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private static class Entry {
+    @NotNull private final VirtualFile file;
+    // show/hide combinators of all imports on the way from the library root to this file, innermost last
+    @NotNull private final List<DartPathInfo> filters;
+
+    private Entry(@NotNull VirtualFile file, @NotNull List<DartPathInfo> filters) {
+      this.file = file;
+      this.filters = filters;
+    }
+
+    private boolean isExcluded(@NotNull String name) {
+      for (DartPathInfo filter : filters) {
+        if (filter.isComponentExcluded(name)) return true;
+      }
+      return false;
+    }
+
+    private PsiScopeProcessor wrapElementProcessor(@NotNull PsiScopeProcessor processor) {
+      for (DartPathInfo filter : filters) {
+        processor = filter.wrapElementProcessor(processor);
+      }
+      return processor;
+    }
+  }
+}
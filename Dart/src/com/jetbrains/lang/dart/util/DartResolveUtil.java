@@ -276,12 +276,20 @@ public class DartResolveUtil {
                                                     @NotNull PsiScopeProcessor processor,
                                                     @Nullable VirtualFile rootVirtualFile,
                                                     @Nullable String componentNameHint) {
+    final boolean isLookingForPrivate = componentNameHint != null && componentNameHint.startsWith("_");
+    if (rootVirtualFile != null) {
+      final DartLibraryExportScope scope = DartLibraryExportScope.getScope(context.getProject(), rootVirtualFile, isLookingForPrivate);
+      if (scope != null) {
+        return scope.processDeclarations(context.getManager(), processor, componentNameHint);
+      }
+    }
+
     final Set<String> fileNames = new THashSet<String>();
     for (VirtualFile virtualFile : DartComponentIndex.getAllFiles(context.getProject(), componentNameHint)) {
       fileNames.add(virtualFile.getName());
     }
     return processTopLevelDeclarationsImpl(context, processor, rootVirtualFile, componentNameHint == null ? null : fileNames,
-                                           new THashSet<VirtualFile>(), componentNameHint != null && componentNameHint.startsWith("_"));
+                                           new THashSet<VirtualFile>(), isLookingForPrivate);
   }
 
   private static boolean processTopLevelDeclarationsImpl(@NotNull PsiElement context,
@@ -363,9 +371,9 @@ public class DartResolveUtil {
   }
 
   @Nullable
-  private static VirtualFile getImportedFile(final @NotNull Project project,
-                                             final @NotNull VirtualFile contextFile,
-                                             final @NotNull String importText) {
+  static VirtualFile getImportedFile(final @NotNull Project project,
+                                     final @NotNull VirtualFile contextFile,
+                                     final @NotNull String importText) {
     if (importText.startsWith(PACKAGE_PREFIX)) {
       return getPackagePrefixImportedFile(project, contextFile, importText);
     }
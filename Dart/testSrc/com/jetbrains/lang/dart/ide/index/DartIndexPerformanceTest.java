@@ -0,0 +1,76 @@
+package com.jetbrains.lang.dart.ide.index;
+
+import com.intellij.openapi.vfs.CharsetToolkit;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.indexing.FileBasedIndexExtension;
+import com.intellij.util.indexing.FileContentImpl;
+import com.intellij.util.indexing.IndexingDataKeys;
+import com.jetbrains.lang.dart.DartCodeInsightFixtureTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class DartIndexPerformanceTest extends DartCodeInsightFixtureTestCase {
+  private static final int FILES_COUNT = 500;
+
+  private static final FileBasedIndexExtension[] DART_INDICES = {
+    new DartClassIndex(), new DartComponentIndex(), new DartImportIndex(), new DartInheritanceIndex(),
+    new DartLibraryIndex(), new DartPathIndex(), new DartSourceIndex(), new DartSymbolIndex()
+  };
+
+  private static String generateFileText(final int index) {
+    final StringBuilder builder = new StringBuilder();
+    builder.append("library lib").append(index).append(";\n");
+    builder.append("import 'dart:core' show Object;\n");
+    builder.append("part 'part").append(index).append(".dart';\n");
+    for (int i = 0; i < 10; i++) {
+      builder.append("class Foo").append(index).append('_').append(i).append(" extends Object implements Comparable {\n");
+      builder.append("  int field").append(i).append(";\n");
+      builder.append("  void method").append(i).append("(int x) { return x + field").append(i).append("; }\n");
+      builder.append("}\n");
+    }
+    return builder.toString();
+  }
+
+  @SuppressWarnings("unchecked")
+  private void indexFile(final PsiFile psiFile) {
+    final VirtualFile vFile = psiFile.getVirtualFile();
+    final FileContentImpl content = new FileContentImpl(vFile, psiFile.getText(), CharsetToolkit.UTF8_CHARSET);
+    content.putUserData(IndexingDataKeys.PROJECT, getProject());
+    content.putUserData(IndexingDataKeys.PSI_FILE, psiFile);
+    for (FileBasedIndexExtension index : DART_INDICES) {
+      index.getIndexer().map(content);
+    }
+  }
+
+  public void testIndexGeneratedCorpus() {
+    final List<PsiFile> files = new ArrayList<PsiFile>();
+    for (int i = 0; i < FILES_COUNT; i++) {
+      files.add(myFixture.addFileToProject("corpus/lib" + i + ".dart", generateFileText(i)));
+    }
+
+    DartIndexUtil.clearCache();
+    // the counters are global, so only their changes made by this test are checked
+    final long missesBefore = DartIndexUtil.getCacheMisses();
+    final long hitsBefore = DartIndexUtil.getCacheHits();
+    PlatformTestUtil.assertTiming("Indexing of " + FILES_COUNT + " files", 10000, new Runnable() {
+      @Override
+      public void run() {
+        for (PsiFile file : files) {
+          indexFile(file);
+        }
+      }
+    });
+
+    assertEquals(FILES_COUNT, DartIndexUtil.getCacheMisses() - missesBefore);
+    assertEquals(FILES_COUNT * (DART_INDICES.length - 1), DartIndexUtil.getCacheHits() - hitsBefore);
+
+    // unchanged content of recently indexed files is not walked again
+    for (PsiFile file : files.subList(FILES_COUNT - 100, FILES_COUNT)) {
+      indexFile(file);
+    }
+    assertEquals(FILES_COUNT, DartIndexUtil.getCacheMisses() - missesBefore);
+  }
+}
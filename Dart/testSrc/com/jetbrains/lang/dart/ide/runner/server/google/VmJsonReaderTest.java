@@ -0,0 +1,74 @@
+package com.jetbrains.lang.dart.ide.runner.server.google;
+
+import com.intellij.testFramework.PlatformTestUtil;
+import junit.framework.TestCase;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class VmJsonReaderTest extends TestCase {
+  private static InputStream stream(final String text) throws IOException {
+    return new ByteArrayInputStream(text.getBytes("UTF-8"));
+  }
+
+  private static String pausedEvent(final int index) {
+    final StringBuilder builder = new StringBuilder();
+    builder.append("{\"event\":\"paused\",\"params\":{\"isolateId\":1,\"reason\":\"breakpoint\",\"location\":{\"url\":\"file:///a.dart\",");
+    builder.append("\"libraryId\":").append(index).append(",\"tokenOffset\":").append(index * 7).append("},\"frames\":[");
+    for (int i = 0; i < 20; i++) {
+      if (i > 0) builder.append(',');
+      builder.append("{\"functionName\":\"f").append(i).append("\",\"locals\":[{\"name\":\"s\",\"value\":{\"text\":\"\\\"{ü}\\\\\"}}]}");
+    }
+    builder.append("]}}");
+    return builder.toString();
+  }
+
+  public void testSplitsMessages() throws IOException {
+    final VmJsonReader reader = new VmJsonReader(stream("{\"id\":1,\"result\":{}}{\"id\":2,\"result\":{\"text\":\"}{\\\\\"}}\n{\"id\":3}"));
+    assertEquals(1, reader.readJson().getInt("id"));
+    final JSONObject second = reader.readJson();
+    assertEquals(2, second.getInt("id"));
+    assertEquals("}{\\", second.getJSONObject("result").getString("text"));
+    assertEquals(3, reader.readJson().getInt("id"));
+    try {
+      reader.readJson();
+      fail();
+    }
+    catch (EOFException ignored) {
+    }
+    assertEquals(3, reader.getMessageCount());
+  }
+
+  public void testMultiByteCharacters() throws IOException {
+    final VmJsonReader reader = new VmJsonReader(stream("{\"text\":\"ü中{\"}"));
+    assertEquals("ü中{", reader.readJson().getString("text"));
+  }
+
+  public void testReplayEventStream() throws IOException {
+    final int count = 5000;
+    final StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      builder.append(pausedEvent(i));
+    }
+    final byte[] bytes = builder.toString().getBytes("UTF-8");
+
+    final VmJsonReader reader = new VmJsonReader(new ByteArrayInputStream(bytes));
+    PlatformTestUtil.assertTiming("Decoding of " + count + " paused events", 5000, new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (int i = 0; i < count; i++) {
+            assertEquals(i, reader.readJson().getJSONObject("params").getJSONObject("location").getInt("libraryId"));
+          }
+        }
+        catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    assertTrue(reader.getAverageDecodeNanos() <= reader.getMaxDecodeNanos());
+  }
+}
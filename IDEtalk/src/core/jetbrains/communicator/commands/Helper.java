@@ -25,6 +25,7 @@ import jetbrains.communicator.core.vfs.ProjectsData;
 import jetbrains.communicator.core.vfs.VFile;
 import jetbrains.communicator.ide.CanceledException;
 import jetbrains.communicator.ide.IDEFacade;
+import jetbrains.communicator.ide.ProgressIndicator;
 import jetbrains.communicator.util.StringUtil;
 import jetbrains.communicator.util.UIUtil;
 import org.apache.log4j.Logger;
@@ -73,31 +74,32 @@ public class Helper {
 
   public static void fillVFileContent(final Transport transport, final User user, final VFile vFile, IDEFacade ideFacade) {
     if (user.isOnline()) {
+      final String title = StringUtil.getMsg("GetVFileContents.title");
       try {
-        UIUtil.run(ideFacade, StringUtil.getMsg("GetVFileContents.title"),
-            new Runnable() {
+        ideFacade.runLongProcess(title, new IDEFacade.Process() {
+          @Override
+          public void run(ProgressIndicator indicator) {
+            indicator.setIndefinite(true);
+            indicator.setText(title);
+
+            final Semaphore semaphore = new Semaphore(0);
+            GetVFileContentsXmlMessage message = new GetVFileContentsXmlMessage(vFile, transport.getName() + ':' + user.getName()) {
               @Override
-              public void run() {
-
-                final Semaphore semaphore = new Semaphore(1);
-                try {
-                  semaphore.acquire();
-
-                  transport.sendXmlMessage(user, new GetVFileContentsXmlMessage(vFile) {
-                    @Override
-                    public void processResponse(Element responseElement) {
-                      super.processResponse(responseElement);
-                      semaphore.release();
-                    }
-                  });
+              public void processResponse(Element responseElement) {
+                super.processResponse(responseElement);
+                semaphore.release();
+              }
+            };
 
-                  semaphore.tryAcquire(getWaitTimeout(), TimeUnit.MILLISECONDS);
+            while (!message.isComplete()) {
+              transport.sendXmlMessage(user, message);
+              if (!waitForResponse(semaphore, indicator)) break;
 
-                } catch (InterruptedException ignored) {
-                  // noop
-                }
-              }
-            });
+              indicator.setIndefinite(false);
+              indicator.setFraction(message.getFraction());
+            }
+          }
+        });
       } catch (CanceledException e) {
         LOG.info(e.getMessage(), e);
       }
@@ -115,6 +117,19 @@ public class Helper {
     }
   }
 
+  private static boolean waitForResponse(Semaphore semaphore, ProgressIndicator indicator) {
+    long deadline = System.currentTimeMillis() + getWaitTimeout();
+    try {
+      while (!semaphore.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+        indicator.checkCanceled();
+        if (System.currentTimeMillis() > deadline) return false;
+      }
+      return true;
+    } catch (InterruptedException ignored) {
+      return false;
+    }
+  }
+
   private static int getWaitTimeout() {
     return Pico.isUnitTest() ? 2000 : 120 * 1000;
   }
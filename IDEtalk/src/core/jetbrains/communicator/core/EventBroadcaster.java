@@ -27,5 +27,11 @@ public interface EventBroadcaster {
   void fireEvent(@NotNull IDEtalkEvent event);
 
   void addListener(IDEtalkListener listener);
+
+  /**
+   * Adds a listener which is notified on a separate thread, after the change is done.
+   * Suits listeners which are slow and don't need to see the state before the change.
+   */
+  void addAsyncListener(IDEtalkListener listener);
   void removeListener(IDEtalkListener listener);
 }
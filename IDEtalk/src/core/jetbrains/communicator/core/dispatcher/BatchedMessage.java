@@ -0,0 +1,35 @@
+/*
+ * Copyright 2000-2006 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.communicator.core.dispatcher;
+
+import jetbrains.communicator.core.users.User;
+
+import java.util.List;
+
+/**
+ * A message which can be delivered in one transport call
+ * together with the following pending messages for the same user.
+ */
+public interface BatchedMessage extends Message {
+  /** @return true if <code>message</code> can be sent in the same call with this one */
+  boolean canBatchWith(Message message);
+
+  /**
+   * @param messages this message followed by messages accepted by {@link #canBatchWith(Message)}, in queue order
+   * @return number of messages successfully delivered, counting from the first one
+   */
+  int sendBatch(User user, List<Message> messages);
+}
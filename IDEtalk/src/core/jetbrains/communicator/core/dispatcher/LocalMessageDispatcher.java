@@ -37,6 +37,9 @@ public interface LocalMessageDispatcher extends MessageDispatcher {
   /** Oldest messages go first */
   LocalMessage[] getHistory(User user, Date since);
 
+  /** History messages for which {@link LocalMessage#containsString(String)} holds, oldest messages go first */
+  LocalMessage[] searchHistory(User user, String searchString);
+
   void clearHistory();
   boolean isHistoryEmpty();
 }
@@ -13,21 +13,61 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package jetbrains.communicator.core.transport;
 
+import jetbrains.communicator.core.vfs.CompressedContents;
 import jetbrains.communicator.core.vfs.VFile;
+import jetbrains.communicator.core.vfs.VFileContentsCache;
+import org.apache.log4j.Logger;
 import org.jdom.Element;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.Nullable;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 
 /**
+ * Requests contents of a remote file.<p>
+ *
+ * Contents are transferred gzipped, in chunks of at most {@link #CHUNK_SIZE} bytes: the same message is sent
+ * again for every next chunk until {@link #isComplete()}. If contents of the file were received before,
+ * their hash is sent with the first request and the peer answers <code>unchanged</code> when the file is the same.
+ * Peers which don't know the chunked protocol reply with the whole file in the response text.
+ *
  * @author Kir
  */
 public class GetVFileContentsXmlMessage implements XmlMessage {
+  private static final Logger LOG = Logger.getLogger(GetVFileContentsXmlMessage.class);
+
   public static final String TAG = "fillContents";
+  public static final int CHUNK_SIZE = 64 * 1024;
+
+  @NonNls public static final String CHUNKED_ATTR = "chunked";
+  @NonNls public static final String OFFSET_ATTR = "offset";
+  @NonNls public static final String SIZE_ATTR = "size";
+  @NonNls public static final String HASH_ATTR = "hash";
+  @NonNls public static final String KNOWN_HASH_ATTR = "knownHash";
+  @NonNls public static final String UNCHANGED_ATTR = "unchanged";
+
   private final VFile myFile;
+  private final String myCacheKey;
+
+  private String myHash;
+  private int mySize = -1;
+  private final ByteArrayOutputStream myReceived = new ByteArrayOutputStream();
+  private boolean myComplete;
 
   public GetVFileContentsXmlMessage(VFile file) {
+    this(file, null);
+  }
+
+  /**
+   * @param owner identifies the user the file belongs to, used to cache received contents; null to disable caching
+   */
+  public GetVFileContentsXmlMessage(VFile file, @Nullable String owner) {
     myFile = file;
+    myCacheKey = owner == null ? null : VFileContentsCache.getKey(owner, file);
   }
 
   public String getTagName() {
@@ -44,12 +84,97 @@ public class GetVFileContentsXmlMessage implements XmlMessage {
 
   public void fillRequest(Element element) {
     myFile.saveTo(element);
+    element.setAttribute(CHUNKED_ATTR, "true");
+    element.setAttribute(OFFSET_ATTR, String.valueOf(myReceived.size()));
+    if (myHash != null) {
+      element.setAttribute(HASH_ATTR, myHash);
+    }
+    else if (myCacheKey != null) {
+      CompressedContents cached = VFileContentsCache.getInstance().get(myCacheKey);
+      if (cached != null) {
+        element.setAttribute(KNOWN_HASH_ATTR, cached.getHash());
+      }
+    }
   }
 
   public void processResponse(Element responseElement) {
     VFile from = VFile.createFrom(responseElement);
-    if (from != null) {
-      myFile.setContents(from.getContents());
+    String hash = responseElement.getAttributeValue(HASH_ATTR);
+    if (from == null || hash == null) {
+      // no such file, access denied, or a peer without chunked transfer
+      if (from != null) {
+        myFile.setContents(from.getContents());
+      }
+      myComplete = true;
+      return;
+    }
+
+    if ("true".equals(responseElement.getAttributeValue(UNCHANGED_ATTR))) {
+      CompressedContents cached = myCacheKey == null ? null : VFileContentsCache.getInstance().get(myCacheKey);
+      if (cached != null && hash.equals(cached.getHash())) {
+        complete(cached);
+      }
+      else {
+        restart();
+      }
+      return;
+    }
+
+    int offset = Integer.parseInt(responseElement.getAttributeValue(OFFSET_ATTR));
+    if (!hash.equals(myHash)) {
+      // the file has changed on the peer side, it sends new contents from the start
+      myReceived.reset();
+      myHash = hash;
     }
+    if (offset != myReceived.size()) {
+      restart();
+      return;
+    }
+
+    byte[] chunk = DatatypeConverter.parseBase64Binary(responseElement.getText());
+    myReceived.write(chunk, 0, chunk.length);
+    mySize = Integer.parseInt(responseElement.getAttributeValue(SIZE_ATTR));
+
+    if (myReceived.size() >= mySize) {
+      CompressedContents contents = new CompressedContents(hash, myReceived.toByteArray());
+      if (myCacheKey != null) {
+        VFileContentsCache.getInstance().put(myCacheKey, contents);
+      }
+      complete(contents);
+    }
+  }
+
+  private void complete(CompressedContents contents) {
+    try {
+      myFile.setContents(contents.decompress());
+    }
+    catch (IOException e) {
+      LOG.info("Unable to decompress " + myFile, e);
+      if (myCacheKey != null) {
+        VFileContentsCache.getInstance().remove(myCacheKey);
+      }
+    }
+    myReceived.reset();
+    myComplete = true;
+  }
+
+  private void restart() {
+    if (myCacheKey != null) {
+      VFileContentsCache.getInstance().remove(myCacheKey);
+    }
+    myReceived.reset();
+    myHash = null;
+    mySize = -1;
+  }
+
+  /** True when contents are received, or the peer failed to provide them */
+  public boolean isComplete() {
+    return myComplete;
+  }
+
+  /** Received part of the contents, from 0 to 1 */
+  public double getFraction() {
+    if (myComplete) return 1;
+    return mySize <= 0 ? 0 : (double)myReceived.size() / mySize;
   }
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2000-2006 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.communicator.core.vfs;
+
+import org.jetbrains.annotations.NonNls;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzipped UTF-8 text of a file together with the MD5 hash of the uncompressed text.
+ */
+public final class CompressedContents {
+  @NonNls
+  private static final String ENCODING = "UTF-8";
+
+  private final String myHash;
+  private final byte[] myBytes;
+
+  public CompressedContents(String hash, byte[] gzippedBytes) {
+    myHash = hash;
+    myBytes = gzippedBytes;
+  }
+
+  public static CompressedContents compress(String text) {
+    try {
+      byte[] bytes = text.getBytes(ENCODING);
+      ByteArrayOutputStream result = new ByteArrayOutputStream(bytes.length / 4 + 64);
+      GZIPOutputStream out = new GZIPOutputStream(result);
+      out.write(bytes);
+      out.close();
+      return new CompressedContents(hash(bytes), result.toByteArray());
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public String getHash() {
+    return myHash;
+  }
+
+  public byte[] getBytes() {
+    return myBytes;
+  }
+
+  public int getSize() {
+    return myBytes.length;
+  }
+
+  public String decompress() throws IOException {
+    Reader reader = new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(myBytes)), ENCODING);
+    try {
+      StringBuilder result = new StringBuilder(myBytes.length * 4);
+      char[] buffer = new char[8192];
+      int read;
+      while ((read = reader.read(buffer)) >= 0) {
+        result.append(buffer, 0, read);
+      }
+      return result.toString();
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  private static String hash(byte[] bytes) {
+    try {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(bytes);
+      StringBuilder result = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return result.toString();
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2000-2006 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.communicator.core.vfs;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Contents of remote files received recently, kept compressed; least recently used
+ * files are dropped when the total size exceeds the limit.
+ */
+public class VFileContentsCache {
+  private static final int MAX_SIZE = 4 * 1024 * 1024;
+  private static final VFileContentsCache ourInstance = new VFileContentsCache(MAX_SIZE);
+
+  private final int myMaxSize;
+  private final Map<String, CompressedContents> myContents = new LinkedHashMap<String, CompressedContents>(16, 0.75f, true);
+  private int mySize;
+
+  public VFileContentsCache(int maxSize) {
+    myMaxSize = maxSize;
+  }
+
+  public static VFileContentsCache getInstance() {
+    return ourInstance;
+  }
+
+  /** @param owner identifies the user the file belongs to */
+  public static String getKey(String owner, VFile file) {
+    return owner + '|' + file.getProjectName() + '|' + file.getFullPath();
+  }
+
+  public synchronized CompressedContents get(String key) {
+    return myContents.get(key);
+  }
+
+  public synchronized void put(String key, CompressedContents contents) {
+    remove(key);
+    if (contents.getSize() > myMaxSize) return;
+
+    myContents.put(key, contents);
+    mySize += contents.getSize();
+
+    Iterator<CompressedContents> it = myContents.values().iterator();
+    while (mySize > myMaxSize && it.hasNext()) {
+      mySize -= it.next().getSize();
+      it.remove();
+    }
+  }
+
+  public synchronized void remove(String key) {
+    CompressedContents removed = myContents.remove(key);
+    if (removed != null) {
+      mySize -= removed.getSize();
+    }
+  }
+
+  public synchronized void clear() {
+    myContents.clear();
+    mySize = 0;
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2000-2006 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.communicator.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of call latencies in power of two microsecond buckets: bucket N holds
+ * calls which took less than 2<sup>N</sup> microseconds. Thread safe.
+ */
+public class LatencyHistogram {
+  private static final int BUCKETS = 40;
+
+  private final AtomicLongArray myBuckets = new AtomicLongArray(BUCKETS);
+  private final AtomicLong myCount = new AtomicLong();
+  private final AtomicLong myTotalNanos = new AtomicLong();
+  private final AtomicLong myMaxNanos = new AtomicLong();
+
+  public void record(long nanos) {
+    long micros = Math.max(0, nanos / 1000);
+    int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    myBuckets.incrementAndGet(bucket);
+    myCount.incrementAndGet();
+    myTotalNanos.addAndGet(nanos);
+
+    long max = myMaxNanos.get();
+    while (nanos > max && !myMaxNanos.compareAndSet(max, nanos)) {
+      max = myMaxNanos.get();
+    }
+  }
+
+  public long getCount() {
+    return myCount.get();
+  }
+
+  public long getMeanMicros() {
+    long count = myCount.get();
+    return count == 0 ? 0 : myTotalNanos.get() / count / 1000;
+  }
+
+  public long getMaxMicros() {
+    return myMaxNanos.get() / 1000;
+  }
+
+  /**
+   * @param percentile from 0 to 100
+   * @return upper bound of the bucket holding the given percentile of calls, in microseconds
+   */
+  public long getPercentileMicros(double percentile) {
+    long count = myCount.get();
+    if (count == 0) return 0;
+
+    long threshold = Math.max(1, (long)Math.ceil(count * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += myBuckets.get(i);
+      if (seen >= threshold) {
+        return 1L << i;
+      }
+    }
+    return getMaxMicros();
+  }
+
+  public String toString() {
+    return "count=" + getCount() + " mean=" + getMeanMicros() + "us p50<" + getPercentileMicros(50) +
+           "us p99<" + getPercentileMicros(99) + "us max=" + getMaxMicros() + "us";
+  }
+}
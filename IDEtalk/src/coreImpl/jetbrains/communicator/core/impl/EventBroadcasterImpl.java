@@ -18,14 +18,27 @@ package jetbrains.communicator.core.impl;
 import jetbrains.communicator.core.EventBroadcaster;
 import jetbrains.communicator.core.IDEtalkEvent;
 import jetbrains.communicator.core.IDEtalkListener;
+import jetbrains.communicator.core.Pico;
+import jetbrains.communicator.core.users.User;
+import jetbrains.communicator.core.users.UserEvent;
+import jetbrains.communicator.util.LatencyHistogram;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.TestOnly;
 
-import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Listeners added with {@link #addListener} are notified synchronously, around the change.
+ * Listeners added with {@link #addAsyncListener} have a queue each, drained on a pooled thread,
+ * so a slow listener delays neither the caller nor other listeners. Presence updates are delivered
+ * to async listeners after other events, and successive presence updates of a user are merged while
+ * not delivered yet.<p>
+ *
+ * Time spent in every listener is collected, see {@link #getLatencies()}.
+ *
  * @author Kir Maximov
  */
 public class EventBroadcasterImpl implements EventBroadcaster {
@@ -34,16 +47,43 @@ public class EventBroadcasterImpl implements EventBroadcaster {
                                                             public void run() { } };
 
   private final List<IDEtalkListener> myListeners = new CopyOnWriteArrayList<IDEtalkListener>();
+  private final List<ListenerQueue> myAsyncListeners = new CopyOnWriteArrayList<ListenerQueue>();
+  private final ConcurrentMap<IDEtalkListener, LatencyHistogram> myLatencies = new ConcurrentHashMap<IDEtalkListener, LatencyHistogram>();
+  private final AtomicLong myCoalescedEvents = new AtomicLong();
+
+  private final ExecutorService myExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+      new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "IDEtalk Events Dispatcher");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private boolean myAsyncInTests;
 
   @Override
   public void addListener(IDEtalkListener listener) {
-    assert !myListeners.contains(listener);
+    assert !myListeners.contains(listener) && findQueue(listener) == null;
     myListeners.add(listener);
   }
 
+  @Override
+  public void addAsyncListener(IDEtalkListener listener) {
+    assert !myListeners.contains(listener) && findQueue(listener) == null;
+    myAsyncListeners.add(new ListenerQueue(listener));
+  }
+
   @Override
   public void removeListener(IDEtalkListener listener) {
     myListeners.remove(listener);
+    ListenerQueue queue = findQueue(listener);
+    if (queue != null) {
+      myAsyncListeners.remove(queue);
+      queue.clear();
+    }
+    myLatencies.remove(listener);
   }
 
   @Override
@@ -54,6 +94,9 @@ public class EventBroadcasterImpl implements EventBroadcaster {
     }
     finally {
       fireAfterChange(event);
+      for (ListenerQueue queue : myAsyncListeners) {
+        queue.post(event);
+      }
     }
   }
 
@@ -64,7 +107,9 @@ public class EventBroadcasterImpl implements EventBroadcaster {
 
   private void fireBeforeChange(IDEtalkEvent event) {
     for (IDEtalkListener listener : myListeners) {
+      long start = System.nanoTime();
       listener.beforeChange(event);
+      getLatency(listener).record(System.nanoTime() - start);
     }
   }
 
@@ -73,18 +118,168 @@ public class EventBroadcasterImpl implements EventBroadcaster {
       LOG.debug("afterChange: " + event);
     }
     for (IDEtalkListener listener : myListeners) {
+      long start = System.nanoTime();
       listener.afterChange(event);
+      getLatency(listener).record(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * For synchronous listeners, time of every beforeChange/afterChange call. For async listeners,
+   * time from the change to the end of its afterChange call, including the time the event was queued.
+   */
+  public Map<IDEtalkListener, LatencyHistogram> getLatencies() {
+    return Collections.unmodifiableMap(myLatencies);
+  }
+
+  /** Number of presence updates merged into later ones before they were delivered to async listeners */
+  public long getCoalescedEventsCount() {
+    return myCoalescedEvents.get();
+  }
+
+  private LatencyHistogram getLatency(IDEtalkListener listener) {
+    LatencyHistogram result = myLatencies.get(listener);
+    if (result == null) {
+      myLatencies.putIfAbsent(listener, new LatencyHistogram());
+      result = myLatencies.get(listener);
     }
+    return result;
+  }
+
+  private ListenerQueue findQueue(IDEtalkListener listener) {
+    for (ListenerQueue queue : myAsyncListeners) {
+      if (queue.myListener == listener) return queue;
+    }
+    return null;
+  }
+
+  private boolean isAsync() {
+    // like UIUtil.invokeLater, deliver in place in unit tests
+    return myAsyncInTests || !Pico.isUnitTest();
+  }
+
+  private static boolean isPresenceUpdate(IDEtalkEvent event) {
+    return event.getClass() == UserEvent.Updated.class &&
+           UserEvent.Updated.PRESENCE.equals(((UserEvent.Updated) event).getPropertyName());
+  }
+
+  @TestOnly
+  void setAsyncInTests(boolean async) {
+    myAsyncInTests = async;
   }
 
   @TestOnly
   IDEtalkListener[] getListeners() {
-    return myListeners.toArray(new IDEtalkListener[myListeners.size()]);
+    List<IDEtalkListener> result = new ArrayList<IDEtalkListener>();
+    for (ListenerQueue queue : myAsyncListeners) {
+      result.add(queue.myListener);
+    }
+    result.addAll(myListeners);
+    return result.toArray(new IDEtalkListener[result.size()]);
   }
 
   @TestOnly
   void clearListeners() {
     myListeners.clear();
+    myAsyncListeners.clear();
+    myLatencies.clear();
   }
 
+  private static class PendingEvent {
+    private IDEtalkEvent myEvent;
+    private final long myPostedAt = System.nanoTime();
+
+    PendingEvent(IDEtalkEvent event) {
+      myEvent = event;
+    }
+  }
+
+  private class ListenerQueue implements Runnable {
+    private final IDEtalkListener myListener;
+    private final LinkedList<PendingEvent> myEvents = new LinkedList<PendingEvent>();
+    private final Map<User, PendingEvent> myPresenceUpdates = new LinkedHashMap<User, PendingEvent>();
+    private boolean myScheduled;
+    private volatile boolean myRemoved;
+
+    ListenerQueue(IDEtalkListener listener) {
+      myListener = listener;
+    }
+
+    void post(IDEtalkEvent event) {
+      if (!isAsync()) {
+        deliver(new PendingEvent(event));
+        return;
+      }
+
+      synchronized (this) {
+        if (isPresenceUpdate(event)) {
+          UserEvent.Updated update = (UserEvent.Updated) event;
+          PendingEvent pending = myPresenceUpdates.get(update.getUser());
+          if (pending != null) {
+            Object oldValue = ((UserEvent.Updated) pending.myEvent).getOldValue();
+            pending.myEvent = new UserEvent.Updated(update.getUser(), UserEvent.Updated.PRESENCE, oldValue, update.getNewValue());
+            myCoalescedEvents.incrementAndGet();
+          }
+          else {
+            myPresenceUpdates.put(update.getUser(), new PendingEvent(event));
+          }
+        }
+        else {
+          if (event instanceof UserEvent) {
+            // keep the order of events of the same user
+            PendingEvent pending = myPresenceUpdates.remove(((UserEvent) event).getUser());
+            if (pending != null) {
+              myEvents.add(pending);
+            }
+          }
+          myEvents.add(new PendingEvent(event));
+        }
+
+        if (myScheduled) return;
+        myScheduled = true;
+      }
+      myExecutor.execute(this);
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        PendingEvent next;
+        synchronized (this) {
+          next = myEvents.poll();
+          if (next == null && !myPresenceUpdates.isEmpty()) {
+            Iterator<PendingEvent> it = myPresenceUpdates.values().iterator();
+            next = it.next();
+            it.remove();
+          }
+          if (next == null || myRemoved) {
+            myScheduled = false;
+            return;
+          }
+        }
+        deliver(next);
+      }
+    }
+
+    private void deliver(PendingEvent pending) {
+      try {
+        myListener.beforeChange(pending.myEvent);
+        myListener.afterChange(pending.myEvent);
+      }
+      catch (Throwable e) {
+        LOG.error(e.getMessage(), e);
+      }
+      finally {
+        if (!myRemoved) {
+          getLatency(myListener).record(System.nanoTime() - pending.myPostedAt);
+        }
+      }
+    }
+
+    synchronized void clear() {
+      myRemoved = true;
+      myEvents.clear();
+      myPresenceUpdates.clear();
+    }
+  }
 }
@@ -20,6 +20,7 @@ import jetbrains.communicator.core.EventBroadcaster;
 import jetbrains.communicator.core.EventVisitor;
 import jetbrains.communicator.core.IDEtalkAdapter;
 import jetbrains.communicator.core.IDEtalkEvent;
+import jetbrains.communicator.core.dispatcher.BatchedMessage;
 import jetbrains.communicator.core.dispatcher.Message;
 import jetbrains.communicator.core.dispatcher.MessageDispatcher;
 import jetbrains.communicator.core.impl.users.UserImpl;
@@ -31,13 +32,18 @@ import org.picocontainer.Disposable;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Kir
  */
 public abstract class AbstractMessageDispatcher implements MessageDispatcher, Disposable {
   private static final Logger LOG = Logger.getLogger(AbstractMessageDispatcher.class);
+  // journal records after which the queue snapshot is rewritten
+  private static final int CHECKPOINT_THRESHOLD = 256;
+
   private XStream myXStream;
+  private MessagesJournal myJournal;
 
   private final File myDataDir;
   private final MyEventListener myEventListener;
@@ -45,7 +51,7 @@ public abstract class AbstractMessageDispatcher implements MessageDispatcher, Di
   private final Object myUser2MessagesLock = new Object();
   private final Map<User,List<Message>> myUser2Messages = new HashMap<User, List<Message>>();
   private final EventBroadcaster myEventBroadcaster;
-  private boolean myDispatching;
+  private final AtomicInteger myDispatchingCount = new AtomicInteger();
 
   protected AbstractMessageDispatcher(EventBroadcaster eventBroadcaster, File dataDir) {
     myDataDir = dataDir;
@@ -64,7 +70,7 @@ public abstract class AbstractMessageDispatcher implements MessageDispatcher, Di
 
   protected boolean performDispatch(User user, Message message) {
     try {
-      myDispatching = true;
+      myDispatchingCount.incrementAndGet();
       if (LOG.isDebugEnabled()) {
         //noinspection HardCodedStringLiteral
         LOG.debug("Start dispatching " + message + " to " + user);
@@ -74,13 +80,11 @@ public abstract class AbstractMessageDispatcher implements MessageDispatcher, Di
       synchronized(myUser2MessagesLock) {
         List<Message> userMessages = getMessages(user);
         if (result) {
-          userMessages.remove(message);
-          if (userMessages.size() == 0) {
-            myUser2Messages.remove(user);
-          }
+          removeMessage(user, userMessages, message);
         }
         else if (!userMessages.contains(message) ){
           userMessages.add(message);
+          journal(MessagesJournal.ADD, user, message, -1);
         }
       }
 
@@ -90,7 +94,47 @@ public abstract class AbstractMessageDispatcher implements MessageDispatcher, Di
       }
       return result;
     } finally {
-      myDispatching = false;
+      myDispatchingCount.decrementAndGet();
+    }
+  }
+
+  /**
+   * Sends pending messages in one transport call.
+   * @param messages queued messages of the user, the first one is a {@link BatchedMessage} which accepts all others
+   * @return number of delivered messages, counting from the first one
+   */
+  protected int performBatchDispatch(User user, List<Message> messages) {
+    try {
+      myDispatchingCount.incrementAndGet();
+      if (LOG.isDebugEnabled()) {
+        //noinspection HardCodedStringLiteral
+        LOG.debug("Start dispatching batch of " + messages.size() + " messages to " + user);
+      }
+      int delivered = ((BatchedMessage)messages.get(0)).sendBatch(user, messages);
+
+      synchronized(myUser2MessagesLock) {
+        List<Message> userMessages = getMessages(user);
+        for (int i = 0; i < delivered; i++) {
+          removeMessage(user, userMessages, messages.get(i));
+        }
+        if (userMessages.isEmpty()) {
+          myUser2Messages.remove(user);
+        }
+      }
+      return delivered;
+    } finally {
+      myDispatchingCount.decrementAndGet();
+    }
+  }
+
+  private void removeMessage(User user, List<Message> userMessages, Message message) {
+    int index = userMessages.indexOf(message);
+    if (index >= 0) {
+      userMessages.remove(index);
+      journal(MessagesJournal.REMOVE, user, null, index);
+    }
+    if (userMessages.size() == 0) {
+      myUser2Messages.remove(user);
     }
   }
 
@@ -123,15 +167,11 @@ public abstract class AbstractMessageDispatcher implements MessageDispatcher, Di
   }
 
   public boolean sendNow(User user, Message message) {
-    boolean result = performDispatch(user, message);
-    if (result) {
-      save();
-    }
-    return result;
+    return performDispatch(user, message);
   }
 
   boolean isMessageDispatchInProgress() {
-    return myDispatching;
+    return myDispatchingCount.get() > 0;
   }
 
   protected void addPendingMessage(User user, Message message) {
@@ -145,7 +185,7 @@ public abstract class AbstractMessageDispatcher implements MessageDispatcher, Di
           LOG.debug("Added pending message " + message + "\nfor user " + user);
         }
         userMessages.add(message);
-        save();
+        journal(MessagesJournal.ADD, user, message, -1);
       }
     }
   }
@@ -154,14 +194,14 @@ public abstract class AbstractMessageDispatcher implements MessageDispatcher, Di
     synchronized(myUser2MessagesLock) {
       List<Message> userMessages = getMessages(user);
       userMessages.remove(messageIndex);
-      save();
+      journal(MessagesJournal.REMOVE, user, null, messageIndex);
     }
   }
 
   protected void clearAll() {
     synchronized (myUser2MessagesLock) {
       myUser2Messages.clear();
-      save();
+      journal(MessagesJournal.CLEAR, null, null, -1);
     }
   }
 
@@ -179,12 +219,44 @@ public abstract class AbstractMessageDispatcher implements MessageDispatcher, Di
   protected final void load() {
     synchronized (myUser2MessagesLock) {
       Object pendingEventsStorable = XMLUtil.fromXml(getXStream(), getFileName(), false);
+      int generation = 0;
       if (pendingEventsStorable instanceof MessagesStorable) {
         loadFromStorableMessages((MessagesStorable) pendingEventsStorable);
+        generation = ((MessagesStorable)pendingEventsStorable).getGeneration();
+      }
+
+      if (isPersistent()) {
+        for (MessagesJournal.Record record : getJournal().read(generation)) {
+          replay(record);
+        }
       }
     }
   }
 
+  private void replay(MessagesJournal.Record record) {
+    User user = record.getUser();
+    switch (record.getOperation()) {
+      case MessagesJournal.ADD:
+        getMessages(user).add(record.getMessage());
+        break;
+      case MessagesJournal.REMOVE:
+        List<Message> userMessages = myUser2Messages.get(user);
+        if (userMessages != null && record.getIndex() < userMessages.size()) {
+          userMessages.remove(record.getIndex());
+          if (userMessages.isEmpty()) {
+            myUser2Messages.remove(user);
+          }
+        }
+        break;
+      case MessagesJournal.REMOVE_USER:
+        myUser2Messages.remove(user);
+        break;
+      case MessagesJournal.CLEAR:
+        myUser2Messages.clear();
+        break;
+    }
+  }
+
   protected void loadFromStorableMessages(MessagesStorable messagesStorable) {
     myUser2Messages.clear();
     myUser2Messages.putAll(messagesStorable.getUser2Messages());
@@ -196,24 +268,53 @@ public abstract class AbstractMessageDispatcher implements MessageDispatcher, Di
 
   private void removeUser(User user) {
     synchronized (myUser2MessagesLock) {
-      myUser2Messages.remove(user);
+      if (myUser2Messages.remove(user) != null) {
+        journal(MessagesJournal.REMOVE_USER, user, null, -1);
+      }
+    }
+  }
+
+  private boolean isPersistent() {
+    return myDataDir != null && myDataDir.exists();
+  }
+
+  /** Records a queue change instead of rewriting the whole queue, should be called under myUser2MessagesLock */
+  private void journal(int operation, User user, Message message, int index) {
+    if (!isPersistent()) return;
+
+    MessagesJournal journal = getJournal();
+    journal.append(new MessagesJournal.Record(operation, user, message, index));
+    if (journal.getRecordCount() >= CHECKPOINT_THRESHOLD) {
       save();
     }
   }
 
+  /**
+   * Writes a snapshot of the whole queue and starts a new journal.
+   */
   @SuppressWarnings({"HardCodedStringLiteral"})
   protected void save() {
-    if (myDataDir == null || !myDataDir.exists()) return;
+    if (!isPersistent()) return;
 
     LOG.debug("Save start");
     synchronized(myUser2MessagesLock) {
-      XMLUtil.toXml(getXStream(), getFileName(), createStorableMessages());
+      MessagesJournal journal = getJournal();
+      int generation = journal.getGeneration() + 1;
+      XMLUtil.toXml(getXStream(), getFileName(), createStorableMessages(generation));
+      journal.startGeneration(generation);
     }
     LOG.debug("Save finish");
   }
 
-  protected MessagesStorable createStorableMessages() {
-    return new MessagesStorable(myUser2Messages);
+  protected MessagesStorable createStorableMessages(int generation) {
+    return new MessagesStorable(myUser2Messages, generation);
+  }
+
+  private MessagesJournal getJournal() {
+    if (myJournal == null) {
+      myJournal = new MessagesJournal(myDataDir, getEventsFileName(), getXStream());
+    }
+    return myJournal;
   }
 
   @SuppressWarnings({"HardCodedStringLiteral"})
@@ -20,6 +20,7 @@ import jetbrains.communicator.core.EventVisitor;
 import jetbrains.communicator.core.IDEtalkAdapter;
 import jetbrains.communicator.core.IDEtalkEvent;
 import jetbrains.communicator.core.dispatcher.AsyncMessageDispatcher;
+import jetbrains.communicator.core.dispatcher.BatchedMessage;
 import jetbrains.communicator.core.dispatcher.Message;
 import jetbrains.communicator.core.users.User;
 import jetbrains.communicator.core.users.UserEvent;
@@ -27,6 +28,9 @@ import jetbrains.communicator.ide.IDEFacade;
 import jetbrains.communicator.util.WaitFor;
 import org.apache.log4j.Logger;
 
+import java.util.*;
+import java.util.concurrent.*;
+
 /**
  * @author Kir
  */
@@ -34,9 +38,15 @@ public class AsyncMessageDispatcherImpl extends AbstractMessageDispatcher implem
   private static final Logger LOG = Logger.getLogger(AsyncMessageDispatcherImpl.class);
 
   private static final String FILE_NAME = "pendingNetworkMessages.xml";
+  // users whose messages are delivered at the same time
+  private static final int MAX_PARALLEL_DELIVERIES = 4;
+
   private final MyEventListener myEventListener;
   private final IDEFacade myIdeFacade;
 
+  private final ThreadPoolExecutor myDeliveryExecutor;
+  private final Set<User> myUsersInDelivery = new HashSet<User>();
+
   private final Object myWorkingThreadLock = new Object();
   private Thread myWorkingThread;
   private Thread myThread;
@@ -49,6 +59,16 @@ public class AsyncMessageDispatcherImpl extends AbstractMessageDispatcher implem
     myIdeFacade = ideFacade;
     myEventListener = new MyEventListener(broadcaster);
 
+    myDeliveryExecutor = new ThreadPoolExecutor(MAX_PARALLEL_DELIVERIES, MAX_PARALLEL_DELIVERIES, 30, TimeUnit.SECONDS,
+                                                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "Network Message Delivery");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    myDeliveryExecutor.allowCoreThreadTimeOut(true);
+
     start();
   }
 
@@ -99,16 +119,91 @@ public class AsyncMessageDispatcherImpl extends AbstractMessageDispatcher implem
     return myWorkingThread != null;
   }
 
+  /**
+   * Messages of different users are delivered in parallel, messages of one user - in their order.
+   */
   private void dispatchAllMessages() {
     User[] usersWithMessages = getUsersWithMessages();
     for (int i = 0; i < usersWithMessages.length && isRunning(); i++) {
-      User user = usersWithMessages[i];
-      Message[] pendingMessages = getPendingMessages(user);
-      for (int j = 0; j < pendingMessages.length && isRunning(); j++) {
-        performDispatch(user, pendingMessages[j]);
+      final User user = usersWithMessages[i];
+      synchronized (myUsersInDelivery) {
+        // the running delivery picks up new messages itself
+        if (!myUsersInDelivery.add(user)) continue;
+      }
+
+      try {
+        myDeliveryExecutor.execute(new Runnable() {
+          public void run() {
+            int failed = 0;
+            try {
+              failed = deliverMessages(user);
+            }
+            finally {
+              synchronized (myUsersInDelivery) {
+                myUsersInDelivery.remove(user);
+              }
+            }
+            if (failed >= 0 && getPendingMessages(user).length > failed) {
+              // added after the last check of the queue
+              triggerDelivery();
+            }
+          }
+        });
+      }
+      catch (RejectedExecutionException e) {
+        synchronized (myUsersInDelivery) {
+          myUsersInDelivery.remove(user);
+        }
+      }
+    }
+  }
+
+  /**
+   * A failed message stays in the queue and the delivery goes on with the following ones.
+   * Failed messages are retried on the next delivery, e.g. when the user comes online.
+   * @return number of messages which failed in the last pass over the queue, or -1 if the dispatcher was stopped
+   */
+  private int deliverMessages(User user) {
+    Message[] pendingMessages = getPendingMessages(user);
+    while (pendingMessages.length > 0) {
+      int failed = 0;
+      int i = 0;
+      while (i < pendingMessages.length) {
+        if (!isRunning()) return -1;
+
+        List<Message> batch = collectBatch(pendingMessages, i);
+        if (batch.size() > 1) {
+          int delivered = performBatchDispatch(user, batch);
+          if (delivered < batch.size()) {
+            // skip the failed message, the rest of the batch goes in the next one
+            failed++;
+            delivered++;
+          }
+          i += delivered;
+        }
+        else {
+          if (!performDispatch(user, pendingMessages[i])) {
+            failed++;
+          }
+          i++;
+        }
+      }
+      if (failed > 0) return failed;
+      pendingMessages = getPendingMessages(user);
+    }
+    return 0;
+  }
+
+  private static List<Message> collectBatch(Message[] messages, int start) {
+    List<Message> result = new ArrayList<Message>();
+    result.add(messages[start]);
+    if (messages[start] instanceof BatchedMessage) {
+      BatchedMessage first = (BatchedMessage)messages[start];
+      for (int i = start + 1; i < messages.length && first.canBatchWith(messages[i]); i++) {
+        result.add(messages[i]);
       }
     }
-    save();
+    return result;
   }
 
   public void dispose() {
@@ -123,6 +218,7 @@ public class AsyncMessageDispatcherImpl extends AbstractMessageDispatcher implem
         return !isRunning();
       }
     };
+    myDeliveryExecutor.shutdown();
 
     super.dispose();
   }
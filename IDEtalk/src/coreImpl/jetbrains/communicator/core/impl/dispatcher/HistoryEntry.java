@@ -0,0 +1,72 @@
+/*
+ * Copyright 2000-2006 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.communicator.core.impl.dispatcher;
+
+import jetbrains.communicator.core.dispatcher.LocalMessage;
+import jetbrains.communicator.core.users.User;
+
+/**
+ * A single record of {@link HistoryLog}.
+ */
+class HistoryEntry {
+  private final User myUser;
+  private final LocalMessage myMessage;
+
+  private transient String mySegment;
+  private transient long myOffset = -1;
+  private transient String myXml;
+
+  HistoryEntry(User user, LocalMessage message) {
+    myUser = user;
+    myMessage = message;
+  }
+
+  public User getUser() {
+    return myUser;
+  }
+
+  public LocalMessage getMessage() {
+    return myMessage;
+  }
+
+  /** Name of the day segment the entry is stored in, null until it is saved */
+  public String getSegment() {
+    return mySegment;
+  }
+
+  /** Offset of the entry in its segment, -1 until it is saved */
+  public long getOffset() {
+    return mySegment == null ? -1 : myOffset;
+  }
+
+  void setLocation(String segment, long offset) {
+    mySegment = segment;
+    myOffset = offset;
+  }
+
+  /** Serialized form of the entry, known after it is saved or read */
+  public String getXml() {
+    return myXml;
+  }
+
+  void setXml(String xml) {
+    myXml = xml;
+  }
+
+  public String toString() {
+    return myUser + ": " + myMessage;
+  }
+}
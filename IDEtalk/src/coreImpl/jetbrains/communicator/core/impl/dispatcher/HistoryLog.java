@@ -0,0 +1,629 @@
+/*
+ * Copyright 2000-2006 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.communicator.core.impl.dispatcher;
+
+import com.thoughtworks.xstream.XStream;
+import jetbrains.communicator.core.dispatcher.LocalMessage;
+import jetbrains.communicator.core.users.User;
+import jetbrains.communicator.util.XMLUtil;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * On-disk message history: one append-only segment per day and one offset index per user.<p>
+ *
+ * Segment record: <code>int length, UTF-8 XML of {@link HistoryEntry}</code>.
+ * Index record: <code>UTF segment name, long offset in segment, UTF user key</code>.<p>
+ *
+ * Records are never rewritten, so saving a message costs one append to its day segment
+ * and one append to the index of its user. As the two appends may be torn apart by a crash,
+ * the index is checked against the segments on startup and rebuilt if some record is not indexed.
+ * Not thread safe, callers synchronize.
+ */
+class HistoryLog {
+  @NonNls
+  private static final Logger LOG = Logger.getLogger(HistoryLog.class);
+
+  @NonNls
+  private static final String SEGMENT_EXT = ".log";
+  @NonNls
+  private static final String LEGACY_EXT = ".xml";
+  @NonNls
+  private static final String INDEX_EXT = ".idx";
+  @NonNls
+  private static final String MIGRATION_EXT = LEGACY_EXT + ".migrating";
+
+  private final File mySegmentsDir;
+  private final File myIndexDir;
+  private final XStream myXStream;
+
+  @NonNls
+  private final SimpleDateFormat myDateFormat = new SimpleDateFormat("yyyy-MM-dd");
+
+  HistoryLog(File segmentsDir, File indexDir, XStream xStream) {
+    mySegmentsDir = segmentsDir;
+    myIndexDir = indexDir;
+    myXStream = xStream;
+    myXStream.alias("historyEntry", HistoryEntry.class);
+    myXStream.aliasField("user", HistoryEntry.class, "myUser");
+    myXStream.aliasField("message", HistoryEntry.class, "myMessage");
+
+    mySegmentsDir.mkdirs();
+    rollBackInterruptedMigrations();
+    if (!myIndexDir.isDirectory()) {
+      myIndexDir.mkdirs();
+      rebuildIndex();
+    }
+    else if (!isIndexComplete()) {
+      LOG.info("History index doesn't match history segments, rebuilding it");
+      deleteFiles(myIndexDir, INDEX_EXT);
+      rebuildIndex();
+    }
+    migrateLegacyFiles();
+  }
+
+  /**
+   * Appends entries to their day segments and user indices, assigns {@link HistoryEntry#getOffset()}.
+   */
+  void append(List<HistoryEntry> entries) {
+    Map<String, List<HistoryEntry>> bySegment = new TreeMap<String, List<HistoryEntry>>();
+    for (HistoryEntry entry : entries) {
+      String segment = getSegmentName(entry.getMessage().getWhen());
+      List<HistoryEntry> list = bySegment.get(segment);
+      if (list == null) {
+        list = new ArrayList<HistoryEntry>();
+        bySegment.put(segment, list);
+      }
+      list.add(entry);
+    }
+
+    for (Map.Entry<String, List<HistoryEntry>> segmentEntries : bySegment.entrySet()) {
+      try {
+        appendToSegment(segmentEntries.getKey(), segmentEntries.getValue());
+      }
+      catch (IOException e) {
+        LOG.error("Unable to append history to " + segmentEntries.getKey(), e);
+      }
+    }
+
+    Map<String, List<HistoryEntry>> byUser = new HashMap<String, List<HistoryEntry>>();
+    for (HistoryEntry entry : entries) {
+      if (entry.getOffset() < 0) continue;
+      String userKey = getUserKey(entry.getUser());
+      List<HistoryEntry> list = byUser.get(userKey);
+      if (list == null) {
+        list = new ArrayList<HistoryEntry>();
+        byUser.put(userKey, list);
+      }
+      list.add(entry);
+    }
+
+    for (Map.Entry<String, List<HistoryEntry>> userEntries : byUser.entrySet()) {
+      try {
+        appendToIndex(userEntries.getKey(), userEntries.getValue());
+      }
+      catch (IOException e) {
+        LOG.error("Unable to update history index for " + userEntries.getKey(), e);
+      }
+    }
+  }
+
+  private void appendToSegment(String segment, List<HistoryEntry> entries) throws IOException {
+    File file = new File(mySegmentsDir, segment + SEGMENT_EXT);
+    long offset = file.length();
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    try {
+      for (HistoryEntry entry : entries) {
+        String xml = myXStream.toXML(entry);
+        byte[] bytes = xml.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        entry.setLocation(segment, offset);
+        entry.setXml(xml);
+        offset += 4 + bytes.length;
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  private void appendToIndex(String userKey, List<HistoryEntry> entries) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getIndexFile(userKey), true)));
+    try {
+      for (HistoryEntry entry : entries) {
+        out.writeUTF(entry.getSegment());
+        out.writeLong(entry.getOffset());
+        out.writeUTF(userKey);
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  /**
+   * @param sinceDay if not null, only segments of this day and later are returned
+   * @return segment day -> offsets of the user's records in it, in ascending order
+   */
+  SortedMap<Date, List<Long>> readOffsets(User user, @Nullable Date sinceDay) {
+    SortedMap<Date, List<Long>> result = new TreeMap<Date, List<Long>>();
+    String userKey = getUserKey(user);
+    File indexFile = getIndexFile(userKey);
+    if (!indexFile.isFile()) return result;
+
+    Map<String, Date> parsedSegments = new HashMap<String, Date>();
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+      try {
+        while (true) {
+          String segment;
+          long offset;
+          String key;
+          try {
+            segment = in.readUTF();
+            offset = in.readLong();
+            key = in.readUTF();
+          }
+          catch (EOFException e) {
+            // end of index, possibly a partially written last record
+            break;
+          }
+          if (!userKey.equals(key)) continue;
+
+          Date day = parsedSegments.get(segment);
+          if (day == null) {
+            day = parseSegmentName(segment);
+            if (day == null) continue;
+            parsedSegments.put(segment, day);
+          }
+          if (sinceDay != null && day.before(sinceDay)) continue;
+
+          List<Long> offsets = result.get(day);
+          if (offsets == null) {
+            offsets = new ArrayList<Long>();
+            result.put(day, offsets);
+          }
+          offsets.add(offset);
+        }
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (IOException e) {
+      LOG.info("Error reading history index " + indexFile, e);
+    }
+    return result;
+  }
+
+  /**
+   * Reads records of one segment at the given offsets.
+   */
+  List<HistoryEntry> readEntries(String segment, Collection<Long> offsets) {
+    List<HistoryEntry> result = new ArrayList<HistoryEntry>(offsets.size());
+    File file = new File(mySegmentsDir, segment + SEGMENT_EXT);
+    if (!file.isFile()) return result;
+
+    try {
+      RandomAccessFile in = new RandomAccessFile(file, "r");
+      try {
+        for (Long offset : offsets) {
+          in.seek(offset);
+          HistoryEntry entry = parseEntry(readRecord(in), segment, offset);
+          if (entry != null) {
+            result.add(entry);
+          }
+        }
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (IOException e) {
+      LOG.info("Error reading history segment " + file, e);
+    }
+    return result;
+  }
+
+  private static byte[] readRecord(DataInput in) throws IOException {
+    int length = in.readInt();
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  @Nullable
+  private HistoryEntry parseEntry(byte[] bytes, String segment, long offset) throws IOException {
+    try {
+      String xml = new String(bytes, "UTF-8");
+      HistoryEntry entry = (HistoryEntry)myXStream.fromXML(xml);
+      entry.setLocation(segment, offset);
+      entry.setXml(xml);
+      return entry;
+    }
+    catch (RuntimeException e) {
+      LOG.info("Skipping unreadable history record in " + segment + " at " + offset, e);
+      return null;
+    }
+  }
+
+  void clear() {
+    deleteFiles(mySegmentsDir, null);
+    deleteFiles(myIndexDir, null);
+  }
+
+  private static void deleteFiles(File dir, @Nullable String extension) {
+    File[] files = dir.listFiles();
+    if (files == null) return;
+
+    Thread thread = Thread.currentThread();
+    for (File file : files) {
+      if (thread.isInterrupted()) return;
+      if (extension == null || file.getName().endsWith(extension)) {
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * Checks that every index file consists of whole records and that each segment has no complete records
+   * after the last indexed one. A partially written record at the end of a segment is cut off,
+   * so that next appends don't follow it.
+   */
+  private boolean isIndexComplete() {
+    Map<String, Long> lastIndexedOffsets = new HashMap<String, Long>();
+    boolean complete = true;
+    File[] indexFiles = myIndexDir.listFiles();
+    if (indexFiles != null) {
+      for (File indexFile : indexFiles) {
+        if (indexFile.getName().endsWith(INDEX_EXT) && !readLastOffsets(indexFile, lastIndexedOffsets)) {
+          complete = false;
+          break;
+        }
+      }
+    }
+
+    for (String segment : getSegments()) {
+      // with a broken index the whole segment is checked, it is going to be read for the rebuild anyway
+      Long lastIndexed = complete ? lastIndexedOffsets.get(segment) : null;
+      int records = cutPartialRecord(new File(mySegmentsDir, segment + SEGMENT_EXT), lastIndexed == null ? 0 : lastIndexed);
+      // the last indexed record has to be the last one in the segment
+      if (records != (lastIndexed == null ? 0 : 1)) {
+        complete = false;
+      }
+    }
+    return complete;
+  }
+
+  /**
+   * Skips the records of the segment starting at the offset and cuts off a partially written last record.
+   * @return number of complete records skipped, -1 if the segment can't be read or is shorter than the offset
+   */
+  private static int cutPartialRecord(File file, long offset) {
+    try {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        long length = raf.length();
+        if (offset > length) return -1;
+
+        int records = 0;
+        while (offset + 4 <= length) {
+          raf.seek(offset);
+          int recordLength = raf.readInt();
+          long next = offset + 4 + recordLength;
+          if (recordLength < 0 || next > length) break;
+          offset = next;
+          records++;
+        }
+        if (offset < length) {
+          LOG.info("Cutting off a partially written record of history segment " + file + " at " + offset);
+          raf.setLength(offset);
+        }
+        return records;
+      }
+      finally {
+        raf.close();
+      }
+    }
+    catch (IOException e) {
+      LOG.info("Error checking history segment " + file, e);
+      return -1;
+    }
+  }
+
+  /**
+   * Collects the largest offset indexed in each segment.
+   * @return false if the index ends with a partially written record or can't be read
+   */
+  private static boolean readLastOffsets(File indexFile, Map<String, Long> result) {
+    try {
+      long length = indexFile.length();
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+      try {
+        long position = 0;
+        while (position < length) {
+          String segment = in.readUTF();
+          long offset = in.readLong();
+          String key = in.readUTF();
+          position += utfLength(segment) + 8 + utfLength(key);
+
+          Long last = result.get(segment);
+          if (last == null || last < offset) {
+            result.put(segment, offset);
+          }
+        }
+        return true;
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (IOException e) {
+      // EOFException in the middle of a record as well
+      LOG.info("History index " + indexFile + " is broken", e);
+      return false;
+    }
+  }
+
+  static int utfLength(String s) {
+    int length = 2;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      length += c >= 0x0001 && c <= 0x007F ? 1 : c > 0x07FF ? 3 : 2;
+    }
+    return length;
+  }
+
+  /**
+   * @return names of all day segments, oldest first
+   */
+  List<String> getSegments() {
+    return listSegments(SEGMENT_EXT);
+  }
+
+  /**
+   * Reads all records of a segment; a truncated last record is skipped.
+   */
+  List<HistoryEntry> readSegment(String segment) {
+    return readSegment(segment, 0);
+  }
+
+  /**
+   * Reads the records of a segment following the one at the offset; a truncated last record is skipped.
+   * @return null if the segment has no complete record at the offset
+   */
+  @Nullable
+  List<HistoryEntry> readSegmentAfter(String segment, long offset) {
+    File file = new File(mySegmentsDir, segment + SEGMENT_EXT);
+    long next;
+    try {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+        long length = raf.length();
+        if (offset + 4 > length) return null;
+        raf.seek(offset);
+        int recordLength = raf.readInt();
+        next = offset + 4 + recordLength;
+        if (recordLength < 0 || next > length) return null;
+      }
+      finally {
+        raf.close();
+      }
+    }
+    catch (IOException e) {
+      LOG.info("Error reading history segment " + file, e);
+      return null;
+    }
+    return readSegment(segment, next);
+  }
+
+  private List<HistoryEntry> readSegment(String segment, long offset) {
+    List<HistoryEntry> result = new ArrayList<HistoryEntry>();
+    File file = new File(mySegmentsDir, segment + SEGMENT_EXT);
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        long length = file.length();
+        for (long skipped = 0; skipped < offset; ) {
+          long n = in.skip(offset - skipped);
+          if (n <= 0) throw new EOFException();
+          skipped += n;
+        }
+        while (offset + 4 <= length) {
+          byte[] bytes = readRecord(in);
+          HistoryEntry entry = parseEntry(bytes, segment, offset);
+          if (entry != null) {
+            result.add(entry);
+          }
+          offset += 4 + bytes.length;
+        }
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (IOException e) {
+      LOG.info("History segment " + file + " is truncated", e);
+    }
+    return result;
+  }
+
+  private void rebuildIndex() {
+    List<HistoryEntry> entries = new ArrayList<HistoryEntry>();
+    for (String segment : getSegments()) {
+      entries.addAll(readSegment(segment));
+    }
+
+    Map<String, List<HistoryEntry>> byUser = new HashMap<String, List<HistoryEntry>>();
+    for (HistoryEntry entry : entries) {
+      String userKey = getUserKey(entry.getUser());
+      List<HistoryEntry> list = byUser.get(userKey);
+      if (list == null) {
+        list = new ArrayList<HistoryEntry>();
+        byUser.put(userKey, list);
+      }
+      list.add(entry);
+    }
+    for (Map.Entry<String, List<HistoryEntry>> userEntries : byUser.entrySet()) {
+      try {
+        appendToIndex(userEntries.getKey(), userEntries.getValue());
+      }
+      catch (IOException e) {
+        LOG.error("Unable to rebuild history index for " + userEntries.getKey(), e);
+      }
+    }
+  }
+
+  /**
+   * Day files written by previous versions held a whole XStream-serialized {@link DayHistory},
+   * they are converted to segments once.<p>
+   *
+   * Before a legacy file is converted, the lengths of the segments it is appended to are saved in a marker file,
+   * which is deleted after the legacy file. A marker left next to its legacy file by a crash makes
+   * {@link #rollBackInterruptedMigrations()} cut the segments back, so the conversion never duplicates messages.
+   */
+  private void migrateLegacyFiles() {
+    for (String segment : listSegments(LEGACY_EXT)) {
+      File legacyFile = new File(mySegmentsDir, segment + LEGACY_EXT);
+      DayHistory dayHistory = (DayHistory)XMLUtil.fromXml(myXStream, legacyFile.getAbsolutePath(), false);
+      File marker = new File(mySegmentsDir, segment + MIGRATION_EXT);
+      if (dayHistory != null) {
+        List<HistoryEntry> entries = new ArrayList<HistoryEntry>();
+        Set<String> targetSegments = new TreeSet<String>();
+        for (User user : dayHistory.keySet()) {
+          for (LocalMessage message : dayHistory.readMessages(user)) {
+            entries.add(new HistoryEntry(user, message));
+            targetSegments.add(getSegmentName(message.getWhen()));
+          }
+        }
+        try {
+          writeMigrationMarker(marker, targetSegments);
+        }
+        catch (IOException e) {
+          LOG.error("Unable to convert history file " + legacyFile, e);
+          marker.delete();
+          continue;
+        }
+        append(entries);
+      }
+      legacyFile.delete();
+      marker.delete();
+    }
+  }
+
+  private void writeMigrationMarker(File marker, Set<String> targetSegments) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(marker)));
+    try {
+      out.writeInt(targetSegments.size());
+      for (String segment : targetSegments) {
+        out.writeUTF(segment);
+        out.writeLong(new File(mySegmentsDir, segment + SEGMENT_EXT).length());
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Cuts segments back to their lengths saved before a conversion that didn't complete; it is redone
+   * by {@link #migrateLegacyFiles()}. The index entries of the cut records are dropped by the index check.
+   */
+  private void rollBackInterruptedMigrations() {
+    for (String segment : listSegments(MIGRATION_EXT)) {
+      File marker = new File(mySegmentsDir, segment + MIGRATION_EXT);
+      if (new File(mySegmentsDir, segment + LEGACY_EXT).exists()) {
+        LOG.info("Rolling back interrupted conversion of history file " + segment + LEGACY_EXT);
+        try {
+          DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(marker)));
+          try {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+              File segmentFile = new File(mySegmentsDir, in.readUTF() + SEGMENT_EXT);
+              long length = in.readLong();
+              if (segmentFile.length() > length) {
+                RandomAccessFile raf = new RandomAccessFile(segmentFile, "rw");
+                try {
+                  raf.setLength(length);
+                }
+                finally {
+                  raf.close();
+                }
+              }
+            }
+          }
+          finally {
+            in.close();
+          }
+        }
+        catch (IOException e) {
+          // a marker cut short by the crash was written before any append
+          LOG.info("History conversion marker " + marker + " is incomplete", e);
+        }
+      }
+      marker.delete();
+    }
+  }
+
+  private List<String> listSegments(final String extension) {
+    String[] names = mySegmentsDir.list(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.endsWith(extension);
+      }
+    });
+    if (names == null) return Collections.emptyList();
+
+    List<String> result = new ArrayList<String>(names.length);
+    for (String name : names) {
+      String segment = name.substring(0, name.length() - extension.length());
+      if (parseSegmentName(segment) != null) {
+        result.add(segment);
+      }
+    }
+    Collections.sort(result);
+    return result;
+  }
+
+  String getSegmentName(Date date) {
+    return myDateFormat.format(date);
+  }
+
+  @Nullable
+  private Date parseSegmentName(String segment) {
+    try {
+      return myDateFormat.parse(segment);
+    }
+    catch (ParseException e) {
+      // ignore file of wrong format
+      return null;
+    }
+  }
+
+  private File getIndexFile(String userKey) {
+    return new File(myIndexDir, Integer.toHexString(userKey.hashCode()) + INDEX_EXT);
+  }
+
+  static String getUserKey(User user) {
+    return user.getTransportCode() + ':' + user.getName();
+  }
+}
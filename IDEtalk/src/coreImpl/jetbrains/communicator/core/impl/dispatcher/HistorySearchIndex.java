@@ -0,0 +1,402 @@
+/*
+ * Copyright 2000-2006 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.communicator.core.impl.dispatcher;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Inverted index over the text of {@link HistoryLog} records: lower-cased word -> records containing it,
+ * where a record is (user, day segment, offset).<p>
+ *
+ * Persisted as an append-only file of <code>UTF user key, UTF segment, long offset, int count, UTF word * count</code>
+ * and held in memory as record tables plus a sorted array of record numbers per word, so the memory taken by a word
+ * is proportional to the number of records containing it.<p>
+ *
+ * Lookups return a superset of the records matching a substring query, so callers check candidates
+ * with {@link jetbrains.communicator.core.dispatcher.LocalMessage#containsString(String)}.
+ * Not thread safe, callers synchronize.
+ */
+class HistorySearchIndex {
+  @NonNls
+  private static final Logger LOG = Logger.getLogger(HistorySearchIndex.class);
+
+  private final File myFile;
+
+  private final List<String> myUserKeys = new ArrayList<String>();
+  private final Map<String, Integer> myUserIds = new HashMap<String, Integer>();
+  private final List<String> mySegments = new ArrayList<String>();
+  private final Map<String, Integer> mySegmentIds = new HashMap<String, Integer>();
+  // segment -> offset of its last indexed record, records are appended to a segment in offset order
+  private final Map<String, Long> myLastOffsets = new HashMap<String, Long>();
+
+  // record number -> user id, segment id, offset in segment
+  private int[] myRecordUsers = new int[256];
+  private int[] myRecordSegments = new int[256];
+  private long[] myRecordOffsets = new long[256];
+  private int myRecordCount;
+
+  private final Map<String, Postings> myPostings = new HashMap<String, Postings>();
+
+  HistorySearchIndex(File file) {
+    myFile = file;
+  }
+
+  /**
+   * Reads the index; a partially written last record is cut off, so that next appends don't follow it.
+   * Records saved to the log after the last indexed one in a segment are not known to the index,
+   * see {@link #getLastIndexedOffset(String)}.
+   *
+   * @return false if there is no index on disk and it should be built with {@link #add(List)}
+   */
+  boolean load() {
+    if (!myFile.isFile()) return false;
+
+    try {
+      long length = myFile.length();
+      long position = 0;
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(myFile)));
+      try {
+        while (position < length) {
+          String userKey;
+          String segment;
+          long offset;
+          List<String> words;
+          try {
+            userKey = in.readUTF();
+            segment = in.readUTF();
+            offset = in.readLong();
+            int count = in.readInt();
+            words = new ArrayList<String>(count);
+            for (int i = 0; i < count; i++) {
+              words.add(in.readUTF());
+            }
+          }
+          catch (EOFException e) {
+            LOG.info("Cutting off a partially written record of history search index " + myFile + " at " + position);
+            break;
+          }
+          addRecord(userKey, segment, offset, words);
+          position += HistoryLog.utfLength(userKey) + HistoryLog.utfLength(segment) + 8 + 4;
+          for (String word : words) {
+            position += HistoryLog.utfLength(word);
+          }
+        }
+      }
+      finally {
+        in.close();
+      }
+
+      if (position < length) {
+        RandomAccessFile raf = new RandomAccessFile(myFile, "rw");
+        try {
+          raf.setLength(position);
+        }
+        finally {
+          raf.close();
+        }
+      }
+    }
+    catch (IOException e) {
+      LOG.info("Error reading history search index " + myFile, e);
+      clear();
+      myFile.delete();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Indexes saved entries and appends them to the index file.
+   */
+  void add(List<HistoryEntry> entries) {
+    try {
+      myFile.getParentFile().mkdirs();
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(myFile, true)));
+      try {
+        for (HistoryEntry entry : entries) {
+          if (entry.getOffset() < 0 || entry.getXml() == null) continue;
+
+          String userKey = HistoryLog.getUserKey(entry.getUser());
+          Collection<String> words = tokenizeXml(entry.getXml());
+          out.writeUTF(userKey);
+          out.writeUTF(entry.getSegment());
+          out.writeLong(entry.getOffset());
+          out.writeInt(words.size());
+          for (String word : words) {
+            out.writeUTF(word);
+          }
+
+          addRecord(userKey, entry.getSegment(), entry.getOffset(), words);
+        }
+      }
+      finally {
+        out.close();
+      }
+    }
+    catch (IOException e) {
+      LOG.error("Unable to update history search index " + myFile, e);
+    }
+  }
+
+  private void addRecord(String userKey, String segment, long offset, Collection<String> words) {
+    if (myRecordCount == myRecordOffsets.length) {
+      int newLength = myRecordCount * 2;
+      myRecordUsers = Arrays.copyOf(myRecordUsers, newLength);
+      myRecordSegments = Arrays.copyOf(myRecordSegments, newLength);
+      myRecordOffsets = Arrays.copyOf(myRecordOffsets, newLength);
+    }
+
+    int record = myRecordCount++;
+    myRecordUsers[record] = getId(userKey, myUserKeys, myUserIds);
+    myRecordSegments[record] = getId(segment, mySegments, mySegmentIds);
+    myRecordOffsets[record] = offset;
+    myLastOffsets.put(segment, offset);
+
+    for (String word : words) {
+      Postings records = myPostings.get(word);
+      if (records == null) {
+        records = new Postings(1);
+        myPostings.put(word, records);
+      }
+      // records are numbered in the order they are added, so the postings stay sorted
+      records.add(record);
+    }
+  }
+
+  private static int getId(String value, List<String> values, Map<String, Integer> ids) {
+    Integer id = ids.get(value);
+    if (id == null) {
+      id = values.size();
+      values.add(value);
+      ids.put(value, id);
+    }
+    return id;
+  }
+
+  /**
+   * @return segment -> offsets of the user's records which may contain <code>searchString</code>, in ascending order,
+   *         or null if the string has no words and the index can't narrow the search
+   */
+  @Nullable
+  SortedMap<String, List<Long>> findCandidates(String userKey, String searchString) {
+    List<String> words = tokenize(searchString);
+    if (words.isEmpty()) return null;
+
+    SortedMap<String, List<Long>> result = new TreeMap<String, List<Long>>();
+    Integer userId = myUserIds.get(userKey);
+    if (userId == null) return result;
+
+    // a word at an edge of the query may be a part of a longer word in the text
+    boolean openStart = isWordChar(searchString.charAt(0));
+    boolean openEnd = isWordChar(searchString.charAt(searchString.length() - 1));
+
+    List<Postings> postings = new ArrayList<Postings>(words.size());
+    for (int i = 0; i < words.size(); i++) {
+      Postings records = findRecords(words.get(i), i == 0 && openStart, i == words.size() - 1 && openEnd);
+      if (records.mySize == 0) return result;
+      postings.add(records);
+    }
+
+    // intersect starting with the rarest word, so each step is bounded by the smaller list
+    Collections.sort(postings, new Comparator<Postings>() {
+      public int compare(Postings o1, Postings o2) {
+        return o1.mySize - o2.mySize;
+      }
+    });
+    Postings candidates = postings.get(0);
+    for (int i = 1; i < postings.size() && candidates.mySize > 0; i++) {
+      candidates = intersect(candidates, postings.get(i));
+    }
+
+    for (int i = 0; i < candidates.mySize; i++) {
+      int record = candidates.myRecords[i];
+      if (myRecordUsers[record] != userId) continue;
+
+      String segment = mySegments.get(myRecordSegments[record]);
+      List<Long> offsets = result.get(segment);
+      if (offsets == null) {
+        offsets = new ArrayList<Long>();
+        result.put(segment, offsets);
+      }
+      offsets.add(myRecordOffsets[record]);
+    }
+    return result;
+  }
+
+  private Postings findRecords(String word, boolean mayHavePrefix, boolean mayHaveSuffix) {
+    if (!mayHavePrefix && !mayHaveSuffix) {
+      Postings records = myPostings.get(word);
+      return records != null ? records : new Postings(0);
+    }
+
+    // the vocabulary is much smaller than the history, so it is scanned
+    List<Postings> matching = new ArrayList<Postings>();
+    int total = 0;
+    for (Map.Entry<String, Postings> entry : myPostings.entrySet()) {
+      String indexed = entry.getKey();
+      boolean matches = mayHavePrefix && mayHaveSuffix ? indexed.contains(word) :
+                        mayHavePrefix ? indexed.endsWith(word) : indexed.startsWith(word);
+      if (matches) {
+        matching.add(entry.getValue());
+        total += entry.getValue().mySize;
+      }
+    }
+    if (matching.size() == 1) {
+      return matching.get(0);
+    }
+
+    Postings result = new Postings(total);
+    for (Postings records : matching) {
+      System.arraycopy(records.myRecords, 0, result.myRecords, result.mySize, records.mySize);
+      result.mySize += records.mySize;
+    }
+    Arrays.sort(result.myRecords, 0, result.mySize);
+    int size = 0;
+    for (int i = 0; i < result.mySize; i++) {
+      if (size == 0 || result.myRecords[size - 1] != result.myRecords[i]) {
+        result.myRecords[size++] = result.myRecords[i];
+      }
+    }
+    result.mySize = size;
+    return result;
+  }
+
+  /**
+   * Looks up the records of the smaller list in the larger one with galloping search.
+   */
+  private static Postings intersect(Postings smaller, Postings larger) {
+    Postings result = new Postings(smaller.mySize);
+    int from = 0;
+    for (int i = 0; i < smaller.mySize && from < larger.mySize; i++) {
+      int record = smaller.myRecords[i];
+
+      // find the range containing the record by doubling the step, then search in it
+      int step = 1;
+      int to = from;
+      while (to < larger.mySize && larger.myRecords[to] < record) {
+        from = to + 1;
+        to += step;
+        step <<= 1;
+      }
+      int index = Arrays.binarySearch(larger.myRecords, from, Math.min(to + 1, larger.mySize), record);
+      if (index >= 0) {
+        result.myRecords[result.mySize++] = record;
+        from = index + 1;
+      }
+      else {
+        from = -index - 1;
+      }
+    }
+    return result;
+  }
+
+  void clear() {
+    myUserKeys.clear();
+    myUserIds.clear();
+    mySegments.clear();
+    mySegmentIds.clear();
+    myLastOffsets.clear();
+    myRecordCount = 0;
+    myPostings.clear();
+  }
+
+  /**
+   * @return offset of the last indexed record of the segment, -1 if none is indexed
+   */
+  long getLastIndexedOffset(String segment) {
+    Long offset = myLastOffsets.get(segment);
+    return offset == null ? -1 : offset;
+  }
+
+  /**
+   * Forgets all records and deletes the index file, so that the index can be built again with {@link #add(List)}.
+   */
+  void reset() {
+    clear();
+    myFile.delete();
+  }
+
+  int getRecordCount() {
+    return myRecordCount;
+  }
+
+  static List<String> tokenize(String text) {
+    List<String> result = new ArrayList<String>();
+    int start = -1;
+    for (int i = 0; i <= text.length(); i++) {
+      if (i < text.length() && isWordChar(text.charAt(i))) {
+        if (start < 0) start = i;
+      }
+      else if (start >= 0) {
+        result.add(text.substring(start, i).toLowerCase());
+        start = -1;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Distinct words of XML element text; markup and entity references separate words.
+   */
+  static Collection<String> tokenizeXml(String xml) {
+    StringBuilder text = new StringBuilder(xml.length());
+    char markupEnd = 0;
+    for (int i = 0; i < xml.length(); i++) {
+      char c = xml.charAt(i);
+      if (markupEnd != 0) {
+        if (c == markupEnd) {
+          markupEnd = 0;
+        }
+      }
+      else if (c == '<' || c == '&') {
+        markupEnd = c == '<' ? '>' : ';';
+        text.append(' ');
+      }
+      else {
+        text.append(c);
+      }
+    }
+    return new LinkedHashSet<String>(tokenize(text.toString()));
+  }
+
+  private static boolean isWordChar(char c) {
+    return Character.isLetterOrDigit(c);
+  }
+
+  /**
+   * Ascending record numbers.
+   */
+  private static class Postings {
+    private int[] myRecords;
+    private int mySize;
+
+    private Postings(int capacity) {
+      myRecords = new int[capacity];
+    }
+
+    private void add(int record) {
+      if (mySize == myRecords.length) {
+        myRecords = Arrays.copyOf(myRecords, Math.max(4, mySize + (mySize >> 1)));
+      }
+      myRecords[mySize++] = record;
+    }
+  }
+}
@@ -114,6 +114,11 @@ public class LocalMessageDispatcherImpl extends AbstractMessageDispatcher implem
     return myHistory.getHistory(user, since);
   }
 
+  @Override
+  public LocalMessage[] searchHistory(User user, String searchString) {
+    return myHistory.searchHistory(user, searchString);
+  }
+
   @Override
   public void clearHistory() {
     myHistory.clear();
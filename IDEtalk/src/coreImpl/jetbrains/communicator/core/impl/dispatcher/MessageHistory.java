@@ -28,13 +28,13 @@ import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
-import java.io.FilenameFilter;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.Future;
 
 /**
+ * Message history stored in {@link HistoryLog}. Messages of a user are read per day,
+ * only when a day is requested, and at most {@link #MAX_LOADED_DAYS} days are kept in memory.
+ *
  * @author Kir
  */
 class MessageHistory {
@@ -42,30 +42,76 @@ class MessageHistory {
   private static final Logger LOG = Logger.getLogger(MessageHistory.class);
 
   public static final long SAVE_TIMEOUT = 300;
+  // (user, day) slices kept in memory, least recently used ones are dropped
+  static final int MAX_LOADED_DAYS = 64;
   @NonNls
   private static final String HISTORY = "history";
+  @NonNls
+  private static final String HISTORY_INDEX = "historyIndex";
+  @NonNls
+  private static final String SEARCH_INDEX = "search.dat";
+
+  private static final Comparator<LocalMessage> BY_DATE = new Comparator<LocalMessage>() {
+    public int compare(LocalMessage o1, LocalMessage o2) {
+      return o1.getWhen().compareTo(o2.getWhen());
+    }
+  };
+
+  // (user, day) -> messages of the user that day, in access order
+  private final LinkedHashMap<DayKey, DaySlice> myHistory = new LinkedHashMap<DayKey, DaySlice>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<DayKey, DaySlice> eldest) {
+      // messages of a dropped slice are either saved already or still in myUnsaved, so they are read again when needed
+      return size() > MAX_LOADED_DAYS;
+    }
+  };
+  // entries not yet appended to the log
+  private final List<HistoryEntry> myUnsaved = new ArrayList<HistoryEntry>();
 
-  private final DayHistory myHistory = new DayHistory();
   @NonNls
   private final XStream myXStream;
   private final UserModel myUserModel;
   private final IDEFacade myFacade;
+  private final HistoryLog myLog;
+  private final HistorySearchIndex mySearchIndex;
 
   private Future<?> myPendingSave;
 
-  @NonNls
-  private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd");
-
   MessageHistory(IDEFacade facade, UserModel userModel) {
     myFacade = facade;
     myUserModel = userModel;
 
-    getHistoryDir().mkdir();
-
     myXStream = XMLUtil.createXStream();
     setupXStream();
 
-    loadHistorySince(new Date());
+    File indexDir = new File(myFacade.getCacheDir(), HISTORY_INDEX);
+    myLog = new HistoryLog(getHistoryDir(), indexDir, myXStream);
+
+    mySearchIndex = new HistorySearchIndex(new File(indexDir, SEARCH_INDEX));
+    if (!mySearchIndex.load() || !indexLogTail()) {
+      mySearchIndex.reset();
+      for (String segment : myLog.getSegments()) {
+        mySearchIndex.add(myLog.readSegment(segment));
+      }
+    }
+  }
+
+  /**
+   * Indexes the records saved to the log after the last indexed one of each segment,
+   * which a crash between the log and the search index appends leaves out of the search index.
+   *
+   * @return false if the search index doesn't match the log and has to be rebuilt
+   */
+  private boolean indexLogTail() {
+    for (String segment : myLog.getSegments()) {
+      long lastOffset = mySearchIndex.getLastIndexedOffset(segment);
+      List<HistoryEntry> tail = lastOffset < 0 ? myLog.readSegment(segment) : myLog.readSegmentAfter(segment, lastOffset);
+      if (tail == null) return false;
+      if (!tail.isEmpty()) {
+        mySearchIndex.add(tail);
+      }
+    }
+    return true;
   }
 
   public synchronized void dispose() {
@@ -74,6 +120,7 @@ class MessageHistory {
       myPendingSave = null;
     }
 
+    saveHistory();
     myHistory.clear();
   }
 
@@ -86,24 +133,18 @@ class MessageHistory {
   }
 
   public synchronized void addMessage(User user, LocalMessage message) {
-    myHistory.addMessage(user, message);
+    HistoryEntry entry = new HistoryEntry(user, message);
+    myUnsaved.add(entry);
+    getDaySlice(user, TimeUtil.getDay(message.getWhen())).add(entry);
     triggerSave();
   }
 
   public synchronized void clear() {
     myHistory.clear();
+    myUnsaved.clear();
 
-    deleteAllHistoryFiles();
-  }
-
-  private void deleteAllHistoryFiles() {
-    File historyDir = getHistoryDir();
-    Thread thread = Thread.currentThread();
-
-    for (File file : historyDir.listFiles()) {
-      if (thread.isInterrupted()) return;
-      file.delete();
-    }
+    myLog.clear();
+    mySearchIndex.clear();
   }
 
   private File getHistoryDir() {
@@ -111,72 +152,88 @@ class MessageHistory {
   }
 
   public synchronized LocalMessage[] getHistory(User user, @Nullable Date since) {
-    loadHistorySince(since);
+    Date sinceDay = since == null ? null : TimeUtil.getDay(since);
+
+    // offsets of messages added in this session are needed to tell them from the ones still on disk
+    saveHistory();
+
+    List<LocalMessage> list = new ArrayList<LocalMessage>();
+    SortedMap<Date, List<Long>> offsets = myLog.readOffsets(user, sinceDay);
+    for (Map.Entry<Date, List<Long>> dayOffsets : offsets.entrySet()) {
+      addMessages(loadDaySlice(user, dayOffsets.getKey(), dayOffsets.getValue()), since, list);
+    }
 
-    List<LocalMessage> list = filterHistoryByDate(user, since);
+    // messages which couldn't be saved are only in memory
+    for (Map.Entry<DayKey, DaySlice> entry : new ArrayList<Map.Entry<DayKey, DaySlice>>(myHistory.entrySet())) {
+      DayKey key = entry.getKey();
+      if (key.myUser.equals(user) && !offsets.containsKey(key.myDay) && (sinceDay == null || !key.myDay.before(sinceDay))) {
+        addMessages(entry.getValue(), since, list);
+      }
+    }
+
+    Collections.sort(list, BY_DATE);
     return list.toArray(new LocalMessage[list.size()]);
   }
 
-  private List<LocalMessage> filterHistoryByDate(User user, Date since) {
-    List<LocalMessage> list = myHistory.readMessages(user);
-    if (since != null) {
-      List<LocalMessage> result = new ArrayList<LocalMessage>(list.size());
-      for (LocalMessage message : list) {
-        if (message.getWhen().after(since)) {
-          result.add(message);
-        }
+  private static void addMessages(DaySlice slice, @Nullable Date since, List<LocalMessage> result) {
+    for (LocalMessage message : slice.myMessages) {
+      if (since == null || message.getWhen().after(since)) {
+        result.add(message);
       }
-      list = result;
     }
-    return list;
   }
 
-  private void loadHistorySince(@Nullable Date since) {
-    if (since != null) {
-      since = TimeUtil.getDay(since);
+  /**
+   * @return messages of the user containing <code>searchString</code>, found with the search index
+   *         without loading the whole history
+   */
+  public synchronized LocalMessage[] searchHistory(User user, String searchString) {
+    saveHistory();
+
+    SortedMap<String, List<Long>> candidates = mySearchIndex.findCandidates(HistoryLog.getUserKey(user), searchString);
+    List<LocalMessage> result = new ArrayList<LocalMessage>();
+    if (candidates == null) {
+      for (LocalMessage message : getHistory(user, null)) {
+        if (message.containsString(searchString)) {
+          result.add(message);
+        }
+      }
+      return result.toArray(new LocalMessage[result.size()]);
     }
 
-    if (!myHistory.hasHistorySince(since)) {
-      if (since == null) {
-        doLoadHistorySince(new Date(0));
-        myHistory.setHasFullHistory();
-      }
-      else {
-        doLoadHistorySince(since);
+    for (Map.Entry<String, List<Long>> segmentOffsets : candidates.entrySet()) {
+      for (HistoryEntry entry : myLog.readEntries(segmentOffsets.getKey(), segmentOffsets.getValue())) {
+        if (entry.getMessage().containsString(searchString)) {
+          result.add(entry.getMessage());
+        }
       }
     }
+    Collections.sort(result, BY_DATE);
+    return result.toArray(new LocalMessage[result.size()]);
   }
 
-  private void doLoadHistorySince(Date since) {
-    File historyDir = getHistoryDir();
+  private DaySlice loadDaySlice(User user, Date day, List<Long> offsets) {
+    DaySlice slice = getDaySlice(user, day);
+    if (slice.myLoaded) return slice;
 
-    String[] historyFiles = historyDir.list(new FilenameFilter() {
-      public boolean accept(File dir, String name) {
-        return name.endsWith(".xml");
-      }
-    });
-
-    Arrays.sort(historyFiles);
-    for (int i = historyFiles.length - 1; i >= 0; i--) {
-      String historyFile = historyFiles[i];
-      try {
-        Date date = DATE_FORMAT.parse(historyFile);
-        if (!date.before(since) && !myHistory.hasHistorySince(date)) {
-          DayHistory dayHistory = (DayHistory)XMLUtil.fromXml(myXStream, myFacade.getCacheDir(), getFileNameForDate(date), false);
-          if (dayHistory != null) {
-            dayHistory.copyTo(myHistory);
-          }
-        }
-      }
-      catch (ParseException e) {
-        // ignore file of wrong format
-      }
-      catch (NumberFormatException e) {
-        // ignore file of wrong format
-      }
+    List<Long> toRead = new ArrayList<Long>(offsets);
+    toRead.removeAll(slice.myOwnOffsets);
+    for (HistoryEntry entry : myLog.readEntries(myLog.getSegmentName(day), toRead)) {
+      slice.myMessages.add(entry.getMessage());
     }
+    Collections.sort(slice.myMessages, BY_DATE);
+    slice.setLoaded();
+    return slice;
+  }
 
-    myHistory.resort();
+  private DaySlice getDaySlice(User user, Date day) {
+    DayKey key = new DayKey(user, day);
+    DaySlice slice = myHistory.get(key);
+    if (slice == null) {
+      slice = new DaySlice();
+      myHistory.put(key, slice);
+    }
+    return slice;
   }
 
   private void triggerSave() {
@@ -198,53 +255,69 @@ class MessageHistory {
   }
 
   private synchronized void saveHistory() {
+    if (myUnsaved.isEmpty()) return;
+
     LOG.debug("Start history save");
-    Map<Date, DayHistory> map = getHistory();
-    for (Date date : map.keySet()) {
-      DayHistory dayHistory = map.get(date);
-      try {
-        XMLUtil.toXml(myXStream, myFacade.getCacheDir(), getFileNameForDate(date), dayHistory);
-      } catch (RuntimeException e) {
-        LOG.error("Unable to save dayHistory for " + date + ": " + dayHistory, e);
+    List<HistoryEntry> entries = new ArrayList<HistoryEntry>(myUnsaved);
+    myUnsaved.clear();
+    myLog.append(entries);
+    mySearchIndex.add(entries);
+
+    for (HistoryEntry entry : entries) {
+      long offset = entry.getOffset();
+      if (offset >= 0) {
+        // a slice dropped meanwhile doesn't hold the message any more and will read it from the log
+        DaySlice slice = myHistory.get(new DayKey(entry.getUser(), TimeUtil.getDay(entry.getMessage().getWhen())));
+        if (slice != null && !slice.myLoaded) {
+          slice.myOwnOffsets.add(offset);
+        }
       }
     }
-
     LOG.debug("Done history save");
   }
 
-  private synchronized Map<Date, DayHistory> getHistory() {
-    Map<Date, DayHistory> result = new HashMap<Date, DayHistory>();
+  public boolean isEmpty() {
+    File historyDir = getHistoryDir();
+    return !(historyDir.isDirectory() && historyDir.list().length > 0);
+  }
 
-    for (User user : myHistory.keySet()) {
-      List<LocalMessage> messages = myHistory.get(user);
-      for (LocalMessage message : messages) {
-        DayHistory dayHistory = getDayHistoryFor(message, result);
+  private static class DayKey {
+    private final User myUser;
+    private final Date myDay;
 
-        dayHistory.addMessage(user, message);
-      }
+    private DayKey(User user, Date day) {
+      myUser = user;
+      myDay = day;
     }
 
-    return result;
-  }
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof DayKey)) return false;
 
-  private DayHistory getDayHistoryFor(LocalMessage message, Map<Date, DayHistory> result) {
-    Date day = TimeUtil.getDay(message.getWhen());
-    DayHistory dayHistory = result.get(day);
-    if (dayHistory == null) {
-      dayHistory = new DayHistory();
-      result.put(day, dayHistory);
+      DayKey dayKey = (DayKey)o;
+      return myUser.equals(dayKey.myUser) && myDay.equals(dayKey.myDay);
     }
-    return dayHistory;
-  }
 
-  @NonNls
-  private String getFileNameForDate(Date date) {
-    //noinspection HardCodedStringLiteral
-    return HISTORY + '/' + DATE_FORMAT.format(date) + ".xml";
+    public int hashCode() {
+      return 31 * myUser.hashCode() + myDay.hashCode();
+    }
   }
 
-  public boolean isEmpty() {
-    File historyDir = getHistoryDir();
-    return !(historyDir.isDirectory() && historyDir.list().length > 0);
+  /**
+   * Messages of one user for one day. Until the day is loaded from the log it holds only messages added in this session.
+   */
+  private static class DaySlice {
+    private final List<LocalMessage> myMessages = new ArrayList<LocalMessage>();
+    private Set<Long> myOwnOffsets = new HashSet<Long>();
+    private boolean myLoaded;
+
+    private void add(HistoryEntry entry) {
+      myMessages.add(entry.getMessage());
+    }
+
+    private void setLoaded() {
+      myLoaded = true;
+      myOwnOffsets = Collections.emptySet();
+    }
   }
 }
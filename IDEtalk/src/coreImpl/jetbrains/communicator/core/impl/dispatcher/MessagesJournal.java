@@ -0,0 +1,186 @@
+/*
+ * Copyright 2000-2006 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.communicator.core.impl.dispatcher;
+
+import com.thoughtworks.xstream.XStream;
+import jetbrains.communicator.core.dispatcher.Message;
+import jetbrains.communicator.core.users.User;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NonNls;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Changes of a pending messages queue made since its last checkpoint ({@link MessagesStorable} snapshot).<p>
+ *
+ * Each checkpoint starts a new generation; the journal of generation N is the file
+ * <code>&lt;snapshot name&gt;.N.journal</code> holding length-prefixed UTF-8 XML {@link Record}s,
+ * and it is replayed only over the snapshot of the same generation. Not thread safe, callers synchronize.
+ */
+class MessagesJournal {
+  @NonNls
+  private static final Logger LOG = Logger.getLogger(MessagesJournal.class);
+
+  @NonNls
+  private static final String JOURNAL_EXT = ".journal";
+
+  static final int ADD = 0;
+  static final int REMOVE = 1;
+  static final int REMOVE_USER = 2;
+  static final int CLEAR = 3;
+
+  private final File myDataDir;
+  private final String mySnapshotName;
+  private final XStream myXStream;
+
+  private int myGeneration;
+  private int myRecordCount;
+
+  MessagesJournal(File dataDir, String snapshotName, XStream xStream) {
+    myDataDir = dataDir;
+    mySnapshotName = snapshotName;
+    myXStream = xStream;
+    myXStream.alias("journalRecord", Record.class);
+  }
+
+  /**
+   * Reads records of the given generation; further records are appended to it.
+   */
+  List<Record> read(int generation) {
+    myGeneration = generation;
+
+    List<Record> result = new ArrayList<Record>();
+    File file = getJournalFile(generation);
+    if (file.isFile()) {
+      try {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+          while (true) {
+            byte[] bytes;
+            try {
+              bytes = new byte[in.readInt()];
+              in.readFully(bytes);
+            }
+            catch (EOFException e) {
+              // end of journal, possibly a partially written last record
+              break;
+            }
+            Object record = myXStream.fromXML(new String(bytes, "UTF-8"));
+            if (record instanceof Record) {
+              result.add((Record)record);
+            }
+          }
+        }
+        finally {
+          in.close();
+        }
+      }
+      catch (Exception e) {
+        LOG.info("Error reading " + file, e);
+      }
+    }
+
+    myRecordCount = result.size();
+    return result;
+  }
+
+  void append(Record record) {
+    File file = getJournalFile(myGeneration);
+    try {
+      byte[] bytes = myXStream.toXML(record).getBytes("UTF-8");
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+      try {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+      finally {
+        out.close();
+      }
+      myRecordCount++;
+    }
+    catch (IOException e) {
+      LOG.error("Unable to append to " + file, e);
+    }
+  }
+
+  int getGeneration() {
+    return myGeneration;
+  }
+
+  int getRecordCount() {
+    return myRecordCount;
+  }
+
+  /**
+   * Called after the snapshot of the given generation is written, drops journals of previous generations.
+   */
+  void startGeneration(int generation) {
+    myGeneration = generation;
+    myRecordCount = 0;
+
+    final String prefix = mySnapshotName + '.';
+    File[] journals = myDataDir.listFiles(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.startsWith(prefix) && name.endsWith(JOURNAL_EXT);
+      }
+    });
+    if (journals == null) return;
+
+    File current = getJournalFile(generation);
+    for (File journal : journals) {
+      if (!journal.equals(current)) {
+        journal.delete();
+      }
+    }
+  }
+
+  private File getJournalFile(int generation) {
+    return new File(myDataDir, mySnapshotName + '.' + generation + JOURNAL_EXT);
+  }
+
+  static class Record {
+    private final int myOperation;
+    private final User myUser;
+    private final Message myMessage;
+    private final int myIndex;
+
+    Record(int operation, User user, Message message, int index) {
+      myOperation = operation;
+      myUser = user;
+      myMessage = message;
+      myIndex = index;
+    }
+
+    public int getOperation() {
+      return myOperation;
+    }
+
+    public User getUser() {
+      return myUser;
+    }
+
+    public Message getMessage() {
+      return myMessage;
+    }
+
+    /** Position of the removed message in the user's queue */
+    public int getIndex() {
+      return myIndex;
+    }
+  }
+}
@@ -26,9 +26,20 @@ import java.util.Map;
  */
 public class MessagesStorable {
   private final Map<User, List<Message>> myUser2Messages;
+  private final int myGeneration;
 
   public MessagesStorable(Map<User,List<Message>> user2Messages) {
+    this(user2Messages, 0);
+  }
+
+  public MessagesStorable(Map<User,List<Message>> user2Messages, int generation) {
     myUser2Messages = user2Messages;
+    myGeneration = generation;
+  }
+
+  /** Generation of the {@link MessagesJournal} which continues this snapshot */
+  public int getGeneration() {
+    return myGeneration;
   }
 
   public Map<User,List<Message>> getUser2Messages() {
@@ -17,14 +17,30 @@ package jetbrains.communicator.core.impl.transport;
 
 import jetbrains.communicator.core.transport.GetVFileContentsXmlMessage;
 import jetbrains.communicator.core.users.UserModel;
+import jetbrains.communicator.core.vfs.CompressedContents;
 import jetbrains.communicator.core.vfs.VFile;
 import jetbrains.communicator.ide.IDEFacade;
 import org.jdom.Element;
 
+import javax.xml.bind.DatatypeConverter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
+ * Serves {@link GetVFileContentsXmlMessage}. Compressed contents of files being transferred
+ * in several chunks are kept until the last chunk is sent, so the file is read and compressed once.
+ *
  * @author Kir
  */
 public class GetVFileContentsProvider extends FileAccessProvider {
+  private static final int MAX_TRANSFERS = 4;
+
+  private final Map<String, CompressedContents> myTransfers = new LinkedHashMap<String, CompressedContents>() {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, CompressedContents> eldest) {
+      return size() > MAX_TRANSFERS;
+    }
+  };
 
   public GetVFileContentsProvider(IDEFacade ideFacade, UserModel userModel) {
     super(ideFacade, userModel);
@@ -36,7 +52,71 @@ public class GetVFileContentsProvider extends FileAccessProvider {
 
   protected void doProcess(Element request, Element response) {
     VFile from = VFile.createFrom(request);
-    myIdeFacade.fillFileContents(from);
+    if (from == null) return;
+
+    if (!"true".equals(request.getAttributeValue(GetVFileContentsXmlMessage.CHUNKED_ATTR))) {
+      myIdeFacade.fillFileContents(from);
+      from.saveTo(response);
+      return;
+    }
+
+    String transferHash = request.getAttributeValue(GetVFileContentsXmlMessage.HASH_ATTR);
+    String offsetValue = request.getAttributeValue(GetVFileContentsXmlMessage.OFFSET_ATTR);
+    int offset = offsetValue == null ? 0 : Integer.parseInt(offsetValue);
+
+    CompressedContents contents = transferHash == null ? null : getTransfer(from, transferHash);
+    if (contents == null) {
+      myIdeFacade.fillFileContents(from);
+      String text = from.getContents();
+      from.setContents(null);
+      if (text == null) {
+        from.saveTo(response);
+        return;
+      }
+
+      contents = CompressedContents.compress(text);
+      if (contents.getHash().equals(request.getAttributeValue(GetVFileContentsXmlMessage.KNOWN_HASH_ATTR))) {
+        from.saveTo(response);
+        response.setAttribute(GetVFileContentsXmlMessage.HASH_ATTR, contents.getHash());
+        response.setAttribute(GetVFileContentsXmlMessage.UNCHANGED_ATTR, "true");
+        return;
+      }
+      if (!contents.getHash().equals(transferHash)) {
+        offset = 0;
+      }
+    }
+    if (offset > contents.getSize()) {
+      offset = 0;
+    }
+
+    int length = Math.max(0, Math.min(GetVFileContentsXmlMessage.CHUNK_SIZE, contents.getSize() - offset));
+    byte[] chunk = new byte[length];
+    System.arraycopy(contents.getBytes(), offset, chunk, 0, length);
+
     from.saveTo(response);
+    response.setAttribute(GetVFileContentsXmlMessage.HASH_ATTR, contents.getHash());
+    response.setAttribute(GetVFileContentsXmlMessage.SIZE_ATTR, String.valueOf(contents.getSize()));
+    response.setAttribute(GetVFileContentsXmlMessage.OFFSET_ATTR, String.valueOf(offset));
+    response.setText(DatatypeConverter.printBase64Binary(chunk));
+
+    updateTransfer(from, contents, offset + length < contents.getSize());
+  }
+
+  private synchronized CompressedContents getTransfer(VFile file, String hash) {
+    return myTransfers.get(getTransferKey(file, hash));
+  }
+
+  private synchronized void updateTransfer(VFile file, CompressedContents contents, boolean inProgress) {
+    String key = getTransferKey(file, contents.getHash());
+    if (inProgress) {
+      myTransfers.put(key, contents);
+    }
+    else {
+      myTransfers.remove(key);
+    }
+  }
+
+  private static String getTransferKey(VFile file, String hash) {
+    return file.getProjectName() + '|' + file.getFullPath() + '|' + hash;
   }
 }
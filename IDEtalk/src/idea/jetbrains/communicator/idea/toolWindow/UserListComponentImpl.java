@@ -129,7 +129,7 @@ public class UserListComponentImpl implements UserListComponent, Disposable {
 
     UIUtil.runWhenShown(myTree, new MakeNodeWithMessageVisible());
 
-    myUserModel.getBroadcaster().addListener(myExpandTreeNodeListener);
+    myUserModel.getBroadcaster().addAsyncListener(myExpandTreeNodeListener);
 
     readState();
   }
@@ -84,7 +84,7 @@ public class UsersTreeModel extends DefaultTreeModel implements Disposable {
         });
       }
     };
-    myBroadcaster.addListener(myListener);
+    myBroadcaster.addAsyncListener(myListener);
   }
 
   void updateTree(final GroupEvent updated) {
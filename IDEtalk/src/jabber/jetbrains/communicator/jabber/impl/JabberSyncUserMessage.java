@@ -16,6 +16,7 @@
 package jetbrains.communicator.jabber.impl;
 
 import jetbrains.communicator.core.EventVisitor;
+import jetbrains.communicator.core.dispatcher.BatchedMessage;
 import jetbrains.communicator.core.dispatcher.Message;
 import jetbrains.communicator.core.users.User;
 import jetbrains.communicator.core.users.UserEvent;
@@ -28,8 +29,10 @@ import org.jivesoftware.smack.RosterEntry;
 import org.jivesoftware.smack.RosterGroup;
 import org.jivesoftware.smack.XMPPException;
 
+import java.util.List;
+
 /** Propagate local changes to Jabber Roster*/
-class JabberSyncUserMessage implements Message {
+class JabberSyncUserMessage implements BatchedMessage {
   private static final Logger LOG = Logger.getLogger(JabberSyncUserMessage.class);
   private final UserEvent myEvent;
 
@@ -54,6 +57,30 @@ class JabberSyncUserMessage implements Message {
     return false;
   }
 
+  public boolean canBatchWith(Message message) {
+    return message instanceof JabberSyncUserMessage;
+  }
+
+  /** Roster changes queued while offline are applied at once */
+  public int sendBatch(User user, final List<Message> messages) {
+    final JabberTransport jabberTransport = JabberTransport.getInstance();
+    if (jabberTransport == null || !jabberTransport.isOnline()) return 0;
+
+    final Roster roster = jabberTransport.getFacade().getConnection().getRoster();
+    jabberTransport.runIngnoringUserEvents(new Runnable() {
+      public void run() {
+        for (Message message : messages) {
+          JabberSyncUserMessage syncMessage = (JabberSyncUserMessage)message;
+          RosterEntry userEntry = roster.getEntry(syncMessage.myEvent.getUser().getName());
+          if (userEntry != null) {
+            syncMessage.processEvent(jabberTransport.getFacade(), userEntry);
+          }
+        }
+      }
+    });
+    return messages.size();
+  }
+
   private void processEvent(final JabberFacade jabberFacade, final RosterEntry userEntry) {
     myEvent.accept(new EventVisitor(){
       @Override public void visitUserUpdated(UserEvent.Updated event) {
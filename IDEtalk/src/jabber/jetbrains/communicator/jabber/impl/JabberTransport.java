@@ -36,7 +36,6 @@ import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.Nullable;
 import org.jivesoftware.smack.*;
 import org.jivesoftware.smack.filter.PacketTypeFilter;
-import org.jivesoftware.smack.filter.ThreadFilter;
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.PacketExtension;
@@ -59,7 +58,6 @@ public class JabberTransport implements Transport, ConnectionListener, Disposabl
   @NonNls
   private static final Logger LOG = Logger.getLogger(JabberTransport.class);
 
-  private static final int RESPONSE_TIMEOUT = 120*1000;
   @NonNls public static final String CODE = "Jabber";
 
   private final JabberUI myUI;
@@ -71,11 +69,11 @@ public class JabberTransport implements Transport, ConnectionListener, Disposabl
   private RosterListener myRosterListener;
   private PacketListener mySubscribeListener;
   private PacketListener myMessageListener;
+  private final ResponseDispatcher myResponseDispatcher;
   private final JabberUserFinder myUserFinder;
   private final IDEFacade myIdeFacade;
 
-  private final String myThreadIdPrefix = StringUtils.randomString(5);
-  private int myCurrentThreadId;
+  private final Object myConnectLock = new Object();
   private boolean myIgnoreUserEvents;
   private PresenceMode myPresenceMode;
 
@@ -83,8 +81,6 @@ public class JabberTransport implements Transport, ConnectionListener, Disposabl
   private final Set<String> myIDEtalkUsers = new HashSet<String>();
   private final Map<String, String> myUser2Thread = Collections.synchronizedMap(new HashMap<String, String>());
 
-  @NonNls
-  private static final String RESPONSE = "response";
   private final IgnoreList myIgnoreList;
 
   // negative value disables reconnect
@@ -105,6 +101,7 @@ public class JabberTransport implements Transport, ConnectionListener, Disposabl
     myUserFinder = userFinder;
     myIdeFacade = messageDispatcher.getIdeFacade();
     myIgnoreList = new IgnoreList(myIdeFacade);
+    myResponseDispatcher = new ResponseDispatcher(myIdeFacade, StringUtils.randomString(5));
 
     myFacade.addConnectionListener(this);
     getBroadcaster().addListener(myUserModelListener);
@@ -205,44 +202,52 @@ public class JabberTransport implements Transport, ConnectionListener, Disposabl
   }
 
   @Override
-  public synchronized void sendXmlMessage(User user, final XmlMessage xmlMessage) {
-    if (!myUI.connectAndLogin(null)) {
+  public void sendXmlMessage(User user, final XmlMessage xmlMessage) {
+    synchronized (myConnectLock) {
+      if (!myUI.connectAndLogin(null)) {
+        return;
+      }
+    }
+
+    if (!xmlMessage.needsResponse()) {
+      doSendMessage(xmlMessage, user, getThreadId(user), false);
       return;
     }
 
-    final String threadId = getThreadId(user);
-    final PacketCollector packetCollector = myFacade.getConnection().createPacketCollector(new ThreadFilter(threadId));
-    doSendMessage(xmlMessage, user, threadId);
+    String threadId;
+    try {
+      threadId = myResponseDispatcher.register(user.getName(), xmlMessage);
+    }
+    catch (InterruptedException e) {
+      return;
+    }
+    if (threadId == null) {
+      LOG.warn("Too many requests wait for responses, " + xmlMessage.getTagName() + " to " + user.getName() + " is not sent");
+      return;
+    }
 
-    if (xmlMessage.needsResponse()) {
-      //noinspection HardCodedStringLiteral
-      final Runnable responseWaiterRunnable = new Runnable() {
-        @Override
-        public void run() {
-          try {
-            processResponse(xmlMessage, packetCollector);
-          }
-          finally {
-            packetCollector.cancel();
-          }
-        }
-      };
-      myIdeFacade.runOnPooledThread(responseWaiterRunnable);
+    try {
+      doSendMessage(xmlMessage, user, threadId, true);
     }
-    else {
-      packetCollector.cancel();
+    catch (RuntimeException e) {
+      myResponseDispatcher.cancel(threadId);
+      throw e;
     }
   }
 
   String getThreadId(User user) {
     String id = myUser2Thread.get(user.getName());
     if (id == null) {
-      id = myThreadIdPrefix + myCurrentThreadId ++;
+      id = myResponseDispatcher.createThreadId();
       myUser2Thread.put(user.getName(), id);
     }
     return id;
   }
 
+  ResponseDispatcher getResponseDispatcher() {
+    return myResponseDispatcher;
+  }
+
   @Override
   public void setOwnPresence(UserPresence userPresence) {
     if (isOnline() && !userPresence.isOnline()) {
@@ -268,34 +273,16 @@ public class JabberTransport implements Transport, ConnectionListener, Disposabl
     return myPresenceMode == null || myPresenceMode != presenceMode;
   }
 
-  private static void processResponse(XmlMessage xmlMessage, PacketCollector collector) {
-    boolean gotResponse = false;
-
-    while (!gotResponse) {
-
-      Message response = (Message) collector.nextResult(RESPONSE_TIMEOUT);
-      if (response == null) break;
-
-      final Collection<PacketExtension> extensions = response.getExtensions();
-      for (PacketExtension o : extensions) {
-        if (o instanceof JDOMExtension) {
-          JDOMExtension extension = (JDOMExtension) o;
-          if (RESPONSE.equals(extension.getElement().getName())) {
-            xmlMessage.processResponse(extension.getElement());
-            gotResponse = true;
-            break;
-          }
-        }
-      }
-    }
-  }
-
-  private Message doSendMessage(XmlMessage xmlMessage, User user, String threadId) {
+  private Message doSendMessage(XmlMessage xmlMessage, User user, String threadId, boolean request) {
     Element element = new Element(xmlMessage.getTagName(), xmlMessage.getTagNamespace());
     xmlMessage.fillRequest(element);
 
     Message message = createBaseMessage(user, element.getText());
     message.setThread(threadId);
+    if (request) {
+      // error replies are matched to the request by the packet id
+      message.setPacketID(threadId);
+    }
     message.addExtension(new JDOMExtension(element));
     myFacade.getConnection().sendPacket(message);
 
@@ -318,6 +305,7 @@ public class JabberTransport implements Transport, ConnectionListener, Disposabl
     if (myMessageListener == null) {
       myMessageListener = new MyMessageListener();
       connection.addPacketListener(myMessageListener, new PacketTypeFilter(Message.class));
+      connection.addPacketListener(myResponseDispatcher, new PacketTypeFilter(Message.class));
     }
   }
 
@@ -352,6 +340,8 @@ public class JabberTransport implements Transport, ConnectionListener, Disposabl
     mySubscribeListener = null;
     connection.removePacketListener(myMessageListener);
     myMessageListener = null;
+    connection.removePacketListener(myResponseDispatcher);
+    myResponseDispatcher.cancelAll();
 
     final Roster roster = connection.getRoster();
     if (roster != null) {
@@ -377,6 +367,7 @@ public class JabberTransport implements Transport, ConnectionListener, Disposabl
   public void dispose() {
     getBroadcaster().removeListener(myUserModelListener);
     myFacade.removeConnectionListener(this);
+    myResponseDispatcher.dispose();
   }
 
   private void updateUserPresence(String jabberId) {
@@ -689,7 +680,7 @@ public class JabberTransport implements Transport, ConnectionListener, Disposabl
         }
       }
 
-      if (element != null && !RESPONSE.equals(element.getName())) {
+      if (element != null && !ResponseDispatcher.RESPONSE.equals(element.getName())) {
         processAndSendResponse(element, message);
       }
       else if (element == null && message.getBody() != null) {
@@ -704,7 +695,7 @@ public class JabberTransport implements Transport, ConnectionListener, Disposabl
     }
 
     private void processAndSendResponse(Element element, Message message) {
-      Element response = new Element(RESPONSE, Transport.NAMESPACE);
+      Element response = new Element(ResponseDispatcher.RESPONSE, Transport.NAMESPACE);
       XmlResponseProvider provider = XmlResponseProvider.getProvider(element, getBroadcaster());
       if (provider.processAndFillResponse(response, element, JabberTransport.this, getFrom(message))) {
         Message responseMessage = new Message(getFrom(message));
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2000-2006 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.communicator.jabber.impl;
+
+import com.intellij.util.Time;
+import jetbrains.communicator.core.transport.XmlMessage;
+import jetbrains.communicator.ide.IDEFacade;
+import org.apache.log4j.Logger;
+import org.jdom.Element;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.Nullable;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.PacketExtension;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Correlates responses with requests sent by {@link JabberTransport}. Every request waiting for a response gets
+ * its own thread id, responses come back with the same thread id and are dispatched by this single listener,
+ * so requests to different users don't wait for each other.<p>
+ *
+ * The number of requests waiting for responses is limited, in total and per user; senders wait for a free slot.
+ * A slot is freed by the response, by an error reply to the request, or by a timer after {@link #RESPONSE_TIMEOUT}.
+ */
+class ResponseDispatcher implements PacketListener {
+  private static final Logger LOG = Logger.getLogger(ResponseDispatcher.class);
+
+  static final long RESPONSE_TIMEOUT = 2 * Time.MINUTE;
+  static final long SEND_TIMEOUT = 30 * Time.SECOND;
+  static final int MAX_PENDING = 256;
+  static final int MAX_PENDING_PER_USER = 16;
+  private static final long EXPIRE_INTERVAL = 10 * Time.SECOND;
+
+  @NonNls static final String RESPONSE = "response";
+
+  private final IDEFacade myIdeFacade;
+  private final String myThreadIdPrefix;
+  private final AtomicInteger myCurrentThreadId = new AtomicInteger();
+
+  private final Map<String, PendingRequest> myPending = new ConcurrentHashMap<String, PendingRequest>();
+  private final ConcurrentMap<String, Semaphore> myUserPermits = new ConcurrentHashMap<String, Semaphore>();
+  private final Semaphore myPermits = new Semaphore(MAX_PENDING);
+
+  private final AtomicLong myResponsesCount = new AtomicLong();
+  private final AtomicLong myTimeoutsCount = new AtomicLong();
+  private final AtomicLong myErrorsCount = new AtomicLong();
+
+  private final ScheduledExecutorService myExpirer;
+
+  ResponseDispatcher(IDEFacade ideFacade, String threadIdPrefix) {
+    myIdeFacade = ideFacade;
+    myThreadIdPrefix = threadIdPrefix;
+
+    myExpirer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "IDEtalk Jabber Response Expirer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    myExpirer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        expireRequests();
+      }
+    }, EXPIRE_INTERVAL, EXPIRE_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+
+  void dispose() {
+    myExpirer.shutdownNow();
+    cancelAll();
+  }
+
+  String createThreadId() {
+    return myThreadIdPrefix + myCurrentThreadId.getAndIncrement();
+  }
+
+  /**
+   * Reserves a slot for a request to user, waiting up to {@link #SEND_TIMEOUT} while too many requests wait for responses.
+   * @return thread id to send the request with, or null if no slot became free.
+   *         The request should be sent with it as the packet id too, error replies carry the packet id only
+   */
+  @Nullable
+  String register(String user, XmlMessage message) throws InterruptedException {
+    Semaphore userPermits = getUserPermits(user);
+    long deadline = System.currentTimeMillis() + SEND_TIMEOUT;
+
+    if (!acquire(myPermits, deadline)) return null;
+    if (!acquire(userPermits, deadline)) {
+      myPermits.release();
+      return null;
+    }
+
+    String threadId = createThreadId();
+    myPending.put(threadId, new PendingRequest(message, userPermits));
+    return threadId;
+  }
+
+  /** Called when a registered request could not be sent */
+  void cancel(String threadId) {
+    PendingRequest request = myPending.remove(threadId);
+    if (request != null) {
+      request.release();
+    }
+  }
+
+  void cancelAll() {
+    for (String threadId : myPending.keySet()) {
+      cancel(threadId);
+    }
+  }
+
+  @Override
+  public void processPacket(Packet packet) {
+    Message message = (Message) packet;
+    if (message.getType() == Message.Type.ERROR) {
+      processError(message);
+      return;
+    }
+
+    String threadId = message.getThread();
+    if (threadId == null || !myPending.containsKey(threadId)) return;
+
+    final Element response = getResponse(message);
+    if (response == null) return;
+
+    final PendingRequest request = myPending.remove(threadId);
+    if (request == null) return;
+    request.release();
+    myResponsesCount.incrementAndGet();
+
+    myIdeFacade.runOnPooledThread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          request.myMessage.processResponse(response);
+        }
+        catch (Throwable e) {
+          LOG.error(e.getMessage(), e);
+        }
+      }
+    });
+  }
+
+  private void processError(Message message) {
+    String threadId = message.getPacketID();
+    PendingRequest request = threadId == null ? null : myPending.remove(threadId);
+    if (request == null) return;
+
+    LOG.info("Error reply for thread " + threadId + ": " + message.getError());
+    request.release();
+    myErrorsCount.incrementAndGet();
+  }
+
+  @Nullable
+  static Element getResponse(Message message) {
+    for (PacketExtension extension : message.getExtensions()) {
+      if (extension instanceof JDOMExtension) {
+        Element element = ((JDOMExtension) extension).getElement();
+        if (RESPONSE.equals(element.getName())) {
+          return element;
+        }
+      }
+    }
+    return null;
+  }
+
+  int getPendingCount() {
+    return myPending.size();
+  }
+
+  long getResponsesCount() {
+    return myResponsesCount.get();
+  }
+
+  long getTimeoutsCount() {
+    return myTimeoutsCount.get();
+  }
+
+  long getErrorsCount() {
+    return myErrorsCount.get();
+  }
+
+  private static boolean acquire(Semaphore permits, long deadline) throws InterruptedException {
+    long left = deadline - System.currentTimeMillis();
+    return left > 0 && permits.tryAcquire(left, TimeUnit.MILLISECONDS);
+  }
+
+  private Semaphore getUserPermits(String user) {
+    Semaphore result = myUserPermits.get(user);
+    if (result == null) {
+      myUserPermits.putIfAbsent(user, new Semaphore(MAX_PENDING_PER_USER));
+      result = myUserPermits.get(user);
+    }
+    return result;
+  }
+
+  private void expireRequests() {
+    long now = System.currentTimeMillis();
+    for (Map.Entry<String, PendingRequest> entry : myPending.entrySet()) {
+      if (entry.getValue().myExpiresAt < now && myPending.remove(entry.getKey()) != null) {
+        LOG.info("No response for thread " + entry.getKey());
+        entry.getValue().release();
+        myTimeoutsCount.incrementAndGet();
+      }
+    }
+  }
+
+  private class PendingRequest {
+    private final XmlMessage myMessage;
+    private final Semaphore myUserPermits;
+    private final long myExpiresAt = System.currentTimeMillis() + RESPONSE_TIMEOUT;
+
+    PendingRequest(XmlMessage message, Semaphore userPermits) {
+      myMessage = message;
+      myUserPermits = userPermits;
+    }
+
+    void release() {
+      myUserPermits.release();
+      myPermits.release();
+    }
+  }
+}
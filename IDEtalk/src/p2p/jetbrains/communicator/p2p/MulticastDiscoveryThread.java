@@ -0,0 +1,513 @@
+/*
+ * Copyright 2000-2006 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.communicator.p2p;
+
+import com.intellij.util.Time;
+import jetbrains.communicator.core.users.PresenceMode;
+import jetbrains.communicator.core.users.UserPresence;
+import jetbrains.communicator.ide.IDEFacade;
+import jetbrains.communicator.p2p.commands.AddOnlineUserP2PCommand;
+import jetbrains.communicator.util.StringUtil;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Presence discovery over IP multicast. A single thread receives the group datagrams arriving on all local interfaces.<p>
+ *
+ * Peers multicast their presence as deltas: {@link #ANNOUNCE} when they look for users, {@link #HEARTBEAT}
+ * periodically and when their presence changes, {@link #LEAVE} when they go offline. Each message carries
+ * the sender's user name, port, presence and projects, so receivers don't need to call the sender back.
+ * Every peer answers an announce with a heartbeat, so a newcomer still gets one datagram per peer in the subnet.
+ * The answers are spread over a random delay of up to {@link #MAX_RESPONSE_DELAY} to avoid a burst, and a peer
+ * answers at most once per {@link #MIN_RESPONSE_INTERVAL}, so several newcomers arriving together cost one heartbeat per peer.<p>
+ *
+ * Ping requests of older IDEtalk versions are answered over XML-RPC, as before, unless the pinging peer
+ * is known to send heartbeats.
+ */
+@SuppressWarnings({"HardCodedStringLiteral"})
+class MulticastDiscoveryThread extends Thread {
+  private static final Logger LOG = Logger.getLogger(MulticastDiscoveryThread.class);
+
+  public static final int MULTICAST_PORT = 2863;
+  static final String PING_MESSAGE = "Is there anybody out there?";
+  static final String PRESENCE_HEADER = "IDEtalk presence 1";
+  private static final String MULTICAST_ADORES = "239.203.13.64";
+  private static final String ENCODING = "UTF-8";
+  private static final int BUFFER_SIZE = 8192;
+  private static final int ALLOWED_FAILURES = 3000;
+
+  static final String ANNOUNCE = "announce";
+  static final String HEARTBEAT = "heartbeat";
+  static final String LEAVE = "leave";
+
+  static final long MIN_RESPONSE_INTERVAL = 5 * Time.SECOND;
+  static final long MAX_RESPONSE_DELAY = Time.SECOND;
+
+  private final Collection<InetAddress> mySelfAddresses;
+  private final IDEFacade myIdeFacade;
+  private final UserMonitorClient myUserMonitorClient;
+  private Listener myListener;
+
+  private final Random myRandom = new Random();
+  // "address:port" of peers which send heartbeats -> time of their last message
+  private final Map<String, Long> myPresencePeers = new HashMap<String, Long>();
+  // "address:port" of legacy peers -> time of our last reply
+  private final Map<String, Long> myLegacyReplies = new HashMap<String, Long>();
+  private long myLastHeartbeatAt;
+  private boolean myHeartbeatScheduled;
+  private ScheduledExecutorService myResponder;
+
+  private volatile boolean myIsRunning;
+  private MulticastSocket myDatagramSocket;
+  protected boolean myStarted;
+
+  private final AtomicInteger myFailuresCounter = new AtomicInteger();
+
+  MulticastDiscoveryThread(Collection<InetAddress> selfAddresses, IDEFacade ideFacade, UserMonitorClient userMonitorClient) {
+    super("IDEtalk Multicast Discovery Thread");
+    setDaemon(true); //Sometimes this thread lives forever, that's why idea.exe process never ends
+                     // see jetbrains.communicator.p2p.NetworkUtil.sendMessage(...) inside try/catch block
+                     //TODO: make it not a Daemon thread again and fix the problem somewhere else. Where...?
+    mySelfAddresses = selfAddresses;
+    myIdeFacade = ideFacade;
+    myUserMonitorClient = userMonitorClient;
+
+    System.setProperty("sun.net.client.defaultConnectTimeout", "2000");
+  }
+
+  void setListener(Listener listener) {
+    myListener = listener;
+  }
+
+  /**
+   * Looks for users: older IDEtalk versions answer the ping, peers which send heartbeats answer the announce.
+   */
+  public void sendPing(boolean announce) throws IOException {
+    if (announce) {
+      sendPresence(ANNOUNCE);
+    }
+    sendToGroup(PING_MESSAGE + myUserMonitorClient.getPort());
+  }
+
+  public void sendHeartbeat() throws IOException {
+    synchronized (this) {
+      myLastHeartbeatAt = System.currentTimeMillis();
+    }
+    sendPresence(HEARTBEAT);
+  }
+
+  private void sendPresence(String type) throws IOException {
+    String[] projects = myIdeFacade.getProjects();
+    sendToGroup(createPresenceMessage(type, myUserMonitorClient.getPort(), StringUtil.getMyUsername(),
+                                      myUserMonitorClient.getOwnPresence(), Arrays.asList(projects)));
+  }
+
+  private void sendToGroup(String message) throws IOException {
+    if (!myIsRunning) return;
+
+    byte[] bytes = message.getBytes(ENCODING);
+    for (InetAddress selfAddress : mySelfAddresses) {
+      MulticastSocket datagramSocket = null;
+      try {
+        datagramSocket = new MulticastSocket();
+        datagramSocket.setInterface(selfAddress);
+        LOG.debug("Sending multicast message: " + selfAddress);
+        datagramSocket.send(new DatagramPacket(bytes, 0, bytes.length, InetAddress.getByName(MULTICAST_ADORES), MULTICAST_PORT));
+        myFailuresCounter.set(0);
+      }
+      catch (IOException e) {
+        int failures = myFailuresCounter.incrementAndGet();
+        if (failures > ALLOWED_FAILURES) {
+          LOG.info("Unable to send multicast request on interface " + selfAddress + ". I give up after " +
+                   failures + " attempts.", e);
+          myIsRunning = false;
+        }
+      }
+      finally {
+        if (datagramSocket != null) {
+          datagramSocket.close();
+        }
+      }
+    }
+  }
+
+  @Override
+  public void run() {
+    LOG.info(getName() + ": Start thread.");
+    Runtime.getRuntime().addShutdownHook(new Thread("IDETalk shutdown hook") {
+      @Override
+      public void run() {
+        MulticastDiscoveryThread.this.interrupt(); // Yes, MulticastDiscoveryThread is daemon, but it still keeps JVM running.
+                                                   // Seems this is some troubles with native calls.
+                                                   // see IDEA-52501
+      }
+    });
+    myDatagramSocket = null;
+    myResponder = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "IDEtalk Discovery Responder");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    myIsRunning = true;
+
+    try {
+      myDatagramSocket = new MulticastSocket(MULTICAST_PORT);
+      joinGroup(myDatagramSocket);
+
+      byte[] buffer = new byte[BUFFER_SIZE];
+      while (myIsRunning) {
+        try {
+          DatagramPacket datagramPacket = new DatagramPacket(buffer, buffer.length);
+          LOG.debug(getName() + ": Listening for multicast messages... ");
+          myStarted = true;
+          myDatagramSocket.receive(datagramPacket);
+          String message = new String(buffer, 0, datagramPacket.getLength(), ENCODING);
+
+          if (LOG.isDebugEnabled()) {
+            LOG.debug(getName() + ": Got multicast message '" + message + "' from " + datagramPacket.getAddress());
+          }
+          processMessage(message, datagramPacket.getAddress());
+        }
+        catch(SocketException e) {
+          if (!"Socket closed".equalsIgnoreCase(e.getMessage())) {
+            LOG.error(e.getMessage(), e);
+          }
+          else {
+            myIsRunning = false;
+          }
+        }
+      }
+    } catch (SocketException e) {
+      final String msg = e.getMessage();
+      if (msg != null) {
+        LOG.info(msg, e);
+      }
+      else {
+        logError(e);
+      }
+    } catch (IOException e) {
+      logError(e);
+    }
+    finally {
+      myIsRunning = false;
+      myResponder.shutdownNow();
+      if (myDatagramSocket != null && !myDatagramSocket.isClosed()){
+        myDatagramSocket.close();
+      }
+    }
+  }
+
+  private void joinGroup(MulticastSocket socket) throws IOException {
+    InetAddress group = InetAddress.getByName(MULTICAST_ADORES);
+    boolean joined = false;
+    for (InetAddress selfAddress : mySelfAddresses) {
+      try {
+        NetworkInterface networkInterface = NetworkInterface.getByInetAddress(selfAddress);
+        if (networkInterface != null) {
+          socket.joinGroup(new InetSocketAddress(group, MULTICAST_PORT), networkInterface);
+          joined = true;
+        }
+      }
+      catch (IOException e) {
+        LOG.info(getName() + ": unable to listen on " + selfAddress + ": " + e.getMessage());
+      }
+    }
+    if (!joined) {
+      socket.joinGroup(group);
+    }
+  }
+
+  private void logError(IOException e) {
+    LOG.error(getName() + " is terminated:\n" + e.getMessage(), e);
+  }
+
+  void processMessage(String message, InetAddress remoteAddress) {
+    if (message.startsWith(PING_MESSAGE)) {
+      int targetPort = extractPort(message);
+      if (shouldReplyToPing(remoteAddress, targetPort)) {
+        scheduleAddSelfTo(remoteAddress, targetPort);
+      }
+    }
+    else if (message.startsWith(PRESENCE_HEADER)) {
+      PresenceMessage presence = parsePresenceMessage(message);
+      if (presence == null) {
+        LOG.debug("Malformed presence message from " + remoteAddress);
+        return;
+      }
+
+      synchronized (this) {
+        myPresencePeers.put(getPeerKey(remoteAddress, presence.myPort), System.currentTimeMillis());
+      }
+      if (myListener == null) return;
+
+      if (LEAVE.equals(presence.myType)) {
+        myListener.peerLeft(presence.myUser, remoteAddress, presence.myPort);
+      }
+      else {
+        myListener.peerSeen(presence.myUser, new OnlineUserInfo(remoteAddress, presence.myPort, presence.myProjects, presence.myPresence));
+        if (ANNOUNCE.equals(presence.myType) && !isSelf(remoteAddress, presence.myPort)) {
+          scheduleHeartbeat();
+        }
+      }
+    }
+  }
+
+  private synchronized boolean shouldReplyToPing(InetAddress remoteAddress, int targetPort) {
+    if (NetworkUtil.isOwnAddress(remoteAddress)) {
+      if (!isSelf(remoteAddress, targetPort)) return false; // For tests
+    }
+    else if (isLoopbackOnly()) {
+      return false;
+    }
+
+    String key = getPeerKey(remoteAddress, targetPort);
+    long now = System.currentTimeMillis();
+    Long lastPresence = myPresencePeers.get(key);
+    if (lastPresence != null && now - lastPresence < UserMonitorThread.PEER_EXPIRATION) {
+      // it gets our heartbeats
+      return false;
+    }
+
+    Long lastReply = myLegacyReplies.get(key);
+    if (lastReply != null && now - lastReply < MIN_RESPONSE_INTERVAL) return false;
+    myLegacyReplies.put(key, now);
+    return true;
+  }
+
+  private boolean isSelf(InetAddress remoteAddress, int port) {
+    return NetworkUtil.isOwnAddress(remoteAddress) && port == myUserMonitorClient.getPort();
+  }
+
+  private boolean isLoopbackOnly() {
+    for (InetAddress selfAddress : mySelfAddresses) {
+      if (!selfAddress.isLoopbackAddress()) return false;
+    }
+    return true;
+  }
+
+  private void scheduleAddSelfTo(final InetAddress remoteAddress, final int targetPort) {
+    schedule(new Runnable() {
+      @Override
+      public void run() {
+        addSelfInfoTo(remoteAddress, targetPort);
+      }
+    }, randomDelay());
+  }
+
+  private void scheduleHeartbeat() {
+    long delay;
+    synchronized (this) {
+      if (myHeartbeatScheduled) return;
+      myHeartbeatScheduled = true;
+      long earliest = myLastHeartbeatAt + MIN_RESPONSE_INTERVAL - System.currentTimeMillis();
+      delay = Math.max(randomDelay(), earliest);
+    }
+
+    schedule(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (MulticastDiscoveryThread.this) {
+          myHeartbeatScheduled = false;
+        }
+        try {
+          sendHeartbeat();
+        }
+        catch (IOException e) {
+          LOG.info(e.getMessage(), e);
+        }
+      }
+    }, delay);
+  }
+
+  private void schedule(Runnable runnable, long delay) {
+    ScheduledExecutorService responder = myResponder;
+    if (responder != null && !responder.isShutdown()) {
+      responder.schedule(runnable, delay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private synchronized long randomDelay() {
+    return (long)(myRandom.nextDouble() * MAX_RESPONSE_DELAY);
+  }
+
+  private void addSelfInfoTo(InetAddress remoteAddress, int targetPort) {
+    String[] projects = myIdeFacade.getProjects();
+    InetAddress selfAddress = selectSelfAddress(remoteAddress);
+
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(getName() + ": Add self to " + remoteAddress + " as " + selfAddress);
+    }
+    AddOnlineUserP2PCommand.addSelfTo(targetPort, remoteAddress, selfAddress, myUserMonitorClient.getPort(), Arrays.asList(projects), myUserMonitorClient.getOwnPresence());
+  }
+
+  /**
+   * @return local address the remote peer most likely reaches us by: the one sharing the longest prefix with its address
+   */
+  private InetAddress selectSelfAddress(InetAddress remoteAddress) {
+    if (NetworkUtil.isOwnAddress(remoteAddress)) return remoteAddress;
+
+    InetAddress result = null;
+    int bestPrefix = -1;
+    byte[] remote = remoteAddress.getAddress();
+    for (InetAddress selfAddress : mySelfAddresses) {
+      byte[] self = selfAddress.getAddress();
+      if (self.length != remote.length) continue;
+
+      int prefix = 0;
+      while (prefix < self.length * 8 && ((self[prefix / 8] ^ remote[prefix / 8]) & (0x80 >> (prefix % 8))) == 0) {
+        prefix++;
+      }
+      if (prefix > bestPrefix) {
+        bestPrefix = prefix;
+        result = selfAddress;
+      }
+    }
+    return result != null ? result : remoteAddress;
+  }
+
+  private static String getPeerKey(InetAddress address, int port) {
+    return address.getHostAddress() + ':' + port;
+  }
+
+  static int extractPort(String message) {
+    String port = message.substring(PING_MESSAGE.length());
+    try {
+      return Integer.valueOf(port).intValue();
+    }
+    catch (Exception e) {
+      LOG.debug(e);
+    }
+    return P2PTransport.XML_RPC_PORT;
+  }
+
+  static String createPresenceMessage(String type, int port, String user, UserPresence presence, Collection<String> projects) {
+    StringBuilder result = new StringBuilder(PRESENCE_HEADER).append('\n');
+    result.append("type=").append(type).append('\n');
+    result.append("port=").append(port).append('\n');
+    result.append("user=").append(encode(user)).append('\n');
+    result.append("presence=").append(presence.getPresenceMode()).append('\n');
+    result.append("projects=");
+    boolean first = true;
+    for (String project : projects) {
+      if (!first) result.append(',');
+      result.append(encode(project));
+      first = false;
+    }
+    return result.append('\n').toString();
+  }
+
+  /** @return null if the message is malformed */
+  static PresenceMessage parsePresenceMessage(String message) {
+    Map<String, String> values = new HashMap<String, String>();
+    for (String line : message.split("\n")) {
+      int eq = line.indexOf('=');
+      if (eq > 0) {
+        values.put(line.substring(0, eq), line.substring(eq + 1));
+      }
+    }
+
+    try {
+      PresenceMessage result = new PresenceMessage();
+      result.myType = values.get("type");
+      result.myPort = Integer.parseInt(values.get("port"));
+      result.myUser = decode(values.get("user"));
+      result.myPresence = new UserPresence(PresenceMode.valueOf(values.get("presence")));
+      result.myProjects = new ArrayList<String>();
+      String projects = values.get("projects");
+      if (projects != null && projects.length() > 0) {
+        for (String project : projects.split(",")) {
+          result.myProjects.add(decode(project));
+        }
+      }
+      return result.myType == null || result.myUser == null ? null : result;
+    }
+    catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  private static String encode(String s) {
+    try {
+      return URLEncoder.encode(s, ENCODING);
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String decode(String s) {
+    if (s == null) return null;
+    try {
+      return URLDecoder.decode(s, ENCODING);
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Sends {@link #LEAVE} to the peers and stops listening.
+   */
+  public void shutdown() {
+    if (myIsRunning) {
+      try {
+        sendPresence(LEAVE);
+      }
+      catch (IOException e) {
+        LOG.debug(e);
+      }
+    }
+    if (myDatagramSocket != null) {
+      myDatagramSocket.close();
+    }
+    myIsRunning = false;
+  }
+
+  public boolean isStarted() {
+    return myStarted;
+  }
+
+  public boolean isRunning() {
+    return myIsRunning;
+  }
+
+  static class PresenceMessage {
+    String myType;
+    int myPort;
+    String myUser;
+    UserPresence myPresence;
+    List<String> myProjects;
+  }
+
+  interface Listener {
+    /** A peer announced itself or sent a heartbeat */
+    void peerSeen(String username, OnlineUserInfo onlineUserInfo);
+
+    void peerLeft(String username, InetAddress address, int port);
+  }
+}
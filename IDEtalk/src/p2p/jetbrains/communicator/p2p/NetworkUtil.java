@@ -16,6 +16,7 @@
 package jetbrains.communicator.p2p;
 
 import jetbrains.communicator.core.Pico;
+import jetbrains.communicator.util.LatencyHistogram;
 import jetbrains.communicator.util.TimeoutCachedValue;
 import jetbrains.communicator.util.XmlRpcTarget;
 import org.apache.log4j.Logger;
@@ -26,6 +27,8 @@ import org.jetbrains.annotations.Nullable;
 import java.io.IOException;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * @author Kir
@@ -59,6 +62,10 @@ public class NetworkUtil {
     }
   };
 
+  private static final XmlRpcConnectionPool ourConnectionPool = new XmlRpcConnectionPool();
+  private static final ConcurrentMap<InetSocketAddress, XmlRpcClient> ourClients = new ConcurrentHashMap<InetSocketAddress, XmlRpcClient>();
+  private static final ConcurrentMap<String, LatencyHistogram> ourLatencies = new ConcurrentHashMap<String, LatencyHistogram>();
+
   private NetworkUtil() {
   }
 
@@ -86,7 +93,10 @@ public class NetworkUtil {
     }
 
     try {
-      return new XmlRpcClient(url).execute(fullMethodName, new Vector<Object>(parameters));
+      long start = System.nanoTime();
+      Object result = getClient(target, url).execute(fullMethodName, new Vector<Object>(parameters));
+      getLatencyHistogram(fullMethodName).record(System.nanoTime() - start);
+      return result;
     }
     catch (MalformedURLException e) {
       LOG.info(buildFullLogLine(logLine, parameters) + ' ' + e.getLocalizedMessage());
@@ -100,6 +110,56 @@ public class NetworkUtil {
     return null;
   }
 
+  private static XmlRpcClient getClient(XmlRpcTarget target, String url) throws MalformedURLException {
+    InetSocketAddress address = new InetSocketAddress(target.getAddress(), target.getPort());
+    XmlRpcClient client = ourClients.get(address);
+    if (client == null) {
+      client = new XmlRpcClient(new URL(url), ourConnectionPool.createTransportFactory(address));
+      XmlRpcClient existing = ourClients.putIfAbsent(address, client);
+      if (existing != null) {
+        client = existing;
+      }
+    }
+    return client;
+  }
+
+  private static LatencyHistogram getLatencyHistogram(String fullMethodName) {
+    LatencyHistogram histogram = ourLatencies.get(fullMethodName);
+    if (histogram == null) {
+      histogram = new LatencyHistogram();
+      LatencyHistogram existing = ourLatencies.putIfAbsent(fullMethodName, histogram);
+      if (existing != null) {
+        histogram = existing;
+      }
+    }
+    return histogram;
+  }
+
+  /**
+   * @return latencies of successful calls since startup, by full XML-RPC method name
+   */
+  public static Map<String, LatencyHistogram> getLatencyHistograms() {
+    return Collections.unmodifiableMap(new TreeMap<String, LatencyHistogram>(ourLatencies));
+  }
+
+  /**
+   * Closes pooled connections to peers; they are reopened on demand.
+   */
+  public static void closeConnections() {
+    ourClients.clear();
+    ourConnectionPool.closeAll();
+
+    if (LOG.isDebugEnabled()) {
+      for (Map.Entry<String, LatencyHistogram> entry : getLatencyHistograms().entrySet()) {
+        LOG.debug(entry.getKey() + ": " + entry.getValue());
+      }
+    }
+  }
+
+  static int getOpenedConnectionCount() {
+    return ourConnectionPool.getOpenedConnectionCount();
+  }
+
   private static String buildFullLogLine(String logLine, List<?> parameters) {
     return logLine + '(' + parameters + ')';
   }
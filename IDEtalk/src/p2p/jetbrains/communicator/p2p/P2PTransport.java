@@ -64,7 +64,7 @@ public class P2PTransport implements Transport, UserMonitorClient, Disposable {
 
   static final String CODE = "P2P";
 
-  static final int XML_RPC_PORT = MulticastPingThread.MULTICAST_PORT + 1;
+  static final int XML_RPC_PORT = MulticastDiscoveryThread.MULTICAST_PORT + 1;
 
   private final UserMonitorThread myUserMonitorThread;
 
@@ -196,6 +196,7 @@ public class P2PTransport implements Transport, UserMonitorClient, Disposable {
     try {
       myEventBroadcaster.removeListener(myUserAddedCallbackListener);
       myUserMonitorThread.shutdown();
+      NetworkUtil.closeConnections();
     }
     catch (Throwable e) {
       LOG.info(e);
@@ -355,7 +356,12 @@ public class P2PTransport implements Transport, UserMonitorClient, Disposable {
       notifyUsersAboutOnlineImmediately();
     }
 
+    boolean changed = !userPresence.equals(myOwnPresence);
     myOwnPresence = userPresence;
+
+    if (changed && userPresence.isOnline() && myUserMonitorThread != null) {
+      myUserMonitorThread.sendHeartbeatNow();
+    }
   }
 
   private boolean selfBecomeAvailable(UserPresence userPresence) {
@@ -16,6 +16,7 @@
 package jetbrains.communicator.p2p;
 
 import com.intellij.util.Time;
+import gnu.trove.THashMap;
 import gnu.trove.THashSet;
 import jetbrains.communicator.core.Pico;
 import jetbrains.communicator.core.users.User;
@@ -34,8 +35,11 @@ import java.util.*;
 /**
  * @author Kir Maximov
  *         <p/>
- *         This thread periodically scans the local network via multicast
- *         request and passes obtained users to UserMonitorClient
+ *         This thread keeps the set of users online in the local network and passes it to UserMonitorClient.
+ *         Peers report their presence changes and heartbeats via {@link MulticastDiscoveryThread}; changes are
+ *         passed to the client at most once per {@link #FLUSH_DELAY}. Users are looked for explicitly on request,
+ *         and periodically for peers of older IDEtalk versions which answer multicast pings only; heartbeats go on
+ *         while the answers to the ping are awaited.
  */
 @SuppressWarnings({"HardCodedStringLiteral"})
 public class UserMonitorThread extends Thread {
@@ -44,30 +48,40 @@ public class UserMonitorThread extends Thread {
   static final long WAIT_USER_RESPONSES_TIMEOUT = 3000;
   static final String SCAN_TIMEOUT_PROPERTY = "ideTalk.scanTimeout";
   static final long TIMEOUT_BETWEEN_SCANS = 3 * Time.MINUTE;
+  static final long HEARTBEAT_INTERVAL = Time.MINUTE;
+  /** Peers sending heartbeats are considered gone after this time of silence */
+  static final long PEER_EXPIRATION = 4 * HEARTBEAT_INTERVAL;
+  static final long FLUSH_DELAY = Time.SECOND;
 
-  private final MulticastPingThread[] myMulticastThreads;
+  private final MulticastDiscoveryThread myDiscoveryThread;
   private final UserMonitorClient myClient;
   private final long myWaitUserResponsesTimeout;
   private final long myScansTimeout;
 
-  private final Set<User> myAvailableUsers = Collections.synchronizedSet(new THashSet<User>());
+  private final Map<String, Peer> myPeers = new THashMap<String, Peer>();
+  private final Random myRandom = new Random();
 
   private Thread myThread;
   private long myStartFindingAt;
+  private long myPingSentAt;
+  private boolean myAnnounceRequested;
+  private long myNextScanAt;
+  private long myNextHeartbeatAt;
+  private long myFlushAt;
 
   private final Object myLock = new Object();
 
   public UserMonitorThread(P2PTransport client, long waitUserResponsesTimeout) {
-    this(createMulticastThreads(client), client, waitUserResponsesTimeout);
+    this(new MulticastDiscoveryThread(NetworkUtil.getSelfAddresses(), client.getIdeFacade(), client), client, waitUserResponsesTimeout);
   }
 
-  UserMonitorThread(MulticastPingThread[] multicastPingThread, UserMonitorClient client, long waitUserResponsesTimeout) {
+  UserMonitorThread(MulticastDiscoveryThread discoveryThread, UserMonitorClient client, long waitUserResponsesTimeout) {
     super("User Monitor Thread");
 
     setDaemon(true);
-    assert multicastPingThread != null;
+    assert discoveryThread != null;
     myClient = client;
-    myMulticastThreads = multicastPingThread;
+    myDiscoveryThread = discoveryThread;
     myWaitUserResponsesTimeout = waitUserResponsesTimeout;
 
     String timeout = System.getProperty(SCAN_TIMEOUT_PROPERTY);
@@ -84,18 +98,24 @@ public class UserMonitorThread extends Thread {
         throw e;
       }
     }
-  }
 
-  private static MulticastPingThread[] createMulticastThreads(P2PTransport client) {
-    List<MulticastPingThread> result = new ArrayList<MulticastPingThread>();
-    for (InetAddress selfAddress : NetworkUtil.getSelfAddresses()) {
-      result.add(new MulticastPingThread(selfAddress, client.getIdeFacade(), client));
-    }
-    return result.toArray(new MulticastPingThread[result.size()]);
+    myDiscoveryThread.setListener(new MulticastDiscoveryThread.Listener() {
+      @Override
+      public void peerSeen(String username, OnlineUserInfo onlineUserInfo) {
+        updatePeer(username, onlineUserInfo, true);
+      }
+
+      @Override
+      public void peerLeft(String username, InetAddress address, int port) {
+        removePeer(username, address, port);
+      }
+    });
   }
 
   public void shutdown() {
-    shutdownMulticastThreads();
+    if (myDiscoveryThread.isAlive()) {
+      myDiscoveryThread.shutdown();
+    }
     if (isRunning()) {
       final Thread thr = myThread;
       myThread = null;
@@ -108,46 +128,38 @@ public class UserMonitorThread extends Thread {
     }
   }
 
-  private void shutdownMulticastThreads() {
-    for (MulticastPingThread multicastThread : myMulticastThreads) {
-      if (multicastThread.isAlive()) {
-        multicastThread.shutdown();
-      }
-    }
-  }
-
   @Override
   public void run() {
     super.run();
     LOG.info("Start " + getName());
 
-    startupMulticastThreads();
+    startupDiscoveryThread();
 
+    synchronized (myLock) {
+      long now = System.currentTimeMillis();
+      myNextScanAt = now + myScansTimeout;
+      myNextHeartbeatAt = now;
+    }
     myThread = Thread.currentThread();
 
     while (isRunning()) {
       try {
-        waitForNextSearch();
-
-        if (!isRunning()) return;
-        synchronized (myLock) {
-          myStartFindingAt = System.currentTimeMillis();
-          LOG.debug("Start finding users ");
-        }
-
-        try {
-          sendMulticastRequests(getListeningThreads());
-
-          //noinspection BusyWait
-          Thread.sleep(myWaitUserResponsesTimeout);
-
-          flushOnlineUsers();
-        }
-        finally {
-          synchronized (myLock) {
-            myStartFindingAt = 0;
-            LOG.debug("Done finding users. Timeout for " + myScansTimeout);
-          }
+        switch (waitForNextAction()) {
+          case FIND:
+            sendPing();
+            break;
+          case FIND_DONE:
+            finishFindingUsers();
+            break;
+          case HEARTBEAT:
+            myDiscoveryThread.sendHeartbeat();
+            expireSilentPeers();
+            break;
+          case FLUSH:
+            flushOnlineUsers();
+            break;
+          default:
+            break;
         }
       }
       catch (UnknownHostException e) {
@@ -170,77 +182,176 @@ public class UserMonitorThread extends Thread {
     LOG.info("Shut down");
   }
 
-  boolean isRunning() {
-    return myThread != null;
+  private void sendPing() throws IOException {
+    boolean announce;
+    synchronized (myLock) {
+      announce = myAnnounceRequested;
+      myAnnounceRequested = false;
+      myPingSentAt = System.currentTimeMillis();
+      LOG.debug("Start finding users ");
+    }
+
+    boolean sent = false;
+    try {
+      myDiscoveryThread.sendPing(announce);
+      sent = true;
+    }
+    finally {
+      if (!sent) {
+        synchronized (myLock) {
+          myStartFindingAt = 0;
+          myPingSentAt = 0;
+        }
+      }
+    }
   }
 
-  private static void sendMulticastRequests(List<MulticastPingThread> listeningThreads) throws IOException {
-    for (MulticastPingThread thread : listeningThreads) {
-      thread.sendMulticastPingRequest();
+  private void finishFindingUsers() {
+    synchronized (myLock) {
+      // peers of older versions which didn't answer the ping are gone
+      for (Iterator<Peer> it = myPeers.values().iterator(); it.hasNext();) {
+        Peer peer = it.next();
+        if (!peer.mySendsHeartbeats && peer.myLastSeen < myStartFindingAt) {
+          it.remove();
+        }
+      }
+    }
+
+    try {
+      flushOnlineUsers();
     }
+    finally {
+      synchronized (myLock) {
+        myStartFindingAt = 0;
+        myPingSentAt = 0;
+        LOG.debug("Done finding users. Timeout for " + myScansTimeout);
+      }
+    }
+  }
+
+  boolean isRunning() {
+    return myThread != null;
   }
 
-  private List<MulticastPingThread> getListeningThreads() {
-    List<MulticastPingThread> result = new ArrayList<MulticastPingThread>();
-    for (MulticastPingThread multicastThread : myMulticastThreads) {
-      if (multicastThread.isAlive()) {
-        result.add(multicastThread);
+  private static final int NONE = 0;
+  private static final int FIND = 1;
+  private static final int HEARTBEAT = 2;
+  private static final int FLUSH = 3;
+  private static final int FIND_DONE = 4;
+
+  private int waitForNextAction() throws InterruptedException {
+    synchronized (myLock) {
+      while (isRunning()) {
+        long now = System.currentTimeMillis();
+        if (isFinding()) {
+          if (myPingSentAt == 0) return FIND;
+          if (now >= myPingSentAt + myWaitUserResponsesTimeout) return FIND_DONE;
+        }
+        else if (now >= myNextScanAt) {
+          startFindingUsers();
+          return FIND;
+        }
+        if (myFlushAt > 0 && now >= myFlushAt) {
+          myFlushAt = 0;
+          return FLUSH;
+        }
+        if (now >= myNextHeartbeatAt) {
+          // jitter keeps heartbeats of peers started together apart
+          myNextHeartbeatAt = now + (long)(HEARTBEAT_INTERVAL * (0.75 + myRandom.nextDouble() / 2));
+          return HEARTBEAT;
+        }
+
+        long wakeUpAt = Math.min(isFinding() ? myPingSentAt + myWaitUserResponsesTimeout : myNextScanAt, myNextHeartbeatAt);
+        if (myFlushAt > 0) {
+          wakeUpAt = Math.min(wakeUpAt, myFlushAt);
+        }
+        myLock.wait(Math.max(1, wakeUpAt - now));
       }
     }
-    return result;
+    return NONE;
   }
 
   private void startFindingUsers() {
     synchronized (myLock) {
-      myStartFindingAt = System.currentTimeMillis();
-      myAvailableUsers.clear();
+      long now = System.currentTimeMillis();
+      myStartFindingAt = now;
+      myPingSentAt = 0;
+      myNextScanAt = now + myScansTimeout;
     }
   }
 
-  private void startupMulticastThreads() {
-    for (MulticastPingThread multicastThread : myMulticastThreads) {
-      multicastThread.start();
-    }
+  private void startupDiscoveryThread() {
+    myDiscoveryThread.start();
     new WaitFor(Time.SECOND) {
       @Override
       protected boolean condition() {
-        for (MulticastPingThread multicastThread : myMulticastThreads) {
-          if (!multicastThread.isStarted()) return false;
-        }
-        return true;
+        return myDiscoveryThread.isStarted();
       }
     };
   }
 
-  private void waitForNextSearch() {
-    try {
-      synchronized (myLock) {
-        while (isRunning() && !isFinding()) {
-          myLock.wait(myScansTimeout);
-          startFindingUsers();
-        }
-      }
-    }
-    catch (InterruptedException ignored) {
-      myThread = null;
-    }
-  }
-
   public void addOnlineUser(String remoteAddress, String remoteUsername, Integer remotePort, Collection<String> projects, UserPresence presence) {
     try {
       if (LOG.isDebugEnabled()) {
         LOG.debug("Got Online Response from " + remoteUsername + " at " + remoteAddress + '/' + remotePort);
       }
       OnlineUserInfo onlineUserInfo = new OnlineUserInfo(InetAddress.getByName(remoteAddress), remotePort.intValue(), projects, presence);
-      if (!onlineUserInfo.getAddress().isLoopbackAddress() || Pico.isUnitTest()) {
-        myAvailableUsers.add(myClient.createUser(remoteUsername, onlineUserInfo));
-      }
+      updatePeer(remoteUsername, onlineUserInfo, false);
     }
     catch (UnknownHostException ignored) {
       LOG.info("Unable to find host for " + remoteAddress + ", user " + remoteUsername);
     }
   }
 
+  private void updatePeer(String username, OnlineUserInfo onlineUserInfo, boolean sendsHeartbeats) {
+    if (onlineUserInfo.getAddress().isLoopbackAddress() && !Pico.isUnitTest()) return;
+
+    synchronized (myLock) {
+      String key = getPeerKey(username, onlineUserInfo.getAddress(), onlineUserInfo.getPort());
+      Peer old = myPeers.get(key);
+      myPeers.put(key, new Peer(username, onlineUserInfo, sendsHeartbeats || old != null && old.mySendsHeartbeats));
+      if (!isFinding() && (old == null || !old.myInfo.equals(onlineUserInfo))) {
+        scheduleFlush();
+      }
+    }
+  }
+
+  private void removePeer(String username, InetAddress address, int port) {
+    synchronized (myLock) {
+      if (myPeers.remove(getPeerKey(username, address, port)) != null && !isFinding()) {
+        scheduleFlush();
+      }
+    }
+  }
+
+  private void expireSilentPeers() {
+    synchronized (myLock) {
+      long expiredAt = System.currentTimeMillis() - PEER_EXPIRATION;
+      boolean changed = false;
+      for (Iterator<Peer> it = myPeers.values().iterator(); it.hasNext();) {
+        Peer peer = it.next();
+        if (peer.mySendsHeartbeats && peer.myLastSeen < expiredAt) {
+          it.remove();
+          changed = true;
+        }
+      }
+      if (changed) {
+        scheduleFlush();
+      }
+    }
+  }
+
+  private void scheduleFlush() {
+    if (myFlushAt == 0) {
+      myFlushAt = System.currentTimeMillis() + FLUSH_DELAY;
+      myLock.notifyAll();
+    }
+  }
+
+  private static String getPeerKey(String username, InetAddress address, int port) {
+    return username + '@' + address.getHostAddress() + ':' + port;
+  }
+
   boolean isFinding() {
     synchronized(myLock) {
       return isRunning() && myStartFindingAt > 0;
@@ -248,9 +359,14 @@ public class UserMonitorThread extends Thread {
   }
 
   void flushOnlineUsers() {
-    Set<User> users;
-    synchronized (myAvailableUsers) {
-      users = new THashSet<User>(myAvailableUsers);
+    List<Peer> peers;
+    synchronized (myLock) {
+      peers = new ArrayList<Peer>(myPeers.values());
+    }
+    // the client expects info of every online user to be passed via createUser before setOnlineUsers
+    Set<User> users = new THashSet<User>();
+    for (Peer peer : peers) {
+      users.add(myClient.createUser(peer.myUsername, peer.myInfo));
     }
     if (LOG.isDebugEnabled()) {
       LOG.debug("Setting online users: \n" + Arrays.toString(users.toArray()));
@@ -290,21 +406,47 @@ public class UserMonitorThread extends Thread {
     if (!isFinding()) {
       LOG.info("Force finding users");
       synchronized(myLock) {
+        myAnnounceRequested = true;
         startFindingUsers();
         myLock.notifyAll();
       }
     }
   }
 
+  /**
+   * Lets other peers know about changes of own presence without waiting for the next heartbeat.
+   */
+  void sendHeartbeatNow() {
+    synchronized (myLock) {
+      myNextHeartbeatAt = 0;
+      myLock.notifyAll();
+    }
+  }
+
   private void setIndicatorText(ProgressIndicator progressIndicator) {
-    int size = myAvailableUsers.size();
+    int size = 0;
+    synchronized (myLock) {
+      for (Peer peer : myPeers.values()) {
+        if (peer.myLastSeen >= myStartFindingAt) size++;
+      }
+    }
     progressIndicator.setText(StringUtil.getMsg("p2p.finder.progressText", String.valueOf(size), StringUtil.getText("user", size)));
   }
 
   boolean _isAlive() {
-    for (MulticastPingThread multicastThread : myMulticastThreads) {
-      if (multicastThread.isRunning()) return true;
+    return myDiscoveryThread.isRunning() || super.isAlive();
+  }
+
+  private static class Peer {
+    private final String myUsername;
+    private final OnlineUserInfo myInfo;
+    private final boolean mySendsHeartbeats;
+    private final long myLastSeen = System.currentTimeMillis();
+
+    Peer(String username, OnlineUserInfo info, boolean sendsHeartbeats) {
+      myUsername = username;
+      myInfo = info;
+      mySendsHeartbeats = sendsHeartbeats;
     }
-    return super.isAlive();
   }
 }
@@ -0,0 +1,411 @@
+/*
+ * Copyright 2000-2006 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.communicator.p2p;
+
+import org.apache.log4j.Logger;
+import org.apache.xmlrpc.XmlRpcTransport;
+import org.apache.xmlrpc.XmlRpcTransportFactory;
+import org.jetbrains.annotations.NonNls;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keep-alive HTTP/1.1 connections to XML-RPC servers of peers.<p>
+ *
+ * Up to {@link #MAX_CONNECTIONS_PER_PEER} calls to the same peer run at once, each on its own connection;
+ * further callers wait for a free one. A connection goes back to the pool when its response is read completely,
+ * unless the server asked to close it, and is closed after {@link #IDLE_TIMEOUT} without calls.
+ * Waiting for a free connection and for a response is limited by {@link #ACQUIRE_TIMEOUT} and {@link #READ_TIMEOUT}.
+ */
+class XmlRpcConnectionPool {
+  @NonNls
+  private static final Logger LOG = Logger.getLogger(XmlRpcConnectionPool.class);
+
+  static final int MAX_CONNECTIONS_PER_PEER = 4;
+  static final long IDLE_TIMEOUT = 30 * 1000;
+  private static final int CONNECT_TIMEOUT = 5 * 1000;
+  static final int READ_TIMEOUT = 60 * 1000;
+  static final long ACQUIRE_TIMEOUT = 60 * 1000;
+
+  @NonNls
+  private static final String RPC_PATH = "/rpc2";
+  @NonNls
+  private static final String HEADER_ENCODING = "ISO-8859-1";
+
+  private final Map<InetSocketAddress, Peer> myPeers = new HashMap<InetSocketAddress, Peer>();
+  private final AtomicInteger myOpenedConnections = new AtomicInteger();
+
+  XmlRpcTransportFactory createTransportFactory(final InetSocketAddress address) {
+    return new XmlRpcTransportFactory() {
+      public XmlRpcTransport createTransport() {
+        return new XmlRpcTransport() {
+          public InputStream sendXmlRpc(byte[] request) throws IOException {
+            return new ByteArrayInputStream(post(address, request));
+          }
+
+          public void endClientRequest() {
+            // the response is read completely and the connection is released in post()
+          }
+        };
+      }
+
+      public void setProperty(String propertyName, Object value) {
+      }
+    };
+  }
+
+  /**
+   * Sends an XML-RPC request and reads the whole response body.<p>
+   *
+   * A call on a reused connection is repeated once on a new one if the request could not be written, or if the connection
+   * was closed before the first byte of the response: the peer may have dropped the idle connection and the request
+   * has not been processed. Calls failed later, timed out or answered with an error status are not repeated.
+   */
+  byte[] post(InetSocketAddress address, byte[] request) throws IOException {
+    Peer peer = getPeer(address);
+    Connection connection = peer.acquire(true);
+    boolean reused = connection != null;
+    if (connection == null) {
+      connection = peer.open();
+    }
+
+    try {
+      return exchange(peer, connection, request);
+    }
+    catch (StaleConnectionException e) {
+      if (!reused) throw e;
+      LOG.debug("Retrying on a new connection to " + address + ": " + e.getMessage());
+    }
+
+    peer.acquire(false);
+    return exchange(peer, peer.open(), request);
+  }
+
+  private byte[] exchange(Peer peer, Connection connection, byte[] request) throws IOException {
+    boolean keepAlive = false;
+    try {
+      try {
+        connection.writeRequest(peer.myAddress, request);
+      }
+      catch (IOException e) {
+        throw new StaleConnectionException(e);
+      }
+
+      Response response;
+      try {
+        response = connection.readResponse();
+      }
+      catch (SocketTimeoutException e) {
+        throw e;
+      }
+      catch (IOException e) {
+        if (connection.myResponseStarted) throw e;
+        throw new StaleConnectionException(e);
+      }
+      keepAlive = response.myKeepAlive;
+      if (response.myStatus != 200) {
+        throw new IOException("HTTP status " + response.myStatus + " from " + peer.myAddress);
+      }
+      return response.myBody;
+    }
+    finally {
+      peer.release(connection, keepAlive);
+    }
+  }
+
+  private synchronized Peer getPeer(InetSocketAddress address) {
+    Peer peer = myPeers.get(address);
+    if (peer == null) {
+      peer = new Peer(address);
+      myPeers.put(address, peer);
+    }
+    return peer;
+  }
+
+  /**
+   * Closes idle connections; connections in use are closed when their calls complete.
+   */
+  void closeAll() {
+    List<Peer> peers;
+    synchronized (this) {
+      peers = new ArrayList<Peer>(myPeers.values());
+      myPeers.clear();
+    }
+    for (Peer peer : peers) {
+      peer.close();
+    }
+  }
+
+  /** Number of connections opened since the pool was created */
+  int getOpenedConnectionCount() {
+    return myOpenedConnections.get();
+  }
+
+  private class Peer {
+    private final InetSocketAddress myAddress;
+    // most recently used connections first
+    private final LinkedList<Connection> myIdle = new LinkedList<Connection>();
+    private int myConnectionCount;
+    private boolean myClosed;
+
+    Peer(InetSocketAddress address) {
+      myAddress = address;
+    }
+
+    /**
+     * @param allowIdle false to reserve room for a new connection even if there are idle ones
+     * @return an idle connection, or null if the caller may {@link #open()} a new one
+     * @throws IOException if no connection is free within {@link #ACQUIRE_TIMEOUT}
+     */
+    synchronized Connection acquire(boolean allowIdle) throws IOException {
+      long deadline = System.currentTimeMillis() + ACQUIRE_TIMEOUT;
+      while (true) {
+        closeExpired();
+        if (allowIdle && !myIdle.isEmpty()) {
+          return myIdle.removeFirst();
+        }
+        if (!allowIdle && myConnectionCount == MAX_CONNECTIONS_PER_PEER && !myIdle.isEmpty()) {
+          // make room for the new connection
+          closeQuietly(myIdle.removeLast().mySocket);
+          myConnectionCount--;
+        }
+        if (myConnectionCount < MAX_CONNECTIONS_PER_PEER) {
+          myConnectionCount++;
+          return null;
+        }
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          throw new IOException("No free connection to " + myAddress + " within " + ACQUIRE_TIMEOUT + "ms");
+        }
+        try {
+          wait(remaining);
+        }
+        catch (InterruptedException e) {
+          throw new InterruptedIOException("Interrupted waiting for a connection to " + myAddress);
+        }
+      }
+    }
+
+    /**
+     * Opens a connection in place of the one reserved by {@link #acquire(boolean)}.
+     */
+    Connection open() throws IOException {
+      Socket socket = new Socket();
+      try {
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        socket.connect(myAddress, CONNECT_TIMEOUT);
+        socket.setSoTimeout(READ_TIMEOUT);
+        myOpenedConnections.incrementAndGet();
+        return new Connection(socket);
+      }
+      catch (IOException e) {
+        closeQuietly(socket);
+        synchronized (this) {
+          myConnectionCount--;
+          notifyAll();
+        }
+        throw e;
+      }
+    }
+
+    synchronized void release(Connection connection, boolean reusable) {
+      if (reusable && !myClosed) {
+        connection.myLastUsed = System.currentTimeMillis();
+        myIdle.addFirst(connection);
+      }
+      else {
+        closeQuietly(connection.mySocket);
+        myConnectionCount--;
+      }
+      notifyAll();
+    }
+
+    private void closeExpired() {
+      long now = System.currentTimeMillis();
+      while (!myIdle.isEmpty() && now - myIdle.getLast().myLastUsed > IDLE_TIMEOUT) {
+        closeQuietly(myIdle.removeLast().mySocket);
+        myConnectionCount--;
+      }
+    }
+
+    synchronized void close() {
+      myClosed = true;
+      for (Connection connection : myIdle) {
+        closeQuietly(connection.mySocket);
+        myConnectionCount--;
+      }
+      myIdle.clear();
+      notifyAll();
+    }
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    }
+    catch (IOException e) {
+      // nothing to do
+    }
+  }
+
+  private static class Connection {
+    private final Socket mySocket;
+    private final InputStream myIn;
+    private final OutputStream myOut;
+    private long myLastUsed;
+    // a byte of the current response was read, so the request has reached the peer
+    private boolean myResponseStarted;
+
+    Connection(Socket socket) throws IOException {
+      mySocket = socket;
+      myIn = new BufferedInputStream(socket.getInputStream());
+      myOut = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    void writeRequest(InetSocketAddress address, byte[] body) throws IOException {
+      @NonNls String header = "POST " + RPC_PATH + " HTTP/1.1\r\n" +
+                              "Host: " + address.getAddress().getHostAddress() + ':' + address.getPort() + "\r\n" +
+                              "User-Agent: IDEtalk\r\n" +
+                              "Content-Type: text/xml\r\n" +
+                              "Content-Length: " + body.length + "\r\n" +
+                              "Connection: keep-alive\r\n\r\n";
+      myOut.write(header.getBytes(HEADER_ENCODING));
+      myOut.write(body);
+      myOut.flush();
+    }
+
+    Response readResponse() throws IOException {
+      myResponseStarted = false;
+      String statusLine = readLine();
+      if (statusLine == null) {
+        throw new EOFException("Connection closed by peer");
+      }
+      String[] status = statusLine.split(" ");
+      if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+        throw new IOException("Unexpected response: " + statusLine);
+      }
+
+      Response response = new Response();
+      try {
+        response.myStatus = Integer.parseInt(status[1]);
+      }
+      catch (NumberFormatException e) {
+        throw new IOException("Unexpected response: " + statusLine);
+      }
+      response.myKeepAlive = !"HTTP/1.0".equals(status[0]);
+
+      int contentLength = -1;
+      boolean chunked = false;
+      String line;
+      while ((line = readLine()) != null && line.length() > 0) {
+        int colon = line.indexOf(':');
+        if (colon < 0) continue;
+        String name = line.substring(0, colon).trim();
+        String value = line.substring(colon + 1).trim();
+        if ("Content-Length".equalsIgnoreCase(name)) {
+          contentLength = Integer.parseInt(value);
+        }
+        else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+          chunked = "chunked".equalsIgnoreCase(value);
+        }
+        else if ("Connection".equalsIgnoreCase(name)) {
+          response.myKeepAlive = "keep-alive".equalsIgnoreCase(value) ||
+                                 response.myKeepAlive && !"close".equalsIgnoreCase(value);
+        }
+      }
+
+      if (chunked) {
+        response.myBody = readChunked();
+      }
+      else if (contentLength >= 0) {
+        response.myBody = new byte[contentLength];
+        new DataInputStream(myIn).readFully(response.myBody);
+      }
+      else {
+        // the body ends with the connection
+        response.myBody = readToEnd();
+        response.myKeepAlive = false;
+      }
+      return response;
+    }
+
+    private byte[] readChunked() throws IOException {
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      DataInputStream in = new DataInputStream(myIn);
+      while (true) {
+        String sizeLine = readLine();
+        if (sizeLine == null) throw new EOFException("Unexpected end of chunked response");
+        int extension = sizeLine.indexOf(';');
+        int size = Integer.parseInt((extension < 0 ? sizeLine : sizeLine.substring(0, extension)).trim(), 16);
+        if (size == 0) break;
+
+        byte[] chunk = new byte[size];
+        in.readFully(chunk);
+        body.write(chunk);
+        readLine();
+      }
+      // trailers
+      String line;
+      while ((line = readLine()) != null && line.length() > 0) {
+      }
+      return body.toByteArray();
+    }
+
+    private byte[] readToEnd() throws IOException {
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = myIn.read(buffer)) >= 0) {
+        body.write(buffer, 0, read);
+      }
+      return body.toByteArray();
+    }
+
+    private String readLine() throws IOException {
+      ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+      int c;
+      while ((c = myIn.read()) >= 0) {
+        myResponseStarted = true;
+        if (c == '\n') break;
+        if (c != '\r') line.write(c);
+      }
+      if (c < 0 && line.size() == 0) return null;
+      return line.toString(HEADER_ENCODING);
+    }
+  }
+
+  /**
+   * The request was not processed by the peer and may be sent again on another connection.
+   */
+  private static class StaleConnectionException extends IOException {
+    StaleConnectionException(IOException cause) {
+      super(cause.getMessage());
+      initCause(cause);
+    }
+  }
+
+  private static class Response {
+    private int myStatus;
+    private boolean myKeepAlive;
+    private byte[] myBody;
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2000-2006 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.communicator.core.impl;
+
+import jetbrains.communicator.core.IDEtalkAdapter;
+import jetbrains.communicator.core.IDEtalkEvent;
+import jetbrains.communicator.core.impl.users.UserImpl;
+import jetbrains.communicator.core.users.SettingsChanged;
+import jetbrains.communicator.core.users.User;
+import jetbrains.communicator.core.users.UserEvent;
+import jetbrains.communicator.mock.MockTransport;
+import jetbrains.communicator.util.WaitFor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Kir
+ */
+public class EventBroadcasterImplTest extends BaseTestCase {
+  private EventBroadcasterImpl myBroadcaster;
+  private final List<String> myLog = Collections.synchronizedList(new ArrayList<String>());
+  private final CountDownLatch myRelease = new CountDownLatch(1);
+  private User myUser;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myBroadcaster = new EventBroadcasterImpl();
+    myBroadcaster.setAsyncInTests(true);
+    myUser = UserImpl.create("nick", MockTransport.NAME);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myRelease.countDown();
+    myBroadcaster.clearListeners();
+    super.tearDown();
+  }
+
+  public void testSyncListener() throws Exception {
+    myBroadcaster.addListener(new LoggingListener());
+
+    myBroadcaster.doChange(new SettingsChanged(), new Runnable() {
+      @Override
+      public void run() {
+        myLog.add("action");
+      }
+    });
+
+    assertEquals("[before SettingsChanged, action, after SettingsChanged]", myLog.toString());
+  }
+
+  public void testAsyncListener_DoesNotBlockCaller() throws Exception {
+    myBroadcaster.addAsyncListener(new BlockingListener());
+
+    myBroadcaster.fireEvent(new SettingsChanged());
+    myBroadcaster.fireEvent(new UserEvent.Added(myUser));
+    fireAndWaitForBlocked();
+
+    myRelease.countDown();
+    waitForLog(4);
+    assertEquals("[before SettingsChanged, after SettingsChanged, before Added, after Added]", myLog.toString());
+  }
+
+  public void testAsyncListener_PresenceUpdatesCoalesced() throws Exception {
+    myBroadcaster.addAsyncListener(new BlockingListener());
+
+    myBroadcaster.fireEvent(new SettingsChanged());
+    fireAndWaitForBlocked();
+    myBroadcaster.fireEvent(new UserEvent.Updated(myUser, UserEvent.Updated.PRESENCE, "1", "2"));
+    myBroadcaster.fireEvent(new UserEvent.Updated(myUser, UserEvent.Updated.PRESENCE, "2", "3"));
+    myBroadcaster.fireEvent(new SettingsChanged());
+    myBroadcaster.fireEvent(new UserEvent.Updated(myUser, UserEvent.Updated.PRESENCE, "3", "4"));
+    assertEquals(2, myBroadcaster.getCoalescedEventsCount());
+
+    myRelease.countDown();
+    waitForLog(6);
+    assertEquals("Presence updates go after other events and are merged",
+        "[before SettingsChanged, after SettingsChanged, before SettingsChanged, after SettingsChanged, " +
+        "before Updated presence 1->4, after Updated presence 1->4]", myLog.toString());
+  }
+
+  public void testAsyncListener_OrderOfUserEventsKept() throws Exception {
+    myBroadcaster.addAsyncListener(new BlockingListener());
+
+    myBroadcaster.fireEvent(new SettingsChanged());
+    fireAndWaitForBlocked();
+    myBroadcaster.fireEvent(new UserEvent.Updated(myUser, UserEvent.Updated.PRESENCE, "1", "2"));
+    myBroadcaster.fireEvent(new UserEvent.Removed(myUser));
+
+    myRelease.countDown();
+    waitForLog(6);
+    assertEquals("[before SettingsChanged, after SettingsChanged, before Updated presence 1->2, after Updated presence 1->2, " +
+                 "before Removed, after Removed]", myLog.toString());
+  }
+
+  public void testRemovedAsyncListener_NotNotified() throws Exception {
+    BlockingListener listener = new BlockingListener();
+    myBroadcaster.addAsyncListener(listener);
+
+    myBroadcaster.fireEvent(new SettingsChanged());
+    fireAndWaitForBlocked();
+    myBroadcaster.fireEvent(new UserEvent.Added(myUser));
+    myBroadcaster.removeListener(listener);
+    assertEquals(0, myBroadcaster.getListeners().length);
+
+    myRelease.countDown();
+    Thread.sleep(100);
+    assertEquals("[before SettingsChanged, after SettingsChanged]", myLog.toString());
+  }
+
+  public void testLatencies() throws Exception {
+    LoggingListener syncListener = new LoggingListener();
+    BlockingListener asyncListener = new BlockingListener();
+    myBroadcaster.addListener(syncListener);
+    myBroadcaster.addAsyncListener(asyncListener);
+    myRelease.countDown();
+
+    myBroadcaster.fireEvent(new SettingsChanged());
+    waitForLog(4);
+    new WaitFor(1000) {
+      @Override
+      protected boolean condition() {
+        return myBroadcaster.getLatencies().size() == 2;
+      }
+    };
+
+    assertEquals("beforeChange and afterChange", 2, myBroadcaster.getLatencies().get(syncListener).getCount());
+    assertEquals("One delivery", 1, myBroadcaster.getLatencies().get(asyncListener).getCount());
+  }
+
+  private void fireAndWaitForBlocked() {
+    waitForLog(1);
+    assertEquals("Listener should be blocked in the first event", "[before SettingsChanged]", myLog.toString());
+  }
+
+  private void waitForLog(final int size) {
+    new WaitFor(2000) {
+      @Override
+      protected boolean condition() {
+        return myLog.size() >= size;
+      }
+    };
+    assertEquals(myLog.toString(), size, myLog.size());
+  }
+
+  private static String describe(IDEtalkEvent event) {
+    String result = event.getClass().getSimpleName();
+    if (event instanceof UserEvent.Updated) {
+      UserEvent.Updated updated = (UserEvent.Updated) event;
+      result += ' ' + updated.getPropertyName() + ' ' + updated.getOldValue() + "->" + updated.getNewValue();
+    }
+    return result;
+  }
+
+  private class LoggingListener extends IDEtalkAdapter {
+    @Override
+    public void beforeChange(IDEtalkEvent event) {
+      myLog.add("before " + describe(event));
+    }
+
+    @Override
+    public void afterChange(IDEtalkEvent event) {
+      myLog.add("after " + describe(event));
+    }
+  }
+
+  /** Blocks in the first beforeChange until released */
+  private class BlockingListener extends LoggingListener {
+    @Override
+    public void beforeChange(IDEtalkEvent event) {
+      super.beforeChange(event);
+      try {
+        myRelease.await(5, TimeUnit.SECONDS);
+      }
+      catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+}
@@ -23,6 +23,8 @@ import jetbrains.communicator.mock.MockMessage;
 import jetbrains.communicator.mock.MockUser;
 import jetbrains.communicator.p2p.commands.P2PNetworkMessage;
 
+import java.io.File;
+
 /**
  * @author kir
  */
@@ -146,4 +148,36 @@ public class AbstractMessageDispatcherTest extends BaseTestCase {
     dispatcher.dispose();
   }
 
-}
\ No newline at end of file
+  public void testPersistency_Journal() throws Exception {
+    File snapshot = new File(myIdeFacade.getCacheDir(), "test.xml");
+    myDispatcher.save();
+    long snapshotModified = snapshot.lastModified();
+
+    Message failedMessage = new P2PNetworkMessage("foo", "foo2", new String[]{"test"});
+    myDispatcher.performDispatch(myUser, failedMessage);
+    myDispatcher.addPendingMessage(myUser, new P2PNetworkMessage("foo", "foo2", new String[]{"test2"}));
+    myDispatcher.removePendingMessage(myUser, 0);
+
+    assertEquals("Queue changes should not rewrite the snapshot", snapshotModified, snapshot.lastModified());
+
+    AbstractMessageDispatcher dispatcher = createDispatcher();
+    assertEquals("queue should persist", 1, dispatcher.getPendingMessages(myUser).length);
+    assertEquals("test2", ((P2PNetworkMessage) dispatcher.getPendingMessages(myUser)[0]).getParameters()[0]);
+    dispatcher.dispose();
+
+    myDispatcher.save();
+    dispatcher = createDispatcher();
+    assertEquals("queue should persist after checkpoint", 1, dispatcher.getPendingMessages(myUser).length);
+    dispatcher.dispose();
+  }
+
+  public void testPersistency_ClearJournaled() throws Exception {
+    myDispatcher.addPendingMessage(myUser, new P2PNetworkMessage("foo", "foo2", new String[]{"test"}));
+    myDispatcher.clearAll();
+
+    AbstractMessageDispatcher dispatcher = createDispatcher();
+    assertEquals("cleared queue should persist", 0, dispatcher.getPendingMessages(myUser).length);
+    dispatcher.dispose();
+  }
+
+}
@@ -15,6 +15,8 @@
  */
 package jetbrains.communicator.core.impl.dispatcher;
 
+import jetbrains.communicator.core.dispatcher.BatchedMessage;
+import jetbrains.communicator.core.dispatcher.Message;
 import jetbrains.communicator.core.impl.BaseTestCase;
 import jetbrains.communicator.core.users.User;
 import jetbrains.communicator.mock.MockIDEFacade;
@@ -23,6 +25,10 @@ import jetbrains.communicator.mock.MockUser;
 import jetbrains.communicator.util.WaitFor;
 import org.apache.log4j.Logger;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * @author kir
  */
@@ -110,6 +116,22 @@ public class AsyncMessageDispatcherTest extends BaseTestCase {
         myDispatcher.getUsersWithMessages().length);
   }
 
+  public void testAsyncDispatch_FailureDoesNotStopDelivery() throws Exception {
+    myDispatcher.sendLater(myUser, new MockMessage(false));
+    final MockMessage next = new MockMessage(true);
+    myDispatcher.sendLater(myUser, next);
+
+    new WaitFor(1000) {
+      @Override
+      protected boolean condition() {
+        return !Arrays.asList(myDispatcher.getPendingMessages(myUser)).contains(next);
+      }
+    };
+    assertEquals("Only the failed message should stay in the queue", 1, myDispatcher.getPendingMessages(myUser).length);
+    assertFalse("Message after the failed one should be delivered",
+                Arrays.asList(myDispatcher.getPendingMessages(myUser)).contains(next));
+  }
+
   public void testAddMessagesWhileDispatching() throws Exception {
 
     NotifyableMessage mockMessage = new NotifyableMessage(true, myLog);
@@ -122,8 +144,14 @@ public class AsyncMessageDispatcherTest extends BaseTestCase {
     mockMessage.waitUntilDispatchingStarted();
     myDispatcher.sendLater(user2, new MockMessage(true));
 
-    assertEquals("Messages not delivered yet", 2,
-        myDispatcher.getUsersWithMessages().length);
+    new WaitFor(1000) {
+      @Override
+      protected boolean condition() {
+        return myDispatcher.getPendingMessages(user2).length == 0;
+      }
+    };
+    assertEquals("Message to user2 should not wait for user1", 0, myDispatcher.getPendingMessages(user2).length);
+    assertEquals("Message to user1 not delivered yet", 1, myDispatcher.getPendingMessages(user1).length);
 
     triggerMessageProcessing(mockMessage);
 
@@ -137,6 +165,46 @@ public class AsyncMessageDispatcherTest extends BaseTestCase {
     assertEquals("All messages should be delivered", 0, myDispatcher.getUsersWithMessages().length);
   }
 
+  public void testBatchedDelivery() throws Exception {
+    final List<Integer> batchSizes = new ArrayList<Integer>();
+    NotifyableMessage blocker = new NotifyableMessage(true, myLog);
+
+    myDispatcher.sendLater(myUser, blocker);
+    blocker.waitUntilDispatchingStarted();
+    for (int i = 0; i < 5; i++) {
+      myDispatcher.sendLater(myUser, new MockBatchedMessage(batchSizes));
+    }
+    assertEquals(6, myDispatcher.getPendingMessages(myUser).length);
+
+    triggerMessageProcessing(blocker);
+    new WaitFor(1000) {
+      @Override
+      protected boolean condition() {
+        return myDispatcher.getPendingMessages(myUser).length == 0;
+      }
+    };
+
+    assertEquals("Queued messages should go in one call", Arrays.asList(5), batchSizes);
+  }
+
+  private static class MockBatchedMessage extends MockMessage implements BatchedMessage {
+    private final List<Integer> myBatchSizes;
+
+    MockBatchedMessage(List<Integer> batchSizes) {
+      super(true);
+      myBatchSizes = batchSizes;
+    }
+
+    public boolean canBatchWith(Message message) {
+      return message instanceof MockBatchedMessage;
+    }
+
+    public int sendBatch(User user, List<Message> messages) {
+      myBatchSizes.add(messages.size());
+      return messages.size();
+    }
+  }
+
   private static class NotifyableMessage extends MockMessage {
     private boolean myDispatchingStarted;
     private boolean myProcessed;
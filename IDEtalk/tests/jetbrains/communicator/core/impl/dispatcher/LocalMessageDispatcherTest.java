@@ -31,6 +31,9 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
 import java.util.Date;
 
 /**
@@ -252,6 +255,115 @@ public class LocalMessageDispatcherTest extends BaseTestCase {
     assertEquals(2, messages.length);
   }
 
+  public void testHistory_OldSegmentsNotRewritten() throws Exception {
+    myDispatcher.sendNow(myUser, new MockMessage(yesterday(), "old"));
+    Thread.sleep(SAVE_WAIT_TIMEOUT);
+
+    File[] segments = new File(myIdeFacade.getCacheDir(), "history").listFiles();
+    assertEquals(1, segments.length);
+    long length = segments[0].length();
+
+    myDispatcher.sendNow(myUser, new MockMessage(new Date(), "new"));
+    Thread.sleep(SAVE_WAIT_TIMEOUT);
+
+    assertEquals(2, new File(myIdeFacade.getCacheDir(), "history").listFiles().length);
+    assertEquals("Yesterday's segment should stay untouched", length, segments[0].length());
+  }
+
+  public void testHistory_IndexRebuilt() throws Exception {
+    myDispatcher.sendNow(myUser, new MockMessage(yesterday(), "old"));
+    myDispatcher.sendNow(myUser, new MockMessage(new Date(), "new"));
+    Thread.sleep(SAVE_WAIT_TIMEOUT);
+
+    File indexDir = new File(myIdeFacade.getCacheDir(), "historyIndex");
+    for (File file : indexDir.listFiles()) {
+      assertTrue(file.delete());
+    }
+    assertTrue(indexDir.delete());
+
+    LocalMessageDispatcherImpl localMessageDispatcher = createLocalMessageDispatcher();
+    LocalMessage[] messages = localMessageDispatcher.getHistory(myUser, null);
+    assertEquals(2, messages.length);
+    assertEquals("old", ((MockMessage) messages[0]).getMessage());
+    assertEquals("new", ((MockMessage) messages[1]).getMessage());
+  }
+
+  public void testSearchHistory() throws Exception {
+    User anotherUser = UserImpl.create("another", MockTransport.NAME);
+    myDispatcher.sendNow(myUser, new MockMessage(yesterday(), "some text1"));
+    myDispatcher.sendNow(myUser, new MockMessage(new Date(), "some text2 & <more>"));
+    myDispatcher.sendNow(anotherUser, new MockMessage(new Date(), "some text2"));
+
+    assertEquals("Unsaved messages should be found", 1, myDispatcher.searchHistory(myUser, "text2").length);
+
+    Thread.sleep(SAVE_WAIT_TIMEOUT);
+    LocalMessageDispatcherImpl localMessageDispatcher = createLocalMessageDispatcher();
+
+    LocalMessage[] messages = localMessageDispatcher.searchHistory(myUser, "me tex");
+    assertEquals(2, messages.length);
+    assertEquals("some text1", ((MockMessage) messages[0]).getMessage());
+
+    assertEquals(1, localMessageDispatcher.searchHistory(myUser, "xt2 & <mo").length);
+    assertEquals(0, localMessageDispatcher.searchHistory(myUser, "text3").length);
+    assertEquals(0, localMessageDispatcher.searchHistory(myUser, "some  text").length);
+    assertEquals(1, localMessageDispatcher.searchHistory(anotherUser, "some").length);
+  }
+
+  public void testHistory_IndexRepairedAfterCrash() throws Exception {
+    myDispatcher.sendNow(myUser, new MockMessage(new Date(), "first"));
+    Thread.sleep(SAVE_WAIT_TIMEOUT);
+    myDispatcher.sendNow(myUser, new MockMessage(new Date(), "second"));
+    Thread.sleep(SAVE_WAIT_TIMEOUT);
+
+    // crash after the segment append: the index lacks the second record, the segment ends with a torn record
+    File[] indexFiles = new File(myIdeFacade.getCacheDir(), "historyIndex").listFiles(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.endsWith(".idx");
+      }
+    });
+    assertEquals(1, indexFiles.length);
+    RandomAccessFile index = new RandomAccessFile(indexFiles[0], "rw");
+    index.setLength(index.length() / 2 + 1);
+    index.close();
+    File segment = new File(myIdeFacade.getCacheDir(), "history").listFiles()[0];
+    FileOutputStream out = new FileOutputStream(segment, true);
+    out.write(new byte[]{0, 0, 1, 0, '<'});
+    out.close();
+
+    LocalMessageDispatcherImpl localMessageDispatcher = createLocalMessageDispatcher();
+    localMessageDispatcher.sendNow(myUser, new MockMessage(new Date(), "third"));
+    Thread.sleep(SAVE_WAIT_TIMEOUT);
+
+    LocalMessage[] messages = createLocalMessageDispatcher().getHistory(myUser, null);
+    assertEquals(3, messages.length);
+    assertEquals("second", ((MockMessage) messages[1]).getMessage());
+    assertEquals("third", ((MockMessage) messages[2]).getMessage());
+  }
+
+  public void testSearchHistory_TailIndexedAfterCrash() throws Exception {
+    myDispatcher.sendNow(myUser, new MockMessage(new Date(), "first"));
+    Thread.sleep(SAVE_WAIT_TIMEOUT);
+    File searchIndex = new File(new File(myIdeFacade.getCacheDir(), "historyIndex"), "search.dat");
+    long firstRecordEnd = searchIndex.length();
+    myDispatcher.sendNow(myUser, new MockMessage(new Date(), "second"));
+    Thread.sleep(SAVE_WAIT_TIMEOUT);
+
+    // crash after the log append: the search index ends with a torn record of the second message
+    RandomAccessFile index = new RandomAccessFile(searchIndex, "rw");
+    index.setLength(firstRecordEnd + 3);
+    index.close();
+
+    LocalMessageDispatcherImpl localMessageDispatcher = createLocalMessageDispatcher();
+    assertEquals(1, localMessageDispatcher.searchHistory(myUser, "second").length);
+    localMessageDispatcher.sendNow(myUser, new MockMessage(new Date(), "third"));
+    Thread.sleep(SAVE_WAIT_TIMEOUT);
+
+    localMessageDispatcher = createLocalMessageDispatcher();
+    assertEquals(1, localMessageDispatcher.searchHistory(myUser, "first").length);
+    assertEquals(1, localMessageDispatcher.searchHistory(myUser, "second").length);
+    assertEquals(1, localMessageDispatcher.searchHistory(myUser, "third").length);
+  }
+
   private Date yesterday() {
     return new Date(System.currentTimeMillis() - 1000 * 3600 * 24);
   }
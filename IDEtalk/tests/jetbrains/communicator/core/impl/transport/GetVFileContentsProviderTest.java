@@ -0,0 +1,169 @@
+/*
+ * Copyright 2000-2006 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.communicator.core.impl.transport;
+
+import jetbrains.communicator.core.impl.BaseTestCase;
+import jetbrains.communicator.core.impl.users.UserModelImpl;
+import jetbrains.communicator.core.transport.GetVFileContentsXmlMessage;
+import jetbrains.communicator.core.users.User;
+import jetbrains.communicator.core.vfs.VFile;
+import jetbrains.communicator.core.vfs.VFileContentsCache;
+import jetbrains.communicator.mock.MockIDEFacade;
+import jetbrains.communicator.mock.MockTransport;
+import org.jdom.Element;
+
+import java.util.Random;
+
+/**
+ * @author Kir
+ */
+public class GetVFileContentsProviderTest extends BaseTestCase {
+  private static final String OWNER = "owner";
+
+  private MockIDEFacade myIdeFacade;
+  private UserModelImpl myUserModel;
+  private User myUser;
+  private GetVFileContentsProvider myProvider;
+  private VFile myFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+
+    myUserModel = new UserModelImpl(getBroadcaster());
+    disposeOnTearDown(myUserModel);
+    myIdeFacade = new MockIDEFacade(getClass());
+
+    myUser = myUserModel.createUser("User", MockTransport.NAME);
+    myUserModel.addUser(myUser);
+    myUser.setCanAccessMyFiles(true, myUserModel);
+
+    myProvider = new GetVFileContentsProvider(myIdeFacade, myUserModel);
+    myFile = VFile.create("a path");
+    VFileContentsCache.getInstance().clear();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    VFileContentsCache.getInstance().clear();
+    super.tearDown();
+  }
+
+  public void testSmallFile() throws Exception {
+    myIdeFacade.setReturnedFileText(myFile, "some tex&&&<<>t" + '\u0000');
+
+    VFile result = VFile.create("a path");
+    assertEquals(1, transfer(new GetVFileContentsXmlMessage(result, OWNER)));
+    assertEquals("some tex&&&<<>t" + '\u0000', result.getContents());
+  }
+
+  public void testBigFile_Chunked() throws Exception {
+    String text = createText(300000);
+    myIdeFacade.setReturnedFileText(myFile, text);
+
+    VFile result = VFile.create("a path");
+    int requests = transfer(new GetVFileContentsXmlMessage(result, OWNER));
+    assertTrue("Several chunks expected: " + requests, requests > 1);
+    assertEquals(text, result.getContents());
+  }
+
+  public void testUnchangedFile_NotTransferred() throws Exception {
+    String text = createText(300000);
+    myIdeFacade.setReturnedFileText(myFile, text);
+    transfer(new GetVFileContentsXmlMessage(VFile.create("a path"), OWNER));
+
+    VFile result = VFile.create("a path");
+    GetVFileContentsXmlMessage message = new GetVFileContentsXmlMessage(result, OWNER);
+    Element response = process(message);
+    assertEquals("true", response.getAttributeValue(GetVFileContentsXmlMessage.UNCHANGED_ATTR));
+    assertEquals("", response.getText());
+    message.processResponse(response);
+
+    assertTrue(message.isComplete());
+    assertEquals(text, result.getContents());
+  }
+
+  public void testChangedFile_Transferred() throws Exception {
+    myIdeFacade.setReturnedFileText(myFile, "old text");
+    transfer(new GetVFileContentsXmlMessage(VFile.create("a path"), OWNER));
+
+    myIdeFacade.setReturnedFileText(myFile, "new text");
+    VFile result = VFile.create("a path");
+    transfer(new GetVFileContentsXmlMessage(result, OWNER));
+    assertEquals("new text", result.getContents());
+  }
+
+  public void testChangedDuringTransfer() throws Exception {
+    myIdeFacade.setReturnedFileText(myFile, createText(300000));
+    VFile result = VFile.create("a path");
+    GetVFileContentsXmlMessage message = new GetVFileContentsXmlMessage(result, OWNER);
+    message.processResponse(process(message));
+    assertFalse(message.isComplete());
+
+    // provider forgets the transfer, file is re-read
+    myProvider = new GetVFileContentsProvider(myIdeFacade, myUserModel);
+    String text = createText(200000);
+    myIdeFacade.setReturnedFileText(myFile, text);
+    transfer(message);
+
+    assertEquals(text, result.getContents());
+  }
+
+  public void testNoSuchFile() throws Exception {
+    VFile result = VFile.create("a path");
+    GetVFileContentsXmlMessage message = new GetVFileContentsXmlMessage(result, OWNER);
+    assertEquals(1, transfer(message));
+    assertNull(result.getContents());
+  }
+
+  public void testLegacyRequest() throws Exception {
+    myIdeFacade.setReturnedFileText(myFile, "some text");
+
+    Element request = new Element("request");
+    VFile.create("a path").saveTo(request);
+    Element response = new Element("response");
+    myProvider.processAndFillResponse(response, request, new MockTransport(), myUser.getName());
+
+    assertEquals("some text", VFile.createFrom(response).getContents());
+  }
+
+  private int transfer(GetVFileContentsXmlMessage message) {
+    int requests = 0;
+    while (!message.isComplete()) {
+      message.processResponse(process(message));
+      requests++;
+      assertTrue("Too many requests", requests < 100);
+    }
+    return requests;
+  }
+
+  private Element process(GetVFileContentsXmlMessage message) {
+    Element request = new Element(message.getTagName());
+    message.fillRequest(request);
+    Element response = new Element("response");
+    myProvider.processAndFillResponse(response, request, new MockTransport(), myUser.getName());
+    return response;
+  }
+
+  private static String createText(int length) {
+    Random random = new Random(length);
+    StringBuilder result = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      result.append((char)(' ' + random.nextInt(95)));
+    }
+    return result.toString();
+  }
+}
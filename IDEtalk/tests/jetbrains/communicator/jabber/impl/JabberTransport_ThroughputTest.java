@@ -0,0 +1,248 @@
+/*
+ * Copyright 2000-2006 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.communicator.jabber.impl;
+
+import jetbrains.communicator.core.dispatcher.AsyncMessageDispatcher;
+import jetbrains.communicator.core.impl.BaseTestCase;
+import jetbrains.communicator.core.impl.users.UserModelImpl;
+import jetbrains.communicator.core.transport.Transport;
+import jetbrains.communicator.core.transport.XmlMessage;
+import jetbrains.communicator.core.users.User;
+import jetbrains.communicator.jabber.JabberUI;
+import jetbrains.communicator.jabber.register.MockJabberFacade;
+import jetbrains.communicator.mock.MockIDEFacade;
+import jetbrains.communicator.util.WaitFor;
+import org.jdom.Element;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jmock.Mock;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends requests through {@link JabberTransport} to users played by {@link LocalXmppServer}.
+ *
+ * @author Kir
+ */
+public class JabberTransport_ThroughputTest extends BaseTestCase {
+  private static final String SLOW = "slow@" + LocalXmppServer.HOST;
+  private static final long SLOW_DELAY = 3000;
+  private static final int SENDERS = 8;
+  private static final int COUNT = 4000;
+  // far above the time the requests take on a local connection, yet below the response timeout
+  private static final long TIME_LIMIT = 30000;
+
+  private LocalXmppServer myServer;
+  private XMPPConnection myConnection;
+  private JabberTransport myTransport;
+  private UserModelImpl myUserModel;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+
+    myServer = new LocalXmppServer();
+    myServer.setResponseDelay(SLOW, SLOW_DELAY);
+    myConnection = new XMPPConnection(LocalXmppServer.HOST, myServer.getPort());
+    myConnection.login("me", "pwd", "IDEtalk");
+
+    MockJabberFacade facade = new MockJabberFacade() {
+      @Override
+      public XMPPConnection getConnection() {
+        return myConnection;
+      }
+    };
+    facade.setConnected(true);
+
+    Mock uiMock = mock(JabberUI.class);
+    uiMock.stubs().method("connectAndLogin").will(returnValue(true));
+    Mock dispatcherMock = mock(AsyncMessageDispatcher.class);
+    dispatcherMock.stubs().method("getIdeFacade").will(returnValue(new MockIDEFacade()));
+
+    myUserModel = new UserModelImpl(getBroadcaster());
+    disposeOnTearDown(myUserModel);
+    myTransport = new JabberTransport((JabberUI) uiMock.proxy(), facade, myUserModel,
+        (AsyncMessageDispatcher) dispatcherMock.proxy(), null);
+    disposeOnTearDown(myTransport);
+    myTransport.connected(myConnection);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myConnection.close();
+    myServer.stop();
+    super.tearDown();
+  }
+
+  public void testThroughput() throws Exception {
+    final int count = COUNT;
+    final AtomicInteger responses = new AtomicInteger();
+    final User[] users = new User[SENDERS * 2];
+    for (int i = 0; i < users.length; i++) {
+      users[i] = createUser("user" + i + '@' + LocalXmppServer.HOST);
+    }
+
+    long started = System.currentTimeMillis();
+    ExecutorService senders = Executors.newFixedThreadPool(SENDERS);
+    try {
+      for (int i = 0; i < count; i++) {
+        final User user = users[i % users.length];
+        senders.submit(new Runnable() {
+          @Override
+          public void run() {
+            myTransport.sendXmlMessage(user, new Request(responses));
+          }
+        });
+      }
+      waitForResponses(responses, count, 60000);
+    }
+    finally {
+      senders.shutdownNow();
+    }
+    long elapsed = Math.max(1, System.currentTimeMillis() - started);
+
+    assertTrue(count + " requests with responses took " + elapsed + "ms", elapsed < TIME_LIMIT);
+    assertEquals(count, myServer.getRequestsCount());
+    assertEquals(count, responses.get());
+    assertEquals(0, myTransport.getResponseDispatcher().getPendingCount());
+  }
+
+  public void testSlowUser_DoesNotBlockOthers() throws Exception {
+    AtomicInteger slowResponses = new AtomicInteger();
+    User slow = createUser(SLOW);
+    for (int i = 0; i < ResponseDispatcher.MAX_PENDING_PER_USER; i++) {
+      myTransport.sendXmlMessage(slow, new Request(slowResponses));
+    }
+
+    AtomicInteger responses = new AtomicInteger();
+    User fast = createUser("fast@" + LocalXmppServer.HOST);
+    for (int i = 0; i < 100; i++) {
+      myTransport.sendXmlMessage(fast, new Request(responses));
+    }
+    waitForResponses(responses, 100, SLOW_DELAY / 2);
+
+    assertEquals("Fast user should not wait for the slow one", 100, responses.get());
+    assertEquals(0, slowResponses.get());
+    assertEquals(ResponseDispatcher.MAX_PENDING_PER_USER, myTransport.getResponseDispatcher().getPendingCount());
+
+    waitForResponses(slowResponses, ResponseDispatcher.MAX_PENDING_PER_USER, SLOW_DELAY * 3);
+    assertEquals(ResponseDispatcher.MAX_PENDING_PER_USER, slowResponses.get());
+  }
+
+  public void testBackPressure_PerUser() throws Exception {
+    final AtomicInteger responses = new AtomicInteger();
+    final User slow = createUser(SLOW);
+    final int count = ResponseDispatcher.MAX_PENDING_PER_USER + 1;
+
+    final CountDownLatch sent = new CountDownLatch(1);
+    Thread sender = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; i < count; i++) {
+          myTransport.sendXmlMessage(slow, new Request(responses));
+        }
+        sent.countDown();
+      }
+    };
+    long started = System.currentTimeMillis();
+    sender.start();
+
+    assertFalse("Last request should wait for a free slot", sent.await(SLOW_DELAY / 2, TimeUnit.MILLISECONDS));
+    assertEquals(ResponseDispatcher.MAX_PENDING_PER_USER, myServer.getRequestsCount());
+
+    assertTrue(sent.await(SLOW_DELAY * 3, TimeUnit.MILLISECONDS));
+    assertTrue(System.currentTimeMillis() - started >= SLOW_DELAY);
+    waitForResponses(responses, count, SLOW_DELAY * 3);
+    assertEquals(count, responses.get());
+  }
+
+  public void testErrorReply_ReleasesSlot() throws Exception {
+    String unavailable = "gone@" + LocalXmppServer.HOST;
+    myServer.setUnavailable(unavailable);
+    final User user = createUser(unavailable);
+    final int count = ResponseDispatcher.MAX_PENDING_PER_USER * 2;
+
+    final CountDownLatch sent = new CountDownLatch(1);
+    Thread sender = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; i < count; i++) {
+          myTransport.sendXmlMessage(user, new Request(new AtomicInteger()));
+        }
+        sent.countDown();
+      }
+    };
+    sender.start();
+
+    assertTrue("Error replies should free the slots of their requests", sent.await(SLOW_DELAY, TimeUnit.MILLISECONDS));
+    new WaitFor(SLOW_DELAY) {
+      @Override
+      protected boolean condition() {
+        return myTransport.getResponseDispatcher().getPendingCount() == 0;
+      }
+    };
+    assertEquals(0, myTransport.getResponseDispatcher().getPendingCount());
+    assertEquals(count, myTransport.getResponseDispatcher().getErrorsCount());
+  }
+
+  private User createUser(String name) {
+    return myUserModel.createUser(name, myTransport.getName());
+  }
+
+  private static void waitForResponses(final AtomicInteger responses, final int expected, long timeout) {
+    new WaitFor(timeout) {
+      @Override
+      protected boolean condition() {
+        return responses.get() >= expected;
+      }
+    };
+  }
+
+  private static class Request implements XmlMessage {
+    private final AtomicInteger myResponses;
+
+    Request(AtomicInteger responses) {
+      myResponses = responses;
+    }
+
+    @Override
+    public String getTagName() {
+      return "ping";
+    }
+
+    @Override
+    public String getTagNamespace() {
+      return Transport.NAMESPACE;
+    }
+
+    @Override
+    public boolean needsResponse() {
+      return true;
+    }
+
+    @Override
+    public void fillRequest(Element element) {
+    }
+
+    @Override
+    public void processResponse(Element responseElement) {
+      myResponses.incrementAndGet();
+    }
+  }
+}
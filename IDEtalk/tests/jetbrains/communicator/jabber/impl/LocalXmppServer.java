@@ -0,0 +1,253 @@
+/*
+ * Copyright 2000-2006 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.communicator.jabber.impl;
+
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stand-in for a Jabber server: speaks just enough XMPP to log a Smack client in, and plays all the users
+ * the client talks to. Every IDEtalk request sent to a user is answered with an empty IDEtalk response
+ * in the same thread, after the delay set for the user, or bounced with an error reply if the user is unavailable.
+ *
+ * @author Kir
+ */
+class LocalXmppServer {
+  static final String HOST = "localhost";
+
+  private final ServerSocket myServerSocket;
+  private final ScheduledExecutorService myResponder = Executors.newScheduledThreadPool(2);
+  private final Map<String, Long> myDelays = new ConcurrentHashMap<String, Long>();
+  private final Set<String> myUnavailable = Collections.synchronizedSet(new HashSet<String>());
+  private final AtomicInteger myRequestsCount = new AtomicInteger();
+  private volatile boolean myRunning = true;
+
+  LocalXmppServer() throws IOException {
+    myServerSocket = new ServerSocket(0);
+    Thread thread = new Thread("Local XMPP server") {
+      @Override
+      public void run() {
+        while (myRunning) {
+          try {
+            startSession(myServerSocket.accept());
+          }
+          catch (IOException e) {
+            // closed
+          }
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  int getPort() {
+    return myServerSocket.getLocalPort();
+  }
+
+  /** Responses from user are sent after the delay */
+  void setResponseDelay(String user, long millis) {
+    myDelays.put(user, millis);
+  }
+
+  /** Messages to user are bounced with an error reply */
+  void setUnavailable(String user) {
+    myUnavailable.add(user);
+  }
+
+  int getRequestsCount() {
+    return myRequestsCount.get();
+  }
+
+  void stop() throws IOException {
+    myRunning = false;
+    myServerSocket.close();
+    myResponder.shutdownNow();
+  }
+
+  private void startSession(final Socket socket) {
+    Thread thread = new Thread("Local XMPP session") {
+      @Override
+      public void run() {
+        try {
+          new Session(socket).run();
+        }
+        catch (Exception e) {
+          // connection closed
+        }
+        finally {
+          try {
+            socket.close();
+          }
+          catch (IOException ignored) {
+          }
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private class Session {
+    private final XmlPullParser myParser = new MXParser();
+    private final Writer myWriter;
+    private String myJid = "";
+
+    Session(Socket socket) throws Exception {
+      myParser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+      myParser.setInput(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+      myWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+    }
+
+    void run() throws Exception {
+      int event = myParser.getEventType();
+      while (event != XmlPullParser.END_DOCUMENT) {
+        if (event == XmlPullParser.START_TAG) {
+          String name = myParser.getName();
+          if ("stream".equals(name)) {
+            send("<?xml version='1.0' encoding='UTF-8'?><stream:stream xmlns='jabber:client' " +
+                 "xmlns:stream='http://etherx.jabber.org/streams' from='" + HOST + "' id='local'>");
+          }
+          else if ("iq".equals(name)) {
+            processIq();
+          }
+          else if ("message".equals(name)) {
+            processMessage();
+          }
+          else {
+            skip();
+          }
+        }
+        else if (event == XmlPullParser.END_TAG && "stream".equals(myParser.getName())) {
+          send("</stream:stream>");
+          return;
+        }
+        event = myParser.next();
+      }
+    }
+
+    private void processIq() throws Exception {
+      String id = myParser.getAttributeValue(null, "id");
+      String type = myParser.getAttributeValue(null, "type");
+      String namespace = null;
+      String username = null;
+      String resource = null;
+
+      int depth = myParser.getDepth();
+      int event;
+      while ((event = myParser.next()) != XmlPullParser.END_TAG || myParser.getDepth() > depth) {
+        if (event != XmlPullParser.START_TAG) continue;
+        if ("query".equals(myParser.getName())) {
+          namespace = myParser.getNamespace();
+        }
+        else if ("username".equals(myParser.getName())) {
+          username = myParser.nextText();
+        }
+        else if ("resource".equals(myParser.getName())) {
+          resource = myParser.nextText();
+        }
+      }
+
+      if ("jabber:iq:auth".equals(namespace) && "get".equals(type)) {
+        send("<iq type='result' id='" + id + "'><query xmlns='jabber:iq:auth'><username/><password/><resource/></query></iq>");
+        return;
+      }
+      if ("jabber:iq:auth".equals(namespace) && "set".equals(type)) {
+        myJid = username + '@' + HOST + '/' + resource;
+      }
+      if ("jabber:iq:roster".equals(namespace) && "get".equals(type)) {
+        send("<iq type='result' id='" + id + "'><query xmlns='jabber:iq:roster'/></iq>");
+        return;
+      }
+      send("<iq type='result' id='" + id + "'/>");
+    }
+
+    private void processMessage() throws Exception {
+      final String to = myParser.getAttributeValue(null, "to");
+      String id = myParser.getAttributeValue(null, "id");
+      String thread = null;
+      boolean request = false;
+
+      int depth = myParser.getDepth();
+      int event;
+      while ((event = myParser.next()) != XmlPullParser.END_TAG || myParser.getDepth() > depth) {
+        if (event != XmlPullParser.START_TAG) continue;
+        if ("thread".equals(myParser.getName())) {
+          thread = myParser.nextText();
+        }
+        else if (JDOMExtension.ELEMENT_NAME.equals(myParser.getName())) {
+          request = true;
+        }
+      }
+      if (!request || thread == null) return;
+
+      myRequestsCount.incrementAndGet();
+      if (myUnavailable.contains(to)) {
+        send("<message type='error' id='" + id + "' from='" + to + "' to='" + myJid + "'>" +
+             "<error code='503' type='cancel'><service-unavailable xmlns='urn:ietf:params:xml:ns:xmpp-stanzas'/></error></message>");
+        return;
+      }
+      final String response = "<message from='" + to + "' to='" + myJid + "'><thread>" + thread + "</thread>" +
+                              "<" + JDOMExtension.ELEMENT_NAME + " xmlns='" + BaseExtension.NAMESPACE + "'>" +
+                              "<response xmlns='" + jetbrains.communicator.core.transport.Transport.NAMESPACE + "'/>" +
+                              "</" + JDOMExtension.ELEMENT_NAME + "></message>";
+      Long delay = myDelays.get(to);
+      if (delay == null) {
+        send(response);
+      }
+      else {
+        myResponder.schedule(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              send(response);
+            }
+            catch (IOException ignored) {
+            }
+          }
+        }, delay.longValue(), TimeUnit.MILLISECONDS);
+      }
+    }
+
+    private void skip() throws Exception {
+      if (myParser.isEmptyElementTag()) return;
+      int depth = myParser.getDepth();
+      while (myParser.next() != XmlPullParser.END_TAG || myParser.getDepth() > depth) {
+        // skip presence and other packets
+      }
+    }
+
+    private void send(String text) throws IOException {
+      synchronized (myWriter) {
+        myWriter.write(text);
+        myWriter.flush();
+      }
+    }
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2000-2006 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.communicator.p2p;
+
+import jetbrains.communicator.core.impl.BaseTestCase;
+import jetbrains.communicator.core.users.PresenceMode;
+import jetbrains.communicator.core.users.UserPresence;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * @author Kir
+ */
+public class MulticastDiscoveryThreadTest extends BaseTestCase {
+
+  public void testExtractPort() throws Exception {
+    final String pingMessage = MulticastDiscoveryThread.PING_MESSAGE;
+
+    assertEquals(P2PTransport.XML_RPC_PORT, MulticastDiscoveryThread.extractPort(pingMessage));
+    assertEquals(125, MulticastDiscoveryThread.extractPort(pingMessage + 125));
+
+  }
+
+  public void testPresenceMessage() throws Exception {
+    String message = MulticastDiscoveryThread.createPresenceMessage(MulticastDiscoveryThread.HEARTBEAT, 125, "nick name",
+        new UserPresence(PresenceMode.AWAY), Arrays.asList("project, 1", "project2"));
+
+    MulticastDiscoveryThread.PresenceMessage parsed = MulticastDiscoveryThread.parsePresenceMessage(message);
+    assertNotNull(parsed);
+    assertEquals(MulticastDiscoveryThread.HEARTBEAT, parsed.myType);
+    assertEquals(125, parsed.myPort);
+    assertEquals("nick name", parsed.myUser);
+    assertEquals(new UserPresence(PresenceMode.AWAY), parsed.myPresence);
+    assertEquals(Arrays.asList("project, 1", "project2"), parsed.myProjects);
+  }
+
+  public void testPresenceMessage_NoProjects() throws Exception {
+    String message = MulticastDiscoveryThread.createPresenceMessage(MulticastDiscoveryThread.LEAVE, 125, "nick",
+        new UserPresence(PresenceMode.AVAILABLE), Collections.<String>emptyList());
+
+    MulticastDiscoveryThread.PresenceMessage parsed = MulticastDiscoveryThread.parsePresenceMessage(message);
+    assertNotNull(parsed);
+    assertEquals(0, parsed.myProjects.size());
+  }
+
+  public void testPresenceMessage_Malformed() throws Exception {
+    assertNull(MulticastDiscoveryThread.parsePresenceMessage(MulticastDiscoveryThread.PRESENCE_HEADER + "\ntype=heartbeat\nport=abc"));
+    assertNull(MulticastDiscoveryThread.parsePresenceMessage(MulticastDiscoveryThread.PRESENCE_HEADER));
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2000-2006 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.communicator.p2p;
+
+import jetbrains.communicator.core.impl.BaseTestCase;
+import jetbrains.communicator.core.impl.dispatcher.AsyncMessageDispatcherImpl;
+import jetbrains.communicator.core.impl.users.UserModelImpl;
+import jetbrains.communicator.core.users.UserPresence;
+import jetbrains.communicator.mock.MockIDEFacade;
+import jetbrains.communicator.util.StringUtil;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throughput of XML-RPC calls between two in-process transports over the loopback interface.
+ */
+public class P2PTransportBenchmarkTest extends BaseTestCase {
+  private static final int CALLS = 1000;
+  private static final int THREADS = XmlRpcConnectionPool.MAX_CONNECTIONS_PER_PEER;
+  // generous for loopback calls on a kept alive connection, a new connection per call takes much longer
+  private static final long TIME_LIMIT_MS = 10000;
+
+  private P2PTransport myServer;
+  private P2PTransport myClient;
+  private InetAddress myAddress;
+
+  public P2PTransportBenchmarkTest(String s) {
+    super(s);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myServer = createTransport();
+    myClient = createTransport();
+    myAddress = InetAddress.getLocalHost();
+  }
+
+  private P2PTransport createTransport() {
+    UserModelImpl userModel = new UserModelImpl(getBroadcaster());
+    disposeOnTearDown(userModel);
+    AsyncMessageDispatcherImpl dispatcher = new AsyncMessageDispatcherImpl(getBroadcaster(), new MockIDEFacade(getClass()));
+    disposeOnTearDown(dispatcher);
+    return new P2PTransport(dispatcher, userModel, P2PTransportTest.WAIT_USER_RESPONSES_TIMEOUT);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myClient.dispose();
+    myServer.dispose();
+    super.tearDown();
+  }
+
+  public void testSequentialCalls() throws Exception {
+    int openedBefore = NetworkUtil.getOpenedConnectionCount();
+
+    call(CALLS / 10); // warm up
+    long start = System.nanoTime();
+    assertEquals(CALLS, call(CALLS));
+    assertTiming("sequential", System.nanoTime() - start);
+
+    assertEquals("A single kept alive connection expected", 1, NetworkUtil.getOpenedConnectionCount() - openedBefore);
+  }
+
+  public void testConcurrentCalls() throws Exception {
+    int openedBefore = NetworkUtil.getOpenedConnectionCount();
+    final AtomicInteger succeeded = new AtomicInteger();
+
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < THREADS; i++) {
+      threads.add(new Thread("Benchmark client " + i) {
+        @Override
+        public void run() {
+          succeeded.addAndGet(call(CALLS / THREADS));
+        }
+      });
+    }
+
+    long start = System.nanoTime();
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertTiming(THREADS + " threads", System.nanoTime() - start);
+
+    assertEquals(CALLS / THREADS * THREADS, succeeded.get());
+    assertTrue("Connections should be reused", NetworkUtil.getOpenedConnectionCount() - openedBefore <= THREADS);
+  }
+
+  private int call(int count) {
+    XmlRpcTargetImpl server = new XmlRpcTargetImpl(myServer.getPort(), myAddress);
+    int succeeded = 0;
+    for (int i = 0; i < count; i++) {
+      Object result = NetworkUtil.sendMessage(server, "AddOnlineUser", "addOnlineUser",
+                                              myAddress.getHostAddress(), StringUtil.toXMLSafeString("benchmark"),
+                                              myClient.getPort(), new Vector<String>(), new UserPresence(true).toVector());
+      if (Boolean.TRUE.equals(result)) {
+        succeeded++;
+      }
+    }
+    return succeeded;
+  }
+
+  private static void assertTiming(String mode, long nanos) {
+    long elapsed = nanos / 1000000;
+    assertTrue(mode + ": " + CALLS + " calls took " + elapsed + "ms, expected less than " + TIME_LIMIT_MS + "ms; " +
+               NetworkUtil.getLatencyHistograms().get("AddOnlineUser.addOnlineUser"),
+               elapsed < TIME_LIMIT_MS);
+  }
+}
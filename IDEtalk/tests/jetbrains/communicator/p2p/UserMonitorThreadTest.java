@@ -31,6 +31,7 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Kir Maximov
@@ -38,7 +39,9 @@ import java.util.*;
 public class UserMonitorThreadTest extends BaseTestCase {
   private Mock myUserMonitorClientMock;
   private UserMonitorThread myUserMonitorThread;
-  private MulticastPingThread myMulticastThread;
+  private MulticastDiscoveryThread myMulticastThread;
+  private MulticastDiscoveryThread.Listener myDiscoveryListener;
+  private final AtomicInteger myHeartbeats = new AtomicInteger();
   private static final int PORT = 12234;
   private static final int WAIT_USER_RESPONSES_TIMEOUT = 500;
 
@@ -49,7 +52,7 @@ public class UserMonitorThreadTest extends BaseTestCase {
     myUserMonitorClientMock = mock(UserMonitorClient.class);
 
     final boolean[] started = new boolean[1];
-    myMulticastThread = new MulticastPingThread(InetAddress.getByName("localhost"), null, (UserMonitorClient) myUserMonitorClientMock.proxy()) {
+    myMulticastThread = new MulticastDiscoveryThread(Collections.singleton(InetAddress.getByName("localhost")), null, (UserMonitorClient) myUserMonitorClientMock.proxy()) {
       @Override
       public void run() {
         myStarted = true;
@@ -61,13 +64,24 @@ public class UserMonitorThreadTest extends BaseTestCase {
       }
 
       @Override
-      public void sendMulticastPingRequest() throws IOException {
+      public void sendPing(boolean announce) throws IOException {
         started[0] = true;
       }
+
+      @Override
+      public void sendHeartbeat() throws IOException {
+        myHeartbeats.incrementAndGet();
+      }
+
+      @Override
+      void setListener(Listener listener) {
+        super.setListener(listener);
+        myDiscoveryListener = listener;
+      }
     };
 
     myUserMonitorClientMock.stubs().method("getPort").will(returnValue(PORT));
-    myUserMonitorThread = new UserMonitorThread(new MulticastPingThread[]{myMulticastThread},
+    myUserMonitorThread = new UserMonitorThread(myMulticastThread,
         (UserMonitorClient) myUserMonitorClientMock.proxy(), WAIT_USER_RESPONSES_TIMEOUT);
     myUserMonitorThread.start();
 
@@ -122,6 +136,21 @@ public class UserMonitorThreadTest extends BaseTestCase {
     assertFalse("Should be waiting wait for next cycle of user finding", myUserMonitorThread.isFinding());
   }
 
+  public void testHeartbeatWhileFinding() throws Exception {
+    myUserMonitorClientMock.stubs().method("setOnlineUsers");
+    assertTrue("Should be finding", myUserMonitorThread.isFinding());
+
+    final int heartbeats = myHeartbeats.get();
+    myUserMonitorThread.sendHeartbeatNow();
+    new WaitFor(WAIT_USER_RESPONSES_TIMEOUT / 2) {
+      @Override
+      protected boolean condition() {
+        return myHeartbeats.get() > heartbeats;
+      }
+    };
+    assertTrue("Heartbeat should not wait for the end of finding", myHeartbeats.get() > heartbeats);
+  }
+
   public void testForceFind_WhenInFindState() throws Exception {
     expectSetOneOnlineUser();
 
@@ -173,6 +202,29 @@ public class UserMonitorThreadTest extends BaseTestCase {
     }
   }
 
+  public void testPresenceChanges_FlushedWithoutFind() throws Exception {
+    myUserMonitorClientMock.expects(once()).method("setOnlineUsers").with(eq(Collections.emptySet()));
+    new WaitFor(2000) {
+      @Override
+      protected boolean condition() {
+        return !myUserMonitorThread.isFinding();
+      }
+    };
+
+    User p2PUser = UserImpl.create("nick", P2PTransport.CODE);
+    OnlineUserInfo onlineUserInfo = new OnlineUserInfo(InetAddress.getByName("localhost"), PORT, new ArrayList<String>(), new UserPresence(PresenceMode.AVAILABLE));
+    myUserMonitorClientMock.expects(once()).method("createUser").with(eq("nick"), eq(onlineUserInfo)).will(returnValue(p2PUser));
+    myUserMonitorClientMock.expects(once()).method("setOnlineUsers").with(eq(new HashSet(Arrays.asList(p2PUser))));
+
+    myDiscoveryListener.peerSeen("nick", onlineUserInfo);
+    Thread.sleep(UserMonitorThread.FLUSH_DELAY + 300);
+    assertFalse("Presence changes should not start finding", myUserMonitorThread.isFinding());
+
+    myUserMonitorClientMock.expects(once()).method("setOnlineUsers").with(eq(Collections.emptySet()));
+    myDiscoveryListener.peerLeft("nick", onlineUserInfo.getAddress(), PORT);
+    Thread.sleep(UserMonitorThread.FLUSH_DELAY + 300);
+  }
+
   private void expectSetOneOnlineUser() throws UnknownHostException {
     User p2PUser = UserImpl.create("nick", P2PTransport.CODE);
 
@@ -36,7 +36,7 @@ import java.util.*;
 public class UserMonitorThread_WaitingForNextSearch_Test extends BaseTestCase {
   private Mock myUserMonitorClientMock;
   private UserMonitorThread myUserMonitorThread;
-  private MulticastPingThread myMulticastThread;
+  private MulticastDiscoveryThread myMulticastThread;
   private static final int PORT = 12234;
   private static final int WAIT_USER_RESPONSES_TIMEOUT = 100;
   private static final int SECS_BETWEEN_SCANS = 1;
@@ -48,7 +48,7 @@ public class UserMonitorThread_WaitingForNextSearch_Test extends BaseTestCase {
     myUserMonitorClientMock = mock(UserMonitorClient.class);
 
     final boolean[] started = new boolean[1];
-    myMulticastThread = new MulticastPingThread(InetAddress.getByName("localhost"), null, (UserMonitorClient) myUserMonitorClientMock.proxy()) {
+    myMulticastThread = new MulticastDiscoveryThread(Collections.singleton(InetAddress.getByName("localhost")), null, (UserMonitorClient) myUserMonitorClientMock.proxy()) {
       @Override
       public void run() {
         myStarted = true;
@@ -59,9 +59,13 @@ public class UserMonitorThread_WaitingForNextSearch_Test extends BaseTestCase {
       }
 
       @Override
-      public void sendMulticastPingRequest() throws IOException {
+      public void sendPing(boolean announce) throws IOException {
         started[0] = true;
       }
+
+      @Override
+      public void sendHeartbeat() throws IOException {
+      }
     };
 
     myUserMonitorClientMock.stubs().method("getPort").will(returnValue(PORT));
@@ -69,7 +73,7 @@ public class UserMonitorThread_WaitingForNextSearch_Test extends BaseTestCase {
 
     System.setProperty(UserMonitorThread.SCAN_TIMEOUT_PROPERTY, "" + SECS_BETWEEN_SCANS); // seconds
 
-    myUserMonitorThread = new UserMonitorThread(new MulticastPingThread[]{myMulticastThread},
+    myUserMonitorThread = new UserMonitorThread(myMulticastThread,
         (UserMonitorClient) myUserMonitorClientMock.proxy(), WAIT_USER_RESPONSES_TIMEOUT);
     myUserMonitorThread.start();
 
@@ -4,6 +4,7 @@ import com.google.jstestdriver.*;
 import com.google.jstestdriver.hooks.TestListener;
 import com.google.jstestdriver.idea.execution.TestPath;
 import com.google.jstestdriver.idea.execution.TestPathFactory;
+import com.google.jstestdriver.idea.execution.tree.ConfigNode;
 import com.google.jstestdriver.idea.execution.tree.TreeManager;
 import com.google.jstestdriver.idea.util.TestFileScope;
 import org.jetbrains.annotations.NotNull;
@@ -19,31 +20,31 @@ public class IdeaTestListener implements TestListener {
   private static final String PREFIX = "/test/";
 
   private final TreeManager myTreeManager;
+  private final ConfigNode myConfigNode;
   private final File myBasePath;
   private final Object MONITOR = new Object();
-  private final boolean myDryRun;
   private final TestFileScope myTestFileScope;
   private final TestPathFactory myTestPathFactory;
 
   public IdeaTestListener(@NotNull TreeManager treeManager,
+                          @NotNull ConfigNode configNode,
                           @NotNull File jstdConfigFile,
                           @NotNull File singleBasePath,
-                          boolean dryRun,
                           @NotNull TestFileScope testFileScope) {
     myTreeManager = treeManager;
+    myConfigNode = configNode;
     myBasePath = singleBasePath;
-    myDryRun = dryRun;
     myTestFileScope = testFileScope;
     myTestPathFactory = new TestPathFactory(jstdConfigFile);
   }
 
   @Override
   public void onFileLoad(BrowserInfo browserInfo, FileResult fileResult) {
-    if (!fileResult.isSuccess() && !myDryRun) {
+    if (!fileResult.isSuccess()) {
       synchronized (MONITOR) {
         FileSource jsFileSource = fileResult.getFileSource();
         String jsFilePath = jsFileSource != null ? jsFileSource.getBasePath() : null;
-        myTreeManager.onFileLoadError(browserInfo.toString(), jsFilePath, fileResult.getMessage());
+        myTreeManager.onFileLoadError(myConfigNode, browserInfo.toString(), jsFilePath, fileResult.getMessage());
       }
     }
   }
@@ -66,7 +67,7 @@ public class IdeaTestListener implements TestListener {
           testCase.getName(),
           testName
         );
-        myTreeManager.onTestRegistered(testPath);
+        myTreeManager.onTestRegistered(myConfigNode, testPath);
       }
     }
   }
@@ -75,7 +76,7 @@ public class IdeaTestListener implements TestListener {
   public void onTestComplete(TestResult testResult) {
     synchronized (MONITOR) {
       TestPath testPath = myTestPathFactory.createTestPath(testResult);
-      myTreeManager.onTestCompleted(testPath, testResult);
+      myTreeManager.onTestCompleted(myConfigNode, testPath, testResult);
     }
   }
 
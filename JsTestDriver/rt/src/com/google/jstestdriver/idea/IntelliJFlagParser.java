@@ -15,11 +15,9 @@ public class IntelliJFlagParser implements FlagsParser {
 
   private final JstdSettings mySettings;
   private final FlagsParser myOriginal;
-  private final boolean myDryRun;
 
-  public IntelliJFlagParser(@NotNull JstdSettings settings, boolean dryRun) {
+  public IntelliJFlagParser(@NotNull JstdSettings settings) {
     mySettings = settings;
-    myDryRun = dryRun;
     myOriginal = new Args4jFlagsParser();
   }
 
@@ -34,11 +32,6 @@ public class IntelliJFlagParser implements FlagsParser {
 
   private void fix(@NotNull FlagsImpl flags) {
     List<String> tests = mySettings.getTestFileScope().toJstdList();
-    if (myDryRun) {
-      flags.setDryRunFor(tests);
-    }
-    else {
-      flags.setTests(tests);
-    }
+    flags.setTests(tests);
   }
 }
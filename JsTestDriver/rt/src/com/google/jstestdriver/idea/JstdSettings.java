@@ -18,6 +18,8 @@ import java.util.Map;
 */
 public class JstdSettings {
 
+  private static final int DEFAULT_PARALLELISM = 4;
+
   private final String myServerUrl;
   private final List<File> myConfigFiles;
   private final File myRunAllConfigsInDirectory;
@@ -25,6 +27,8 @@ public class JstdSettings {
   private final File myIdeCoverageFile;
   private final ImmutableList<String> myFilesExcludedFromCoverage;
   private final boolean myDebug;
+  private final int myParallelism;
+  private final File myTestEnumerationCacheFile;
 
   public JstdSettings(@NotNull String serverUrl,
                       @NotNull List<File> configFiles,
@@ -32,7 +36,9 @@ public class JstdSettings {
                       @NotNull TestFileScope testFileScope,
                       @Nullable File ideCoverageFile,
                       @NotNull List<String> filesExcludedFromCoverage,
-                      boolean debug)
+                      boolean debug,
+                      int parallelism,
+                      @Nullable File testEnumerationCacheFile)
   {
     myServerUrl = serverUrl;
     myConfigFiles = configFiles;
@@ -41,6 +47,8 @@ public class JstdSettings {
     myIdeCoverageFile = ideCoverageFile;
     myFilesExcludedFromCoverage = ImmutableList.copyOf(filesExcludedFromCoverage);
     myDebug = debug;
+    myParallelism = parallelism;
+    myTestEnumerationCacheFile = testEnumerationCacheFile;
   }
 
   @NotNull
@@ -100,6 +108,21 @@ public class JstdSettings {
     return myDebug;
   }
 
+  /**
+   * @return maximum number of configs running at the same time
+   */
+  public int getParallelism() {
+    return myParallelism;
+  }
+
+  /**
+   * @return file to cache tests found in test files in, or null to cache them in memory only
+   */
+  @Nullable
+  public File getTestEnumerationCacheFile() {
+    return myTestEnumerationCacheFile;
+  }
+
   @NotNull
   public static JstdSettings build(@NotNull Map<TestRunner.ParameterKey, String> parameters) {
     String serverUrl = parameters.get(TestRunner.ParameterKey.SERVER_URL);
@@ -145,6 +168,20 @@ public class JstdSettings {
       excludedPaths = EscapeUtils.split(joinedPaths, ',');
     }
     boolean debug = Boolean.TRUE.toString().equals(parameters.get(TestRunner.ParameterKey.DEBUG));
+    int parallelism = DEFAULT_PARALLELISM;
+    String parallelismStr = parameters.get(TestRunner.ParameterKey.PARALLELISM);
+    if (parallelismStr != null) {
+      try {
+        parallelism = Math.max(1, Integer.parseInt(parallelismStr));
+      }
+      catch (NumberFormatException ignored) {
+      }
+    }
+    String testEnumerationCacheFilePath = parameters.get(TestRunner.ParameterKey.TEST_ENUMERATION_CACHE_FILE);
+    File testEnumerationCacheFile = null;
+    if (testEnumerationCacheFilePath != null && !testEnumerationCacheFilePath.isEmpty()) {
+      testEnumerationCacheFile = new File(testEnumerationCacheFilePath);
+    }
     return new JstdSettings(
       serverUrl,
       configFiles,
@@ -152,7 +189,9 @@ public class JstdSettings {
       testFileScope,
       ideCoverageFile,
       excludedPaths,
-      debug
+      debug,
+      parallelism,
+      testEnumerationCacheFile
     );
   }
 
@@ -32,12 +32,13 @@ import com.google.jstestdriver.hooks.TestListener;
 import com.google.jstestdriver.idea.coverage.CoverageReport;
 import com.google.jstestdriver.idea.coverage.CoverageSerializationUtils;
 import com.google.jstestdriver.idea.coverage.CoverageSession;
+import com.google.jstestdriver.idea.execution.tree.ConfigNode;
 import com.google.jstestdriver.idea.execution.tree.TreeManager;
+import com.google.jstestdriver.idea.server.JstdBrowserInfo;
 import com.google.jstestdriver.idea.server.JstdServerFetchResult;
+import com.google.jstestdriver.idea.server.JstdServerInfo;
 import com.google.jstestdriver.idea.server.JstdServerUtilsRt;
-import com.google.jstestdriver.idea.util.EscapeUtils;
-import com.google.jstestdriver.idea.util.JstdConfigParsingUtils;
-import com.google.jstestdriver.idea.util.JstdUtils;
+import com.google.jstestdriver.idea.util.*;
 import com.google.jstestdriver.output.TestResultHolder;
 import com.google.jstestdriver.runner.RunnerMode;
 import org.jetbrains.annotations.NotNull;
@@ -45,10 +46,11 @@ import org.jetbrains.annotations.Nullable;
 import org.joda.time.DateTime;
 
 import java.io.*;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Main class of JsTestDriver test runner, that runs tests in a separate process and streams messages
@@ -67,16 +69,29 @@ public class TestRunner {
     TESTS,
     COVERAGE_OUTPUT_FILE,
     COVERAGE_EXCLUDED_PATHS,
-    DEBUG
+    DEBUG,
+    PARALLELISM,
+    TEST_ENUMERATION_CACHE_FILE
   }
 
   private final JstdSettings mySettings;
   private final TreeManager myTreeManager;
+  private final List<BrowserInfo> myCapturedBrowsers;
   private final CoverageSession myCoverageSession;
 
-  public TestRunner(@NotNull JstdSettings settings, @NotNull TreeManager treeManager) {
+  public TestRunner(@NotNull JstdSettings settings,
+                    @NotNull TreeManager treeManager,
+                    @NotNull List<JstdBrowserInfo> capturedBrowsers) {
     mySettings = settings;
     myTreeManager = treeManager;
+    myCapturedBrowsers = Lists.newArrayListWithExpectedSize(capturedBrowsers.size());
+    for (JstdBrowserInfo capturedBrowser : capturedBrowsers) {
+      BrowserInfo browserInfo = new BrowserInfo();
+      browserInfo.setName(capturedBrowser.getName());
+      browserInfo.setVersion(capturedBrowser.getVersion());
+      browserInfo.setOs(capturedBrowser.getOs());
+      myCapturedBrowsers.add(browserInfo);
+    }
     File ideCoverageFile = mySettings.getIdeCoverageFile();
     if (ideCoverageFile != null) {
       myCoverageSession = new CoverageSession(ideCoverageFile);
@@ -85,38 +100,160 @@ public class TestRunner {
     }
   }
 
-  public void executeAll() {
-    for (File config : mySettings.getConfigFiles()) {
-      executeTests(config);
+  /**
+   * Runs the configs at the same time, at most {@link JstdSettings#getParallelism()} of them.
+   * The JsTestDriver server runs one session per captured browser at a time, so the configs queue up there
+   * for each browser, without interfering with each other.
+   */
+  public void executeAll() throws InterruptedException {
+    PrintStream nullSystemOut = new PrintStream(new NullOutputStream());
+    try {
+      System.setOut(nullSystemOut);
+      List<File> configFiles = mySettings.getConfigFiles();
+      enumerateTests(configFiles);
+      int threadCount = mySettings.isDebug() ? 1 : Math.min(mySettings.getParallelism(), configFiles.size());
+      if (threadCount <= 1) {
+        for (File config : configFiles) {
+          executeTests(config);
+        }
+      }
+      else {
+        executeInParallel(configFiles, threadCount);
+      }
+    } finally {
+      nullSystemOut.close();
+      System.setOut(myTreeManager.getSystemOutStream());
     }
     if (myCoverageSession != null) {
       myCoverageSession.finish();
     }
   }
 
+  private void executeInParallel(@NotNull List<File> configFiles, int threadCount) throws InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    try {
+      List<Future<?>> futures = Lists.newArrayList();
+      for (final File config : configFiles) {
+        futures.add(executor.submit(new Runnable() {
+          @Override
+          public void run() {
+            executeTests(config);
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          myTreeManager.printThrowable(e.getCause());
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
   private void executeTests(@NotNull File config) {
     Exception exception = null;
-    PrintStream nullSystemOut = new PrintStream(new NullOutputStream());
+    ConfigNode configNode = myTreeManager.onJstdConfigRunningStarted(config);
     try {
-      System.setOut(nullSystemOut);
-      myTreeManager.onJstdConfigRunningStarted(config);
-      String runScope = mySettings.getTestFileScope().toJstdStr();
-      runTests(config, new String[]{"--dryRunFor", runScope}, true);
-      myTreeManager.reportTotalTestCount();
-      runTests(config, new String[]{"--tests", runScope}, false);
+      runTests(configNode, config);
     } catch (ConfigurationException ce) {
       exception = ce;
     } catch (Exception e) {
       exception = new Exception("Can't run tests. Details:", e);
     } finally {
-      myTreeManager.onJstdConfigRunningFinished(exception, mySettings.getTestFileScope());
-      nullSystemOut.close();
-      System.setOut(myTreeManager.getSystemOutStream());
+      myTreeManager.onJstdConfigRunningFinished(configNode, exception, mySettings.getTestFileScope());
+    }
+  }
+
+  /**
+   * Finds the tests to run in the test files instead of a dry run of each config, and reports their number.
+   * The number isn't reported if tests of some config can't be found.
+   * The tests are found heuristically, so they are only counted; the tree gets the tests JsTestDriver reports.
+   */
+  private void enumerateTests(@NotNull List<File> configFiles) {
+    JstdTestEnumerator enumerator = new JstdTestEnumerator(mySettings.getTestEnumerationCacheFile());
+    int testCount = 0;
+    boolean allCounted = true;
+    try {
+      for (File configFile : configFiles) {
+        Map<File, Map<String, Set<String>>> testsByFile = enumerateTests(configFile, enumerator);
+        if (testsByFile == null) {
+          allCounted = false;
+          continue;
+        }
+        int configTestCount = 0;
+        for (Map<String, Set<String>> fileTests : testsByFile.values()) {
+          for (Set<String> tests : fileTests.values()) {
+            configTestCount += tests.size();
+          }
+        }
+        if (configTestCount == 0) {
+          allCounted = false;
+        }
+        testCount += configTestCount;
+      }
+    } finally {
+      enumerator.save();
+    }
+    if (allCounted) {
+      myTreeManager.reportTotalTestCount(testCount * myCapturedBrowsers.size());
     }
   }
 
+  /**
+   * @return test methods by test case name by test file of the config, limited to the test scope,
+   *         or null if they can't be found
+   */
+  @Nullable
+  private Map<File, Map<String, Set<String>>> enumerateTests(@NotNull File configFile, @NotNull JstdTestEnumerator enumerator) {
+    ResolvedConfiguration resolvedConfiguration;
+    try {
+      ParsedConfiguration parsedConfiguration = JstdConfigParsingUtils.parseConfiguration(configFile);
+      resolvedConfiguration = JstdConfigParsingUtils.resolveConfiguration(parsedConfiguration);
+    } catch (Exception e) {
+      // will be reported when running the config
+      return null;
+    }
+    if (JstdUtils.isJasmineTests(resolvedConfiguration)) {
+      return null;
+    }
+    TestFileScope scope = mySettings.getTestFileScope();
+    Map<File, Map<String, Set<String>>> testsByFile = Maps.newLinkedHashMap();
+    for (String testFilePath : getTestFilePaths(resolvedConfiguration)) {
+      File testFile = new File(testFilePath);
+      Map<String, Set<String>> fileTests;
+      try {
+        fileTests = enumerator.getTests(testFile);
+      } catch (IOException e) {
+        return null;
+      }
+      Map<String, Set<String>> scopedTests = Maps.newLinkedHashMap();
+      for (Map.Entry<String, Set<String>> entry : fileTests.entrySet()) {
+        String testCaseName = entry.getKey();
+        if (!scope.containsTestCase(testCaseName)) {
+          continue;
+        }
+        Set<String> tests = new LinkedHashSet<String>();
+        for (String testName : entry.getValue()) {
+          if (scope.containsTestCaseAndMethod(testCaseName, testName)) {
+            tests.add(testName);
+          }
+        }
+        if (!tests.isEmpty()) {
+          scopedTests.put(testCaseName, tests);
+        }
+      }
+      if (!scopedTests.isEmpty()) {
+        testsByFile.put(testFile, scopedTests);
+      }
+    }
+    return testsByFile;
+  }
+
   @SuppressWarnings("deprecation")
-  private void runTests(@NotNull final File configFile, @NotNull String[] extraArgs, final boolean dryRun) throws ConfigurationException {
+  private void runTests(@NotNull final ConfigNode configNode, @NotNull final File configFile) throws ConfigurationException {
     JsTestDriverBuilder builder = new JsTestDriverBuilder();
 
     final ParsedConfiguration parsedConfiguration;
@@ -128,7 +265,7 @@ public class TestRunner {
                                        "Details:", e);
     }
     final File singleBasePath = JstdConfigParsingUtils.getSingleBasePath(parsedConfiguration.getBasePaths(), configFile);
-    myTreeManager.setCurrentBasePath(singleBasePath.getAbsolutePath());
+    configNode.setBasePath(singleBasePath.getAbsolutePath());
     JstdConfigParsingUtils.wipeCoveragePlugin(parsedConfiguration);
     builder.setDefaultConfiguration(parsedConfiguration);
     builder.withPluginInitializer(new PluginInitializer() {
@@ -141,9 +278,9 @@ public class TestRunner {
             testListeners.addBinding().to(TestResultHolder.class);
             testListeners.addBinding().toInstance(new IdeaTestListener(
               myTreeManager,
+              configNode,
               configFile,
               singleBasePath,
-              dryRun,
               mySettings.getTestFileScope()
             ));
           }
@@ -156,15 +293,12 @@ public class TestRunner {
 
     List<String> flagArgs = Lists.newArrayList("--captureConsole", "--server", mySettings.getServerUrl());
     ResolvedConfiguration resolvedConfiguration = JstdConfigParsingUtils.resolveConfiguration(parsedConfiguration);
-    if (dryRun && JstdUtils.isJasmineTests(resolvedConfiguration)) {
-      // https://github.com/ibolmo/jasmine-jstd-adapter/pull/21
-      flagArgs.add("--reset");
-    }
-    flagArgs.addAll(Arrays.asList(extraArgs));
+    flagArgs.add("--tests");
+    flagArgs.add(mySettings.getTestFileScope().toJstdStr());
     List<String> coverageExcludedFiles = null;
     File emptyOutputDir = null;
     boolean runCoverage = false;
-    if (myCoverageSession != null && !dryRun) {
+    if (myCoverageSession != null) {
       emptyOutputDir = createTempDir();
       if (emptyOutputDir != null) {
         flagArgs.add("--testOutput");
@@ -182,7 +316,7 @@ public class TestRunner {
     }
 
     builder.setFlags(toStringArray(flagArgs));
-    builder.setFlagsParser(new IntelliJFlagParser(mySettings, dryRun));
+    builder.setFlagsParser(new IntelliJFlagParser(mySettings));
     JsTestDriver jstd = builder.build();
     jstd.runConfiguration();
     if (runCoverage) {
@@ -268,7 +402,8 @@ public class TestRunner {
     Map<ParameterKey, String> paramMap = parseParams(args);
     JstdSettings settings = JstdSettings.build(paramMap);
     TreeManager treeManager = new TreeManager(settings.getRunAllConfigsInDirectory());
-    if (!validateServer(settings, treeManager)) {
+    JstdServerInfo serverInfo = validateServer(settings, treeManager);
+    if (serverInfo == null) {
       System.exit(1);
       return;
     }
@@ -282,7 +417,7 @@ public class TestRunner {
       }
     }
     try {
-      new TestRunner(settings, treeManager).executeAll();
+      new TestRunner(settings, treeManager, serverInfo.getCapturedBrowsers()).executeAll();
     } catch (Exception ex) {
       treeManager.printThrowable("Unexpected crash!", ex);
     } finally {
@@ -290,7 +425,8 @@ public class TestRunner {
     }
   }
 
-  private static boolean validateServer(@NotNull JstdSettings settings, @NotNull TreeManager treeManager) throws IOException {
+  @Nullable
+  private static JstdServerInfo validateServer(@NotNull JstdSettings settings, @NotNull TreeManager treeManager) throws IOException {
     String serverUrl = settings.getServerUrl();
     JstdServerFetchResult fetchResult = JstdServerUtilsRt.syncFetchServerInfo(serverUrl);
     String message = null;
@@ -303,9 +439,9 @@ public class TestRunner {
     }
     if (message != null) {
       treeManager.reportRootError(message);
-      return false;
+      return null;
     }
-    return true;
+    return fetchResult.getServerInfo();
   }
 
   private static Map<ParameterKey, String> parseParams(String[] args) {
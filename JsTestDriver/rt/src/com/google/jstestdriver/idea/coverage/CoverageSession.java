@@ -18,7 +18,7 @@ public class CoverageSession {
     myCoverageReport = new CoverageReport();
   }
 
-  public void finish() {
+  public synchronized void finish() {
     try {
       CoverageSerializationUtils.writeLCOV(myCoverageReport, myIdeCoverageFile);
     }
@@ -27,7 +27,7 @@ public class CoverageSession {
     }
   }
 
-  public void mergeReport(@NotNull CoverageReport report) {
+  public synchronized void mergeReport(@NotNull CoverageReport report) {
     myCoverageReport.mergeReport(report);
   }
 }
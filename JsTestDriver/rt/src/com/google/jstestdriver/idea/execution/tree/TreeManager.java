@@ -16,8 +16,15 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * Builds the test tree and reports it to the IDE as TC messages.
+ * <p/>
+ * Several JsTestDriver configs can run at the same time: each of them has its own {@link ConfigNode},
+ * which is passed to the tree-building methods explicitly. Messages reference their parent nodes by id,
+ * so messages of different configs may interleave.
+ *
  * @author Sergey Simonchik
  */
 public class TreeManager {
@@ -26,8 +33,7 @@ public class TreeManager {
   private final PrintStream myOutStream;
   private final PrintStream myErrStream;
   private final RootNode myRootNode;
-  private ConfigNode myCurrentJstdConfigNode;
-  private int myNextNodeId = 1;
+  private final AtomicInteger myNextNodeId = new AtomicInteger(1);
 
   @SuppressWarnings("UseOfSystemOutOrSystemErr")
   public TreeManager(@Nullable File runAllConfigsInDirectory) {
@@ -37,15 +43,14 @@ public class TreeManager {
     myRootNode = new RootNode(this);
   }
 
-  public void onJstdConfigRunningStarted(@NotNull File jstdConfigFile) {
+  @NotNull
+  public ConfigNode onJstdConfigRunningStarted(@NotNull File jstdConfigFile) {
     String jstdConfigNodeDisplayName = buildJstdConfigDisplayName(jstdConfigFile);
-    myCurrentJstdConfigNode = new ConfigNode(jstdConfigNodeDisplayName, jstdConfigFile, myRootNode);
-    myRootNode.addChild(myCurrentJstdConfigNode);
-  }
-
-  public void setCurrentBasePath(@NotNull String absoluteBasePath) {
-    ConfigNode configNode = getCurrentConfigNode();
-    configNode.setBasePath(absoluteBasePath);
+    ConfigNode configNode = new ConfigNode(jstdConfigNodeDisplayName, jstdConfigFile, myRootNode);
+    synchronized (myRootNode) {
+      myRootNode.addChild(configNode);
+    }
+    return configNode;
   }
 
   private String buildJstdConfigDisplayName(@NotNull File jstdConfigFile) {
@@ -66,12 +71,12 @@ public class TreeManager {
     return displayName;
   }
 
-  public void onTestRegistered(@NotNull TestPath message) {
-    getOrCreateTestNode(message);
+  public void onTestRegistered(@NotNull ConfigNode configNode, @NotNull TestPath message) {
+    getOrCreateTestNode(configNode, message);
   }
 
-  public void onTestCompleted(@NotNull TestPath testPath, @NotNull TestResult testResult) {
-    TestNode testNode = getOrCreateTestNode(testPath);
+  public void onTestCompleted(@NotNull ConfigNode configNode, @NotNull TestPath testPath, @NotNull TestResult testResult) {
+    TestNode testNode = getOrCreateTestNode(configNode, testPath);
     testNode.detachFromParent();
     String log = testResult.getLog();
     if (log != null && !log.isEmpty()) {
@@ -107,26 +112,16 @@ public class TreeManager {
     }
   }
 
-  public void reportTotalTestCount() {
-    ConfigNode configNode = myCurrentJstdConfigNode;
-    if (configNode != null) {
-      int testCount = 0;
-      for (BrowserNode browserNode : configNode.getChildren()) {
-        for (TestCaseNode testCaseNode : browserNode.getChildren()) {
-          testCount += testCaseNode.getChildren().size();
-        }
-      }
-      if (testCount > 0) {
-        TCMessage tcMessage = new TCMessage(TCCommand.TEST_COUNT);
-        tcMessage.addAttribute(TCAttribute.TEST_COUNT, String.valueOf(testCount));
-        printTCMessage(tcMessage);
-      }
+  public void reportTotalTestCount(int testCount) {
+    if (testCount > 0) {
+      TCMessage tcMessage = new TCMessage(TCCommand.TEST_COUNT);
+      tcMessage.addAttribute(TCAttribute.TEST_COUNT, String.valueOf(testCount));
+      printTCMessage(tcMessage);
     }
   }
 
   @NotNull
-  private TestNode getOrCreateTestNode(@NotNull TestPath testPath) {
-    ConfigNode configNode = getCurrentConfigNode();
+  private static TestNode getOrCreateTestNode(@NotNull ConfigNode configNode, @NotNull TestPath testPath) {
     BrowserNode browserNode = configNode.findChildByName(testPath.getBrowserDisplayName());
     if (browserNode == null) {
       browserNode = new BrowserNode(testPath.getBrowserDisplayName(), configNode);
@@ -148,15 +143,6 @@ public class TreeManager {
     return testNode;
   }
 
-  @NotNull
-  private ConfigNode getCurrentConfigNode() {
-    ConfigNode configNode = myCurrentJstdConfigNode;
-    if (configNode == null) {
-      throw new RuntimeException("Current " + ConfigNode.class.getSimpleName() + " is null!");
-    }
-    return configNode;
-  }
-
   public void printThrowable(@NotNull String message, @NotNull Throwable t) {
     String fullMessage = formatMessage(message, t);
     myErrStream.println(fullMessage);
@@ -172,8 +158,9 @@ public class TreeManager {
     return myOutStream;
   }
 
-  public void onJstdConfigRunningFinished(@Nullable Exception testsRunException, @NotNull TestFileScope testFileScope) {
-    ConfigNode configNode = getCurrentConfigNode();
+  public void onJstdConfigRunningFinished(@NotNull ConfigNode configNode,
+                                          @Nullable Exception testsRunException,
+                                          @NotNull TestFileScope testFileScope) {
     for (BrowserNode browserNode : configNode.getChildren()) {
       for (TestCaseNode testCaseNode : browserNode.getChildren()) {
         for (TestNode testNode : testCaseNode.getChildren()) {
@@ -223,10 +210,11 @@ public class TreeManager {
   }
 
   public int getNextNodeId() {
-    return myNextNodeId++;
+    return myNextNodeId.getAndIncrement();
   }
 
   public void printTCMessage(@NotNull TCMessage message) {
+    // a single print call, so that messages of configs running in parallel don't mix
     myOutStream.print(message.getText() + "\n");
   }
 
@@ -239,10 +227,10 @@ public class TreeManager {
     printTCMessage(finishedMessage);
   }
 
-  public void onFileLoadError(@NotNull String browserName,
+  public void onFileLoadError(@NotNull ConfigNode configNode,
+                              @NotNull String browserName,
                               @Nullable String pathToJsFileWithError,
                               @Nullable String errorMessage) {
-    ConfigNode configNode = getCurrentConfigNode();
     BrowserNode browserNode = configNode.findChildByName(browserName);
     if (browserNode == null) {
       browserNode = new BrowserNode(browserName, configNode);
@@ -0,0 +1,330 @@
+package com.google.jstestdriver.idea.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds JsTestDriver test cases and their test methods in test files without running them.
+ * <p/>
+ * The file text is scanned for {@code TestCase("Name", {testA: ...})}, {@code AsyncTestCase(...)} and
+ * {@code Name.prototype.testA = ...} definitions, so it is a heuristic: tests defined in a more dynamic way are missed.
+ * <p/>
+ * Results are cached by file path, modification time and size, in memory and optionally in a cache file
+ * shared by test runs. The cache file keeps the files used most recently only.
+ */
+public class JstdTestEnumerator {
+
+  private static final char FIELD_SEPARATOR = '\t';
+  private static final int MAX_CACHED_FILES = 5000;
+  // the last use time of a cached file is saved again when it is older than this, not after each use
+  private static final long LAST_USED_PRECISION_MILLIS = 24 * 60 * 60 * 1000L;
+  private static final Pattern TEST_CASE_PATTERN = Pattern.compile(
+    "(?:([\\w$]+)\\s*=\\s*)?\\b(?:Async)?TestCase\\s*\\(\\s*(['\"])((?:\\\\.|(?!\\2).)*)\\2\\s*(,\\s*\\{)?"
+  );
+  private static final Pattern PROTOTYPE_PATTERN = Pattern.compile(
+    "\\b([\\w$]+)\\.prototype(?:\\.(test[\\w$]*)\\s*=(?!=)|\\s*=\\s*\\{)"
+  );
+  private static final Pattern KEY_PATTERN = Pattern.compile("\\G\\s*(?:([\\w$]+)|(['\"])((?:\\\\.|(?!\\2).)*)\\2)\\s*:");
+
+  private final File myCacheFile;
+  private final int myMaxCachedFiles;
+  private final Map<String, Entry> myEntries = new ConcurrentHashMap<String, Entry>();
+  private volatile boolean myModified;
+
+  /**
+   * @param cacheFile file to load the cache from and to save it to, or null to cache in memory only
+   */
+  public JstdTestEnumerator(@Nullable File cacheFile) {
+    this(cacheFile, MAX_CACHED_FILES);
+  }
+
+  JstdTestEnumerator(@Nullable File cacheFile, int maxCachedFiles) {
+    myCacheFile = cacheFile;
+    myMaxCachedFiles = maxCachedFiles;
+    if (cacheFile != null && cacheFile.isFile()) {
+      try {
+        load(cacheFile);
+      }
+      catch (Exception e) {
+        myEntries.clear();
+      }
+    }
+  }
+
+  /**
+   * @return test methods by test case name
+   */
+  @NotNull
+  public Map<String, Set<String>> getTests(@NotNull File testFile) throws IOException {
+    String path = testFile.getAbsolutePath();
+    long modified = testFile.lastModified();
+    long length = testFile.length();
+    long now = System.currentTimeMillis();
+    Entry entry = myEntries.get(path);
+    if (entry == null || entry.myModified != modified || entry.myLength != length) {
+      entry = new Entry(modified, length, now, enumerate(readText(testFile)));
+      myEntries.put(path, entry);
+      myModified = true;
+    }
+    else if (now - entry.myLastUsed > LAST_USED_PRECISION_MILLIS) {
+      entry.myLastUsed = now;
+      myModified = true;
+    }
+    return entry.myTests;
+  }
+
+  /**
+   * Writes the cache file, if there is anything new to write.
+   * Only the files used most recently are written, at most {@link #MAX_CACHED_FILES} of them.
+   */
+  public void save() {
+    if (myCacheFile == null || !myModified) {
+      return;
+    }
+    List<Map.Entry<String, Entry>> mapEntries = new ArrayList<Map.Entry<String, Entry>>(myEntries.entrySet());
+    Collections.sort(mapEntries, new Comparator<Map.Entry<String, Entry>>() {
+      @Override
+      public int compare(Map.Entry<String, Entry> o1, Map.Entry<String, Entry> o2) {
+        long lastUsed1 = o1.getValue().myLastUsed;
+        long lastUsed2 = o2.getValue().myLastUsed;
+        return lastUsed1 > lastUsed2 ? -1 : lastUsed1 < lastUsed2 ? 1 : 0;
+      }
+    });
+    if (mapEntries.size() > myMaxCachedFiles) {
+      mapEntries = mapEntries.subList(0, myMaxCachedFiles);
+    }
+    try {
+      File cacheDir = myCacheFile.getParentFile();
+      if (cacheDir != null && !cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+        return;
+      }
+      File tempFile = File.createTempFile(myCacheFile.getName(), ".tmp", cacheDir);
+      Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8");
+      try {
+        for (Map.Entry<String, Entry> mapEntry : mapEntries) {
+          Entry entry = mapEntry.getValue();
+          String tests = entry.myTests.isEmpty() ? "" : TestFileScope.customScope(entry.myTests).serialize();
+          List<String> fields = Arrays.asList(mapEntry.getKey(), String.valueOf(entry.myModified),
+                                              String.valueOf(entry.myLength), String.valueOf(entry.myLastUsed), tests);
+          writer.write(EscapeUtils.join(fields, FIELD_SEPARATOR));
+          writer.write('\n');
+        }
+      }
+      finally {
+        writer.close();
+      }
+      if (!tempFile.renameTo(myCacheFile)) {
+        // Windows can't rename over an existing file
+        if (!myCacheFile.delete() || !tempFile.renameTo(myCacheFile)) {
+          //noinspection ResultOfMethodCallIgnored
+          tempFile.delete();
+          return;
+        }
+      }
+      myModified = false;
+    }
+    catch (IOException ignored) {
+      // the cache is an optimization only
+    }
+  }
+
+  private void load(@NotNull File cacheFile) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(cacheFile), "UTF-8"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        List<String> fields = EscapeUtils.split(line, FIELD_SEPARATOR);
+        if (fields.size() != 5) {
+          continue;
+        }
+        Map<String, Set<String>> tests = Collections.emptyMap();
+        if (!fields.get(4).isEmpty()) {
+          tests = TestFileScope.deserialize(fields.get(4)).getMethodsByCaseMap();
+        }
+        myEntries.put(fields.get(0), new Entry(Long.parseLong(fields.get(1)), Long.parseLong(fields.get(2)),
+                                               Long.parseLong(fields.get(3)), tests));
+      }
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  @NotNull
+  private static String readText(@NotNull File file) throws IOException {
+    Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+    try {
+      StringBuilder text = new StringBuilder((int)file.length());
+      char[] buffer = new char[8192];
+      int read;
+      while ((read = reader.read(buffer)) >= 0) {
+        text.append(buffer, 0, read);
+      }
+      return text.toString();
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * @return test methods by test case name, found in the JavaScript text
+   */
+  @NotNull
+  public static Map<String, Set<String>> enumerate(@NotNull String text) {
+    String code = removeComments(text);
+    Map<String, Set<String>> tests = new LinkedHashMap<String, Set<String>>();
+    Map<String, String> testCaseNameByVariable = new HashMap<String, String>();
+
+    Matcher testCaseMatcher = TEST_CASE_PATTERN.matcher(code);
+    while (testCaseMatcher.find()) {
+      String testCaseName = testCaseMatcher.group(3);
+      Set<String> testNames = getOrCreateTestNames(tests, testCaseName);
+      if (testCaseMatcher.group(1) != null) {
+        testCaseNameByVariable.put(testCaseMatcher.group(1), testCaseName);
+      }
+      if (testCaseMatcher.group(4) != null) {
+        collectTestKeys(code, testCaseMatcher.end() - 1, testNames);
+      }
+    }
+
+    Matcher prototypeMatcher = PROTOTYPE_PATTERN.matcher(code);
+    while (prototypeMatcher.find()) {
+      String testCaseName = testCaseNameByVariable.get(prototypeMatcher.group(1));
+      if (testCaseName == null) {
+        continue;
+      }
+      Set<String> testNames = getOrCreateTestNames(tests, testCaseName);
+      if (prototypeMatcher.group(2) != null) {
+        testNames.add(prototypeMatcher.group(2));
+      }
+      else {
+        collectTestKeys(code, prototypeMatcher.end() - 1, testNames);
+      }
+    }
+    return tests;
+  }
+
+  @NotNull
+  private static Set<String> getOrCreateTestNames(@NotNull Map<String, Set<String>> tests, @NotNull String testCaseName) {
+    Set<String> testNames = tests.get(testCaseName);
+    if (testNames == null) {
+      testNames = new LinkedHashSet<String>();
+      tests.put(testCaseName, testNames);
+    }
+    return testNames;
+  }
+
+  /**
+   * Collects keys starting with "test" of the object literal starting at the given '{'.
+   */
+  private static void collectTestKeys(@NotNull String code, int openBraceOffset, @NotNull Set<String> testNames) {
+    Matcher keyMatcher = KEY_PATTERN.matcher(code);
+    int depth = 0;
+    int i = openBraceOffset;
+    while (i < code.length()) {
+      char c = code.charAt(i);
+      if (c == '{' || c == '(' || c == '[') {
+        depth++;
+      }
+      else if (c == '}' || c == ')' || c == ']') {
+        depth--;
+        if (depth == 0) {
+          return;
+        }
+      }
+      else if (c == '\'' || c == '"') {
+        i = skipString(code, i);
+        continue;
+      }
+      if (depth == 1 && (c == '{' || c == ',') && keyMatcher.find(i + 1)) {
+        String key = keyMatcher.group(1) != null ? keyMatcher.group(1) : keyMatcher.group(3);
+        if (key.startsWith("test")) {
+          testNames.add(key);
+        }
+        i = keyMatcher.end();
+        continue;
+      }
+      i++;
+    }
+  }
+
+  /**
+   * @return offset after the string literal starting at the given offset
+   */
+  private static int skipString(@NotNull String code, int offset) {
+    char quote = code.charAt(offset);
+    int i = offset + 1;
+    while (i < code.length()) {
+      char c = code.charAt(i);
+      if (c == '\\') {
+        i += 2;
+        continue;
+      }
+      i++;
+      if (c == quote || c == '\n') {
+        break;
+      }
+    }
+    return i;
+  }
+
+  /**
+   * Replaces comments with spaces, keeping string literals and offsets.
+   */
+  @NotNull
+  private static String removeComments(@NotNull String text) {
+    StringBuilder code = new StringBuilder(text);
+    int i = 0;
+    while (i < text.length()) {
+      char c = text.charAt(i);
+      char next = i + 1 < text.length() ? text.charAt(i + 1) : 0;
+      if (c == '\'' || c == '"') {
+        i = skipString(text, i);
+      }
+      else if (c == '/' && (next == '/' || next == '*')) {
+        int end;
+        if (next == '/') {
+          end = text.indexOf('\n', i);
+        }
+        else {
+          end = text.indexOf("*/", i + 2);
+          end = end < 0 ? -1 : end + 2;
+        }
+        if (end < 0) {
+          end = text.length();
+        }
+        for (int j = i; j < end; j++) {
+          if (code.charAt(j) != '\n') {
+            code.setCharAt(j, ' ');
+          }
+        }
+        i = end;
+      }
+      else {
+        i++;
+      }
+    }
+    return code.toString();
+  }
+
+  private static class Entry {
+    private final long myModified;
+    private final long myLength;
+    private volatile long myLastUsed;
+    private final Map<String, Set<String>> myTests;
+
+    private Entry(long modified, long length, long lastUsed, @NotNull Map<String, Set<String>> tests) {
+      myModified = modified;
+      myLength = length;
+      myLastUsed = lastUsed;
+      myTests = Collections.unmodifiableMap(tests);
+    }
+  }
+}
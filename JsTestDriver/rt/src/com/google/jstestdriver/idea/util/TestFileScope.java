@@ -126,6 +126,11 @@ public class TestFileScope {
     return myAll;
   }
 
+  @NotNull
+  Map<String, Set<String>> getMethodsByCaseMap() {
+    return myMethodsByCaseMap;
+  }
+
   public String serialize() {
     if (myAll) {
       throw new RuntimeException("Can't serialize for all tests");
@@ -34,6 +34,7 @@ import com.intellij.execution.ui.ConsoleView;
 import com.intellij.javascript.testFramework.TestFileStructureManager;
 import com.intellij.javascript.testFramework.TestFileStructurePack;
 import com.intellij.lang.javascript.psi.JSFile;
+import com.intellij.openapi.application.PathManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.vfs.VfsUtil;
@@ -56,6 +57,7 @@ import static java.io.File.pathSeparator;
 public class JstdTestRunnerCommandLineState extends CommandLineState {
 
   private static final String JSTD_FRAMEWORK_NAME = "JsTestDriver";
+  private static final String PARALLELISM_PROPERTY = "jstestdriver.parallel.configs";
   private static final Function<File, String> GET_ABSOLUTE_PATH = new Function<File, String>() {
     @Override
     public String apply(File file) {
@@ -207,6 +209,13 @@ public class JstdTestRunnerCommandLineState extends CommandLineState {
     if (myDebug) {
       parameters.put(TestRunner.ParameterKey.DEBUG, Boolean.TRUE.toString());
     }
+    String parallelism = System.getProperty(PARALLELISM_PROPERTY);
+    if (parallelism != null) {
+      parameters.put(TestRunner.ParameterKey.PARALLELISM, parallelism);
+    }
+    File testEnumerationCacheFile = new File(PathManager.getSystemPath(),
+                                             "jstestdriver/tests." + myProject.getLocationHash() + ".cache");
+    parameters.put(TestRunner.ParameterKey.TEST_ENUMERATION_CACHE_FILE, testEnumerationCacheFile.getAbsolutePath());
     return parameters;
   }
 
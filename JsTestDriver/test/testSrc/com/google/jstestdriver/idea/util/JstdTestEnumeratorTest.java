@@ -0,0 +1,119 @@
+package com.google.jstestdriver.idea.util;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.*;
+
+/**
+ * @author Sergey Simonchik
+ */
+public class JstdTestEnumeratorTest {
+
+  @Test
+  public void testObjectLiteral() throws Exception {
+    Map<String, Set<String>> tests = JstdTestEnumerator.enumerate(
+      "TestCase('Foo', {\n" +
+      "  setUp: function() { this.x = {testNested: 1}; },\n" +
+      "  testA: function() { assertEquals('}', '{'); },\n" +
+      "  // testCommented: function() {},\n" +
+      "  'testB': function() {},\n" +
+      "  helper: function() {}\n" +
+      "});\n" +
+      "AsyncTestCase(\"Bar\", {testC: function(queue) {}});"
+    );
+    assertTests(tests, "Foo", "testA", "testB");
+    assertTests(tests, "Bar", "testC");
+    Assert.assertEquals(2, tests.size());
+  }
+
+  @Test
+  public void testPrototype() throws Exception {
+    Map<String, Set<String>> tests = JstdTestEnumerator.enumerate(
+      "var FooTest = TestCase('Foo');\n" +
+      "FooTest.prototype.testA = function() {};\n" +
+      "FooTest.prototype.helper = function() {};\n" +
+      "/* FooTest.prototype.testCommented = function() {}; */\n" +
+      "BarTest = TestCase('Bar');\n" +
+      "BarTest.prototype = {\n" +
+      "  testB: function() {},\n" +
+      "  testC: function() {}\n" +
+      "};\n" +
+      "Unknown.prototype.testD = function() {};"
+    );
+    assertTests(tests, "Foo", "testA");
+    assertTests(tests, "Bar", "testB", "testC");
+    Assert.assertEquals(2, tests.size());
+  }
+
+  @Test
+  public void testCacheFile() throws Exception {
+    File dir = createTempDir();
+    File testFile = new File(dir, "test.js");
+    File cacheFile = new File(dir, "tests.cache");
+    write(testFile, "TestCase('Foo', {testA: function() {}, testB: function() {}});");
+
+    JstdTestEnumerator enumerator = new JstdTestEnumerator(cacheFile);
+    assertTests(enumerator.getTests(testFile), "Foo", "testA", "testB");
+    enumerator.save();
+    Assert.assertTrue(cacheFile.isFile());
+
+    long lastModified = testFile.lastModified();
+    long length = testFile.length();
+    // the same size and time stamp, so the cached tests are expected
+    write(testFile, "TestCase('Bar', {testA: function() {}, testB: function() {}});");
+    Assert.assertTrue(testFile.setLastModified(lastModified));
+    Assert.assertEquals(length, testFile.length());
+    assertTests(new JstdTestEnumerator(cacheFile).getTests(testFile), "Foo", "testA", "testB");
+
+    Assert.assertTrue(testFile.setLastModified(lastModified + 2000));
+    assertTests(new JstdTestEnumerator(cacheFile).getTests(testFile), "Bar", "testA", "testB");
+  }
+
+  @Test
+  public void testCacheFileKeepsRecentlyUsedFiles() throws Exception {
+    File dir = createTempDir();
+    File cacheFile = new File(new File(dir, "cache"), "tests.cache");
+    JstdTestEnumerator enumerator = new JstdTestEnumerator(cacheFile, 2);
+    List<File> testFiles = new ArrayList<File>();
+    for (String name : Arrays.asList("a", "b", "c")) {
+      File testFile = new File(dir, name + ".js");
+      write(testFile, "TestCase('" + name + "', {testA: function() {}});");
+      assertTests(enumerator.getTests(testFile), name, "testA");
+      testFiles.add(testFile);
+      Thread.sleep(10);
+    }
+    enumerator.save();
+
+    String cacheText = FileUtil.loadFile(cacheFile);
+    Assert.assertFalse(cacheText.contains(testFiles.get(0).getAbsolutePath()));
+    Assert.assertTrue(cacheText.contains(testFiles.get(1).getAbsolutePath()));
+    Assert.assertTrue(cacheText.contains(testFiles.get(2).getAbsolutePath()));
+  }
+
+  private static void assertTests(Map<String, Set<String>> tests, String testCaseName, String... testNames) {
+    Assert.assertEquals(new HashSet<String>(Arrays.asList(testNames)), tests.get(testCaseName));
+  }
+
+  private static void write(File file, String text) throws Exception {
+    FileWriter writer = new FileWriter(file);
+    try {
+      writer.write(text);
+    }
+    finally {
+      writer.close();
+    }
+  }
+
+  private static File createTempDir() throws Exception {
+    File dir = File.createTempFile("jstd-enumerator", "");
+    Assert.assertTrue(dir.delete());
+    Assert.assertTrue(dir.mkdir());
+    dir.deleteOnExit();
+    return dir;
+  }
+
+}
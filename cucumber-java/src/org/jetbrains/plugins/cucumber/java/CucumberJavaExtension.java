@@ -4,11 +4,18 @@ import com.intellij.ide.highlighter.JavaFileType;
 import com.intellij.openapi.fileTypes.FileType;
 import com.intellij.openapi.module.Module;
 import com.intellij.openapi.module.ModuleUtilCore;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.util.Key;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.*;
 import com.intellij.psi.impl.java.stubs.index.JavaFullClassNameIndex;
 import com.intellij.psi.search.GlobalSearchScope;
 import com.intellij.psi.search.searches.AnnotatedElementsSearch;
+import com.intellij.psi.util.CachedValue;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.psi.util.PsiModificationTracker;
 import com.intellij.util.Query;
 import com.intellij.util.containers.ContainerUtil;
 import org.jetbrains.annotations.NotNull;
@@ -16,6 +23,7 @@ import org.jetbrains.annotations.Nullable;
 import org.jetbrains.plugins.cucumber.StepDefinitionCreator;
 import org.jetbrains.plugins.cucumber.java.steps.JavaStepDefinition;
 import org.jetbrains.plugins.cucumber.java.steps.JavaStepDefinitionCreator;
+import org.jetbrains.plugins.cucumber.java.steps.JavaStepDefinitionIndex;
 import org.jetbrains.plugins.cucumber.psi.GherkinFile;
 import org.jetbrains.plugins.cucumber.psi.GherkinRecursiveElementVisitor;
 import org.jetbrains.plugins.cucumber.psi.GherkinStep;
@@ -30,6 +38,7 @@ import java.util.*;
  */
 public class CucumberJavaExtension extends AbstractCucumberExtension {
   public static final String CUCUMBER_RUNTIME_JAVA_STEP_DEF_ANNOTATION = "cucumber.runtime.java.StepDefAnnotation";
+  private static final Key<CachedValue<List<AbstractStepDefinition>>> STEP_DEFINITIONS_KEY = Key.create("java.cucumber.step.definitions");
 
   @Override
   public boolean isStepLikeFile(@NotNull final PsiElement child, @NotNull final PsiElement parent) {
@@ -104,10 +113,37 @@ public class CucumberJavaExtension extends AbstractCucumberExtension {
     return glues;
   }
 
+  /**
+   * Step definitions are cached per module until something changes outside of code blocks
+   * (i.e. not inside method bodies) or project roots change.
+   */
   @Override
-  public List<AbstractStepDefinition> loadStepsFor(@Nullable PsiFile featureFile, @NotNull Module module) {
+  public List<AbstractStepDefinition> loadStepsFor(@Nullable PsiFile featureFile, @NotNull final Module module) {
+    final Project project = module.getProject();
+    return CachedValuesManager.getManager(project).getCachedValue(module, STEP_DEFINITIONS_KEY, new CachedValueProvider<List<AbstractStepDefinition>>() {
+      @Nullable
+      @Override
+      public Result<List<AbstractStepDefinition>> compute() {
+        return Result.create(Collections.unmodifiableList(doLoadStepsFor(module)),
+                             PsiModificationTracker.OUT_OF_CODE_BLOCK_MODIFICATION_COUNT, ProjectRootManager.getInstance(project));
+      }
+    }, false);
+  }
+
+  @NotNull
+  private static List<AbstractStepDefinition> doLoadStepsFor(@NotNull Module module) {
     final GlobalSearchScope dependenciesScope = module.getModuleWithDependenciesAndLibrariesScope(true);
 
+    final List<AbstractStepDefinition> result = new ArrayList<AbstractStepDefinition>();
+    for (PsiMethod stepDefMethod : JavaStepDefinitionIndex.findStepDefinitionCandidates(module.getProject(), dependenciesScope)) {
+      if (CucumberJavaUtil.isStepDefinition(stepDefMethod)) {
+        result.add(new JavaStepDefinition(stepDefMethod));
+      }
+    }
+
+    // Java sources using the standard step annotations are indexed, the other step definitions are still searched for
+    final GlobalSearchScope compiledScope = dependenciesScope.intersectWith(
+      GlobalSearchScope.notScope(GlobalSearchScope.getScopeRestrictedByFileTypes(dependenciesScope, JavaFileType.INSTANCE)));
     Collection<PsiClass> stepDefAnnotationCandidates = JavaFullClassNameIndex.getInstance().get(
       CUCUMBER_RUNTIME_JAVA_STEP_DEF_ANNOTATION.hashCode(), module.getProject(), dependenciesScope);
 
@@ -119,13 +155,15 @@ public class CucumberJavaExtension extends AbstractCucumberExtension {
       }
     }
     if (stepDefAnnotationClass == null) {
-      return Collections.emptyList();
+      return result;
     }
 
-    final List<AbstractStepDefinition> result = new ArrayList<AbstractStepDefinition>();
     final Query<PsiClass> stepDefAnnotations = AnnotatedElementsSearch.searchPsiClasses(stepDefAnnotationClass, dependenciesScope);
     for (PsiClass annotationClass : stepDefAnnotations) {
-      final Query<PsiMethod> javaStepDefinitions = AnnotatedElementsSearch.searchPsiMethods(annotationClass, dependenciesScope);
+      // custom step annotations aren't known to the index, their usages in sources are searched for as well
+      final GlobalSearchScope searchScope =
+        JavaStepDefinitionIndex.isIndexedStepAnnotation(annotationClass.getQualifiedName()) ? compiledScope : dependenciesScope;
+      final Query<PsiMethod> javaStepDefinitions = AnnotatedElementsSearch.searchPsiMethods(annotationClass, searchScope);
       for (PsiMethod stepDefMethod : javaStepDefinitions) {
         result.add(new JavaStepDefinition(stepDefMethod));
       }
@@ -147,6 +147,17 @@ public class CucumberJavaUtil {
     return null;
   }
 
+  /**
+   * @return regex of a step definition from the value of its annotation, or null if the value is too short
+   */
+  @Nullable
+  public static String unescapeStepRegex(@NotNull String annotationValue) {
+    if (annotationValue.length() > 1) {
+      return annotationValue.replace("\\\\", "\\").replace("\\\"", "\"");
+    }
+    return null;
+  }
+
   @Nullable
   public static String getPatternFromStepDefinition(@NotNull final PsiAnnotation stepAnnotation) {
     String result = null;
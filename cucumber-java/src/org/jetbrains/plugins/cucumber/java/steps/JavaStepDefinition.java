@@ -47,10 +47,7 @@ public class JavaStepDefinition extends AbstractStepDefinition {
       final PsiConstantEvaluationHelper evaluationHelper = JavaPsiFacade.getInstance(element.getProject()).getConstantEvaluationHelper();
       final Object constantValue = evaluationHelper.computeConstantExpression(annotationValue, false);
       if (constantValue != null) {
-        String patternText = constantValue.toString();
-        if (patternText.length() > 1) {
-          result = patternText.replace("\\\\", "\\").replace("\\\"", "\"");
-        }
+        result = CucumberJavaUtil.unescapeStepRegex(constantValue.toString());
       }
     }
 
@@ -0,0 +1,225 @@
+package org.jetbrains.plugins.cucumber.java.steps;
+
+import com.intellij.ide.highlighter.JavaFileType;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.*;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.util.PsiTreeUtil;
+import com.intellij.util.indexing.*;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.KeyDescriptor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.plugins.cucumber.java.CucumberJavaUtil;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Maps each Java source file to offsets of its step definition methods, all under the single {@link #KEY}.
+ * <p/>
+ * Nothing is resolved while indexing: an annotation is taken for a step one if its name is imported from a Cucumber
+ * language package (like cucumber.api.java.en). So the methods found have to be checked with
+ * {@link CucumberJavaUtil#isStepDefinition(PsiMethod)}. Custom step annotations aren't recognized,
+ * see {@link #isIndexedStepAnnotation(String)}.
+ */
+public class JavaStepDefinitionIndex extends FileBasedIndexExtension<String, List<Integer>> {
+  public static final ID<String, List<Integer>> INDEX_ID = ID.create("java.cucumber.step.definition");
+  public static final String KEY = "steps";
+  private static final int INDEX_VERSION = 2;
+  private static final String[] CUCUMBER_PACKAGES = {
+    CucumberJavaUtil.CUCUMBER_STEP_ANNOTATION_PREFIX_1_0,
+    CucumberJavaUtil.CUCUMBER_STEP_ANNOTATION_PREFIX_1_1
+  };
+
+  private final DataIndexer<String, List<Integer>, FileContent> myDataIndexer = new MyDataIndexer();
+
+  @NotNull
+  @Override
+  public ID<String, List<Integer>> getName() {
+    return INDEX_ID;
+  }
+
+  @Override
+  public int getVersion() {
+    return INDEX_VERSION;
+  }
+
+  @NotNull
+  @Override
+  public DataIndexer<String, List<Integer>, FileContent> getIndexer() {
+    return myDataIndexer;
+  }
+
+  @NotNull
+  @Override
+  public KeyDescriptor<String> getKeyDescriptor() {
+    return new EnumeratorStringDescriptor();
+  }
+
+  @NotNull
+  @Override
+  public DataExternalizer<List<Integer>> getValueExternalizer() {
+    return new DataExternalizer<List<Integer>>() {
+      @Override
+      public void save(@NotNull DataOutput out, List<Integer> value) throws IOException {
+        out.writeInt(value.size());
+        for (Integer offset : value) {
+          out.writeInt(offset);
+        }
+      }
+
+      @Override
+      public List<Integer> read(@NotNull DataInput in) throws IOException {
+        final int size = in.readInt();
+        final List<Integer> result = new ArrayList<Integer>(size);
+        for (int i = 0; i < size; ++i) {
+          result.add(in.readInt());
+        }
+        return result;
+      }
+    };
+  }
+
+  @NotNull
+  @Override
+  public FileBasedIndex.InputFilter getInputFilter() {
+    return new DefaultFileTypeSpecificInputFilter(JavaFileType.INSTANCE);
+  }
+
+  @Override
+  public boolean dependsOnFileContent() {
+    return true;
+  }
+
+  /**
+   * @return step definition methods found in Java sources of the scope, not checked yet
+   */
+  @NotNull
+  public static List<PsiMethod> findStepDefinitionCandidates(@NotNull final Project project, @NotNull final GlobalSearchScope scope) {
+    final Map<VirtualFile, List<Integer>> offsetsByFile = new LinkedHashMap<VirtualFile, List<Integer>>();
+    FileBasedIndex.getInstance().processValues(INDEX_ID, KEY, null, new FileBasedIndex.ValueProcessor<List<Integer>>() {
+      @Override
+      public boolean process(VirtualFile file, List<Integer> offsets) {
+        offsetsByFile.put(file, offsets);
+        return true;
+      }
+    }, scope);
+
+    final PsiManager psiManager = PsiManager.getInstance(project);
+    final List<PsiMethod> result = new ArrayList<PsiMethod>();
+    for (Map.Entry<VirtualFile, List<Integer>> entry : offsetsByFile.entrySet()) {
+      final PsiFile psiFile = psiManager.findFile(entry.getKey());
+      if (!(psiFile instanceof PsiJavaFile)) continue;
+      for (Integer offset : entry.getValue()) {
+        final PsiMethod method = PsiTreeUtil.getParentOfType(psiFile.findElementAt(offset), PsiMethod.class, false);
+        if (method != null) {
+          result.add(method);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Step annotations live in language subpackages of the Cucumber packages, hook ones right in them.
+   *
+   * @return whether methods annotated with the annotation are found by the index
+   */
+  public static boolean isIndexedStepAnnotation(@Nullable String qualifiedName) {
+    if (qualifiedName == null) return false;
+    for (String cucumberPackage : CUCUMBER_PACKAGES) {
+      if (qualifiedName.startsWith(cucumberPackage) && qualifiedName.indexOf('.', cucumberPackage.length()) > 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static class MyDataIndexer implements DataIndexer<String, List<Integer>, FileContent> {
+    @Override
+    @NotNull
+    public Map<String, List<Integer>> map(final FileContent inputData) {
+      final CharSequence text = inputData.getContentAsText();
+      if (!containsCucumberPackage(text)) {
+        return Collections.emptyMap();
+      }
+      final PsiFile psiFile = inputData.getPsiFile();
+      if (!(psiFile instanceof PsiJavaFile)) {
+        return Collections.emptyMap();
+      }
+      final PsiImportList importList = ((PsiJavaFile)psiFile).getImportList();
+      if (importList == null) {
+        return Collections.emptyMap();
+      }
+      final Map<String, String> importedAnnotations = new HashMap<String, String>();
+      final List<String> importedPackages = new ArrayList<String>();
+      for (PsiImportStatement importStatement : importList.getImportStatements()) {
+        final String qualifiedName = importStatement.getQualifiedName();
+        if (qualifiedName == null || !isCucumberName(qualifiedName)) continue;
+        if (importStatement.isOnDemand()) {
+          importedPackages.add(qualifiedName);
+        }
+        else {
+          importedAnnotations.put(StringUtil.getShortName(qualifiedName), qualifiedName);
+        }
+      }
+
+      final List<Integer> offsets = new ArrayList<Integer>();
+      for (PsiMethod method : PsiTreeUtil.findChildrenOfType(psiFile, PsiMethod.class)) {
+        for (PsiAnnotation annotation : method.getModifierList().getAnnotations()) {
+          if (isStepAnnotation(annotation, importedAnnotations, importedPackages)) {
+            offsets.add(method.getTextOffset());
+            break;
+          }
+        }
+      }
+      return offsets.isEmpty() ? Collections.<String, List<Integer>>emptyMap() : Collections.singletonMap(KEY, offsets);
+    }
+
+    private static boolean containsCucumberPackage(@NotNull CharSequence text) {
+      for (String cucumberPackage : CUCUMBER_PACKAGES) {
+        if (StringUtil.contains(text, cucumberPackage)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private static boolean isCucumberName(@NotNull String qualifiedName) {
+      for (String cucumberPackage : CUCUMBER_PACKAGES) {
+        if (qualifiedName.startsWith(cucumberPackage)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private static boolean isStepAnnotation(@NotNull PsiAnnotation annotation,
+                                            @NotNull Map<String, String> importedAnnotations,
+                                            @NotNull List<String> importedPackages) {
+      final PsiJavaCodeReferenceElement reference = annotation.getNameReferenceElement();
+      if (reference == null) return false;
+      final String name = reference.getReferenceName();
+      if (name == null) return false;
+      if (reference.isQualified()) {
+        return isIndexedStepAnnotation(reference.getText());
+      }
+      final String importedName = importedAnnotations.get(name);
+      if (importedName != null) {
+        return isIndexedStepAnnotation(importedName);
+      }
+      for (String importedPackage : importedPackages) {
+        if (isIndexedStepAnnotation(importedPackage + "." + name)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package org.jetbrains.plugins.cucumber.java.steps;
+
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiMethod;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.util.indexing.FileBasedIndex;
+import org.jetbrains.plugins.cucumber.java.CucumberJavaCodeInsightTestCase;
+import org.jetbrains.plugins.cucumber.java.CucumberJavaExtension;
+import org.jetbrains.plugins.cucumber.steps.AbstractStepDefinition;
+
+import java.util.*;
+
+public class JavaStepDefinitionIndexTest extends CucumberJavaCodeInsightTestCase {
+  public void testWildcardImport() {
+    final PsiFile file = myFixture.addFileToProject("WildcardSteps.java",
+                                                    "import cucumber.api.java.en.*;\n" +
+                                                    "public class WildcardSteps {\n" +
+                                                    "  @Given(\"^wildcard step$\") public void wildcard() {}\n" +
+                                                    "  public void helper() {}\n" +
+                                                    "}");
+    myFixture.addFileToProject("WildcardHooks.java",
+                               "import cucumber.api.java.*;\n" +
+                               "public class WildcardHooks {\n" +
+                               "  @Before public void hook() {}\n" +
+                               "}");
+    assertIndexed(file, "wildcard");
+    assertMethods("wildcard");
+  }
+
+  public void testQualifiedName() {
+    final PsiFile file = myFixture.addFileToProject("QualifiedSteps.java",
+                                                    "import cucumber.api.java.en.Given;\n" +
+                                                    "public class QualifiedSteps {\n" +
+                                                    "  @cucumber.api.java.en.When(\"^qualified step$\") public void qualified() {}\n" +
+                                                    "  @cucumber.api.java.After public void hook() {}\n" +
+                                                    "  @org.example.Then(\"^other step$\") public void other() {}\n" +
+                                                    "}");
+    assertIndexed(file, "qualified");
+    assertMethods("qualified");
+  }
+
+  public void testConcatenatedValue() {
+    final PsiFile file = myFixture.addFileToProject("ConcatenatedSteps.java",
+                                                    "import cucumber.annotation.en.Then;\n" +
+                                                    "public class ConcatenatedSteps {\n" +
+                                                    "  private static final String SUFFIX = \" end$\";\n" +
+                                                    "  @Then(\"^concatenated \" + (\"step$\")) public void concatenated() {}\n" +
+                                                    "  @Then(\"^constant\" + SUFFIX) public void constant() {}\n" +
+                                                    "}");
+    assertIndexed(file, "concatenated", "constant");
+    assertMethods("concatenated", "constant");
+  }
+
+  public void testNotImportedAnnotation() {
+    myFixture.addFileToProject("NotImportedSteps.java",
+                               "import org.example.*;\n" +
+                               "// cucumber.api.java.en\n" +
+                               "public class NotImportedSteps {\n" +
+                               "  @Given(\"^not imported$\") public void notImported() {}\n" +
+                               "}");
+    assertMethods();
+  }
+
+  public void testCustomAnnotationInSources() {
+    myFixture.addFileToProject("org/example/MyStep.java",
+                               "package org.example;\n" +
+                               "@cucumber.runtime.java.StepDefAnnotation\n" +
+                               "@java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME)\n" +
+                               "public @interface MyStep { String value(); }");
+    myFixture.addFileToProject("CustomSteps.java",
+                               "import org.example.MyStep;\n" +
+                               "public class CustomSteps {\n" +
+                               "  @MyStep(\"^custom step$\") public void custom() {}\n" +
+                               "}");
+    // not indexed, found by the search for custom step annotations
+    assertMethods();
+    final Set<String> names = new HashSet<String>();
+    for (AbstractStepDefinition stepDefinition : new CucumberJavaExtension().loadStepsFor(null, myFixture.getModule())) {
+      final PsiElement element = stepDefinition.getElement();
+      if (element instanceof PsiMethod) {
+        names.add(((PsiMethod)element).getName());
+      }
+    }
+    assertTrue(names.toString(), names.contains("custom"));
+  }
+
+  private static void assertIndexed(PsiFile file, String... methodNames) {
+    final List<List<Integer>> values =
+      FileBasedIndex.getInstance().getValues(JavaStepDefinitionIndex.INDEX_ID, JavaStepDefinitionIndex.KEY, GlobalSearchScope.fileScope(file));
+    assertEquals(1, values.size());
+    final List<Integer> offsets = values.get(0);
+    assertEquals(methodNames.length, offsets.size());
+    for (int i = 0; i < methodNames.length; i++) {
+      assertTrue(file.getText().startsWith(methodNames[i], offsets.get(i)));
+    }
+  }
+
+  private void assertMethods(String... methodNames) {
+    final Set<String> names = new HashSet<String>();
+    for (PsiMethod method : JavaStepDefinitionIndex.findStepDefinitionCandidates(getProject(), getScope())) {
+      names.add(method.getName());
+    }
+    assertEquals(new HashSet<String>(Arrays.asList(methodNames)), names);
+  }
+
+  private GlobalSearchScope getScope() {
+    return GlobalSearchScope.projectScope(getProject());
+  }
+}
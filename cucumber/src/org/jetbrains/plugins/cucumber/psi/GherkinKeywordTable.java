@@ -14,6 +14,7 @@ import java.util.*;
  */
 public class GherkinKeywordTable {
   private Map<IElementType, Collection<String>> myType2KeywordsTable = new HashMap<IElementType, Collection<String>>();
+  private volatile GherkinKeywordTrie myKeywordTrie;
 
   public GherkinKeywordTable() {
     for (IElementType type : GherkinTokenTypes.KEYWORDS.getTypes()) {
@@ -40,9 +41,27 @@ public class GherkinKeywordTable {
         myType2KeywordsTable.put(type, keywords);
       }
       keywords.add(keyword);
+      myKeywordTrie = null;
     }
   }
 
+  /**
+   * @return trie of all the keywords of the table, built on first request and shared by the lexers of the language
+   */
+  @NotNull
+  public GherkinKeywordTrie getKeywordTrie() {
+    GherkinKeywordTrie trie = myKeywordTrie;
+    if (trie == null) {
+      final Set<String> keywords = new HashSet<String>();
+      for (Collection<String> typeKeywords : myType2KeywordsTable.values()) {
+        keywords.addAll(typeKeywords);
+      }
+      trie = new GherkinKeywordTrie(keywords);
+      myKeywordTrie = trie;
+    }
+    return trie;
+  }
+
   public Collection<String> getStepKeywords() {
     final Collection<String> keywords = getKeywords(GherkinTokenTypes.STEP_KEYWORD);
     assert keywords != null;
@@ -0,0 +1,87 @@
+package org.jetbrains.plugins.cucumber.psi;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Prefix tree of the keywords of a language, finds the keywords a text starts with in a single pass.
+ */
+public class GherkinKeywordTrie {
+  private static final char[] NO_CHARS = new char[0];
+  private static final Node[] NO_NODES = new Node[0];
+
+  private final Node myRoot = new Node();
+
+  public GherkinKeywordTrie(@NotNull Collection<String> keywords) {
+    for (String keyword : keywords) {
+      if (keyword.length() > 0) {
+        add(keyword);
+      }
+    }
+  }
+
+  private void add(@NotNull String keyword) {
+    Node node = myRoot;
+    for (int i = 0; i < keyword.length(); i++) {
+      node = node.getOrCreateChild(keyword.charAt(i));
+    }
+    node.myKeyword = keyword;
+  }
+
+  /**
+   * @return the longest keyword not longer than maxLength the text starts with at the offset, or null if there is none
+   */
+  @Nullable
+  public String findKeyword(@NotNull CharSequence text, int offset, int endOffset, int maxLength) {
+    String result = null;
+    Node node = myRoot;
+    final int end = (int)Math.min(endOffset, (long)offset + maxLength);
+    for (int i = offset; i < end; i++) {
+      node = node.getChild(text.charAt(i));
+      if (node == null) {
+        break;
+      }
+      if (node.myKeyword != null) {
+        result = node.myKeyword;
+      }
+    }
+    return result;
+  }
+
+  private static class Node {
+    // children sorted by their chars
+    private char[] myChars = NO_CHARS;
+    private Node[] myChildren = NO_NODES;
+    private String myKeyword;
+
+    @Nullable
+    private Node getChild(char c) {
+      final int index = Arrays.binarySearch(myChars, c);
+      return index >= 0 ? myChildren[index] : null;
+    }
+
+    @NotNull
+    private Node getOrCreateChild(char c) {
+      int index = Arrays.binarySearch(myChars, c);
+      if (index >= 0) {
+        return myChildren[index];
+      }
+      index = -index - 1;
+      final Node child = new Node();
+      final char[] chars = new char[myChars.length + 1];
+      final Node[] children = new Node[myChildren.length + 1];
+      System.arraycopy(myChars, 0, chars, 0, index);
+      System.arraycopy(myChildren, 0, children, 0, index);
+      chars[index] = c;
+      children[index] = child;
+      System.arraycopy(myChars, index, chars, index + 1, myChars.length - index);
+      System.arraycopy(myChildren, index, children, index + 1, myChildren.length - index);
+      myChars = chars;
+      myChildren = children;
+      return child;
+    }
+  }
+}
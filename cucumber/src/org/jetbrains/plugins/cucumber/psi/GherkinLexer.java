@@ -7,11 +7,6 @@ import com.intellij.util.ArrayUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
-
 /**
  * @author yole
  */
@@ -22,7 +17,7 @@ public class GherkinLexer extends LexerBase {
   private int myPosition;
   private IElementType myCurrentToken;
   private int myCurrentTokenStart;
-  private List<String> myKeywords;
+  private GherkinKeywordTrie myKeywordTrie;
   private int myState;
 
   private final static int STATE_DEFAULT = 0;
@@ -45,12 +40,7 @@ public class GherkinLexer extends LexerBase {
 
   private void updateLanguage(String language) {
     myCurLanguage = language;
-    myKeywords = new ArrayList<String>(myKeywordProvider.getAllKeywords(language));
-    Collections.sort(myKeywords, new Comparator<String>() {
-      public int compare(String o1, String o2) {
-        return o2.length() - o1.length();
-      }
-    });
+    myKeywordTrie = myKeywordProvider.getKeywordsTable(language).getKeywordTrie();
   }
 
   @Override
@@ -192,24 +182,26 @@ public class GherkinLexer extends LexerBase {
     }
     else {
       if (myState == STATE_DEFAULT) {
-        for (String keyword : myKeywords) {
+        // the longest keyword wins unless it's glued to the following word
+        String keyword;
+        int maxLength = Integer.MAX_VALUE;
+        while ((keyword = myKeywordTrie.findKeyword(myBuffer, myPosition, myEndOffset, maxLength)) != null) {
           int length = keyword.length();
-          if (isStringAtPosition(keyword)) {
-            if (myKeywordProvider.isSpaceAfterKeyword(myCurLanguage, keyword) &&
-                myEndOffset - myPosition > length &&
-                Character.isLetterOrDigit(myBuffer.charAt(myPosition + length))) {
-              continue;
-            }
-            myCurrentToken = myKeywordProvider.getTokenType(myCurLanguage, keyword);
-            myPosition += length;
-            if (myCurrentToken == GherkinTokenTypes.STEP_KEYWORD) {
-              myState = STATE_AFTER_STEP_KEYWORD;
-            } else {
-              myState = STATE_AFTER_KEYWORD;
-            }
-
-            return;
+          if (myKeywordProvider.isSpaceAfterKeyword(myCurLanguage, keyword) &&
+              myEndOffset - myPosition > length &&
+              Character.isLetterOrDigit(myBuffer.charAt(myPosition + length))) {
+            maxLength = length - 1;
+            continue;
+          }
+          myCurrentToken = myKeywordProvider.getTokenType(myCurLanguage, keyword);
+          myPosition += length;
+          if (myCurrentToken == GherkinTokenTypes.STEP_KEYWORD) {
+            myState = STATE_AFTER_STEP_KEYWORD;
+          } else {
+            myState = STATE_AFTER_KEYWORD;
           }
+
+          return;
         }
       }
       if (myState == STATE_PARAMETER_INSIDE_STEP) {
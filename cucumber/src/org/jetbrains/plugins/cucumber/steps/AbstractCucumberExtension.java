@@ -29,13 +29,9 @@ public abstract class AbstractCucumberExtension implements CucumberJvmExtensionP
 
     final List<AbstractStepDefinition> stepDefinitions = loadStepsFor(element.getContainingFile(), module);
     final List<PsiElement> result = new ArrayList<PsiElement>();
-    for (AbstractStepDefinition stepDefinition : stepDefinitions) {
-
-      for (String s : stepVariants) {
-        if (stepDefinition.matches(s)) {
-          result.add(stepDefinition.getElement());
-        }
-      }
+    final CucumberStepMatcher matcher = CucumberStepsIndex.getInstance(element.getProject()).getStepMatcher(stepDefinitions);
+    for (AbstractStepDefinition stepDefinition : matcher.findAllMatches(stepVariants)) {
+      result.add(stepDefinition.getElement());
     }
 
     return result;
@@ -3,10 +3,7 @@ package org.jetbrains.plugins.cucumber.steps;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.SmartPointerManager;
 import com.intellij.psi.SmartPsiElementPointer;
-import org.apache.oro.text.regex.MalformedPatternException;
 import org.apache.oro.text.regex.Pattern;
-import org.apache.oro.text.regex.Perl5Compiler;
-import org.apache.oro.text.regex.Perl5Matcher;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -16,16 +13,12 @@ import java.util.List;
  * @author yole, Andrey Vokin
  */
 public abstract class AbstractStepDefinition {
-  private static final String ourEscapePattern = "(\\$\\w+|#\\{.+?\\})";
-
-  private static final String CUCUMBER_START_PREFIX = "\\A";
-
-  private static final String CUCUMBER_END_SUFFIX = "\\z";
-
   private final SmartPsiElementPointer<PsiElement> myElementPointer;
 
   private String myCucumberRegex = null;
 
+  private volatile CucumberStepPattern myStepPattern = null;
+
   public AbstractStepDefinition(@NotNull final PsiElement element) {
     myElementPointer = SmartPointerManager.getInstance(element.getProject()).createSmartPsiElementPointer(element);
 
@@ -35,8 +28,8 @@ public abstract class AbstractStepDefinition {
   public abstract List<String> getVariableNames();
 
   public boolean matches(String stepName) {
-    final Pattern pattern = getPattern();
-    return pattern != null && new Perl5Matcher().contains(stepName, pattern);
+    final CucumberStepPattern stepPattern = getStepPattern();
+    return stepPattern != null && stepPattern.matches(stepName);
   }
 
   @Nullable
@@ -46,23 +39,23 @@ public abstract class AbstractStepDefinition {
 
   @Nullable
   public Pattern getPattern() {
-    try {
-      final String cucumberRegex = getCucumberRegex();
-      if (cucumberRegex == null) return null;
-      final StringBuilder patternText = new StringBuilder(cucumberRegex.replaceAll(ourEscapePattern, "(.*)"));
-      if (patternText.toString().startsWith(CUCUMBER_START_PREFIX)) {
-        patternText.replace(0, CUCUMBER_START_PREFIX.length(), "^");
-      }
-
-      if (patternText.toString().endsWith(CUCUMBER_END_SUFFIX)) {
-        patternText.replace(patternText.length() - CUCUMBER_END_SUFFIX.length(), patternText.length(), "$");
-      }
-
-      return new Perl5Compiler().compile(patternText.toString());
-    }
-    catch (MalformedPatternException e) {
-      return null;
+    final CucumberStepPattern stepPattern = getStepPattern();
+    return stepPattern != null ? stepPattern.getPattern() : null;
+  }
+
+  /**
+   * @return compiled regex of the definition, cached until the regex changes, or null if the definition is no longer valid
+   */
+  @Nullable
+  public CucumberStepPattern getStepPattern() {
+    final String cucumberRegex = getCucumberRegex();
+    if (cucumberRegex == null) return null;
+    CucumberStepPattern stepPattern = myStepPattern;
+    if (stepPattern == null || !stepPattern.getCucumberRegex().equals(cucumberRegex)) {
+      stepPattern = CucumberStepPattern.compile(cucumberRegex);
+      myStepPattern = stepPattern;
     }
+    return stepPattern;
   }
 
   @Nullable
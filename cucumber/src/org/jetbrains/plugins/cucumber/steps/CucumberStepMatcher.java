@@ -0,0 +1,140 @@
+package org.jetbrains.plugins.cucumber.steps;
+
+import com.intellij.util.containers.HashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Matches step names against many step definitions at once.
+ * <p/>
+ * Definitions whose regex starts with a literal are indexed by the first characters of that literal,
+ * so only the definitions sharing a prefix with the step name are tried. The rest are tried only if the step name
+ * contains the literal their regex requires. Matches are reported in the order of the definitions.
+ */
+public class CucumberStepMatcher {
+  private static final int MAX_PREFIX_KEY_LENGTH = 16;
+
+  private final List<AbstractStepDefinition> myDefinitions;
+  private final CucumberStepPattern[] myPatterns;
+  private final Map<String, int[]> myIndicesByPrefixKey = new HashMap<String, int[]>();
+  private final int[] myNotIndexedIndices;
+  private final int myMaxPrefixKeyLength;
+
+  public CucumberStepMatcher(@NotNull List<AbstractStepDefinition> definitions) {
+    myDefinitions = definitions;
+    myPatterns = new CucumberStepPattern[definitions.size()];
+    final Map<String, List<Integer>> indicesByPrefixKey = new HashMap<String, List<Integer>>();
+    final List<Integer> notIndexed = new ArrayList<Integer>();
+    int maxPrefixKeyLength = 0;
+    for (int i = 0; i < myPatterns.length; i++) {
+      final CucumberStepPattern pattern = definitions.get(i).getStepPattern();
+      myPatterns[i] = pattern;
+      if (pattern == null || pattern.getPattern() == null) {
+        continue;
+      }
+      if (pattern.isLiteralPrefix()) {
+        final String prefixKey = getPrefixKey(pattern.getLiteral());
+        List<Integer> indices = indicesByPrefixKey.get(prefixKey);
+        if (indices == null) {
+          indices = new ArrayList<Integer>();
+          indicesByPrefixKey.put(prefixKey, indices);
+        }
+        indices.add(i);
+        maxPrefixKeyLength = Math.max(maxPrefixKeyLength, prefixKey.length());
+      }
+      else {
+        notIndexed.add(i);
+      }
+    }
+    for (Map.Entry<String, List<Integer>> entry : indicesByPrefixKey.entrySet()) {
+      myIndicesByPrefixKey.put(entry.getKey(), toIntArray(entry.getValue()));
+    }
+    myNotIndexedIndices = toIntArray(notIndexed);
+    myMaxPrefixKeyLength = maxPrefixKeyLength;
+  }
+
+  /**
+   * @return true if the matcher was built for the very same definitions
+   */
+  public boolean isBuiltFor(@NotNull List<AbstractStepDefinition> definitions) {
+    if (definitions.size() != myDefinitions.size()) return false;
+    for (int i = 0; i < definitions.size(); i++) {
+      if (definitions.get(i) != myDefinitions.get(i)) return false;
+    }
+    return true;
+  }
+
+  @Nullable
+  public AbstractStepDefinition findFirstMatch(@NotNull String stepName) {
+    final BitSet candidates = getCandidates(stepName);
+    for (int index = candidates.nextSetBit(0); index >= 0; index = candidates.nextSetBit(index + 1)) {
+      final AbstractStepDefinition definition = myDefinitions.get(index);
+      if (definition.matches(stepName)) {
+        return definition;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return definitions matching any of the step names, in the order of the definitions
+   */
+  @NotNull
+  public List<AbstractStepDefinition> findAllMatches(@NotNull Collection<String> stepNames) {
+    final BitSet matched = new BitSet(myDefinitions.size());
+    for (String stepName : stepNames) {
+      final BitSet candidates = getCandidates(stepName);
+      for (int index = candidates.nextSetBit(0); index >= 0; index = candidates.nextSetBit(index + 1)) {
+        if (!matched.get(index) && myDefinitions.get(index).matches(stepName)) {
+          matched.set(index);
+        }
+      }
+    }
+    final List<AbstractStepDefinition> result = new ArrayList<AbstractStepDefinition>(matched.cardinality());
+    for (int i = matched.nextSetBit(0); i >= 0; i = matched.nextSetBit(i + 1)) {
+      result.add(myDefinitions.get(i));
+    }
+    return result;
+  }
+
+  /**
+   * @return indices of the definitions which literals are found in the step name
+   */
+  @NotNull
+  private BitSet getCandidates(@NotNull String stepName) {
+    final BitSet candidates = new BitSet(myDefinitions.size());
+    final int maxKeyLength = Math.min(myMaxPrefixKeyLength, stepName.length());
+    for (int length = 1; length <= maxKeyLength; length++) {
+      final int[] indices = myIndicesByPrefixKey.get(stepName.substring(0, length));
+      if (indices != null) {
+        addCandidates(stepName, indices, candidates);
+      }
+    }
+    addCandidates(stepName, myNotIndexedIndices, candidates);
+    return candidates;
+  }
+
+  private void addCandidates(@NotNull String stepName, @NotNull int[] indices, @NotNull BitSet candidates) {
+    for (int index : indices) {
+      if (myPatterns[index].mayMatch(stepName)) {
+        candidates.set(index);
+      }
+    }
+  }
+
+  @NotNull
+  private static int[] toIntArray(@NotNull List<Integer> list) {
+    final int[] result = new int[list.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = list.get(i);
+    }
+    return result;
+  }
+
+  @NotNull
+  private static String getPrefixKey(@NotNull String prefix) {
+    return prefix.length() > MAX_PREFIX_KEY_LENGTH ? prefix.substring(0, MAX_PREFIX_KEY_LENGTH) : prefix;
+  }
+}
@@ -0,0 +1,282 @@
+package org.jetbrains.plugins.cucumber.steps;
+
+import org.apache.oro.text.regex.MalformedPatternException;
+import org.apache.oro.text.regex.Pattern;
+import org.apache.oro.text.regex.Perl5Compiler;
+import org.apache.oro.text.regex.Perl5Matcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Compiled regex of a step definition along with a literal every matching step name contains,
+ * which allows to reject most step names without running the regex.
+ */
+public class CucumberStepPattern {
+  private static final String ourEscapePattern = "(\\$\\w+|#\\{.+?\\})";
+
+  private static final String CUCUMBER_START_PREFIX = "\\A";
+
+  private static final String CUCUMBER_END_SUFFIX = "\\z";
+
+  private final String myCucumberRegex;
+  private final Pattern myPattern;
+  private final String myLiteral;
+  private final boolean myLiteralIsPrefix;
+
+  private CucumberStepPattern(@NotNull String cucumberRegex, @Nullable Pattern pattern, @NotNull String literal, boolean literalIsPrefix) {
+    myCucumberRegex = cucumberRegex;
+    myPattern = pattern;
+    myLiteral = literal;
+    myLiteralIsPrefix = literalIsPrefix;
+  }
+
+  @NotNull
+  public static CucumberStepPattern compile(@NotNull String cucumberRegex) {
+    final StringBuilder patternText = new StringBuilder(cucumberRegex.replaceAll(ourEscapePattern, "(.*)"));
+    if (patternText.toString().startsWith(CUCUMBER_START_PREFIX)) {
+      patternText.replace(0, CUCUMBER_START_PREFIX.length(), "^");
+    }
+
+    if (patternText.toString().endsWith(CUCUMBER_END_SUFFIX)) {
+      patternText.replace(patternText.length() - CUCUMBER_END_SUFFIX.length(), patternText.length(), "$");
+    }
+
+    try {
+      // read only patterns may be shared between threads
+      final Pattern pattern = new Perl5Compiler().compile(patternText.toString(), Perl5Compiler.READ_ONLY_MASK);
+      final String text = patternText.toString();
+      final String prefix = text.startsWith("^") ? findRequiredLiteral(text, true) : null;
+      if (prefix != null && prefix.length() > 0) {
+        return new CucumberStepPattern(cucumberRegex, pattern, prefix, true);
+      }
+      final String literal = findRequiredLiteral(text, false);
+      return new CucumberStepPattern(cucumberRegex, pattern, literal != null ? literal : "", false);
+    }
+    catch (MalformedPatternException e) {
+      return new CucumberStepPattern(cucumberRegex, null, "", false);
+    }
+  }
+
+  @NotNull
+  public String getCucumberRegex() {
+    return myCucumberRegex;
+  }
+
+  /**
+   * @return compiled pattern, or null if the regex is malformed
+   */
+  @Nullable
+  public Pattern getPattern() {
+    return myPattern;
+  }
+
+  /**
+   * @return text every matching step name contains, may be empty
+   */
+  @NotNull
+  public String getLiteral() {
+    return myLiteral;
+  }
+
+  /**
+   * @return true if every matching step name starts with {@link #getLiteral()}
+   */
+  public boolean isLiteralPrefix() {
+    return myLiteralIsPrefix;
+  }
+
+  public boolean mayMatch(@NotNull String stepName) {
+    if (myPattern == null) return false;
+    return myLiteralIsPrefix ? stepName.startsWith(myLiteral) : stepName.contains(myLiteral);
+  }
+
+  public boolean matches(@NotNull String stepName) {
+    return mayMatch(stepName) && new Perl5Matcher().contains(stepName, myPattern);
+  }
+
+  /**
+   * Finds text required by the regex: the literal it starts with (the regex has to start with '^' then),
+   * or the longest literal outside of groups. Literals inside groups, character classes and
+   * quantified characters are skipped, and nothing is required if there are alternatives at the top level.
+   *
+   * @return the literal, possibly empty, or null if the regex uses syntax making it unclear
+   */
+  @Nullable
+  static String findRequiredLiteral(@NotNull String regex, boolean prefixOnly) {
+    final int length = regex.length();
+    if (hasTopLevelAlternatives(regex)) {
+      return "";
+    }
+    final StringBuilder run = new StringBuilder();
+    String longest = "";
+    int i = regex.startsWith("^") ? 1 : 0;
+    while (i < length) {
+      final char c = regex.charAt(i);
+      char literal = 0;
+      int atomEnd = i + 1;
+      if (c == '(') {
+        if (regex.startsWith("(?", i) && !regex.startsWith("(?:", i)) {
+          // inline modifiers or look-arounds
+          return null;
+        }
+        atomEnd = skipGroup(regex, i);
+        if (atomEnd < 0) return null;
+      }
+      else if (c == '[') {
+        atomEnd = skipCharacterClass(regex, i);
+        if (atomEnd < 0) return null;
+      }
+      else if (c == '\\') {
+        if (i + 1 >= length) return null;
+        final char next = regex.charAt(i + 1);
+        if (next == 'Q' || next == 'E') return null;
+        // hex, unicode, control and octal escapes, back references and property classes span more characters
+        if (next == 'x' || next == 'u' || next == 'c' || next == 'p' || next == 'P' || Character.isDigit(next)) return null;
+        if (!Character.isLetterOrDigit(next)) {
+          literal = next;
+        }
+        atomEnd = i + 2;
+      }
+      else if (c == '*' || c == '+' || c == '?' || (c == '{' && quantifierEnd(regex, i) > 0)) {
+        // a quantifier of a group or a class
+        atomEnd = skipQuantifier(regex, i);
+      }
+      else if (c != '.' && c != '^' && c != '$') {
+        literal = c;
+      }
+
+      if (literal != 0) {
+        final int quantifierEnd = skipQuantifier(regex, atomEnd);
+        if (quantifierEnd == atomEnd) {
+          run.append(literal);
+          i = atomEnd;
+          continue;
+        }
+        if (regex.charAt(atomEnd) == '+') {
+          run.append(literal);
+        }
+        atomEnd = quantifierEnd;
+      }
+
+      if (prefixOnly) {
+        return run.toString();
+      }
+      if (run.length() > longest.length()) {
+        longest = run.toString();
+      }
+      run.setLength(0);
+      i = atomEnd;
+    }
+    if (prefixOnly) {
+      return run.toString();
+    }
+    return run.length() > longest.length() ? run.toString() : longest;
+  }
+
+  private static boolean hasTopLevelAlternatives(@NotNull String regex) {
+    int i = 0;
+    while (i < regex.length()) {
+      final char c = regex.charAt(i);
+      if (c == '|') {
+        return true;
+      }
+      if (c == '\\') {
+        i += 2;
+      }
+      else if (c == '(') {
+        i = skipGroup(regex, i);
+        if (i < 0) return false;
+      }
+      else if (c == '[') {
+        i = skipCharacterClass(regex, i);
+        if (i < 0) return false;
+      }
+      else {
+        i++;
+      }
+    }
+    return false;
+  }
+
+  private static int skipGroup(@NotNull String regex, int start) {
+    int depth = 0;
+    int i = start;
+    while (i < regex.length()) {
+      final char c = regex.charAt(i);
+      if (c == '\\') {
+        i += 2;
+        continue;
+      }
+      if (c == '[') {
+        i = skipCharacterClass(regex, i);
+        if (i < 0) return -1;
+        continue;
+      }
+      if (c == '(') {
+        depth++;
+      }
+      else if (c == ')') {
+        depth--;
+        if (depth == 0) {
+          return i + 1;
+        }
+      }
+      i++;
+    }
+    return -1;
+  }
+
+  private static int skipCharacterClass(@NotNull String regex, int start) {
+    int i = start + 1;
+    if (i < regex.length() && regex.charAt(i) == '^') i++;
+    if (i < regex.length() && regex.charAt(i) == ']') i++;
+    while (i < regex.length()) {
+      final char c = regex.charAt(i);
+      if (c == '\\') {
+        i += 2;
+        continue;
+      }
+      if (c == ']') {
+        return i + 1;
+      }
+      i++;
+    }
+    return -1;
+  }
+
+  /**
+   * @return offset after the quantifier (including a lazy or possessive suffix) at the offset, or the offset itself
+   */
+  private static int skipQuantifier(@NotNull String regex, int offset) {
+    if (offset >= regex.length()) return offset;
+    final char c = regex.charAt(offset);
+    int end;
+    if (c == '*' || c == '+' || c == '?') {
+      end = offset + 1;
+    }
+    else if (c == '{') {
+      end = quantifierEnd(regex, offset);
+      if (end < 0) return offset;
+    }
+    else {
+      return offset;
+    }
+    if (end < regex.length() && (regex.charAt(end) == '?' || regex.charAt(end) == '+')) {
+      end++;
+    }
+    return end;
+  }
+
+  /**
+   * @return offset after a {n}, {n,} or {n,m} quantifier starting at the offset, or -1 if there is none
+   */
+  private static int quantifierEnd(@NotNull String regex, int offset) {
+    int i = offset + 1;
+    int digits = 0;
+    while (i < regex.length() && (Character.isDigit(regex.charAt(i)) || regex.charAt(i) == ',')) {
+      if (Character.isDigit(regex.charAt(i))) digits++;
+      i++;
+    }
+    return digits > 0 && i < regex.length() && regex.charAt(i) == '}' ? i + 1 : -1;
+  }
+}
@@ -24,10 +24,13 @@ import java.util.*;
  */
 public class CucumberStepsIndex {
   private static final Logger LOG = Logger.getInstance(CucumberStepsIndex.class.getName());
+  // one per extension resolving steps by itself and one for all the extensions
+  private static final int MAX_RECENT_STEP_MATCHERS = 4;
 
   private final Map<FileType, CucumberJvmExtensionPoint> myExtensionMap;
   private final Map<CucumberJvmExtensionPoint, Object> myExtensionData;
   private Project myProject;
+  private volatile List<CucumberStepMatcher> myRecentStepMatchers = Collections.emptyList();
 
   public static CucumberStepsIndex getInstance(Project project) {
     CucumberStepsIndex result = ServiceManager.getService(project, CucumberStepsIndex.class);
@@ -84,12 +87,27 @@ public class CucumberStepsIndex {
     if (module == null) return null;
 
     List<AbstractStepDefinition> allSteps = loadStepsFor(featureFile, module);
-    for (AbstractStepDefinition stepDefinition : allSteps) {
-      if (stepDefinition.matches(stepName)) {
-        return stepDefinition;
+    return getStepMatcher(allSteps).findFirstMatch(stepName);
+  }
+
+  /**
+   * Steps of a feature file are usually resolved one by one against the same definitions,
+   * so the matchers built recently are reused while extensions return the same definitions.
+   */
+  @NotNull
+  public CucumberStepMatcher getStepMatcher(@NotNull List<AbstractStepDefinition> stepDefinitions) {
+    final List<CucumberStepMatcher> recentMatchers = myRecentStepMatchers;
+    for (CucumberStepMatcher matcher : recentMatchers) {
+      if (matcher.isBuiltFor(stepDefinitions)) {
+        return matcher;
       }
     }
-    return null;
+    final CucumberStepMatcher matcher = new CucumberStepMatcher(stepDefinitions);
+    final List<CucumberStepMatcher> newRecentMatchers = new ArrayList<CucumberStepMatcher>(MAX_RECENT_STEP_MATCHERS);
+    newRecentMatchers.add(matcher);
+    newRecentMatchers.addAll(recentMatchers.subList(0, Math.min(recentMatchers.size(), MAX_RECENT_STEP_MATCHERS - 1)));
+    myRecentStepMatchers = newRecentMatchers;
+    return matcher;
   }
 
    // ToDo: use binary search here
@@ -1,10 +1,13 @@
 package org.jetbrains.plugins.cucumber.steps;
 
 import com.intellij.ProjectTopics;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.module.Module;
 import com.intellij.openapi.module.ModuleUtilCore;
 import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.ModuleRootEvent;
 import com.intellij.openapi.roots.ModuleRootListener;
@@ -22,12 +25,15 @@ import org.jetbrains.annotations.Nullable;
 import org.jetbrains.plugins.cucumber.psi.GherkinFile;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * User: Andrey.Vokin
  * Date: 6/26/13
  */
 public abstract class NotIndexedCucumberExtension extends AbstractCucumberExtension {
+  private static final Logger LOG = Logger.getInstance(NotIndexedCucumberExtension.class.getName());
+
   public Object getDataObject(@NotNull final Project project) {
     final DataObject result = new DataObject();
     result.myUpdateQueue.setPassThrough(false);
@@ -44,7 +50,7 @@ public abstract class NotIndexedCucumberExtension extends AbstractCucumberExtens
           result.myUpdateQueue.queue(new Update(parent) {
             public void run() {
               if (file.isValid()) {
-                reloadAbstractStepDefinitions(file);
+                scheduleReload(file);
                 createWatcher(file);
               }
             }
@@ -143,7 +149,7 @@ public abstract class NotIndexedCucumberExtension extends AbstractCucumberExtens
         dataObject.myUpdateQueue.queue(new Update(file) {
           public void run() {
             if (!file.getProject().isDisposed()) {
-              reloadAbstractStepDefinitions(file);
+              scheduleReload(file);
             }
           }
         });
@@ -151,7 +157,11 @@ public abstract class NotIndexedCucumberExtension extends AbstractCucumberExtens
     });
   }
 
-  private void reloadAbstractStepDefinitions(final PsiFile file) {
+  /**
+   * Commits the document of the file and reloads its step definitions on a pooled thread.
+   * Reloads of a file requested before the previous one started are merged.
+   */
+  private void scheduleReload(final PsiFile file) {
     if (file.getProject().isDisposed()) {
       return;
     }
@@ -164,15 +174,71 @@ public abstract class NotIndexedCucumberExtension extends AbstractCucumberExtens
       psiDocumentManager.commitDocument(document);
     }
 
-    // remove old definitions related to current file
-    removeAbstractStepDefinitionsRelatedTo(file);
+    if (!dataObject.queueFileToReload(file)) {
+      return;
+    }
+    ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+      public void run() {
+        reloadScheduledFiles(dataObject, true);
+      }
+    });
+  }
 
-    // read definitions from file
-    if (file.isValid()) {
-      synchronized (dataObject.myStepDefinitions) {
-        dataObject.myStepDefinitions.addAll(getStepDefinitions(file));
+  /**
+   * Reloads the files one by one until no files are left. The scheduled reload gives way to write actions:
+   * the file being reloaded is queued again and the reload continues on a new pooled thread after the write action.
+   */
+  private void reloadScheduledFiles(@NotNull final DataObject dataObject, final boolean scheduled) {
+    final PsiFile[] reloadedFile = new PsiFile[1];
+    final Runnable reloadNextFile = new Runnable() {
+      public void run() {
+        // makes flush() wait for the reload in progress
+        synchronized (dataObject.myReloadLock) {
+          reloadedFile[0] = dataObject.pollFileToReload(scheduled);
+          if (reloadedFile[0] != null) {
+            reloadAbstractStepDefinitions(reloadedFile[0], dataObject);
+          }
+        }
+      }
+    };
+    do {
+      reloadedFile[0] = null;
+      if (!scheduled) {
+        ApplicationManager.getApplication().runReadAction(reloadNextFile);
+      }
+      else if (!ProgressIndicatorUtils.runInReadActionWithWriteActionPriority(reloadNextFile)) {
+        if (reloadedFile[0] != null) {
+          dataObject.requeueFileToReload(reloadedFile[0]);
+        }
+        ApplicationManager.getApplication().invokeLater(new Runnable() {
+          public void run() {
+            ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+              public void run() {
+                reloadScheduledFiles(dataObject, true);
+              }
+            });
+          }
+        });
+        return;
       }
     }
+    while (reloadedFile[0] != null);
+  }
+
+  private void reloadAbstractStepDefinitions(@NotNull final PsiFile file, @NotNull final DataObject dataObject) {
+    if (file.getProject().isDisposed()) {
+      return;
+    }
+
+    if (!file.isValid()) {
+      dataObject.removeStepDefinitions(file);
+      return;
+    }
+
+    final long start = System.currentTimeMillis();
+    // read definitions from file, replacing the old ones
+    dataObject.putStepDefinitions(file, getStepDefinitions(file));
+    dataObject.reportReloadTime(file, System.currentTimeMillis() - start);
   }
 
   private void removeAbstractStepDefinitionsRelatedTo(final PsiFile file) {
@@ -181,15 +247,10 @@ public abstract class NotIndexedCucumberExtension extends AbstractCucumberExtens
     }
     final DataObject dataObject = (DataObject)CucumberStepsIndex.getInstance(file.getProject()).getExtensionDataObject(this);
     // file may be invalid !!!!
-    synchronized (dataObject.myStepDefinitions) {
-      for (Iterator<AbstractStepDefinition> iterator = dataObject.myStepDefinitions.iterator(); iterator.hasNext(); ) {
-        AbstractStepDefinition definition = iterator.next();
-        final PsiElement element = definition.getElement();
-        if (element == null || element.getContainingFile().equals(file)) {
-          iterator.remove();
-        }
-      }
+    synchronized (dataObject.myFilesToReload) {
+      dataObject.myFilesToReload.remove(file.getViewProvider().getVirtualFile());
     }
+    dataObject.removeStepDefinitions(file);
   }
 
   @NotNull
@@ -233,36 +294,32 @@ public abstract class NotIndexedCucumberExtension extends AbstractCucumberExtens
 
     synchronized (dataObject.myStepDefinitions) {
       // Parse new folders
-      final List<AbstractStepDefinition> stepDefinitions = new ArrayList<AbstractStepDefinition>();
+      final List<PsiFile> loadedFiles = new ArrayList<PsiFile>();
       for (PsiDirectory root : notLoadedStepDefinitionsRoots) {
-        stepDefinitions.clear();
+        loadedFiles.clear();
         // let's process each folder separately
         try {
           dataObject.myProcessedStepDirectories.add(root.getVirtualFile().getPath());
           final List<PsiFile> files = gatherStepDefinitionsFilesFromDirectory(root, false);
           for (final PsiFile file : files) {
-            removeAbstractStepDefinitionsRelatedTo(file);
-            stepDefinitions.addAll(getStepDefinitions(file));
+            dataObject.putStepDefinitions(file, getStepDefinitions(file));
+            loadedFiles.add(file);
             createWatcher(file);
           }
-
-          dataObject.myStepDefinitions.addAll(stepDefinitions);
         }
         catch (ProcessCanceledException e) {
           // remove from processed
           dataObject.myProcessedStepDirectories.remove(root.getVirtualFile().getPath());
           // remove new step definitions
-          if (!stepDefinitions.isEmpty()) {
-            dataObject.myStepDefinitions.removeAll(stepDefinitions);
+          for (PsiFile file : loadedFiles) {
+            dataObject.removeStepDefinitions(file);
           }
           throw e;
         }
       }
     }
 
-    synchronized (dataObject.myStepDefinitions) {
-      return new ArrayList<AbstractStepDefinition>(dataObject.myStepDefinitions);
-    }
+    return dataObject.getStepDefinitions();
   }
 
   protected static void addStepDefsRootIfNecessary(final VirtualFile root,
@@ -311,31 +368,149 @@ public abstract class NotIndexedCucumberExtension extends AbstractCucumberExtens
   public void reset(@NotNull final Project project) {
     final DataObject dataObject = (DataObject)CucumberStepsIndex.getInstance(project).getExtensionDataObject(this);
     dataObject.myUpdateQueue.cancelAllUpdates();
-    synchronized (dataObject.myStepDefinitions) {
-      dataObject.myStepDefinitions.clear();
+    // a reload in progress mustn't put the step definitions of its file back after the reset
+    synchronized (dataObject.myReloadLock) {
+      synchronized (dataObject.myFilesToReload) {
+        dataObject.myFilesToReload.clear();
+      }
+      synchronized (dataObject.myStepDefinitions) {
+        dataObject.myStepDefinitions.clear();
+        dataObject.myStepDefinitionsSnapshot = null;
+      }
     }
     dataObject.myProcessedStepDirectories.clear();
   }
 
   public void flush(@NotNull final Project project) {
-    final DataObject dataObject = (DataObject)CucumberStepsIndex.getInstance(project).getExtensionDataObject(this);
+    flush((DataObject)CucumberStepsIndex.getInstance(project).getExtensionDataObject(this));
+  }
+
+  void flush(@NotNull final DataObject dataObject) {
     dataObject.myUpdateQueue.flush();
+    // finish the reloads which haven't been started by a pooled thread yet
+    reloadScheduledFiles(dataObject, false);
   }
 
+  /**
+   * @return unmodifiable list of the step definitions loaded so far
+   */
   public List<AbstractStepDefinition> getAllStepDefinitions(Project project) {
     final DataObject dataObject = (DataObject)CucumberStepsIndex.getInstance(project).getExtensionDataObject(this);
-    synchronized (dataObject.myStepDefinitions) {
-      return new ArrayList<AbstractStepDefinition>(dataObject.myStepDefinitions);
-    }
+    return dataObject.getStepDefinitions();
   }
 
   public static class DataObject {
-    final List<AbstractStepDefinition> myStepDefinitions = new ArrayList<AbstractStepDefinition>();
+    // step definitions by the files they are defined in
+    final Map<VirtualFile, List<AbstractStepDefinition>> myStepDefinitions = new LinkedHashMap<VirtualFile, List<AbstractStepDefinition>>();
+    // all the step definitions, null if the files changed since the last request
+    private List<AbstractStepDefinition> myStepDefinitionsSnapshot;
+
+    // files which step definitions have to be reloaded, guarded by itself along with myReloadScheduled
+    final Map<VirtualFile, PsiFile> myFilesToReload = new LinkedHashMap<VirtualFile, PsiFile>();
+    boolean myReloadScheduled;
+    final Object myReloadLock = new Object();
+
+    private final AtomicLong myReloadedFilesCount = new AtomicLong();
+    private final AtomicLong myTotalReloadTime = new AtomicLong();
 
     final Set<String> myProcessedStepDirectories = new HashSet<String>();
 
     final MergingUpdateQueue myUpdateQueue = new MergingUpdateQueue("Steps reparse", 500, true, null);
 
     final CucumberPsiTreeListener myCucumberPsiTreeListener = new CucumberPsiTreeListener();
+
+    /**
+     * Queues a file to reload, replacing the request queued for it before.
+     *
+     * @return true if a pooled thread has to be scheduled to reload the files, false if one is scheduled already
+     */
+    boolean queueFileToReload(@NotNull PsiFile file) {
+      synchronized (myFilesToReload) {
+        myFilesToReload.put(file.getViewProvider().getVirtualFile(), file);
+        if (myReloadScheduled) {
+          return false;
+        }
+        myReloadScheduled = true;
+        return true;
+      }
+    }
+
+    /**
+     * @param scheduled true if called by the pooled thread scheduled to reload the files
+     */
+    @Nullable
+    PsiFile pollFileToReload(boolean scheduled) {
+      synchronized (myFilesToReload) {
+        final Iterator<PsiFile> iterator = myFilesToReload.values().iterator();
+        if (!iterator.hasNext()) {
+          if (scheduled) {
+            myReloadScheduled = false;
+          }
+          return null;
+        }
+        final PsiFile file = iterator.next();
+        iterator.remove();
+        return file;
+      }
+    }
+
+    /**
+     * Queues again a file which reload was cancelled, unless the file was queued again meanwhile.
+     */
+    void requeueFileToReload(@NotNull PsiFile file) {
+      synchronized (myFilesToReload) {
+        final VirtualFile virtualFile = file.getViewProvider().getVirtualFile();
+        if (!myFilesToReload.containsKey(virtualFile)) {
+          myFilesToReload.put(virtualFile, file);
+        }
+      }
+    }
+
+    void putStepDefinitions(@NotNull PsiFile file, @NotNull Collection<AbstractStepDefinition> stepDefinitions) {
+      synchronized (myStepDefinitions) {
+        myStepDefinitions.put(file.getViewProvider().getVirtualFile(), new ArrayList<AbstractStepDefinition>(stepDefinitions));
+        myStepDefinitionsSnapshot = null;
+      }
+    }
+
+    void removeStepDefinitions(@NotNull PsiFile file) {
+      synchronized (myStepDefinitions) {
+        if (myStepDefinitions.remove(file.getViewProvider().getVirtualFile()) != null) {
+          myStepDefinitionsSnapshot = null;
+        }
+      }
+    }
+
+    @NotNull
+    List<AbstractStepDefinition> getStepDefinitions() {
+      synchronized (myStepDefinitions) {
+        if (myStepDefinitionsSnapshot == null) {
+          final List<AbstractStepDefinition> result = new ArrayList<AbstractStepDefinition>();
+          for (List<AbstractStepDefinition> fileStepDefinitions : myStepDefinitions.values()) {
+            result.addAll(fileStepDefinitions);
+          }
+          myStepDefinitionsSnapshot = Collections.unmodifiableList(result);
+        }
+        return myStepDefinitionsSnapshot;
+      }
+    }
+
+    void reportReloadTime(@NotNull PsiFile file, long timeMs) {
+      final long count = myReloadedFilesCount.incrementAndGet();
+      final long total = myTotalReloadTime.addAndGet(timeMs);
+
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Reloaded step definitions of " + file.getName() + " in " + timeMs + " ms; " +
+                  count + " files reloaded in " + total + " ms in total");
+      }
+    }
+
+    public long getReloadedFilesCount() {
+      return myReloadedFilesCount.get();
+    }
+
+    public long getTotalReloadTime() {
+      return myTotalReloadTime.get();
+    }
   }
 }
@@ -0,0 +1,41 @@
+package org.jetbrains.plugins.cucumber.psi;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class GherkinKeywordTrieTest {
+  private final GherkinKeywordTrie trie = new GherkinKeywordTrie(Arrays.asList("Scenario", "Scenario Outline", "Scenarios", "*", "And", ""));
+
+  @Test
+  public void findTheLongestKeyword() throws Exception {
+    assertThat(trie.findKeyword("Scenario Outline: x", 0, 19, Integer.MAX_VALUE), is("Scenario Outline"));
+    assertThat(trie.findKeyword("Scenarios:", 0, 10, Integer.MAX_VALUE), is("Scenarios"));
+  }
+
+  @Test
+  public void limitKeywordLength() throws Exception {
+    assertThat(trie.findKeyword("Scenario Outline: x", 0, 19, 15), is("Scenario"));
+    assertThat(trie.findKeyword("Scenario Outline: x", 0, 19, 7), nullValue());
+  }
+
+  @Test
+  public void searchFromOffsetToEndOffset() throws Exception {
+    assertThat(trie.findKeyword("  * step", 2, 8, Integer.MAX_VALUE), is("*"));
+    assertThat(trie.findKeyword("Scenario Outline", 0, 12, Integer.MAX_VALUE), is("Scenario"));
+    assertThat(trie.findKeyword("Andrew", 1, 6, Integer.MAX_VALUE), nullValue());
+  }
+
+  @Test
+  public void tableTrieFollowsTheTable() throws Exception {
+    final GherkinKeywordTable table = new GherkinKeywordTable();
+    table.put(GherkinTokenTypes.STEP_KEYWORD, "Given");
+    assertThat(table.getKeywordTrie().findKeyword("Given x", 0, 7, Integer.MAX_VALUE), is("Given"));
+    table.put(GherkinTokenTypes.FEATURE_KEYWORD, "Feature");
+    assertThat(table.getKeywordTrie().findKeyword("Feature: x", 0, 10, Integer.MAX_VALUE), is("Feature"));
+  }
+}
@@ -0,0 +1,138 @@
+package org.jetbrains.plugins.cucumber.psi;
+
+import com.intellij.psi.tree.IElementType;
+import com.intellij.testFramework.PlatformTestUtil;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.plugins.cucumber.psi.i18n.JsonGherkinKeywordProvider;
+
+import java.io.ByteArrayInputStream;
+import java.util.*;
+
+/**
+ * Lexes big generated feature files in a language with long keyword lists within a time budget, and compares
+ * keyword recognition with trying every keyword of the language at every line start (as it used to be).
+ */
+public class GherkinLexerPerformanceTest extends TestCase {
+  private static final int SCENARIO_COUNT = 2000;
+  private static final int SYNTHETIC_KEYWORD_COUNT = 40;
+  private static final int ITERATIONS = 5;
+
+  private static final String[] TYPES = {"feature", "background", "scenario", "scenario_outline", "examples", "given", "when", "then", "and", "but"};
+
+  public void testLexLargeFeatureFile() throws Exception {
+    final GherkinKeywordProvider provider = new JsonGherkinKeywordProvider(new ByteArrayInputStream(buildKeywordsJson().getBytes("UTF-8")));
+    final String text = buildFeature(provider);
+
+    final List<String> expected = findKeywordsByList(provider, text);
+    assertEquals(SCENARIO_COUNT * 5 + 1, expected.size());
+
+    assertEquals(expected, findKeywordsByLexer(provider, text));
+
+    PlatformTestUtil.assertTiming("Lexing " + text.length() + " chars with " + provider.getAllKeywords("xx").size() + " keywords " +
+                                  ITERATIONS + " times", 3000, new Runnable() {
+      @Override
+      public void run() {
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+          findKeywordsByLexer(provider, text);
+        }
+      }
+    });
+  }
+
+  public void testKeywordGluedToWord() throws Exception {
+    final GherkinKeywordProvider provider = new PlainGherkinKeywordProvider();
+    assertEquals(Arrays.asList("Scenario", "Given", "And", "Lorsqu'"),
+                 findKeywordsByLexer(provider, "Scenario: x\nGivenx\nGiven\nAndy\nAnd y\nLorsqu'il\n"));
+  }
+
+  @NotNull
+  private static String buildKeywordsJson() {
+    final StringBuilder json = new StringBuilder("{\"xx\": {\"name\": \"Synthetic\", \"native\": \"Synthetic\"");
+    for (String type : TYPES) {
+      json.append(", \"").append(type).append("\": \"");
+      if (!type.equals("feature") && !type.equals("background")) {
+        json.append("*|");
+      }
+      for (int i = 0; i < SYNTHETIC_KEYWORD_COUNT; i++) {
+        json.append(type).append(i).append(' ').append(type).append(" keyword|");
+      }
+      json.append(type).append('"');
+    }
+    return json.append("}}").toString();
+  }
+
+  @NotNull
+  private static String buildFeature(@NotNull GherkinKeywordProvider provider) {
+    final Random random = new Random(17);
+    final StringBuilder text = new StringBuilder("# language: xx\n");
+    text.append(pick(provider, GherkinTokenTypes.FEATURE_KEYWORD, random)).append(": generated\n\n");
+    for (int i = 0; i < SCENARIO_COUNT; i++) {
+      text.append("  ").append(pick(provider, GherkinTokenTypes.SCENARIO_KEYWORD, random)).append(": scenario ").append(i).append('\n');
+      for (int step = 0; step < 4; step++) {
+        text.append("    ").append(pick(provider, GherkinTokenTypes.STEP_KEYWORD, random))
+          .append(" something number ").append(random.nextInt(1000)).append(" happens\n");
+      }
+      text.append("    | a | b |\n    | 1 | 2 |\n");
+      text.append("    # just a comment\n\n");
+    }
+    return text.toString();
+  }
+
+  @NotNull
+  private static String pick(@NotNull GherkinKeywordProvider provider, @NotNull IElementType type, @NotNull Random random) {
+    final Collection<String> keywords = provider.getKeywordsTable("xx").getKeywords(type);
+    assertNotNull(keywords);
+    final List<String> list = new ArrayList<String>(keywords);
+    list.remove("*");
+    return list.get(random.nextInt(list.size()));
+  }
+
+  @NotNull
+  private static List<String> findKeywordsByLexer(@NotNull GherkinKeywordProvider provider, @NotNull String text) {
+    final List<String> result = new ArrayList<String>();
+    final GherkinLexer lexer = new GherkinLexer(provider);
+    lexer.start(text);
+    while (lexer.getTokenType() != null) {
+      if (GherkinTokenTypes.KEYWORDS.contains(lexer.getTokenType())) {
+        result.add(text.substring(lexer.getTokenStart(), lexer.getTokenEnd()));
+      }
+      lexer.advance();
+    }
+    return result;
+  }
+
+  /**
+   * Tries the keywords longest first at every line start.
+   */
+  @NotNull
+  private static List<String> findKeywordsByList(@NotNull GherkinKeywordProvider provider, @NotNull String text) {
+    final List<String> keywords = new ArrayList<String>(provider.getAllKeywords("xx"));
+    Collections.sort(keywords, new Comparator<String>() {
+      public int compare(String o1, String o2) {
+        return o2.length() - o1.length();
+      }
+    });
+    final List<String> result = new ArrayList<String>();
+    int lineStart = 0;
+    while (lineStart < text.length()) {
+      int lineEnd = text.indexOf('\n', lineStart);
+      if (lineEnd < 0) lineEnd = text.length();
+      int position = lineStart;
+      while (position < lineEnd && Character.isWhitespace(text.charAt(position))) position++;
+      for (String keyword : keywords) {
+        final int length = keyword.length();
+        if (lineEnd - position >= length && text.subSequence(position, position + length).toString().equals(keyword)) {
+          if (provider.isSpaceAfterKeyword("xx", keyword) && lineEnd - position > length &&
+              Character.isLetterOrDigit(text.charAt(position + length))) {
+            continue;
+          }
+          result.add(keyword);
+          break;
+        }
+      }
+      lineStart = lineEnd + 1;
+    }
+    return result;
+  }
+}
@@ -0,0 +1,138 @@
+package org.jetbrains.plugins.cucumber.steps;
+
+import com.intellij.openapi.fileTypes.PlainTextFileType;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFileFactory;
+import com.intellij.testFramework.PlatformTestUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.plugins.cucumber.CucumberCodeInsightTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Resolves steps of a big feature file against a synthetic step library:
+ * compiling every regex for every step (as it used to be), trying every definition with cached patterns,
+ * and {@link CucumberStepMatcher}, which has to find the same definitions faster.
+ */
+public class CucumberStepMatcherPerformanceTest extends CucumberCodeInsightTestCase {
+  private static final int DEFINITION_COUNT = 3000;
+  private static final int STEP_COUNT = 400;
+  private static final int ITERATIONS = 5;
+
+  private static final String[] SUBJECTS = {"I", "the user", "the admin", "a guest", "the system", "we", "the customer"};
+  private static final String[] VERBS = {"open", "close", "select", "remove", "add", "see", "should see", "edit", "save", "submit"};
+  private static final String[] NOUNS = {"page", "dialog", "order", "item", "basket", "account", "report", "invoice"};
+
+  public void testMatchSyntheticLibrary() throws Exception {
+    final Random random = new Random(17);
+    final List<AbstractStepDefinition> definitions = new ArrayList<AbstractStepDefinition>();
+    final List<String> steps = new ArrayList<String>();
+    for (int i = 0; i < DEFINITION_COUNT; i++) {
+      final String subject = SUBJECTS[i % SUBJECTS.length];
+      final String verb = VERBS[(i / SUBJECTS.length) % VERBS.length];
+      final String noun = NOUNS[i % NOUNS.length] + i;
+      final String regex;
+      final String step;
+      switch (i % 10) {
+        case 0:
+          regex = "(\\w+) " + verb + "s? the " + noun + " with \"([^\"]*)\"";
+          step = "Bob " + verb + " the " + noun + " with \"x\"";
+          break;
+        case 1:
+          regex = "^(.*) " + verb + " (\\d+) " + noun + "$";
+          step = subject + " " + verb + " 3 " + noun;
+          break;
+        default:
+          regex = "^" + subject + " " + verb + " the " + noun + " (?:page|dialog)? ?number (\\d+)$";
+          step = subject + " " + verb + " the " + noun + " number " + random.nextInt(100);
+      }
+      definitions.add(new SyntheticStepDefinition(PsiFileFactory.getInstance(getProject()).createFileFromText(
+        "steps" + i + ".txt", PlainTextFileType.INSTANCE, regex)));
+      if (i % (DEFINITION_COUNT / STEP_COUNT) == 0) {
+        steps.add(step);
+      }
+    }
+    // some steps without definitions
+    for (int i = 0; i < steps.size(); i += 10) {
+      steps.set(i, steps.get(i) + " and more");
+    }
+    Collections.shuffle(steps, random);
+
+    // slow, so done once
+    final List<AbstractStepDefinition> expected = new ArrayList<AbstractStepDefinition>();
+    for (String step : steps) {
+      AbstractStepDefinition found = null;
+      for (AbstractStepDefinition definition : definitions) {
+        final String regex = definition.getCucumberRegex();
+        if (regex != null && CucumberStepPattern.compile(regex).matches(step)) {
+          found = definition;
+          break;
+        }
+      }
+      expected.add(found);
+    }
+    assertTrue(expected.contains(null));
+
+    long linearTime = 0;
+    long matcherTime = 0;
+    for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+      long start = System.nanoTime();
+      final List<AbstractStepDefinition> linear = new ArrayList<AbstractStepDefinition>();
+      for (String step : steps) {
+        AbstractStepDefinition found = null;
+        for (AbstractStepDefinition definition : definitions) {
+          if (definition.matches(step)) {
+            found = definition;
+            break;
+          }
+        }
+        linear.add(found);
+      }
+      linearTime += System.nanoTime() - start;
+
+      start = System.nanoTime();
+      final CucumberStepMatcher matcher = new CucumberStepMatcher(definitions);
+      final List<AbstractStepDefinition> matched = new ArrayList<AbstractStepDefinition>();
+      for (String step : steps) {
+        matched.add(matcher.findFirstMatch(step));
+      }
+      matcherTime += System.nanoTime() - start;
+
+      assertEquals(expected, linear);
+      assertEquals(expected, matched);
+    }
+
+    assertTrue("matcher " + matcherTime / 1000000 + " ms, cached patterns " + linearTime / 1000000 + " ms",
+               matcherTime < linearTime);
+
+    PlatformTestUtil.assertTiming("Matching " + steps.size() + " steps against " + definitions.size() + " definitions", 2000,
+                                  new Runnable() {
+                                    @Override
+                                    public void run() {
+                                      final CucumberStepMatcher matcher = new CucumberStepMatcher(definitions);
+                                      for (String step : steps) {
+                                        matcher.findFirstMatch(step);
+                                      }
+                                    }
+                                  });
+  }
+
+  private static class SyntheticStepDefinition extends AbstractStepDefinition {
+    public SyntheticStepDefinition(@NotNull PsiElement element) {
+      super(element);
+    }
+
+    @Override
+    public List<String> getVariableNames() {
+      return Collections.emptyList();
+    }
+
+    @Override
+    protected String getCucumberRegexFromElement(PsiElement element) {
+      return element != null ? element.getText() : null;
+    }
+  }
+}
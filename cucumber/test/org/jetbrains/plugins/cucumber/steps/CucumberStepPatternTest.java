@@ -0,0 +1,85 @@
+package org.jetbrains.plugins.cucumber.steps;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CucumberStepPatternTest {
+  @Test
+  public void literalPrefixOfAnchoredRegex() throws Exception {
+    CucumberStepPattern pattern = CucumberStepPattern.compile("^I have (\\d+) cukes? in my belly$");
+    assertTrue(pattern.isLiteralPrefix());
+    assertEquals("I have ", pattern.getLiteral());
+    assertTrue(pattern.matches("I have 5 cukes in my belly"));
+    assertFalse(pattern.matches("You have 5 cukes in my belly"));
+  }
+
+  @Test
+  public void cucumberAnchorsAreAnchors() throws Exception {
+    CucumberStepPattern pattern = CucumberStepPattern.compile("\\AI am \"(.*)\"\\z");
+    assertTrue(pattern.isLiteralPrefix());
+    assertEquals("I am \"", pattern.getLiteral());
+    assertTrue(pattern.matches("I am \"happy\""));
+  }
+
+  @Test
+  public void longestLiteralOfNotAnchoredRegex() throws Exception {
+    CucumberStepPattern pattern = CucumberStepPattern.compile("(\\w+) logs? in with password (.*)");
+    assertFalse(pattern.isLiteralPrefix());
+    assertEquals(" in with password ", pattern.getLiteral());
+    assertTrue(pattern.matches("admin logs in with password 123"));
+    assertFalse(pattern.mayMatch("admin logs in with pass 123"));
+  }
+
+  @Test
+  public void quantifiedCharactersAreNotRequired() throws Exception {
+    assertEquals("I ha", CucumberStepPattern.findRequiredLiteral("^I hav?e", true));
+    assertEquals("I hav", CucumberStepPattern.findRequiredLiteral("^I hav+e", true));
+    assertEquals("abc", CucumberStepPattern.findRequiredLiteral("xy{2}abc", false));
+    assertEquals("a.b{c}", CucumberStepPattern.findRequiredLiteral("^a\\.b{c}", true));
+    assertEquals("the ", CucumberStepPattern.findRequiredLiteral("^the [a-z]+ (?:is|are) visible", true));
+  }
+
+  @Test
+  public void nothingRequiredForAlternatives() throws Exception {
+    CucumberStepPattern pattern = CucumberStepPattern.compile("^I open|I close$");
+    assertFalse(pattern.isLiteralPrefix());
+    assertEquals("", pattern.getLiteral());
+    assertTrue(pattern.matches("Then I close"));
+    assertNull(CucumberStepPattern.findRequiredLiteral("(?i)^I open", false));
+  }
+
+  @Test
+  public void nothingRequiredForAlternativesAfterGroup() throws Exception {
+    CucumberStepPattern pattern = CucumberStepPattern.compile("^I open (.*)|I close$");
+    assertFalse(pattern.isLiteralPrefix());
+    assertEquals("", pattern.getLiteral());
+    assertTrue(pattern.mayMatch("I close"));
+    assertTrue(pattern.matches("I close"));
+    assertEquals("I open ", CucumberStepPattern.findRequiredLiteral("^I open (.*|I close)$", true));
+    assertEquals("I open ", CucumberStepPattern.findRequiredLiteral("^I open [|](.*)", true));
+  }
+
+  @Test
+  public void multiCharacterEscapesAreUnclear() throws Exception {
+    assertNull(CucumberStepPattern.findRequiredLiteral("^I \x41m happy", true));
+    assertNull(CucumberStepPattern.findRequiredLiteral("^I am\cIhappy", true));
+    assertNull(CucumberStepPattern.findRequiredLiteral("^I am\011happy", true));
+    assertNull(CucumberStepPattern.findRequiredLiteral("(a) and \1", false));
+    assertTrue(CucumberStepPattern.compile("^I \x41m happy$").matches("I Am happy"));
+  }
+
+  @Test
+  public void escapedVariablesMatchAnything() throws Exception {
+    CucumberStepPattern pattern = CucumberStepPattern.compile("^I have $count cukes$");
+    assertEquals("I have ", pattern.getLiteral());
+    assertTrue(pattern.matches("I have 7 cukes"));
+  }
+
+  @Test
+  public void malformedRegex() throws Exception {
+    CucumberStepPattern pattern = CucumberStepPattern.compile("^I have (unclosed");
+    assertNull(pattern.getPattern());
+    assertFalse(pattern.matches("I have (unclosed"));
+  }
+}
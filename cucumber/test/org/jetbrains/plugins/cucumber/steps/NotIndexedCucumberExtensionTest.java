@@ -0,0 +1,200 @@
+package org.jetbrains.plugins.cucumber.steps;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.fileTypes.FileType;
+import com.intellij.openapi.fileTypes.PlainTextFileType;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiDirectory;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.plugins.cucumber.CucumberCodeInsightTestCase;
+import org.jetbrains.plugins.cucumber.StepDefinitionCreator;
+import org.jetbrains.plugins.cucumber.psi.GherkinFile;
+
+import java.util.*;
+
+/**
+ * Step definitions kept per file by {@link NotIndexedCucumberExtension.DataObject} and the reload queue.
+ * Each line of a test file is a step definition.
+ */
+public class NotIndexedCucumberExtensionTest extends CucumberCodeInsightTestCase {
+  private TestExtension myExtension;
+  private NotIndexedCucumberExtension.DataObject myDataObject;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myExtension = new TestExtension();
+    myDataObject = new NotIndexedCucumberExtension.DataObject();
+  }
+
+  public void testStepDefinitionsReplacedPerFile() {
+    final PsiFile a = myFixture.addFileToProject("a.steps", "^a1$\n^a2$");
+    final PsiFile b = myFixture.addFileToProject("b.steps", "^b1$");
+    myDataObject.putStepDefinitions(a, myExtension.getStepDefinitions(a));
+    myDataObject.putStepDefinitions(b, myExtension.getStepDefinitions(b));
+    assertRegexes("^a1$", "^a2$", "^b1$");
+
+    final List<AbstractStepDefinition> snapshot = myDataObject.getStepDefinitions();
+    assertSame("Unchanged step definitions should be returned as is", snapshot, myDataObject.getStepDefinitions());
+
+    myDataObject.putStepDefinitions(a, Collections.<AbstractStepDefinition>singletonList(new TestStepDefinition(a)));
+    assertRegexes("^a1$\n^a2$", "^b1$");
+
+    myDataObject.removeStepDefinitions(b);
+    assertRegexes("^a1$\n^a2$");
+  }
+
+  public void testRepeatedReloadsCoalesced() {
+    final PsiFile a = myFixture.addFileToProject("a.steps", "^a1$");
+    final PsiFile b = myFixture.addFileToProject("b.steps", "^b1$");
+    assertTrue(myDataObject.queueFileToReload(a));
+    assertFalse("One pooled thread reloads all the queued files", myDataObject.queueFileToReload(b));
+    assertFalse(myDataObject.queueFileToReload(a));
+
+    myExtension.flush(myDataObject);
+    assertEquals(2, myExtension.myLoadCount);
+    assertEquals(2, myDataObject.getReloadedFilesCount());
+    assertTrue(myDataObject.getTotalReloadTime() >= 0);
+    assertRegexes("^a1$", "^b1$");
+    assertNull(myDataObject.pollFileToReload(false));
+
+    myExtension.flush(myDataObject);
+    assertEquals("Nothing is queued, nothing is reloaded", 2, myExtension.myLoadCount);
+  }
+
+  public void testCancelledReloadRequeued() {
+    final PsiFile a = myFixture.addFileToProject("a.steps", "^a1$");
+    final PsiFile b = myFixture.addFileToProject("b.steps", "^b1$");
+    myDataObject.queueFileToReload(a);
+    myDataObject.queueFileToReload(b);
+
+    assertSame(a, myDataObject.pollFileToReload(true));
+    myDataObject.requeueFileToReload(a);
+    assertSame(b, myDataObject.pollFileToReload(true));
+    assertSame(a, myDataObject.pollFileToReload(true));
+
+    // the file is queued again while its cancelled reload is being requeued
+    myDataObject.queueFileToReload(a);
+    myDataObject.requeueFileToReload(a);
+    assertSame(a, myDataObject.pollFileToReload(true));
+    assertNull(myDataObject.pollFileToReload(true));
+    assertTrue("A new pooled thread is scheduled once the queue is empty", myDataObject.queueFileToReload(a));
+  }
+
+  public void testFlushDropsDeletedFile() {
+    final PsiFile a = myFixture.addFileToProject("a.steps", "^a1$");
+    final PsiFile b = myFixture.addFileToProject("b.steps", "^b1$");
+    myDataObject.queueFileToReload(a);
+    myDataObject.queueFileToReload(b);
+    myExtension.flush(myDataObject);
+    assertRegexes("^a1$", "^b1$");
+
+    ApplicationManager.getApplication().runWriteAction(new Runnable() {
+      public void run() {
+        a.delete();
+      }
+    });
+    myDataObject.queueFileToReload(a);
+    myExtension.flush(myDataObject);
+    assertEquals("Step definitions of an invalid file are removed, not reloaded", 2, myExtension.myLoadCount);
+    assertRegexes("^b1$");
+  }
+
+  private void assertRegexes(String... expected) {
+    final List<String> regexes = new ArrayList<String>();
+    for (AbstractStepDefinition stepDefinition : myDataObject.getStepDefinitions()) {
+      regexes.add(stepDefinition.getCucumberRegex());
+    }
+    assertEquals(Arrays.asList(expected), regexes);
+  }
+
+  private static class TestStepDefinition extends AbstractStepDefinition {
+    private final String myRegex;
+
+    private TestStepDefinition(@NotNull PsiElement element) {
+      this(element, element.getText());
+    }
+
+    private TestStepDefinition(@NotNull PsiElement element, @NotNull String regex) {
+      super(element);
+      myRegex = regex;
+    }
+
+    @Override
+    public List<String> getVariableNames() {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public String getCucumberRegex() {
+      return myRegex;
+    }
+
+    @Override
+    protected String getCucumberRegexFromElement(PsiElement element) {
+      return element != null ? element.getText() : null;
+    }
+  }
+
+  private static class TestExtension extends NotIndexedCucumberExtension {
+    private int myLoadCount;
+
+    @Override
+    protected Collection<AbstractStepDefinition> getStepDefinitions(@NotNull PsiFile file) {
+      myLoadCount++;
+      final List<AbstractStepDefinition> result = new ArrayList<AbstractStepDefinition>();
+      for (String regex : StringUtil.split(file.getText(), "\n")) {
+        result.add(new TestStepDefinition(file, regex));
+      }
+      return result;
+    }
+
+    @Override
+    protected void loadStepDefinitionRootsFromLibraries(Module module, List<PsiDirectory> roots, Set<String> directories) {
+    }
+
+    @Override
+    protected void collectAllStepDefsProviders(@NotNull List<VirtualFile> providers, @NotNull Project project) {
+    }
+
+    @Override
+    public void findRelatedStepDefsRoots(@NotNull Module module,
+                                         @NotNull PsiFile featureFile,
+                                         List<PsiDirectory> newStepDefinitionsRoots,
+                                         Set<String> processedStepDirectories) {
+    }
+
+    @Override
+    public boolean isStepLikeFile(@NotNull PsiElement child, @NotNull PsiElement parent) {
+      return child instanceof PsiFile && ((PsiFile)child).getName().endsWith(".steps");
+    }
+
+    @Override
+    public boolean isWritableStepLikeFile(@NotNull PsiElement child, @NotNull PsiElement parent) {
+      return isStepLikeFile(child, parent);
+    }
+
+    @NotNull
+    @Override
+    public FileType getStepFileType() {
+      return PlainTextFileType.INSTANCE;
+    }
+
+    @NotNull
+    @Override
+    public StepDefinitionCreator getStepDefinitionCreator() {
+      throw new UnsupportedOperationException();
+    }
+
+    @NotNull
+    @Override
+    public Collection<String> getGlues(@NotNull GherkinFile file, Set<String> gluesFromOtherFiles) {
+      return Collections.emptyList();
+    }
+  }
+}
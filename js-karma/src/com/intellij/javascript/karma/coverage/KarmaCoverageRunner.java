@@ -6,9 +6,8 @@ import com.intellij.coverage.CoverageSuite;
 import com.intellij.coverage.SimpleCoverageAnnotator;
 import com.intellij.javascript.karma.KarmaConfig;
 import com.intellij.javascript.karma.server.KarmaServer;
-import com.intellij.javascript.testFramework.coverage.CoverageSerializationUtils;
-import com.intellij.javascript.testFramework.coverage.LcovCoverageReport;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.rt.coverage.data.ClassData;
 import com.intellij.rt.coverage.data.LineData;
 import com.intellij.rt.coverage.data.ProjectData;
@@ -17,7 +16,8 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.List;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
@@ -26,8 +26,17 @@ import java.util.Map;
 public class KarmaCoverageRunner extends CoverageRunner {
 
   private static final Logger LOG = Logger.getInstance(KarmaCoverageRunner.class);
+  private static final int MAX_CACHED_SESSIONS = 16;
   private KarmaServer myKarmaServer;
 
+  // session data file (one per run configuration) -> its previous report
+  private final Map<String, Report> myReportsBySession = new LinkedHashMap<String, Report>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Report> eldest) {
+      return size() > MAX_CACHED_SESSIONS;
+    }
+  };
+
   @Override
   public ProjectData loadCoverageData(@NotNull File sessionDataFile, @Nullable CoverageSuite baseCoverageSuite) {
     KarmaConfig karmaConfig = null;
@@ -56,30 +65,74 @@ public class KarmaCoverageRunner extends CoverageRunner {
     myKarmaServer = karmaServer;
   }
 
+  /**
+   * The report is merged into the previous report of the same run configuration: a run of a part of the tests
+   * reports only the files it loaded, the other files keep their previous hits as long as they exist.
+   * Source file paths resolved for the previous report are reused.
+   */
   @NotNull
-  private static ProjectData readProjectData(@NotNull File dataFile, @NotNull File basePath) throws IOException {
-    ProjectData projectData = new ProjectData();
-    LcovCoverageReport report = CoverageSerializationUtils.readLCOV(basePath, dataFile);
-    for (Map.Entry<String, List<LcovCoverageReport.LineHits>> entry : report.getInfo().entrySet()) {
-      String filePath = SimpleCoverageAnnotator.getFilePath(entry.getKey());
-      ClassData classData = projectData.getOrCreateClassData(filePath);
-      int max = 0;
-      List<LcovCoverageReport.LineHits> lineHitsList = entry.getValue();
-      if (lineHitsList.size() > 0) {
-        LcovCoverageReport.LineHits lastLineHits = lineHitsList.get(lineHitsList.size() - 1);
-        max = lastLineHits.getLineNumber();
+  private ProjectData readProjectData(@NotNull File dataFile, @NotNull File basePath) throws IOException {
+    Map<String, KarmaLcovReader.FileHits> hitsBySourceFile = new KarmaLcovReader().read(dataFile);
+    Report previous;
+    synchronized (myReportsBySession) {
+      previous = myReportsBySession.get(dataFile.getPath());
+    }
+    if (previous != null && !basePath.equals(previous.myBasePath)) {
+      previous = null;
+    }
+
+    Report report = new Report(basePath);
+    if (previous != null) {
+      for (Map.Entry<String, KarmaLcovReader.FileHits> entry : previous.myHits.entrySet()) {
+        String sourceFile = entry.getKey();
+        String filePath = previous.myPaths.get(sourceFile);
+        if (!hitsBySourceFile.containsKey(sourceFile) && new File(filePath).isFile()) {
+          report.add(sourceFile, filePath, entry.getValue());
+        }
+      }
+    }
+    for (Map.Entry<String, KarmaLcovReader.FileHits> entry : hitsBySourceFile.entrySet()) {
+      String sourceFile = entry.getKey();
+      String filePath = previous != null ? previous.myPaths.get(sourceFile) : null;
+      if (filePath == null) {
+        filePath = toFilePath(basePath, sourceFile);
       }
+      report.add(sourceFile, filePath, entry.getValue());
+    }
+    synchronized (myReportsBySession) {
+      myReportsBySession.put(dataFile.getPath(), report);
+    }
+
+    ProjectData projectData = new ProjectData();
+    for (Map.Entry<String, KarmaLcovReader.FileHits> entry : report.myHits.entrySet()) {
+      ClassData classData = projectData.getOrCreateClassData(report.myPaths.get(entry.getKey()));
+      KarmaLcovReader.FileHits fileHits = entry.getValue();
+      int max = Math.max(0, fileHits.getMaxLine());
       LineData[] lines = new LineData[max + 1];
-      for (LcovCoverageReport.LineHits lineHits : lineHitsList) {
-        LineData lineData = new LineData(lineHits.getLineNumber(), null);
-        lineData.setHits(lineHits.getHits());
-        lines[lineHits.getLineNumber()] = lineData;
+      for (int lineNumber = 0; lineNumber <= max; lineNumber++) {
+        int hits = fileHits.getHits(lineNumber);
+        if (hits >= 0) {
+          LineData lineData = new LineData(lineNumber, null);
+          lineData.setHits(hits);
+          lines[lineNumber] = lineData;
+        }
       }
       classData.setLines(lines);
     }
     return projectData;
   }
 
+  @NotNull
+  private static String toFilePath(@NotNull File basePath, @NotNull String sourceFile) {
+    File file = new File(sourceFile);
+    if (!file.isAbsolute()) {
+      file = new File(basePath, sourceFile);
+    }
+    // '.' and '..' are resolved without touching the file system, symlinks are kept as the user sees them
+    String path = FileUtil.toCanonicalPath(FileUtil.toSystemIndependentName(file.getAbsolutePath()));
+    return SimpleCoverageAnnotator.getFilePath(path);
+  }
+
   @Override
   public String getPresentableName() {
     return "KarmaPresentableName";
@@ -99,4 +152,19 @@ public class KarmaCoverageRunner extends CoverageRunner {
   public boolean acceptsCoverageEngine(@NotNull CoverageEngine engine) {
     return engine instanceof KarmaCoverageEngine;
   }
+
+  private static class Report {
+    private final File myBasePath;
+    private final Map<String, String> myPaths = new HashMap<String, String>();
+    private final Map<String, KarmaLcovReader.FileHits> myHits = new LinkedHashMap<String, KarmaLcovReader.FileHits>();
+
+    private Report(@NotNull File basePath) {
+      myBasePath = basePath;
+    }
+
+    private void add(@NotNull String sourceFile, @NotNull String filePath, @NotNull KarmaLcovReader.FileHits hits) {
+      myPaths.put(sourceFile, filePath);
+      myHits.put(sourceFile, hits);
+    }
+  }
 }
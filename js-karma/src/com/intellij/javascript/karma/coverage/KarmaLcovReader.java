@@ -0,0 +1,157 @@
+package com.intellij.javascript.karma.coverage;
+
+import com.intellij.openapi.vfs.CharsetToolkit;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Streams line hits out of an LCOV report into an int table per source file, without intermediate objects per line.
+ */
+public class KarmaLcovReader {
+
+  private static final String SOURCE_FILE_PREFIX = "SF:";
+  private static final String LINE_HIT_PREFIX = "DA:";
+  private static final String END_OF_RECORD = "end_of_record";
+  // larger line numbers are taken for garbage rather than grow the scratch table without bound
+  static final int MAX_LINE_NUMBER = 1 << 20;
+
+  private int[] myScratch = new int[1024];
+
+  public KarmaLcovReader() {
+    Arrays.fill(myScratch, -1);
+  }
+
+  /**
+   * @return line hits by source file path as written in the report, in the report order
+   */
+  @NotNull
+  public Map<String, FileHits> read(@NotNull File lcovFile) throws IOException {
+    InputStream inputStream = new FileInputStream(lcovFile);
+    try {
+      return read(new InputStreamReader(inputStream, CharsetToolkit.UTF8_CHARSET));
+    }
+    finally {
+      inputStream.close();
+    }
+  }
+
+  @NotNull
+  public Map<String, FileHits> read(@NotNull Reader reader) throws IOException {
+    Map<String, FileHits> result = new LinkedHashMap<String, FileHits>();
+    BufferedReader bufferedReader = new BufferedReader(reader);
+    String sourceFile = null;
+    int maxLine = -1;
+    String line;
+    while ((line = bufferedReader.readLine()) != null) {
+      if (line.startsWith(SOURCE_FILE_PREFIX)) {
+        // a record without end_of_record is dropped along with its hits
+        clearScratch(maxLine);
+        sourceFile = line.substring(SOURCE_FILE_PREFIX.length());
+        maxLine = -1;
+      }
+      else if (sourceFile != null && line.startsWith(LINE_HIT_PREFIX)) {
+        int comma = line.indexOf(',', LINE_HIT_PREFIX.length());
+        if (comma < 0) {
+          continue;
+        }
+        int end = line.indexOf(',', comma + 1);
+        int lineNumber = parseInt(line, LINE_HIT_PREFIX.length(), comma);
+        int hits = parseInt(line, comma + 1, end < 0 ? line.length() : end);
+        if (lineNumber < 0 || lineNumber > MAX_LINE_NUMBER || hits < 0) {
+          continue;
+        }
+        ensureScratchCapacity(lineNumber + 1);
+        myScratch[lineNumber] = myScratch[lineNumber] < 0 ? hits : saturatedAdd(myScratch[lineNumber], hits);
+        maxLine = Math.max(maxLine, lineNumber);
+      }
+      else if (sourceFile != null && line.startsWith(END_OF_RECORD)) {
+        FileHits fileHits = createFileHits(maxLine);
+        FileHits sameFileHits = result.get(sourceFile);
+        result.put(sourceFile, sameFileHits != null ? sameFileHits.merge(fileHits) : fileHits);
+        sourceFile = null;
+        maxLine = -1;
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  private FileHits createFileHits(int maxLine) {
+    int length = maxLine + 1;
+    FileHits result = new FileHits(Arrays.copyOf(myScratch, length));
+    clearScratch(maxLine);
+    return result;
+  }
+
+  private void clearScratch(int maxLine) {
+    Arrays.fill(myScratch, 0, maxLine + 1, -1);
+  }
+
+  private void ensureScratchCapacity(int capacity) {
+    if (capacity > myScratch.length) {
+      int oldLength = myScratch.length;
+      myScratch = Arrays.copyOf(myScratch, Math.max(capacity, oldLength * 2));
+      Arrays.fill(myScratch, oldLength, myScratch.length, -1);
+    }
+  }
+
+  /**
+   * @return the parsed non-negative number, capped at {@link Integer#MAX_VALUE}, or -1 if it isn't a number
+   */
+  private static int parseInt(@NotNull String s, int start, int end) {
+    if (start >= end) {
+      return -1;
+    }
+    long result = 0;
+    for (int i = start; i < end; i++) {
+      char c = s.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      result = Math.min(result * 10 + (c - '0'), Integer.MAX_VALUE);
+    }
+    return (int)result;
+  }
+
+  private static int saturatedAdd(int a, int b) {
+    return (int)Math.min((long)a + b, Integer.MAX_VALUE);
+  }
+
+  public static class FileHits {
+    private final int[] myHits;
+
+    private FileHits(@NotNull int[] hits) {
+      myHits = hits;
+    }
+
+    /**
+     * @return the largest line number with data, or -1 if there are no lines
+     */
+    public int getMaxLine() {
+      return myHits.length - 1;
+    }
+
+    /**
+     * @return hits of the line, or -1 if there is no data for the line
+     */
+    public int getHits(int lineNumber) {
+      return lineNumber >= 0 && lineNumber < myHits.length ? myHits[lineNumber] : -1;
+    }
+
+    @NotNull
+    private FileHits merge(@NotNull FileHits other) {
+      int[] hits = Arrays.copyOf(myHits, Math.max(myHits.length, other.myHits.length));
+      Arrays.fill(hits, myHits.length, hits.length, -1);
+      for (int i = 0; i < other.myHits.length; i++) {
+        if (other.myHits[i] >= 0) {
+          hits[i] = hits[i] < 0 ? other.myHits[i] : saturatedAdd(hits[i], other.myHits[i]);
+        }
+      }
+      return new FileHits(hits);
+    }
+  }
+}
@@ -74,6 +74,9 @@ public class KarmaServer {
 
     myDisposable = new MyDisposable();
     Disposer.register(project, myDisposable);
+    // the server log can be viewed after the server has terminated,
+    // until KarmaServerRegistry replaces the server or the project is closed
+    Disposer.register(project, myProcessOutputArchive);
     myRestarter = new KarmaServerRestarter(configurationFile, myDisposable);
   }
 
@@ -209,6 +212,13 @@ public class KarmaServer {
     return myProcessOutputArchive;
   }
 
+  /**
+   * Releases the output kept after the server has terminated, including its spill file.
+   */
+  public void disposeProcessOutputArchive() {
+    Disposer.dispose(myProcessOutputArchive);
+  }
+
   public boolean isPortBound() {
     return myOnPortBoundFired.get();
   }
@@ -26,6 +26,8 @@ public class KarmaServerRegistry {
   private final ConcurrentMap<String, KarmaServer> myServerByConfigFile = new ConcurrentHashMap<String, KarmaServer>();
   private final ConcurrentMap<KarmaServerSettings, KarmaServer> myServers = new ConcurrentHashMap<KarmaServerSettings, KarmaServer>();
   private final ConcurrentMap<KarmaServerSettings, KarmaServerSettings> myStartingServers = new ConcurrentHashMap<KarmaServerSettings, KarmaServerSettings>();
+  // last started server per config file, possibly terminated: its output is kept until the next server replaces it
+  private final ConcurrentMap<String, KarmaServer> myLastServerByConfigFile = new ConcurrentHashMap<String, KarmaServer>();
 
   public KarmaServerRegistry(@NotNull Project project) {
     myProject = project;
@@ -78,6 +80,10 @@ public class KarmaServerRegistry {
             server = new KarmaServer(myProject, serverSettings);
             myServers.put(serverSettings, server);
             myServerByConfigFile.put(serverSettings.getConfigurationFilePath(), server);
+            KarmaServer replacedServer = myLastServerByConfigFile.put(serverSettings.getConfigurationFilePath(), server);
+            if (replacedServer != null) {
+              replacedServer.disposeProcessOutputArchive();
+            }
           }
           finally {
             myStartingServers.remove(serverSettings);
@@ -1,18 +1,33 @@
 package com.intellij.javascript.karma.server.watch;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 import com.intellij.javascript.karma.server.KarmaServer;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
+ * Collects changes of watched files and sends them to the Karma server in batches, one line per batch.
+ * Several changes of the same file are merged into one.
+ *
  * @author Sergey Simonchik
  */
 public class KarmaChangedFilesManager {
 
+  private static final String CHANGED_FILES_PREFIX = "changed-files:";
+
+  private enum Change {ADDED, CHANGED, REMOVED}
+
   private final Object LOCK = new Object();
   private final PrintWriter myServerProcessInput;
+  private Map<String, Change> myPendingChanges = new LinkedHashMap<String, Change>();
+  private long mySentBatchCount;
+  private long mySentChangeCount;
 
   public KarmaChangedFilesManager(@NotNull KarmaServer server) {
     OutputStream outputStream = server.getProcessOutputArchive().getProcessHandler().getProcessInput();
@@ -21,29 +36,89 @@ public class KarmaChangedFilesManager {
   }
 
   public void onFileChanged(@NotNull String path) {
-    sendEvent("changed-file:", path);
+    addChange(path, Change.CHANGED);
   }
 
   public void onFileAdded(@NotNull String path) {
-    sendEvent("added-file:", path);
+    addChange(path, Change.ADDED);
   }
 
   public void onFileRemoved(@NotNull String path) {
-    sendEvent("removed-file:", path);
+    addChange(path, Change.REMOVED);
   }
 
-  private void sendEvent(@NotNull String prefix, @NotNull String path) {
+  private void addChange(@NotNull String path, @NotNull Change change) {
     synchronized (LOCK) {
-      myServerProcessInput.print(prefix);
-      myServerProcessInput.print(path);
-      myServerProcessInput.print("\n");
+      Change pending = myPendingChanges.get(path);
+      if (pending == Change.ADDED && change == Change.CHANGED) {
+        return;
+      }
+      if (pending == Change.REMOVED && change == Change.ADDED) {
+        change = Change.CHANGED;
+      }
+      myPendingChanges.put(path, change);
     }
   }
 
+  public boolean hasPendingChanges() {
+    synchronized (LOCK) {
+      return !myPendingChanges.isEmpty();
+    }
+  }
+
+  /**
+   * Sends all collected changes as a single message.
+   */
   public void flush() {
     synchronized (LOCK) {
+      if (!myPendingChanges.isEmpty()) {
+        myServerProcessInput.print(CHANGED_FILES_PREFIX);
+        myServerProcessInput.print(toJson(myPendingChanges));
+        myServerProcessInput.print("\n");
+        mySentBatchCount++;
+        mySentChangeCount += myPendingChanges.size();
+        myPendingChanges = new LinkedHashMap<String, Change>();
+      }
       myServerProcessInput.flush();
     }
   }
 
+  public long getSentBatchCount() {
+    synchronized (LOCK) {
+      return mySentBatchCount;
+    }
+  }
+
+  public long getSentChangeCount() {
+    synchronized (LOCK) {
+      return mySentChangeCount;
+    }
+  }
+
+  @NotNull
+  private static String toJson(@NotNull Map<String, Change> changes) {
+    JsonArray added = new JsonArray();
+    JsonArray changed = new JsonArray();
+    JsonArray removed = new JsonArray();
+    for (Map.Entry<String, Change> entry : changes.entrySet()) {
+      JsonPrimitive path = new JsonPrimitive(entry.getKey());
+      switch (entry.getValue()) {
+        case ADDED:
+          added.add(path);
+          break;
+        case CHANGED:
+          changed.add(path);
+          break;
+        case REMOVED:
+          removed.add(path);
+          break;
+      }
+    }
+    JsonObject result = new JsonObject();
+    result.add("removed", removed);
+    result.add("added", added);
+    result.add("changed", changed);
+    return result.toString();
+  }
+
 }
@@ -0,0 +1,127 @@
+package com.intellij.javascript.karma.server.watch;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.SystemInfo;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.regex.Pattern;
+
+/**
+ * Matches file paths against Karma file patterns, all compiled into a single regular expression.
+ * Supports a subset of minimatch syntax: '*', '**', '?', '[...]', '{a,b}' and the '+(...)', '*(...)',
+ * '?(...)', '@(...)' extglobs. If any pattern uses something else (like '!(...)'), every path matches,
+ * leaving the filtering to Karma.
+ */
+public class KarmaGlobMatcher {
+
+  private static final Logger LOG = Logger.getInstance(KarmaGlobMatcher.class);
+
+  private final Pattern myPattern;
+
+  public KarmaGlobMatcher(@NotNull Collection<String> globs) {
+    StringBuilder regex = new StringBuilder();
+    for (String glob : globs) {
+      String globRegex = toRegex(glob);
+      if (globRegex == null) {
+        LOG.info("Unsupported file pattern " + glob + ", all changes will be sent to Karma");
+        regex = null;
+        break;
+      }
+      if (regex.length() > 0) {
+        regex.append('|');
+      }
+      regex.append("(?:").append(globRegex).append(')');
+    }
+    int flags = SystemInfo.isFileSystemCaseSensitive ? 0 : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+    myPattern = regex != null ? Pattern.compile(regex.toString(), flags) : null;
+  }
+
+  public boolean matches(@NotNull String path) {
+    return myPattern == null || myPattern.matcher(path).matches();
+  }
+
+  @Nullable
+  static String toRegex(@NotNull String glob) {
+    StringBuilder result = new StringBuilder();
+    Deque<String> groupSuffixes = new ArrayDeque<String>();
+    int braceDepth = 0;
+    int length = glob.length();
+    for (int i = 0; i < length; i++) {
+      char c = glob.charAt(i);
+      char next = i + 1 < length ? glob.charAt(i + 1) : 0;
+      if ((c == '+' || c == '*' || c == '?' || c == '@') && next == '(') {
+        groupSuffixes.push(c == '@' ? ")" : ")" + c);
+        result.append("(?:");
+        i++;
+      }
+      else if (c == '!' && next == '(') {
+        return null;
+      }
+      else if (c == ')' && !groupSuffixes.isEmpty()) {
+        result.append(groupSuffixes.pop());
+      }
+      else if (c == '|' && !groupSuffixes.isEmpty()) {
+        result.append('|');
+      }
+      else if (c == '*' && next == '*') {
+        boolean segmentStart = i == 0 || glob.charAt(i - 1) == '/';
+        char afterStars = i + 2 < length ? glob.charAt(i + 2) : 0;
+        if (segmentStart && afterStars == '/') {
+          result.append("(?:[^/]*/)*");
+          i += 2;
+        }
+        else {
+          result.append(".*");
+          i++;
+        }
+      }
+      else if (c == '*') {
+        result.append("[^/]*");
+      }
+      else if (c == '?') {
+        result.append("[^/]");
+      }
+      else if (c == '{') {
+        braceDepth++;
+        result.append("(?:");
+      }
+      else if (c == ',' && braceDepth > 0) {
+        result.append('|');
+      }
+      else if (c == '}' && braceDepth > 0) {
+        braceDepth--;
+        result.append(')');
+      }
+      else if (c == '[') {
+        int end = glob.indexOf(']', i + 2);
+        if (end < 0) {
+          return null;
+        }
+        String chars = glob.substring(i + 1, end);
+        if (chars.startsWith("!")) {
+          chars = "^" + chars.substring(1);
+        }
+        result.append('[').append(chars.replace("[", "\\[")).append(']');
+        i = end;
+      }
+      else if (c == '\\' && next != 0) {
+        result.append(Pattern.quote(String.valueOf(next)));
+        i++;
+      }
+      else if (Character.isLetterOrDigit(c) || c == '/') {
+        result.append(c);
+      }
+      else {
+        result.append('\\').append(c);
+      }
+    }
+    if (braceDepth > 0 || !groupSuffixes.isEmpty()) {
+      return null;
+    }
+    return result.toString();
+  }
+}
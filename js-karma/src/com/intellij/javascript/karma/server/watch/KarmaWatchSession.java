@@ -4,28 +4,53 @@ import com.google.common.collect.ImmutableList;
 import com.intellij.javascript.karma.server.KarmaServer;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.vfs.*;
+import com.intellij.util.Alarm;
 import com.intellij.util.containers.ContainerUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
+ * Sends changes of files matching Karma file patterns to the Karma server.
+ * <p/>
+ * VFS events are collected during {@link #BATCH_WINDOW_MILLIS} after the first one, then watch roots are updated once
+ * and all collected changes are sent in a single message, so a VCS update touching thousands of files
+ * doesn't cause thousands of rescans and test runs.
+ *
  * @author Sergey Simonchik
  */
 public class KarmaWatchSession {
 
   public static final char SEPARATOR_CHAR = '/';
   public static final String SEPARATOR = String.valueOf(SEPARATOR_CHAR);
+  private static final int BATCH_WINDOW_MILLIS = 300;
 
   private final KarmaChangedFilesManager myChangedFilesManager;
   private final LocalFileSystem myFileSystem;
   private final ImmutableList<KarmaWatchPattern> myWatchPatterns;
+  private final KarmaGlobMatcher myGlobMatcher;
   private final MyVirtualFileListener myVfsListener = new MyVirtualFileListener();
+  private final Alarm myAlarm = new Alarm(Alarm.ThreadToUse.POOLED_THREAD);
+  private final AtomicBoolean myFlushScheduled = new AtomicBoolean(false);
+  private final AtomicBoolean myWatchPatternsOutdated = new AtomicBoolean(false);
+  private final Runnable myFlushRunnable = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
 
   public KarmaWatchSession(@NotNull KarmaServer server, @NotNull final List<String> paths) {
     myChangedFilesManager = new KarmaChangedFilesManager(server);
     myFileSystem = LocalFileSystem.getInstance();
+    List<String> vfsPaths = ContainerUtil.newArrayListWithCapacity(paths.size());
+    for (String path : paths) {
+      vfsPaths.add(path.replace(File.separatorChar, SEPARATOR_CHAR));
+    }
+    myGlobMatcher = new KarmaGlobMatcher(vfsPaths);
     final List<KarmaWatchPattern> watchPatterns = ContainerUtil.newArrayList();
     ApplicationManager.getApplication().runReadAction(new Runnable() {
       @Override
@@ -51,13 +76,60 @@ public class KarmaWatchSession {
     return null;
   }
 
+  /**
+   * Directories are passed as is: Karma file patterns match files only, but Karma should know about removed directories.
+   */
+  private boolean isReported(@NotNull String watchedPath, boolean directory) {
+    return directory || myGlobMatcher.matches(watchedPath);
+  }
+
+  private void onFileChanged(@NotNull String watchedPath) {
+    if (isReported(watchedPath, false)) {
+      myChangedFilesManager.onFileChanged(watchedPath);
+      scheduleFlush();
+    }
+  }
+
+  private void onFileAdded(@NotNull String watchedPath, boolean directory) {
+    if (isReported(watchedPath, directory)) {
+      myChangedFilesManager.onFileAdded(watchedPath);
+      scheduleFlush();
+    }
+  }
+
+  private void onFileRemoved(@NotNull String watchedPath, boolean directory) {
+    if (isReported(watchedPath, directory)) {
+      myChangedFilesManager.onFileRemoved(watchedPath);
+      scheduleFlush();
+    }
+  }
+
+  private void watchPatternsOutdated() {
+    myWatchPatternsOutdated.set(true);
+    scheduleFlush();
+  }
+
+  private void scheduleFlush() {
+    if (myFlushScheduled.compareAndSet(false, true)) {
+      myAlarm.addRequest(myFlushRunnable, BATCH_WINDOW_MILLIS);
+    }
+  }
+
   private void updateWatchPatterns() {
-    for (KarmaWatchPattern pattern : myWatchPatterns) {
-      pattern.update(true);
+    if (myWatchPatternsOutdated.compareAndSet(true, false)) {
+      ApplicationManager.getApplication().runReadAction(new Runnable() {
+        @Override
+        public void run() {
+          for (KarmaWatchPattern pattern : myWatchPatterns) {
+            pattern.update(true);
+          }
+        }
+      });
     }
   }
 
   public void stop() {
+    myAlarm.cancelAllRequests();
     ApplicationManager.getApplication().runReadAction(new Runnable() {
       @Override
       public void run() {
@@ -69,7 +141,12 @@ public class KarmaWatchSession {
     });
   }
 
+  /**
+   * Sends collected changes right away.
+   */
   public void flush() {
+    myFlushScheduled.set(false);
+    updateWatchPatterns();
     myChangedFilesManager.flush();
   }
 
@@ -88,16 +165,17 @@ public class KarmaWatchSession {
 
     @Override
     public void propertyChanged(@NotNull VirtualFilePropertyEvent event) {
-      updateWatchPatterns();
+      watchPatternsOutdated();
       if ("name".equals(event.getPropertyName())) {
         VirtualFile parent = event.getParent();
         if (parent != null) {
           String parentWatchedPath = findWatchedOriginalPath(parent);
           if (parentWatchedPath != null) {
+            boolean directory = event.getFile().isDirectory();
             String oldPath = join(parentWatchedPath, event.getOldValue().toString());
             String newPath = join(parentWatchedPath, event.getNewValue().toString());
-            myChangedFilesManager.onFileRemoved(oldPath);
-            myChangedFilesManager.onFileAdded(newPath);
+            onFileRemoved(oldPath, directory);
+            onFileAdded(newPath, directory);
           }
         }
       }
@@ -108,55 +186,56 @@ public class KarmaWatchSession {
       VirtualFile file = event.getFile();
       String watchedPath = findWatchedOriginalPath(file);
       if (watchedPath != null) {
-        myChangedFilesManager.onFileChanged(watchedPath);
+        onFileChanged(watchedPath);
       }
     }
 
     @Override
     public void fileCreated(@NotNull VirtualFileEvent event) {
-      updateWatchPatterns();
+      watchPatternsOutdated();
       VirtualFile file = event.getFile();
       String watchedPath = findWatchedOriginalPath(file);
       if (watchedPath != null) {
-        myChangedFilesManager.onFileAdded(watchedPath);
+        onFileAdded(watchedPath, file.isDirectory());
       }
     }
 
     @Override
     public void fileDeleted(@NotNull VirtualFileEvent event) {
-      updateWatchPatterns();
+      watchPatternsOutdated();
       VirtualFile file = event.getFile();
       String watchedPath = findWatchedOriginalPath(file);
       if (watchedPath != null) {
-        myChangedFilesManager.onFileRemoved(watchedPath);
+        onFileRemoved(watchedPath, file.isDirectory());
       }
     }
 
     @Override
     public void fileMoved(@NotNull VirtualFileMoveEvent event) {
-      updateWatchPatterns();
+      watchPatternsOutdated();
+      boolean directory = event.getFile().isDirectory();
       String fileName = event.getFileName();
       VirtualFile oldParent = event.getOldParent();
       String oldParentWatchedPath = findWatchedOriginalPath(oldParent);
       if (oldParentWatchedPath != null) {
         String oldPath = join(oldParentWatchedPath, fileName);
-        myChangedFilesManager.onFileRemoved(oldPath);
+        onFileRemoved(oldPath, directory);
       }
       VirtualFile newParent = event.getNewParent();
       String newParentWatchedPath = findWatchedOriginalPath(newParent);
       if (newParentWatchedPath != null) {
         String newPath = join(newParentWatchedPath, fileName);
-        myChangedFilesManager.onFileAdded(newPath);
+        onFileAdded(newPath, directory);
       }
     }
 
     @Override
     public void fileCopied(@NotNull VirtualFileCopyEvent event) {
-      updateWatchPatterns();
+      watchPatternsOutdated();
       VirtualFile file = event.getFile();
       String watchedPath = findWatchedOriginalPath(file);
       if (watchedPath != null) {
-        myChangedFilesManager.onFileAdded(watchedPath);
+        onFileAdded(watchedPath, file.isDirectory());
       }
     }
 
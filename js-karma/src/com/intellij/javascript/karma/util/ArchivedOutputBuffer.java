@@ -0,0 +1,361 @@
+package com.intellij.javascript.karma.util;
+
+import com.intellij.execution.process.ProcessOutputTypes;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.CharsetToolkit;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps process output for replaying it to late listeners.
+ * <p/>
+ * Recent output is kept in memory, up to the memory budget. Older output is spilled to a temporary file,
+ * which is read back in blocks on replay. When the file reaches its limit, further evicted
+ * output is dropped, so the very first output (usually the most interesting one) and the latest output are kept.
+ * <p/>
+ * Replay doesn't block archiving: output arriving while a listener is being replayed
+ * is buffered for that listener and delivered right after the replay.
+ */
+public class ArchivedOutputBuffer {
+
+  private static final Logger LOG = Logger.getInstance(ArchivedOutputBuffer.class);
+  private static final int RECORD_HEADER_SIZE = 8;
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  private final Object myLock = new Object();
+  private final int myMemoryBudget;
+  private final long mySpillLimit;
+
+  private final ArrayDeque<Chunk> myChunks = new ArrayDeque<Chunk>();
+  private final List<Key> myKeys = new ArrayList<Key>();
+  private final List<ListenerState> myListeners = new CopyOnWriteArrayList<ListenerState>();
+
+  private File mySpillFile;
+  private FileChannel mySpillChannel;
+  private boolean mySpillDisabled;
+
+  private long myInMemoryBytes;
+  private long mySpilledBytes;
+  private long mySpilledOutputBytes;
+  private long myDroppedBytes;
+  private long myArchivedBytes;
+
+  /**
+   * @param memoryBudget approximate number of bytes of output kept in memory
+   * @param spillLimit   maximum size of the file older output is spilled to, 0 to drop older output
+   */
+  public ArchivedOutputBuffer(int memoryBudget, long spillLimit) {
+    myMemoryBudget = memoryBudget;
+    mySpillLimit = spillLimit;
+  }
+
+  public void append(@NotNull String text, @NotNull Key outputType) {
+    Chunk chunk = new Chunk(text, outputType);
+    synchronized (myLock) {
+      myChunks.addLast(chunk);
+      myInMemoryBytes += chunk.getMemorySize();
+      myArchivedBytes += chunk.getMemorySize();
+      if (myInMemoryBytes > myMemoryBudget) {
+        evict();
+      }
+      for (ListenerState listener : myListeners) {
+        listener.onLiveOutput(chunk);
+      }
+    }
+  }
+
+  /**
+   * Replays archived output to the listener in the calling thread, then passes new output to it as it arrives.
+   */
+  public void addListener(@NotNull ArchivedOutputListener outputListener) {
+    ListenerState listener = new ListenerState(outputListener);
+    Snapshot snapshot;
+    synchronized (myLock) {
+      snapshot = new Snapshot(mySpillChannel, mySpilledBytes, myDroppedBytes, new ArrayList<Key>(myKeys),
+                              myChunks.toArray(new Chunk[myChunks.size()]));
+      myListeners.add(listener);
+    }
+    try {
+      replay(snapshot, outputListener);
+    }
+    finally {
+      listener.finishReplay();
+    }
+  }
+
+  public void removeListener(@NotNull ArchivedOutputListener outputListener) {
+    for (ListenerState listener : myListeners) {
+      if (listener.myListener == outputListener) {
+        myListeners.remove(listener);
+      }
+    }
+  }
+
+  /**
+   * Total size of the output archived so far, including spilled and dropped output.
+   * Like {@link #getInMemoryBytes()} and {@link #getDroppedBytes()}, counts two bytes per char.
+   */
+  public long getArchivedBytes() {
+    synchronized (myLock) {
+      return myArchivedBytes;
+    }
+  }
+
+  public long getInMemoryBytes() {
+    synchronized (myLock) {
+      return myInMemoryBytes;
+    }
+  }
+
+  /**
+   * Size of the spill file
+   */
+  public long getSpilledBytes() {
+    synchronized (myLock) {
+      return mySpilledBytes;
+    }
+  }
+
+  public long getDroppedBytes() {
+    synchronized (myLock) {
+      return myDroppedBytes;
+    }
+  }
+
+  /**
+   * Deletes the spill file. Output archived later is kept in memory only.
+   */
+  public void dispose() {
+    synchronized (myLock) {
+      mySpillDisabled = true;
+      closeSpillFile();
+    }
+  }
+
+  private void evict() {
+    long target = myMemoryBudget * 3L / 4;
+    List<Chunk> evicted = new ArrayList<Chunk>();
+    while (myInMemoryBytes > target && !myChunks.isEmpty()) {
+      Chunk chunk = myChunks.removeFirst();
+      myInMemoryBytes -= chunk.getMemorySize();
+      evicted.add(chunk);
+    }
+
+    List<byte[]> records = new ArrayList<byte[]>();
+    int spillSize = 0;
+    long spilledMemorySize = 0;
+    for (Chunk chunk : evicted) {
+      byte[] bytes = chunk.myText.getBytes(CharsetToolkit.UTF8_CHARSET);
+      if (!mySpillDisabled && mySpilledBytes + spillSize + RECORD_HEADER_SIZE + bytes.length <= mySpillLimit) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + bytes.length);
+        record.putInt(getKeyIndex(chunk.myOutputType));
+        record.putInt(bytes.length);
+        record.put(bytes);
+        records.add(record.array());
+        spillSize += record.capacity();
+        spilledMemorySize += chunk.getMemorySize();
+      }
+      else {
+        myDroppedBytes += chunk.getMemorySize();
+      }
+    }
+    if (!records.isEmpty()) {
+      spill(records, spillSize, spilledMemorySize);
+    }
+  }
+
+  private void spill(@NotNull List<byte[]> records, int size, long memorySize) {
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    for (byte[] record : records) {
+      buffer.put(record);
+    }
+    buffer.flip();
+    try {
+      if (mySpillChannel == null) {
+        mySpillFile = FileUtil.createTempFile("karma-output", ".bin", true);
+        mySpillChannel = new RandomAccessFile(mySpillFile, "rw").getChannel();
+      }
+      long position = mySpilledBytes;
+      while (buffer.hasRemaining()) {
+        position += mySpillChannel.write(buffer, position);
+      }
+      mySpilledBytes = position;
+      mySpilledOutputBytes += memorySize;
+    }
+    catch (IOException e) {
+      LOG.warn("Cannot spill process output to " + mySpillFile + ", older output will be dropped", e);
+      myDroppedBytes += memorySize;
+      mySpillDisabled = true;
+      closeSpillFile();
+    }
+  }
+
+  private void closeSpillFile() {
+    if (mySpillChannel != null) {
+      try {
+        mySpillChannel.close();
+      }
+      catch (IOException e) {
+        LOG.warn(e);
+      }
+      mySpillChannel = null;
+    }
+    myDroppedBytes += mySpilledOutputBytes;
+    mySpilledOutputBytes = 0;
+    mySpilledBytes = 0;
+    if (mySpillFile != null) {
+      FileUtil.delete(mySpillFile);
+      mySpillFile = null;
+    }
+  }
+
+  private int getKeyIndex(@NotNull Key outputType) {
+    int index = myKeys.indexOf(outputType);
+    if (index < 0) {
+      myKeys.add(outputType);
+      index = myKeys.size() - 1;
+    }
+    return index;
+  }
+
+  private static void replay(@NotNull Snapshot snapshot, @NotNull ArchivedOutputListener listener) {
+    if (snapshot.mySpillChannel != null && snapshot.mySpilledBytes > 0) {
+      try {
+        replaySpilled(snapshot, listener);
+      }
+      catch (IOException e) {
+        LOG.warn("Cannot read spilled process output", e);
+      }
+    }
+    if (snapshot.myDroppedBytes > 0) {
+      listener.onOutputAvailable("... " + snapshot.myDroppedBytes + " bytes of output skipped ...\n",
+                                 ProcessOutputTypes.SYSTEM, true);
+    }
+    for (Chunk chunk : snapshot.myChunks) {
+      listener.onOutputAvailable(chunk.myText, chunk.myOutputType, true);
+    }
+  }
+
+  private static void replaySpilled(@NotNull Snapshot snapshot, @NotNull ArchivedOutputListener listener) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    long position = 0;
+    while (position < snapshot.mySpilledBytes) {
+      buffer.clear();
+      buffer.limit((int)Math.min(buffer.capacity(), snapshot.mySpilledBytes - position));
+      readFully(snapshot.mySpillChannel, buffer, position);
+      if (buffer.limit() < RECORD_HEADER_SIZE) {
+        throw new IOException("Malformed spilled output at " + position);
+      }
+      int consumed = 0;
+      while (buffer.limit() - consumed >= RECORD_HEADER_SIZE) {
+        int keyIndex = buffer.getInt(consumed);
+        int length = buffer.getInt(consumed + RECORD_HEADER_SIZE / 2);
+        if (length < 0 || position + consumed + RECORD_HEADER_SIZE + length > snapshot.mySpilledBytes) {
+          throw new IOException("Malformed spilled output at " + (position + consumed));
+        }
+        if (buffer.limit() - consumed < RECORD_HEADER_SIZE + length) {
+          break;
+        }
+        String text = new String(buffer.array(), consumed + RECORD_HEADER_SIZE, length, CharsetToolkit.UTF8_CHARSET);
+        consumed += RECORD_HEADER_SIZE + length;
+        listener.onOutputAvailable(text, snapshot.myKeys.get(keyIndex), true);
+      }
+      if (consumed == 0) {
+        // a record larger than the buffer
+        buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + buffer.getInt(RECORD_HEADER_SIZE / 2));
+        continue;
+      }
+      position += consumed;
+    }
+  }
+
+  private static void readFully(@NotNull FileChannel channel, @NotNull ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException("Unexpected end of spilled output at " + (position + buffer.position()));
+      }
+    }
+  }
+
+  private static class Chunk {
+    private final String myText;
+    private final Key myOutputType;
+
+    private Chunk(@NotNull String text, @NotNull Key outputType) {
+      myText = text;
+      myOutputType = outputType;
+    }
+
+    private int getMemorySize() {
+      return myText.length() * 2;
+    }
+  }
+
+  private static class Snapshot {
+    private final FileChannel mySpillChannel;
+    private final long mySpilledBytes;
+    private final long myDroppedBytes;
+    private final List<Key> myKeys;
+    private final Chunk[] myChunks;
+
+    private Snapshot(@Nullable FileChannel spillChannel,
+                     long spilledBytes,
+                     long droppedBytes,
+                     @NotNull List<Key> keys,
+                     @NotNull Chunk[] chunks) {
+      mySpillChannel = spillChannel;
+      mySpilledBytes = spilledBytes;
+      myDroppedBytes = droppedBytes;
+      myKeys = keys;
+      myChunks = chunks;
+    }
+  }
+
+  private static class ListenerState {
+    private final ArchivedOutputListener myListener;
+    private List<Chunk> myPending = new ArrayList<Chunk>();
+
+    private ListenerState(@NotNull ArchivedOutputListener listener) {
+      myListener = listener;
+    }
+
+    private synchronized void onLiveOutput(@NotNull Chunk chunk) {
+      if (myPending != null) {
+        myPending.add(chunk);
+      }
+      else {
+        myListener.onOutputAvailable(chunk.myText, chunk.myOutputType, false);
+      }
+    }
+
+    private void finishReplay() {
+      while (true) {
+        List<Chunk> pending;
+        synchronized (this) {
+          pending = myPending;
+          if (pending.isEmpty()) {
+            myPending = null;
+            return;
+          }
+          myPending = new ArrayList<Chunk>();
+        }
+        for (Chunk chunk : pending) {
+          myListener.onOutputAvailable(chunk.myText, chunk.myOutputType, false);
+        }
+      }
+    }
+  }
+}
@@ -1,30 +1,38 @@
 package com.intellij.javascript.karma.util;
 
-import com.google.common.collect.Lists;
 import com.intellij.execution.process.*;
+import com.intellij.openapi.Disposable;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.util.Key;
-import com.intellij.openapi.util.Pair;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
+ * Archives output of a long-lived process, see {@link ArchivedOutputBuffer}.
+ *
  * @author Sergey Simonchik
  */
-public class ProcessOutputArchive {
+public class ProcessOutputArchive implements Disposable {
+
+  public static final int DEFAULT_MEMORY_BUDGET = 4 * 1024 * 1024;
+  public static final long DEFAULT_SPILL_LIMIT = 256L * 1024 * 1024;
 
   private static final String PREFIX = "##intellij-event[";
   private static final String SUFFIX = "]\n";
 
   private final ProcessHandler myProcessHandler;
-  private final List<Pair<String, Key>> myTexts = Lists.newArrayList();
-  private final List<ArchivedOutputListener> myOutputListeners = new CopyOnWriteArrayList<ArchivedOutputListener>();
+  private final ArchivedOutputBuffer myBuffer;
   private final List<StreamEventListener> myStdoutStreamEventListeners = new CopyOnWriteArrayList<StreamEventListener>();
 
   public ProcessOutputArchive(@NotNull ProcessHandler processHandler) {
+    this(processHandler, DEFAULT_MEMORY_BUDGET, DEFAULT_SPILL_LIMIT);
+  }
+
+  public ProcessOutputArchive(@NotNull ProcessHandler processHandler, int memoryBudget, long spillLimit) {
     myProcessHandler = processHandler;
+    myBuffer = new ArchivedOutputBuffer(memoryBudget, spillLimit);
   }
 
   public void startNotify() {
@@ -37,12 +45,7 @@ public class ProcessOutputArchive {
             return;
           }
         }
-        synchronized (myTexts) {
-          myTexts.add(Pair.create(text, outputType));
-          for (ArchivedOutputListener listener : myOutputListeners) {
-            listener.onOutputAvailable(event.getText(), outputType, false);
-          }
-        }
+        myBuffer.append(text, outputType);
       }
     });
     myProcessHandler.startNotify();
@@ -73,12 +76,7 @@ public class ProcessOutputArchive {
     ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
       @Override
       public void run() {
-        synchronized (myTexts) {
-          for (Pair<String, Key> text : myTexts) {
-            outputListener.onOutputAvailable(text.getFirst(), text.getSecond(), true);
-          }
-          myOutputListeners.add(outputListener);
-        }
+        myBuffer.addListener(outputListener);
       }
     });
   }
@@ -87,4 +85,14 @@ public class ProcessOutputArchive {
     myStdoutStreamEventListeners.add(listener);
   }
 
+  @NotNull
+  public ArchivedOutputBuffer getBuffer() {
+    return myBuffer;
+  }
+
+  @Override
+  public void dispose() {
+    myBuffer.dispose();
+  }
+
 }
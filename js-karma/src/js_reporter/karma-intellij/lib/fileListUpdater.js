@@ -3,7 +3,16 @@ var intellijUtil = require('./intellijUtil');
 function FileListUpdater(config, fileList) {
   var FILE_CHANGED_PREFIX = "changed-file:"
     , FILE_ADDED_PREFIX = "added-file:"
-    , FILE_REMOVED_PREFIX = "removed-file:";
+    , FILE_REMOVED_PREFIX = "removed-file:"
+    , FILES_CHANGED_PREFIX = "changed-files:";
+
+  function forEachPath(paths, callback) {
+    if (Array.isArray(paths)) {
+      paths.forEach(function (path) {
+        callback.call(fileList, path);
+      });
+    }
+  }
 
   intellijUtil.processStdInput(function (line) {
     var path;
@@ -19,6 +28,19 @@ function FileListUpdater(config, fileList) {
       path = line.substring(FILE_REMOVED_PREFIX.length);
       fileList.removeFile(path);
     }
+    else if (line.indexOf(FILES_CHANGED_PREFIX) === 0) {
+      var changes;
+      try {
+        changes = JSON.parse(line.substring(FILES_CHANGED_PREFIX.length));
+      }
+      catch (e) {
+        console.error('intellij: cannot parse changed files: ' + line);
+        return true;
+      }
+      forEachPath(changes.removed, fileList.removeFile);
+      forEachPath(changes.added, fileList.addFile);
+      forEachPath(changes.changed, fileList.changeFile);
+    }
     return true;
   });
 
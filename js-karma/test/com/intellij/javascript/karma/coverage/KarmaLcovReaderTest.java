@@ -0,0 +1,83 @@
+package com.intellij.javascript.karma.coverage;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import java.io.StringReader;
+import java.util.Map;
+
+public class KarmaLcovReaderTest extends TestCase {
+
+  private static final String REPORT = "TN:\n" +
+                                       "SF:src/a.js\n" +
+                                       "FN:1,(anonymous_1)\n" +
+                                       "DA:1,1\n" +
+                                       "DA:3,0\n" +
+                                       "DA:2,5\n" +
+                                       "end_of_record\n" +
+                                       "TN:\n" +
+                                       "SF:/abs/b.js\n" +
+                                       "DA:10,2,checksum\n" +
+                                       "end_of_record\n";
+
+  public void testRead() throws Exception {
+    Map<String, KarmaLcovReader.FileHits> hits = read(new KarmaLcovReader(), REPORT);
+    Assert.assertEquals(2, hits.size());
+
+    KarmaLcovReader.FileHits a = hits.get("src/a.js");
+    Assert.assertEquals(3, a.getMaxLine());
+    Assert.assertEquals(-1, a.getHits(0));
+    Assert.assertEquals(1, a.getHits(1));
+    Assert.assertEquals(5, a.getHits(2));
+    Assert.assertEquals(0, a.getHits(3));
+    Assert.assertEquals(-1, a.getHits(4));
+
+    KarmaLcovReader.FileHits b = hits.get("/abs/b.js");
+    Assert.assertEquals(10, b.getMaxLine());
+    Assert.assertEquals(-1, b.getHits(1));
+    Assert.assertEquals(2, b.getHits(10));
+  }
+
+  public void testSameFileMerged() throws Exception {
+    Map<String, KarmaLcovReader.FileHits> hits = read(new KarmaLcovReader(),
+                                                      "SF:a.js\nDA:1,1\nDA:2,0\nend_of_record\n" +
+                                                      "SF:a.js\nDA:2,3\nDA:4,0\nend_of_record\n");
+    KarmaLcovReader.FileHits a = hits.get("a.js");
+    Assert.assertEquals(1, a.getHits(1));
+    Assert.assertEquals(3, a.getHits(2));
+    Assert.assertEquals(-1, a.getHits(3));
+    Assert.assertEquals(0, a.getHits(4));
+  }
+
+  public void testMalformedLinesIgnored() throws Exception {
+    Map<String, KarmaLcovReader.FileHits> hits = read(new KarmaLcovReader(),
+                                                      "DA:1,1\nSF:a.js\nDA:x,1\nDA:2\nDA:3,-1\nDA:4,1\nend_of_record\n");
+    KarmaLcovReader.FileHits a = hits.get("a.js");
+    Assert.assertEquals(4, a.getMaxLine());
+    Assert.assertEquals(-1, a.getHits(2));
+    Assert.assertEquals(1, a.getHits(4));
+  }
+
+  public void testUnterminatedRecordDropped() throws Exception {
+    Map<String, KarmaLcovReader.FileHits> hits = read(new KarmaLcovReader(),
+                                                      "SF:a.js\nDA:1,1\nDA:5,2\nSF:b.js\nDA:2,3\nend_of_record\n");
+    Assert.assertNull(hits.get("a.js"));
+    KarmaLcovReader.FileHits b = hits.get("b.js");
+    Assert.assertEquals(2, b.getMaxLine());
+    Assert.assertEquals(-1, b.getHits(1));
+    Assert.assertEquals(3, b.getHits(2));
+  }
+
+  public void testHugeLineNumberIgnored() throws Exception {
+    Map<String, KarmaLcovReader.FileHits> hits = read(new KarmaLcovReader(),
+                                                      "SF:a.js\nDA:2147483647,1\nDA:99999999999,1\n" +
+                                                      "DA:" + (KarmaLcovReader.MAX_LINE_NUMBER + 1) + ",1\nDA:3,1\nend_of_record\n");
+    KarmaLcovReader.FileHits a = hits.get("a.js");
+    Assert.assertEquals(3, a.getMaxLine());
+    Assert.assertEquals(1, a.getHits(3));
+  }
+
+  private static Map<String, KarmaLcovReader.FileHits> read(KarmaLcovReader reader, String report) throws Exception {
+    return reader.read(new StringReader(report));
+  }
+}
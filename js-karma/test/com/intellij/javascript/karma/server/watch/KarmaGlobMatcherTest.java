@@ -0,0 +1,61 @@
+package com.intellij.javascript.karma.server.watch;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class KarmaGlobMatcherTest extends TestCase {
+
+  public void testWildcard() throws Exception {
+    KarmaGlobMatcher matcher = create("/path/to/src/*.js");
+    Assert.assertTrue(matcher.matches("/path/to/src/app.js"));
+    Assert.assertFalse(matcher.matches("/path/to/src/app.css"));
+    Assert.assertFalse(matcher.matches("/path/to/src/model/app.js"));
+  }
+
+  public void testGlobStar() throws Exception {
+    KarmaGlobMatcher matcher = create("/path/to/src/**/*.js");
+    Assert.assertTrue(matcher.matches("/path/to/src/app.js"));
+    Assert.assertTrue(matcher.matches("/path/to/src/model/deep/app.js"));
+    Assert.assertFalse(matcher.matches("/path/to/other/app.js"));
+  }
+
+  public void testBraces() throws Exception {
+    KarmaGlobMatcher matcher = create("/path/to/src/{,model/}*.{js,coffee}");
+    Assert.assertTrue(matcher.matches("/path/to/src/app.js"));
+    Assert.assertTrue(matcher.matches("/path/to/src/model/app.coffee"));
+    Assert.assertFalse(matcher.matches("/path/to/src/view/app.js"));
+  }
+
+  public void testExtGlob() throws Exception {
+    KarmaGlobMatcher matcher = create("/path/to/src/+(a|b).js");
+    Assert.assertTrue(matcher.matches("/path/to/src/abba.js"));
+    Assert.assertFalse(matcher.matches("/path/to/src/c.js"));
+  }
+
+  public void testQuestionMarkAndSpecialChars() throws Exception {
+    KarmaGlobMatcher matcher = create("/path/to (1)/src/?.js");
+    Assert.assertTrue(matcher.matches("/path/to (1)/src/a.js"));
+    Assert.assertFalse(matcher.matches("/path/to (1)/src/ab.js"));
+    Assert.assertFalse(matcher.matches("/path/to 1/src/a.js"));
+  }
+
+  public void testSeveralPatterns() throws Exception {
+    KarmaGlobMatcher matcher = new KarmaGlobMatcher(Arrays.asList("/src/*.js", "/test/*Spec.js"));
+    Assert.assertTrue(matcher.matches("/src/app.js"));
+    Assert.assertTrue(matcher.matches("/test/appSpec.js"));
+    Assert.assertFalse(matcher.matches("/test/helper.js"));
+  }
+
+  public void testUnsupportedPatternMatchesEverything() throws Exception {
+    KarmaGlobMatcher matcher = new KarmaGlobMatcher(Arrays.asList("/src/*.js", "/src/!(qqq).js"));
+    Assert.assertTrue(matcher.matches("/src/app.css"));
+  }
+
+  private static KarmaGlobMatcher create(String pattern) {
+    return new KarmaGlobMatcher(Collections.singletonList(pattern));
+  }
+
+}
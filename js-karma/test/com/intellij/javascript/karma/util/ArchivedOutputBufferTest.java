@@ -0,0 +1,146 @@
+package com.intellij.javascript.karma.util;
+
+import com.intellij.execution.process.ProcessOutputTypes;
+import com.intellij.openapi.util.Key;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ArchivedOutputBufferTest extends TestCase {
+
+  private ArchivedOutputBuffer myBuffer;
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (myBuffer != null) {
+      myBuffer.dispose();
+    }
+    super.tearDown();
+  }
+
+  public void testInMemory() throws Exception {
+    myBuffer = new ArchivedOutputBuffer(1024, 1024);
+    myBuffer.append("first\n", ProcessOutputTypes.STDOUT);
+    myBuffer.append("second\n", ProcessOutputTypes.STDERR);
+
+    RecordingListener listener = new RecordingListener();
+    myBuffer.addListener(listener);
+    Assert.assertEquals("[A stdout]first\n[A stderr]second\n", listener.getText());
+    Assert.assertEquals(0, myBuffer.getSpilledBytes());
+    Assert.assertEquals(26, myBuffer.getArchivedBytes());
+  }
+
+  public void testSpilled() throws Exception {
+    myBuffer = new ArchivedOutputBuffer(100, 1024 * 1024);
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      Key outputType = i % 3 == 0 ? ProcessOutputTypes.STDERR : ProcessOutputTypes.STDOUT;
+      String text = "line " + i + " \u043f\u0440\u0438\u0432\u0435\u0442\n";
+      myBuffer.append(text, outputType);
+      expected.append("[A ").append(outputType).append("]").append(text);
+    }
+    Assert.assertTrue(myBuffer.getSpilledBytes() > 0);
+    Assert.assertTrue(myBuffer.getInMemoryBytes() <= 100);
+    Assert.assertEquals(0, myBuffer.getDroppedBytes());
+
+    RecordingListener listener = new RecordingListener();
+    myBuffer.addListener(listener);
+    Assert.assertEquals(expected.toString(), listener.getText());
+  }
+
+  public void testSpilledRecordLargerThanReadBuffer() throws Exception {
+    myBuffer = new ArchivedOutputBuffer(100, 1024 * 1024);
+    StringBuilder large = new StringBuilder();
+    while (large.length() < 100 * 1024) {
+      large.append("large output line\n");
+    }
+    myBuffer.append("before\n", ProcessOutputTypes.STDOUT);
+    myBuffer.append(large.toString(), ProcessOutputTypes.STDOUT);
+    myBuffer.append("after\n", ProcessOutputTypes.STDOUT);
+    for (int i = 0; i < 100; i++) {
+      myBuffer.append("line " + i + "\n", ProcessOutputTypes.STDOUT);
+    }
+    Assert.assertTrue(myBuffer.getSpilledBytes() > large.length());
+
+    RecordingListener listener = new RecordingListener();
+    myBuffer.addListener(listener);
+    Assert.assertTrue(listener.getText().startsWith("[A stdout]before\n[A stdout]" + large + "[A stdout]after\n"));
+  }
+
+  public void testSpillLimit() throws Exception {
+    myBuffer = new ArchivedOutputBuffer(100, 200);
+    for (int i = 0; i < 1000; i++) {
+      myBuffer.append("line " + i + "\n", ProcessOutputTypes.STDOUT);
+    }
+    Assert.assertTrue(myBuffer.getSpilledBytes() <= 200);
+    Assert.assertTrue(myBuffer.getDroppedBytes() > 0);
+
+    RecordingListener listener = new RecordingListener();
+    myBuffer.addListener(listener);
+    String text = listener.getText();
+    Assert.assertTrue(text, text.startsWith("[A stdout]line 0\n[A stdout]line 1\n"));
+    Assert.assertTrue(text, text.contains("bytes of output skipped"));
+    Assert.assertTrue(text, text.endsWith("[A stdout]line 999\n"));
+  }
+
+  public void testLiveOutput() throws Exception {
+    myBuffer = new ArchivedOutputBuffer(1024, 1024);
+    myBuffer.append("archived\n", ProcessOutputTypes.STDOUT);
+    RecordingListener listener = new RecordingListener();
+    myBuffer.addListener(listener);
+    myBuffer.append("live\n", ProcessOutputTypes.STDOUT);
+    Assert.assertEquals("[A stdout]archived\n[L stdout]live\n", listener.getText());
+  }
+
+  public void testOutputDuringReplay() throws Exception {
+    myBuffer = new ArchivedOutputBuffer(100, 1024 * 1024);
+    for (int i = 0; i < 100; i++) {
+      myBuffer.append(i + "\n", ProcessOutputTypes.STDOUT);
+    }
+
+    final CountDownLatch appended = new CountDownLatch(1);
+    RecordingListener listener = new RecordingListener() {
+      @Override
+      public void onOutputAvailable(@NotNull String text, Key outputType, boolean archived) {
+        super.onOutputAvailable(text, outputType, archived);
+        if ("0\n".equals(text)) {
+          new Thread() {
+            @Override
+            public void run() {
+              myBuffer.append("new\n", ProcessOutputTypes.STDOUT);
+              appended.countDown();
+            }
+          }.start();
+          try {
+            Assert.assertTrue("Archiving waits for replay", appended.await(10, TimeUnit.SECONDS));
+          }
+          catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      }
+    };
+    myBuffer.addListener(listener);
+
+    String text = listener.getText();
+    Assert.assertTrue(text, text.startsWith("[A stdout]0\n"));
+    Assert.assertTrue(text, text.endsWith("[A stdout]99\n[L stdout]new\n"));
+  }
+
+  private static class RecordingListener implements ArchivedOutputListener {
+    private final StringBuffer myText = new StringBuffer();
+
+    @Override
+    public void onOutputAvailable(@NotNull String text, Key outputType, boolean archived) {
+      myText.append(archived ? "[A " : "[L ").append(outputType).append("]").append(text);
+    }
+
+    @NotNull
+    public String getText() {
+      return myText.toString();
+    }
+  }
+}
@@ -1,5 +1,6 @@
 package org.osmorc.impl;
 
+import com.intellij.openapi.util.ModificationTracker;
 import com.intellij.util.containers.HashSet;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -7,6 +8,7 @@ import org.osgi.framework.Version;
 import org.osmorc.manifest.BundleManifest;
 import org.osmorc.manifest.ManifestHolder;
 import org.osmorc.manifest.ManifestHolderDisposedException;
+import org.osmorc.manifest.impl.BundleCapabilityIndex;
 
 import java.util.*;
 
@@ -15,8 +17,14 @@ import java.util.*;
  */
 class BundleCache {
   private volatile Set<ManifestHolder> myManifestHolders;
+  private final ModificationTracker myManifestModificationTracker;
+  private volatile IndexRevision myIndex;
 
-  public BundleCache() {
+  /**
+   * @param manifestModificationTracker tracker which is changed whenever a manifest changes, the capability index is rebuilt then
+   */
+  public BundleCache(@NotNull ModificationTracker manifestModificationTracker) {
+    myManifestModificationTracker = manifestModificationTracker;
     myManifestHolders = new HashSet<ManifestHolder>();
   }
 
@@ -25,6 +33,7 @@ class BundleCache {
    */
   public synchronized void clear() {
     myManifestHolders = new HashSet<ManifestHolder>();
+    myIndex = null;
   }
 
   /**
@@ -34,6 +43,8 @@ class BundleCache {
    * @return true, if the holder was added to the cache, false if the holder was already known.
    */
   public synchronized boolean updateWith(@NotNull final ManifestHolder holder) {
+    // the manifest of a known holder may have been replaced as well
+    myIndex = null;
     if (!myManifestHolders.contains(holder)) {
       // copy on write
       HashSet<ManifestHolder> copy = new HashSet<ManifestHolder>(myManifestHolders);
@@ -77,28 +88,26 @@ class BundleCache {
    */
   @NotNull
   public Set<ManifestHolder> whoProvides(@NotNull final String packageSpec) {
-    Set<ManifestHolder> result = new HashSet<ManifestHolder>();
-    for (ManifestHolder manifestHolder : myManifestHolders) {
-      BundleManifest bundleManifest;
-      try {
-        bundleManifest = manifestHolder.getBundleManifest();
-      }
-      catch (ManifestHolderDisposedException ignore) {
-        // ok this thing is gone
-        continue;
-      }
-      if (bundleManifest != null) {
-        if (bundleManifest.isPackageExported(packageSpec)) {
-          result.add(manifestHolder);
-        }
-      }
+    return getIndex().whoProvides(packageSpec);
+  }
+
+  /**
+   * Returns the capability index of the current holders, building it if the holders or their manifests have changed since it was built.
+   */
+  @NotNull
+  private BundleCapabilityIndex getIndex() {
+    Set<ManifestHolder> manifestHolders = myManifestHolders;
+    long modificationCount = myManifestModificationTracker.getModificationCount();
+    IndexRevision index = myIndex;
+    if (index == null || index.myManifestHolders != manifestHolders || index.myModificationCount != modificationCount) {
+      index = new IndexRevision(manifestHolders, modificationCount, new BundleCapabilityIndex(manifestHolders));
+      myIndex = index;
     }
-    return result;
+    return index.myIndex;
   }
 
   /**
-   * Returns a set of  manifest holders that represent fragments of the given manifest holder. Note, that this is a potentially costly operation
-   * when there are many manifests.
+   * Returns a set of  manifest holders that represent fragments of the given manifest holder.
    *
    * @param bundle the manifest holder to find the fragments for.
    * @return a set of matching manifest holders. If there are no fragments known, returns an empty set.
@@ -112,22 +121,7 @@ class BundleCache {
         return Collections.emptySet();
       }
 
-      Set<ManifestHolder> result = new HashSet<ManifestHolder>();
-      for (ManifestHolder manifestHolder : myManifestHolders) {
-        try {
-          BundleManifest potentialFragmentManifest = manifestHolder.getBundleManifest();
-          if (potentialFragmentManifest == null) {
-            continue;
-          }
-          if (bundleManifest.isFragmentHostFor(potentialFragmentManifest)) {
-            result.add(manifestHolder);
-          }
-        }
-        catch (ManifestHolderDisposedException ignore) {
-          // ignore.
-        }
-      }
-      return result;
+      return getIndex().getFragmentsForBundle(bundleManifest);
     }
     catch (ManifestHolderDisposedException ignore) {
       return Collections.emptySet();
@@ -149,22 +143,7 @@ class BundleCache {
         return Collections.emptySet();
       }
 
-      Set<ManifestHolder> result = new HashSet<ManifestHolder>();
-      for (ManifestHolder manifestHolder : myManifestHolders) {
-        try {
-          BundleManifest potentialHostManifest = manifestHolder.getBundleManifest();
-          if (potentialHostManifest == null) {
-            continue;
-          }
-          if (potentialHostManifest.isFragmentHostFor(fragmentManifest)) {
-            result.add(manifestHolder);
-          }
-        }
-        catch (ManifestHolderDisposedException ignore) {
-          // ignore.
-        }
-      }
-      return result;
+      return getIndex().getFragmentHosts(fragmentManifest);
     }
     catch (ManifestHolderDisposedException ignore) {
       return Collections.emptySet();
@@ -333,6 +312,18 @@ class BundleCache {
     return result;
   }
 
+  private static class IndexRevision {
+    private final Set<ManifestHolder> myManifestHolders;
+    private final long myModificationCount;
+    private final BundleCapabilityIndex myIndex;
+
+    private IndexRevision(@NotNull Set<ManifestHolder> manifestHolders, long modificationCount, @NotNull BundleCapabilityIndex index) {
+      myManifestHolders = manifestHolders;
+      myModificationCount = modificationCount;
+      myIndex = index;
+    }
+  }
+
   /**
    * Returns the manifest holder for the given bundle object.
    *
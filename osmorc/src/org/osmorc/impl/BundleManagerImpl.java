@@ -8,6 +8,9 @@ import com.intellij.openapi.roots.OrderEnumerator;
 import com.intellij.openapi.roots.OrderRootType;
 import com.intellij.openapi.roots.impl.libraries.ProjectLibraryTable;
 import com.intellij.openapi.roots.libraries.Library;
+import com.intellij.openapi.util.ModificationTracker;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.util.PsiModificationTracker;
 import com.intellij.util.CommonProcessors;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -41,7 +44,13 @@ public class BundleManagerImpl extends BundleManager {
   public BundleManagerImpl(ManifestHolderRegistry manifestHolderRegistry, Project project) {
     myManifestHolderRegistry = manifestHolderRegistry;
     myProject = project;
-    myBundleCache = new BundleCache();
+    final PsiModificationTracker modificationTracker = PsiManager.getInstance(project).getModificationTracker();
+    myBundleCache = new BundleCache(new ModificationTracker() {
+      @Override
+      public long getModificationCount() {
+        return modificationTracker.getOutOfCodeBlockModificationCount();
+      }
+    });
   }
 
   @Override
@@ -0,0 +1,325 @@
+package org.osmorc.manifest.impl;
+
+import com.intellij.openapi.util.Pair;
+import com.intellij.util.containers.ContainerUtil;
+import org.apache.felix.framework.util.VersionRange;
+import org.apache.felix.framework.util.manifestparser.ParsedHeaderClause;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osmorc.manifest.BundleManifest;
+import org.osmorc.manifest.ManifestHolder;
+import org.osmorc.manifest.ManifestHolderDisposedException;
+
+import java.util.*;
+
+/**
+ * Index of the packages exported by a set of bundles and of their fragment hosts, valid for one revision of their manifests.
+ * <p/>
+ * Exports of a package are sorted by version, so an import is matched only against the exports from the lower bound of its
+ * version range up to the upper bound. The matching itself is done by Felix, so the results are the same as those of
+ * {@link BundleManifest#isPackageExported(String)} and {@link BundleManifest#isFragmentHostFor(BundleManifest)}.
+ */
+public class BundleCapabilityIndex {
+  private static final Comparator<ExportedPackage> VERSION_COMPARATOR = new Comparator<ExportedPackage>() {
+    @Override
+    public int compare(ExportedPackage o1, ExportedPackage o2) {
+      return o1.myVersion.compareTo(o2.myVersion);
+    }
+  };
+
+  private final Map<String, List<ExportedPackage>> myExportsByPackage = new HashMap<String, List<ExportedPackage>>();
+  private final List<ExportedPackage> myAllExports = new ArrayList<ExportedPackage>();
+  private final Set<ManifestHolder> myExportingHolders = new HashSet<ManifestHolder>();
+
+  private final Map<String, List<Pair<ManifestHolder, BundleManifest>>> myBundlesBySymbolicName =
+    new HashMap<String, List<Pair<ManifestHolder, BundleManifest>>>();
+  private final Map<String, List<Pair<ManifestHolder, BundleManifest>>> myFragmentsByHostName =
+    new HashMap<String, List<Pair<ManifestHolder, BundleManifest>>>();
+
+  // manifests of other implementations, checked one by one
+  private final List<Pair<ManifestHolder, BundleManifest>> myNotIndexed = new ArrayList<Pair<ManifestHolder, BundleManifest>>();
+
+  public BundleCapabilityIndex(@NotNull Collection<ManifestHolder> manifestHolders) {
+    for (ManifestHolder manifestHolder : manifestHolders) {
+      BundleManifest bundleManifest;
+      try {
+        bundleManifest = manifestHolder.getBundleManifest();
+      }
+      catch (ManifestHolderDisposedException ignore) {
+        // ok this thing is gone
+        continue;
+      }
+      if (bundleManifest != null) {
+        add(manifestHolder, bundleManifest);
+      }
+    }
+
+    for (List<ExportedPackage> exports : myExportsByPackage.values()) {
+      Collections.sort(exports, VERSION_COMPARATOR);
+    }
+  }
+
+  private void add(@NotNull ManifestHolder manifestHolder, @NotNull BundleManifest bundleManifest) {
+    Pair<ManifestHolder, BundleManifest> entry = Pair.create(manifestHolder, bundleManifest);
+    putEntry(myBundlesBySymbolicName, normalizeSymbolicName(bundleManifest.getBundleSymbolicName()), entry);
+
+    if (!(bundleManifest instanceof BundleManifestImpl)) {
+      myNotIndexed.add(entry);
+      return;
+    }
+
+    BundleManifestImpl manifest = (BundleManifestImpl)bundleManifest;
+    String hostName = manifest.getFragmentHostName();
+    if (hostName != null) {
+      putEntry(myFragmentsByHostName, normalizeSymbolicName(hostName), entry);
+    }
+
+    List<BundleCapability> capabilities = manifest.getExportedCapabilities();
+    if (capabilities == null) {
+      return;
+    }
+    myExportingHolders.add(manifestHolder);
+    for (BundleCapability capability : capabilities) {
+      Map<String, Object> attributes = capability.getAttributes();
+      Object packageName = attributes.get(BundleRevision.PACKAGE_NAMESPACE);
+      if (!(packageName instanceof String)) {
+        continue;
+      }
+      Object version = attributes.get(Constants.VERSION_ATTRIBUTE);
+      ExportedPackage export =
+        new ExportedPackage(manifestHolder, capability, version instanceof Version ? (Version)version : Version.emptyVersion);
+      List<ExportedPackage> exports = myExportsByPackage.get(packageName);
+      if (exports == null) {
+        exports = new ArrayList<ExportedPackage>(1);
+        myExportsByPackage.put((String)packageName, exports);
+      }
+      exports.add(export);
+      myAllExports.add(export);
+    }
+  }
+
+  /**
+   * Returns all manifest holders which provide the given package via export-package.
+   *
+   * @param packageSpec the package specification (may include version ranges)
+   * @return set of matching manifest holders.
+   */
+  @NotNull
+  public Set<ManifestHolder> whoProvides(@NotNull String packageSpec) {
+    Set<ManifestHolder> result = new HashSet<ManifestHolder>();
+    for (Pair<ManifestHolder, BundleManifest> entry : myNotIndexed) {
+      if (entry.second.isPackageExported(packageSpec)) {
+        result.add(entry.first);
+      }
+    }
+
+    List<ParsedHeaderClause> clauses = FelixManifestParser.parseImportClauses(packageSpec);
+    if (clauses == null) return result;  // parse error
+    List<BundleRequirement> requirements = FelixManifestParser.convertImportClauses(clauses);
+    if (requirements == null) return result;  // parse error
+
+    int pathCount = 0;
+    for (ParsedHeaderClause clause : clauses) {
+      pathCount += clause.m_paths.size();
+    }
+    if (pathCount != requirements.size()) {
+      // requirements don't correspond to the paths, can't use the index
+      result.addAll(whoSatisfies(requirements));
+      return result;
+    }
+
+    // a bundle has to satisfy all the requirements
+    Set<ManifestHolder> providers = null;
+    int index = 0;
+    nextClause:
+    for (ParsedHeaderClause clause : clauses) {
+      Object range = clause.m_attrs.get(Constants.VERSION_ATTRIBUTE);
+      for (String packageName : clause.m_paths) {
+        Set<ManifestHolder> requirementProviders =
+          findProviders(packageName, range instanceof VersionRange ? (VersionRange)range : null, requirements.get(index++));
+        if (providers == null) {
+          providers = requirementProviders;
+        }
+        else {
+          providers.retainAll(requirementProviders);
+        }
+        if (providers.isEmpty()) {
+          break nextClause;
+        }
+      }
+    }
+    result.addAll(providers != null ? providers : myExportingHolders);
+    return result;
+  }
+
+  @NotNull
+  private Set<ManifestHolder> findProviders(@NotNull String packageName, @Nullable VersionRange range, @NotNull BundleRequirement requirement) {
+    Set<ManifestHolder> result = new HashSet<ManifestHolder>();
+    if (packageName.indexOf('*') >= 0) {
+      // wildcards of dynamic imports
+      for (ExportedPackage export : myAllExports) {
+        if (requirement.matches(export.myCapability)) {
+          result.add(export.myHolder);
+        }
+      }
+      return result;
+    }
+
+    List<ExportedPackage> exports = myExportsByPackage.get(packageName);
+    if (exports == null) {
+      return result;
+    }
+    int from = range != null ? findFirstNotLower(exports, range.getFloor()) : 0;
+    Version ceiling = range != null ? range.getCeiling() : null;
+    for (int i = from; i < exports.size(); i++) {
+      ExportedPackage export = exports.get(i);
+      if (ceiling != null && export.myVersion.compareTo(ceiling) > 0) {
+        break;
+      }
+      if (requirement.matches(export.myCapability)) {
+        result.add(export.myHolder);
+      }
+    }
+    return result;
+  }
+
+  private static int findFirstNotLower(@NotNull List<ExportedPackage> exports, @NotNull Version version) {
+    int low = 0;
+    int high = exports.size();
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (exports.get(middle).myVersion.compareTo(version) < 0) {
+        low = middle + 1;
+      }
+      else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  @NotNull
+  private Set<ManifestHolder> whoSatisfies(@NotNull List<BundleRequirement> requirements) {
+    Map<ManifestHolder, List<BundleCapability>> capabilities = new HashMap<ManifestHolder, List<BundleCapability>>();
+    for (ExportedPackage export : myAllExports) {
+      List<BundleCapability> holderCapabilities = capabilities.get(export.myHolder);
+      if (holderCapabilities == null) {
+        holderCapabilities = ContainerUtil.newArrayList();
+        capabilities.put(export.myHolder, holderCapabilities);
+      }
+      holderCapabilities.add(export.myCapability);
+    }
+
+    Set<ManifestHolder> result = new HashSet<ManifestHolder>();
+    for (ManifestHolder holder : myExportingHolders) {
+      List<BundleCapability> holderCapabilities = capabilities.get(holder);
+      if (BundleManifestImpl.satisfies(holderCapabilities != null ? holderCapabilities : Collections.<BundleCapability>emptyList(),
+                                       requirements)) {
+        result.add(holder);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the manifest holders that represent fragments of the given bundle.
+   *
+   * @param bundleManifest the manifest of the bundle to find the fragments for.
+   * @return a set of matching manifest holders. If there are no fragments known, returns an empty set.
+   */
+  @NotNull
+  public Set<ManifestHolder> getFragmentsForBundle(@NotNull BundleManifest bundleManifest) {
+    Set<ManifestHolder> result = new HashSet<ManifestHolder>();
+    List<Pair<ManifestHolder, BundleManifest>> candidates = myFragmentsByHostName.get(normalizeSymbolicName(bundleManifest.getBundleSymbolicName()));
+    if (candidates != null) {
+      addFragments(bundleManifest, candidates, result);
+    }
+    addFragments(bundleManifest, myNotIndexed, result);
+    return result;
+  }
+
+  private static void addFragments(@NotNull BundleManifest bundleManifest,
+                                   @NotNull List<Pair<ManifestHolder, BundleManifest>> candidates,
+                                   @NotNull Set<ManifestHolder> result) {
+    for (Pair<ManifestHolder, BundleManifest> candidate : candidates) {
+      if (bundleManifest.isFragmentHostFor(candidate.second)) {
+        result.add(candidate.first);
+      }
+    }
+  }
+
+  /**
+   * Returns the manifest holders of the hosts of the given fragment.
+   *
+   * @param fragmentManifest the manifest of the fragment
+   * @return a set of fragment hosts. Returns an empty set if no hosts could be found.
+   */
+  @NotNull
+  public Set<ManifestHolder> getFragmentHosts(@NotNull BundleManifest fragmentManifest) {
+    Collection<Pair<ManifestHolder, BundleManifest>> candidates;
+    if (fragmentManifest instanceof BundleManifestImpl) {
+      String hostName = ((BundleManifestImpl)fragmentManifest).getFragmentHostName();
+      if (hostName == null) {
+        return Collections.emptySet();
+      }
+      candidates = myBundlesBySymbolicName.get(normalizeSymbolicName(hostName));
+      if (candidates == null) {
+        return Collections.emptySet();
+      }
+    }
+    else {
+      candidates = new ArrayList<Pair<ManifestHolder, BundleManifest>>();
+      for (List<Pair<ManifestHolder, BundleManifest>> entries : myBundlesBySymbolicName.values()) {
+        candidates.addAll(entries);
+      }
+    }
+
+    Set<ManifestHolder> result = new HashSet<ManifestHolder>();
+    for (Pair<ManifestHolder, BundleManifest> candidate : candidates) {
+      if (candidate.second.isFragmentHostFor(fragmentManifest)) {
+        result.add(candidate.first);
+      }
+    }
+    return result;
+  }
+
+  private static void putEntry(@NotNull Map<String, List<Pair<ManifestHolder, BundleManifest>>> map,
+                               @NotNull String key,
+                               @NotNull Pair<ManifestHolder, BundleManifest> entry) {
+    List<Pair<ManifestHolder, BundleManifest>> entries = map.get(key);
+    if (entries == null) {
+      entries = new ArrayList<Pair<ManifestHolder, BundleManifest>>(1);
+      map.put(key, entries);
+    }
+    entries.add(entry);
+  }
+
+  /**
+   * Strips directives and whitespace, as Felix does when matching symbolic names.
+   */
+  @NotNull
+  private static String normalizeSymbolicName(@Nullable String symbolicName) {
+    if (symbolicName == null) {
+      return "";
+    }
+    int end = symbolicName.indexOf(';');
+    return (end >= 0 ? symbolicName.substring(0, end) : symbolicName).replaceAll("\\s+", "");
+  }
+
+  private static class ExportedPackage {
+    private final ManifestHolder myHolder;
+    private final BundleCapability myCapability;
+    private final Version myVersion;
+
+    private ExportedPackage(@NotNull ManifestHolder holder, @NotNull BundleCapability capability, @NotNull Version version) {
+      myHolder = holder;
+      myCapability = capability;
+      myVersion = version;
+    }
+  }
+}
@@ -34,6 +34,7 @@ import org.jetbrains.annotations.Nullable;
 import org.jetbrains.lang.manifest.header.HeaderParserRepository;
 import org.jetbrains.lang.manifest.psi.Header;
 import org.jetbrains.lang.manifest.psi.HeaderValue;
+import org.jetbrains.lang.manifest.psi.HeaderValuePart;
 import org.jetbrains.lang.manifest.psi.ManifestFile;
 import org.osgi.framework.Version;
 import org.osgi.framework.wiring.BundleCapability;
@@ -54,6 +55,7 @@ import static org.osgi.framework.Constants.*;
 public class BundleManifestImpl implements BundleManifest {
   private final HeaderParserRepository myRepository;
   private final ManifestFile myManifestFile;
+  private volatile ExportedCapabilities myExportedCapabilities;
 
   public BundleManifestImpl(@NotNull ManifestFile manifestFile) {
     myRepository = ServiceManager.getService(HeaderParserRepository.class);
@@ -87,9 +89,38 @@ public class BundleManifestImpl implements BundleManifest {
 
   @Override
   public boolean isPackageExported(@NotNull String packageSpec) {
+    List<BundleCapability> capabilities = getExportedCapabilities();
+    if (capabilities == null) {
+      return false;
+    }
+
+    List<BundleRequirement> requirements = FelixManifestParser.parseImportHeader(packageSpec);
+    if (requirements == null) return false;  // parse error
+
+    return satisfies(capabilities, requirements);
+  }
+
+  /**
+   * Returns the package capabilities of the Export-Package header. They are parsed once per modification of the manifest.
+   *
+   * @return the capabilities, or null if there is no Export-Package header or it cannot be parsed.
+   */
+  @Nullable
+  List<BundleCapability> getExportedCapabilities() {
+    long modificationStamp = myManifestFile.getModificationStamp();
+    ExportedCapabilities exported = myExportedCapabilities;
+    if (exported == null || exported.myModificationStamp != modificationStamp) {
+      exported = new ExportedCapabilities(modificationStamp, parseExportedCapabilities());
+      myExportedCapabilities = exported;
+    }
+    return exported.myCapabilities;
+  }
+
+  @Nullable
+  private List<BundleCapability> parseExportedCapabilities() {
     Header header = myManifestFile.getHeader(EXPORT_PACKAGE);
     if (header == null) {
-      return false;
+      return null;
     }
 
     List<BundleCapability> capabilities = ContainerUtil.newArrayList();
@@ -97,14 +128,10 @@ public class BundleManifestImpl implements BundleManifest {
     String bv = getBundleVersion().toString();
     for (HeaderValue headerValue : header.getHeaderValues()) {
       List<BundleCapability> caps = FelixManifestParser.parseExportHeader(headerValue.getUnwrappedText(), bsn, bv);
-      if (caps == null) return false;  // parse error
+      if (caps == null) return null;  // parse error
       capabilities.addAll(caps);
     }
-
-    List<BundleRequirement> requirements = FelixManifestParser.parseImportHeader(packageSpec);
-    if (requirements == null) return false;  // parse error
-
-    return satisfies(capabilities, requirements);
+    return Collections.unmodifiableList(capabilities);
   }
 
   @Nullable
@@ -204,6 +231,20 @@ public class BundleManifestImpl implements BundleManifest {
     return clauses.size() == 1 && isRequiredBundle(clauses.get(0).getUnwrappedText());
   }
 
+  /**
+   * @return the symbolic name from the single clause of the Fragment-Host header, or null if there is no such clause.
+   */
+  @Nullable
+  String getFragmentHostName() {
+    Header header = myManifestFile.getHeader(FRAGMENT_HOST);
+    if (header == null) return null;
+
+    List<HeaderValue> clauses = header.getHeaderValues();
+    if (clauses.size() != 1) return null;
+    HeaderValuePart value = ((Clause)clauses.get(0)).getValue();
+    return value != null ? value.getText().replaceAll("\\s+", "") : null;
+  }
+
   @Override
   public boolean isPackageImported(@NotNull String packageName) {
     Object headerValue = getHeaderValue(IMPORT_PACKAGE);
@@ -234,7 +275,7 @@ public class BundleManifestImpl implements BundleManifest {
     });
   }
 
-  private static boolean satisfies(List<BundleCapability> capabilities, List<BundleRequirement> requirements) {
+  static boolean satisfies(List<BundleCapability> capabilities, List<BundleRequirement> requirements) {
     nextRequirement:
     for (BundleRequirement requirement : requirements) {
       for (BundleCapability capability : capabilities) {
@@ -252,4 +293,14 @@ public class BundleManifestImpl implements BundleManifest {
   public String toString() {
     return myManifestFile.getName() + ":" + getBundleSymbolicName() + ":" + getBundleVersion();
   }
+
+  private static class ExportedCapabilities {
+    private final long myModificationStamp;
+    private final List<BundleCapability> myCapabilities;
+
+    private ExportedCapabilities(long modificationStamp, @Nullable List<BundleCapability> capabilities) {
+      myModificationStamp = modificationStamp;
+      myCapabilities = capabilities;
+    }
+  }
 }
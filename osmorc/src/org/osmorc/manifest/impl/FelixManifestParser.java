@@ -92,12 +92,34 @@ class FelixManifestParser {
     }
   }
 
-  @SuppressWarnings("unchecked")
   @Nullable
   public static List<BundleRequirement> parseImportHeader(String header) {
+    List<ParsedHeaderClause> importClauses = parseImportClauses(header);
+    return importClauses != null ? convertImportClauses(importClauses) : null;
+  }
+
+  /**
+   * @return normalized clauses, version attributes are converted to {@link org.apache.felix.framework.util.VersionRange}
+   */
+  @SuppressWarnings("unchecked")
+  @Nullable
+  public static List<ParsedHeaderClause> parseImportClauses(String header) {
     try {
       List<ParsedHeaderClause> importClauses = (List)parseStandardHeader.invoke(null, header);
-      importClauses = (List)normalizeDynamicImportClauses.invoke(null, NULL_LOGGER, importClauses, "2");
+      return (List)normalizeDynamicImportClauses.invoke(null, NULL_LOGGER, importClauses, "2");
+    }
+    catch (Exception e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return requirements for every path of every clause, in order
+   */
+  @SuppressWarnings("unchecked")
+  @Nullable
+  public static List<BundleRequirement> convertImportClauses(List<ParsedHeaderClause> importClauses) {
+    try {
       return (List)convertImports.invoke(null, importClauses, null);
     }
     catch (Exception e) {
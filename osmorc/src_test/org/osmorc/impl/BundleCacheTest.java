@@ -1,5 +1,6 @@
 package org.osmorc.impl;
 
+import com.intellij.psi.PsiManager;
 import com.intellij.testFramework.LightIdeaTestCase;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.lang.manifest.psi.ManifestFile;
@@ -25,7 +26,7 @@ public class BundleCacheTest extends LightIdeaTestCase {
   public void setUp() throws Exception {
     super.setUp();
 
-    myCache = new BundleCache();
+    myCache = new BundleCache(PsiManager.getInstance(getProject()).getModificationTracker());
     myCache.updateWith(makeManifestHolder(
       "MANIFEST.MF",
       "Bundle-SymbolicName: foo.bar\n" +
@@ -78,6 +79,35 @@ public class BundleCacheTest extends LightIdeaTestCase {
     assertThat(getManifest(fragmentHosts.iterator().next()).getBundleSymbolicName(), equalTo("foo.bar"));
   }
 
+  public void testFragments() {
+    Set<ManifestHolder> fragments = myCache.getFragmentsForBundle(myCache.whoIs("foo.bar").get(0));
+    assertThat(fragments.size(), is(1));
+    assertThat(fragments.iterator().next(), sameInstance(myFragmentHolder));
+    assertThat(myCache.getFragmentsForBundle(myFragmentHolder).isEmpty(), is(true));
+  }
+
+  public void testPackageProviders() throws ManifestHolderDisposedException {
+    assertThat(myCache.whoProvides("foo.bar").size(), is(1));
+    assertThat(myCache.whoProvides("foo.bam").size(), is(2));
+    assertThat(myCache.whoProvides("foo.none").isEmpty(), is(true));
+
+    Set<ManifestHolder> providers = myCache.whoProvides("foo.bam;version=\"[1.2.1,2.0.0)\"");
+    assertThat(providers.size(), is(1));
+    assertThat(getManifest(providers.iterator().next()).getBundleVersion().toString(), equalTo("1.2.3"));
+    assertThat(myCache.whoProvides("foo.bam;version=1.2.0").size(), is(2));
+    assertThat(myCache.whoProvides("foo.bam;version=\"[1.0.0,1.2.0)\"").isEmpty(), is(true));
+  }
+
+  public void testPackageProvidersFollowTheHolders() {
+    assertThat(myCache.whoProvides("foo.qux").isEmpty(), is(true));
+    myCache.updateWith(makeManifestHolder(
+      "MANIFEST6.MF",
+      "Bundle-SymbolicName: foo.qux\n" +
+      "Bundle-Version: 1.0.0\n" +
+      "Export-Package: foo.qux"));
+    assertThat(myCache.whoProvides("foo.qux").size(), is(1));
+  }
+
   public void testRequiredBundleWithVersion() throws ManifestHolderDisposedException {
     ManifestHolder manifestHolder = myCache.whoIsRequiredBundle("foo.bam;bundle-version=1.2.0");
     assertThat(manifestHolder, notNullValue());